@@ -0,0 +1,200 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.netex.conversion.osm.cli;
+
+import org.entur.netex.conversion.osm.transformer.OsmToNetexTransformer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Converts many OSM files in one JVM, a bounded number at a time.
+ * <p>
+ * The JAXB contexts and schemas are loaded once and shared by all conversions, so the wall time is spent converting
+ * rather than starting JVMs and loading the NeTEx schema for every file.
+ */
+class BatchConverter {
+
+    private static final Logger logger = LoggerFactory.getLogger(BatchConverter.class);
+
+    static final String MANIFEST_SEPARATOR = ";";
+    static final String DEFAULT_GLOB = "*.{osm,xml,gz,bz2,zst}";
+    static final String OUTPUT_FILE_SUFFIX = "_netex.xml";
+
+    /**
+     * One file to convert
+     */
+    record Job(Path osmFile, String targetEntity, Path netexOutputFile) {
+    }
+
+    record Result(Job job, long millis, Exception error) {
+        boolean succeeded() {
+            return error == null;
+        }
+    }
+
+    @FunctionalInterface
+    interface Conversion {
+        void convert(Job job) throws Exception;
+    }
+
+    private BatchConverter() {
+    }
+
+    /**
+     * Finds the files to convert.
+     *
+     * @param batch        A directory, whose *.osm, *.xml, *.gz, *.bz2 and *.zst files are converted, a glob in the last path segment
+     *                     such as data/*.osm, or a manifest file with one {@code input;targetEntity;output} line per file. Output is optional, and relative paths
+     *                     in the manifest are resolved against its directory. Empty lines and lines starting with # are ignored.
+     *                     Files in a directory or found by a glob are skipped if named like an output file, so that converting a
+     *                     directory again does not take the outputs of the previous run as inputs.
+     * @param targetEntity The target entity of each file found in a directory or by a glob
+     * @param outputDir    Where files found in a directory or by a glob, and manifest lines without output, are written
+     */
+    static List<Job> findJobs(String batch, String targetEntity, Path outputDir) throws IOException {
+        Path path = Paths.get(batch);
+        if (Files.isRegularFile(path)) {
+            return readManifest(path, outputDir);
+        }
+        Path directory = path;
+        String glob = DEFAULT_GLOB;
+        if (!Files.isDirectory(path)) {
+            directory = path.getParent() == null ? Paths.get(".") : path.getParent();
+            glob = path.getFileName().toString();
+        }
+        if (targetEntity == null) {
+            throw new IllegalArgumentException("A target entity is required to convert the files in " + batch);
+        }
+        List<Job> jobs = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, glob)) {
+            for (Path file : files) {
+                if (Files.isRegularFile(file) && !isOutputFile(file.getFileName().toString())) {
+                    jobs.add(new Job(file, targetEntity, defaultOutputFile(file, outputDir)));
+                }
+            }
+        }
+        jobs.sort((a, b) -> a.osmFile().compareTo(b.osmFile()));
+        return jobs;
+    }
+
+    private static List<Job> readManifest(Path manifest, Path outputDir) throws IOException {
+        Path base = manifest.toAbsolutePath().getParent();
+        List<Job> jobs = new ArrayList<>();
+        List<String> lines = Files.readAllLines(manifest);
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split(MANIFEST_SEPARATOR);
+            if (fields.length < 2 || fields.length > 3) {
+                throw new IllegalArgumentException(String.format("Line %d of %s is not input;targetEntity;output: %s", i + 1, manifest, line));
+            }
+            Path osmFile = base.resolve(fields[0].trim());
+            Path netexOutputFile = fields.length == 3 && !fields[2].isBlank() ? base.resolve(fields[2].trim()) : defaultOutputFile(osmFile, outputDir);
+            jobs.add(new Job(osmFile, fields[1].trim(), netexOutputFile));
+        }
+        return jobs;
+    }
+
+    /**
+     * @return true for the names given by {@link #defaultOutputFile}, also with a target entity inserted when converting several
+     * and compressed with .gz or .zip
+     */
+    static boolean isOutputFile(String name) {
+        return name.endsWith(OUTPUT_FILE_SUFFIX) || name.matches(".*_netex(_\\w+)?(\\.xml(\\.gz|\\.zip)?|\\.zip)");
+    }
+
+    static Path defaultOutputFile(Path osmFile, Path outputDir) {
+        return outputDir.resolve(CompressedInput.baseName(osmFile) + OUTPUT_FILE_SUFFIX);
+    }
+
+    /**
+     * Runs the conversions on a fixed pool of threads and logs a timing summary. A failed conversion does not stop the others.
+     *
+     * @return the result of each job, in the order of the jobs
+     */
+    static List<Result> run(List<Job> jobs, int threads, Conversion conversion) {
+        if (jobs.isEmpty()) {
+            logger.warn("Found no files to convert");
+            return List.of();
+        }
+        long start = System.currentTimeMillis();
+        OsmToNetexTransformer.warmUp();
+        logger.info("Loaded shared contexts in {} ms, converting {} files on {} threads", System.currentTimeMillis() - start, jobs.size(), threads);
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, jobs.size())));
+        List<Result> results = new ArrayList<>();
+        try {
+            List<Future<Result>> futures = new ArrayList<>();
+            for (Job job : jobs) {
+                futures.add(executor.submit(() -> convert(job, conversion)));
+            }
+            for (Future<Result> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while converting", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Conversion failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        logSummary(results, System.currentTimeMillis() - start);
+        return results;
+    }
+
+    private static Result convert(Job job, Conversion conversion) {
+        long start = System.currentTimeMillis();
+        try {
+            Files.createDirectories(job.netexOutputFile().toAbsolutePath().getParent());
+            conversion.convert(job);
+            return new Result(job, System.currentTimeMillis() - start, null);
+        } catch (Exception e) {
+            logger.error("Failed to convert {}", job.osmFile(), e);
+            return new Result(job, System.currentTimeMillis() - start, e);
+        }
+    }
+
+    private static void logSummary(List<Result> results, long wallMillis) {
+        StringBuilder summary = new StringBuilder(String.format("%n%8s  %-7s  %-20s  %s%n", "ms", "status", "target", "file"));
+        long totalMillis = 0;
+        int failed = 0;
+        for (Result result : results) {
+            totalMillis += result.millis();
+            failed += result.succeeded() ? 0 : 1;
+            summary.append(String.format("%8d  %-7s  %-20s  %s%n", result.millis(), result.succeeded() ? "OK" : "FAILED",
+                    result.job().targetEntity(), result.job().osmFile()));
+        }
+        summary.append(String.format("Converted %d of %d files in %d ms wall time, %d ms in total per file",
+                results.size() - failed, results.size(), wallMillis, totalMillis));
+        logger.info(summary.toString());
+    }
+}
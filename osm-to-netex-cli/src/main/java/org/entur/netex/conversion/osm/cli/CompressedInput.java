@@ -0,0 +1,533 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+
+package org.entur.netex.conversion.osm.cli;
+
+import com.github.luben.zstd.ZstdInputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.io.FilenameUtils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Opens OSM input that may be compressed with gzip, bzip2 or zstd, recognized by its first bytes rather than its name.
+ * <p>
+ * Compressed input is decompressed on a separate thread, which hands chunks to the reading thread through a bounded
+ * queue, so decompressing and parsing run at the same time. A file of several gzip members or bzip2 streams, as written
+ * by bgzip or pbzip2, is decompressed member by member on a pool of threads and the members are passed on in order.
+ * The members are found while decompressing, and at most {@link #WINDOW_BYTES} of decompressed members are held at a
+ * time. gzip, pigz, bzip2 and lbzip2 write a single member or stream, which is decompressed on one thread.
+ */
+final class CompressedInput {
+
+    enum Format {
+        XML, GZIP, BZIP2, ZSTD;
+
+        static Format detect(byte[] head) {
+            if (startsWith(head, 0, GZIP_MAGIC)) {
+                return GZIP;
+            }
+            if (startsWith(head, 0, BZIP2_MAGIC)) {
+                return BZIP2;
+            }
+            if (startsWith(head, 0, ZSTD_MAGIC)) {
+                return ZSTD;
+            }
+            return XML;
+        }
+    }
+
+    static final Set<String> EXTENSIONS = Set.of("gz", "bz2", "zst");
+
+    private static final byte[] GZIP_MAGIC = {0x1f, (byte) 0x8b};
+    private static final byte[] BZIP2_MAGIC = {'B', 'Z', 'h'};
+    private static final byte[] ZSTD_MAGIC = {0x28, (byte) 0xb5, 0x2f, (byte) 0xfd};
+    // The magic of the first block after the bzip2 stream header, the decimal digits of pi
+    private static final byte[] BZIP2_BLOCK_MAGIC = {0x31, 0x41, 0x59, 0x26, 0x53, 0x59};
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int CHUNK_SIZE = 1 << 18;
+    private static final int QUEUE_CHUNKS = 16;
+    private static final long MIN_PARALLEL_BYTES = 4 << 20;
+    // Larger members, compressed or not, leave the rest of the file to be decompressed as one stream
+    private static final int MAX_MEMBER_BYTES = 4 << 20;
+    static final long WINDOW_BYTES = 64 << 20;
+
+    private CompressedInput() {
+    }
+
+    /**
+     * Opens a file with the number of available processors for multi-member input.
+     */
+    static InputStream open(Path file) throws IOException {
+        return open(file, Runtime.getRuntime().availableProcessors(), new AtomicLong());
+    }
+
+    /**
+     * @param position Set to the number of bytes of the file read so far, compressed or not, to tell the progress of reading it
+     */
+    static InputStream open(Path file, AtomicLong position) throws IOException {
+        return open(file, Runtime.getRuntime().availableProcessors(), position);
+    }
+
+    /**
+     * @param threads Number of threads decompressing the members of multi-member gzip or bzip2 input at the same time
+     */
+    static InputStream open(Path file, int threads) throws IOException {
+        return open(file, threads, new AtomicLong());
+    }
+
+    private static InputStream open(Path file, int threads, AtomicLong position) throws IOException {
+        Format format = format(file);
+        if (format == Format.XML) {
+            return new BufferedInputStream(counting(Files.newInputStream(file), position), BUFFER_SIZE);
+        }
+        if (threads > 1 && format != Format.ZSTD && Files.size(file) >= MIN_PARALLEL_BYTES) {
+            return ChunkPipe.start("decompress " + file.getFileName(), pipe -> decompressMembers(file, format, threads, pipe, position));
+        }
+        return ChunkPipe.start("decompress " + file.getFileName(), pipe -> decompressStream(file, format, pipe, position));
+    }
+
+    private static void decompressStream(Path file, Format format, ChunkPipe pipe, AtomicLong position) throws IOException {
+        try (InputStream input = decompressor(format, new BufferedInputStream(counting(Files.newInputStream(file), position), BUFFER_SIZE), true)) {
+            copy(input, pipe);
+        }
+    }
+
+    /**
+     * @return the format of a file, recognized by its first bytes
+     */
+    static Format format(Path file) throws IOException {
+        try (InputStream input = Files.newInputStream(file)) {
+            return Format.detect(input.readNBytes(ZSTD_MAGIC.length));
+        }
+    }
+
+    private static InputStream counting(InputStream input, AtomicLong position) {
+        return new FilterInputStream(input) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    position.incrementAndGet();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = super.read(b, off, len);
+                if (read > 0) {
+                    position.addAndGet(read);
+                }
+                return read;
+            }
+        };
+    }
+
+    /**
+     * Decompresses a stream, such as an uploaded body, on a separate thread if it is compressed.
+     */
+    static InputStream open(InputStream input) throws IOException {
+        BufferedInputStream buffered = input instanceof BufferedInputStream b ? b : new BufferedInputStream(input, BUFFER_SIZE);
+        buffered.mark(ZSTD_MAGIC.length);
+        byte[] head = buffered.readNBytes(ZSTD_MAGIC.length);
+        buffered.reset();
+        Format format = Format.detect(head);
+        if (format == Format.XML) {
+            return buffered;
+        }
+        return ChunkPipe.start("decompress " + format, pipe -> {
+            try (InputStream decompressed = decompressor(format, buffered, true)) {
+                copy(decompressed, pipe);
+            }
+        });
+    }
+
+    /**
+     * @return the file name without the extension of the compression and of the OSM file, e.g. oslo for oslo.osm.bz2
+     */
+    static String baseName(Path file) {
+        String name = file.getFileName().toString();
+        if (EXTENSIONS.contains(FilenameUtils.getExtension(name).toLowerCase())) {
+            name = FilenameUtils.removeExtension(name);
+        }
+        return FilenameUtils.removeExtension(name);
+    }
+
+    private static InputStream decompressor(Format format, InputStream input, boolean concatenated) throws IOException {
+        return switch (format) {
+            case GZIP -> new GZIPInputStream(input, BUFFER_SIZE);
+            case BZIP2 -> new BZip2CompressorInputStream(input, concatenated);
+            case ZSTD -> new ZstdInputStream(input);
+            case XML -> input;
+        };
+    }
+
+    private static void copy(InputStream input, ChunkPipe pipe) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            pipe.write(buffer, 0, read);
+        }
+        pipe.flush();
+    }
+
+    /**
+     * Finds the offsets where a gzip member or a bzip2 stream may start, reading the file only as far ahead as asked.
+     * A match inside compressed data is possible, and is found out when its slice fails to decompress.
+     */
+    static final class MemberScanner {
+        private final FileChannel channel;
+        private final Format format;
+        private final byte magic;
+        private final int headerLength;
+        private final ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+        private final Deque<Long> found = new ArrayDeque<>();
+        private long offset;
+        private boolean last;
+
+        MemberScanner(FileChannel channel, Format format) {
+            this.channel = channel;
+            this.format = format;
+            this.magic = format == Format.GZIP ? GZIP_MAGIC[0] : BZIP2_MAGIC[0];
+            this.headerLength = format == Format.GZIP ? 4 : BZIP2_MAGIC.length + 1 + BZIP2_BLOCK_MAGIC.length;
+        }
+
+        /**
+         * @return the offset of the next possible member start, or -1 once the end of the file is reached
+         */
+        long next() throws IOException {
+            while (found.isEmpty() && !last) {
+                scan();
+            }
+            return found.isEmpty() ? -1 : found.poll();
+        }
+
+        private void scan() throws IOException {
+            long read = offset + buffer.position();
+            while (buffer.hasRemaining() && read < channel.size()) {
+                int n = channel.read(buffer, read);
+                if (n == -1) {
+                    break;
+                }
+                read += n;
+            }
+            last = read >= channel.size();
+            buffer.flip();
+            byte[] bytes = buffer.array();
+            int limit = buffer.limit();
+            int end = last ? limit : limit - headerLength + 1;
+            for (int i = 0; i < end; i++) {
+                if (bytes[i] == magic && isMemberHeader(bytes, i, limit, format)) {
+                    found.add(offset + i);
+                }
+            }
+            // Keep the tail that may hold the start of a header cut by the buffer
+            int consumed = Math.max(end, 0);
+            offset += consumed;
+            buffer.position(consumed);
+            buffer.compact();
+        }
+    }
+
+    private static boolean isMemberHeader(byte[] bytes, int i, int limit, Format format) {
+        if (format == Format.GZIP) {
+            // Deflate compression and no reserved flags
+            return i + 3 < limit && startsWith(bytes, i, GZIP_MAGIC) && bytes[i + 2] == 8 && (bytes[i + 3] & 0xe0) == 0;
+        }
+        int block = i + BZIP2_MAGIC.length + 1;
+        return block + BZIP2_BLOCK_MAGIC.length <= limit && startsWith(bytes, i, BZIP2_MAGIC)
+                && bytes[i + 3] >= '1' && bytes[i + 3] <= '9' && startsWith(bytes, block, BZIP2_BLOCK_MAGIC);
+    }
+
+    private static boolean startsWith(byte[] bytes, int offset, byte[] prefix) {
+        if (offset + prefix.length > bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private record Slice(long start, long end, Future<byte[]> data) {
+
+        /**
+         * @return the decompressed bytes held by the slice, counted at the largest size allowed while it is in progress
+         */
+        long held() {
+            return switch (data.state()) {
+                case SUCCESS -> data.resultNow().length;
+                case RUNNING -> MAX_MEMBER_BYTES;
+                case FAILED, CANCELLED -> 0;
+            };
+        }
+    }
+
+    /**
+     * Decompresses the slices between the member offsets on a pool, submitting slices while the decompressed bytes
+     * they may hold fit in {@link #WINDOW_BYTES}, and passes them on in order. A slice that does not decompress on its
+     * own means an offset was a false match or the member is too large, and the rest of the file from there is
+     * decompressed as one stream. So is a file whose second member does not start within {@link #MAX_MEMBER_BYTES}.
+     */
+    private static void decompressMembers(Path file, Format format, int threads, ChunkPipe pipe, AtomicLong position) throws Exception {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MemberScanner scanner = new MemberScanner(channel, format);
+            long start = scanner.next();
+            long end = scanner.next();
+            if (start != 0 || end == -1 || end > MAX_MEMBER_BYTES) {
+                decompressStream(file, format, pipe, position);
+                return;
+            }
+            long size = channel.size();
+            ExecutorService pool = Executors.newFixedThreadPool(threads, runnable -> Thread.ofPlatform().daemon().name("decompress-member").unstarted(runnable));
+            try {
+                Deque<Slice> window = new ArrayDeque<>();
+                while (start != -1 || !window.isEmpty()) {
+                    while (start != -1 && held(window) + MAX_MEMBER_BYTES <= WINDOW_BYTES) {
+                        long sliceStart = start;
+                        long sliceEnd = end == -1 ? size : end;
+                        window.add(new Slice(sliceStart, sliceEnd, pool.submit(() -> decompressSlice(channel, format, sliceStart, sliceEnd))));
+                        start = end;
+                        end = start == -1 ? -1 : scanner.next();
+                    }
+                    Slice slice = window.poll();
+                    byte[] data;
+                    try {
+                        data = slice.data().get();
+                    } catch (ExecutionException e) {
+                        // Interrupting a slice in the middle of a read would close the channel it shares with the others
+                        window.forEach(pending -> pending.data().cancel(false));
+                        position.set(slice.start());
+                        try (FileChannel rest = FileChannel.open(file, StandardOpenOption.READ);
+                             InputStream input = decompressor(format, new BufferedInputStream(
+                                     counting(Channels.newInputStream(rest.position(slice.start())), position), BUFFER_SIZE), true)) {
+                            copy(input, pipe);
+                        }
+                        return;
+                    }
+                    pipe.write(data, 0, data.length);
+                    position.set(slice.end());
+                }
+                pipe.flush();
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    private static long held(Deque<Slice> window) {
+        long held = 0;
+        for (Slice slice : window) {
+            held += slice.held();
+        }
+        return held;
+    }
+
+    private static byte[] decompressSlice(FileChannel channel, Format format, long start, long end) throws IOException {
+        if (end - start > MAX_MEMBER_BYTES) {
+            throw new IOException("Member of " + (end - start) + " bytes too large to decompress on its own");
+        }
+        ByteBuffer slice = ByteBuffer.allocate((int) (end - start));
+        while (slice.hasRemaining()) {
+            if (channel.read(slice, start + slice.position()) == -1) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+        ByteArrayInputStream compressed = new ByteArrayInputStream(slice.array());
+        byte[] data;
+        try (InputStream input = decompressor(format, compressed, false)) {
+            data = input.readNBytes(MAX_MEMBER_BYTES + 1);
+        }
+        if (data.length > MAX_MEMBER_BYTES) {
+            throw new IOException("Member decompresses to more than " + MAX_MEMBER_BYTES + " bytes");
+        }
+        if (format == Format.BZIP2 && compressed.available() > 0) {
+            throw new IOException("Trailing bytes after bzip2 stream");
+        }
+        return data;
+    }
+
+    @FunctionalInterface
+    interface Producer {
+        void produce(ChunkPipe pipe) throws Exception;
+    }
+
+    /**
+     * Passes chunks of bytes from a producer thread to the reading thread. The producer fails with an IOException once
+     * the reader has closed the stream, and an error of the producer is thrown to the reader after the chunks before it.
+     */
+    static final class ChunkPipe extends InputStream {
+        private static final byte[] END = new byte[0];
+
+        private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(QUEUE_CHUNKS);
+        private final OutputStream output = new ChunkOutput();
+        private volatile Throwable error;
+        private volatile boolean closed;
+        private byte[] chunk;
+        private int position;
+
+        static ChunkPipe start(String name, Producer producer) {
+            ChunkPipe pipe = new ChunkPipe();
+            Thread.ofPlatform().daemon().name(name).start(() -> {
+                try {
+                    producer.produce(pipe);
+                    pipe.output.flush();
+                } catch (Throwable e) {
+                    pipe.error = e;
+                } finally {
+                    pipe.finish();
+                }
+            });
+            return pipe;
+        }
+
+        void put(byte[] bytes) throws IOException {
+            try {
+                do {
+                    if (closed) {
+                        throw new IOException("Input closed by the reader");
+                    }
+                } while (!chunks.offer(bytes, 100, TimeUnit.MILLISECONDS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while decompressing");
+            }
+        }
+
+        void write(byte[] b, int off, int len) throws IOException {
+            output.write(b, off, len);
+        }
+
+        void flush() throws IOException {
+            output.flush();
+        }
+
+        private void finish() {
+            try {
+                put(END);
+            } catch (IOException e) {
+                // The reader is gone
+            }
+        }
+
+        private boolean nextChunk() throws IOException {
+            while (chunk == null || position == chunk.length) {
+                if (chunk == END) {
+                    return false;
+                }
+                try {
+                    chunk = chunks.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while reading decompressed input");
+                }
+                position = 0;
+                if (chunk == END && error != null) {
+                    throw new IOException("Unable to decompress input", error);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return nextChunk() ? chunk[position++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!nextChunk()) {
+                return -1;
+            }
+            int read = Math.min(len, chunk.length - position);
+            System.arraycopy(chunk, position, b, off, read);
+            position += read;
+            return read;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            chunks.clear();
+        }
+
+        private final class ChunkOutput extends OutputStream {
+            private byte[] buffer = new byte[CHUNK_SIZE];
+            private int count;
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    int copied = Math.min(len, buffer.length - count);
+                    System.arraycopy(b, off, buffer, count, copied);
+                    count += copied;
+                    off += copied;
+                    len -= copied;
+                    if (count == buffer.length) {
+                        flush();
+                    }
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (count > 0) {
+                    byte[] full = count == buffer.length ? buffer : Arrays.copyOf(buffer, count);
+                    buffer = new byte[CHUNK_SIZE];
+                    count = 0;
+                    put(full);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.netex.conversion.osm.cli;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.entur.netex.conversion.osm.transformer.ConversionReport;
+import org.entur.netex.conversion.osm.transformer.OsmToNetexTransformer;
+import org.entur.netex.conversion.osm.transformer.ValidationMode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.InputSource;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * Long running conversion service on the JDK HTTP server.
+ * <p>
+ * {@code POST /convert?targetEntity=TariffZone} with an OSM XML body, optionally compressed with gzip, bzip2 or zstd, responds with the NeTEx XML.
+ * Several target entities separated by commas are converted into one SiteFrame. {@code continueOnError=true} skips
+ * invalid zones and returns the number of issues in the {@value #ISSUES_HEADER} header. {@code GET /health} responds OK.
+ * <p>
+ * Each request runs on its own virtual thread. At most maxInFlight conversions run at the same time, further
+ * requests are rejected with 429 rather than queued. A conversion taking longer than the timeout is stopped and
+ * answered with 503, unless the response was already started. The shared contexts are loaded and a small
+ * conversion is run before the server starts accepting requests.
+ */
+class ConversionServer {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConversionServer.class);
+
+    static final String CONVERT_PATH = "/convert";
+    static final String HEALTH_PATH = "/health";
+    static final String ISSUES_HEADER = "X-Conversion-Issues";
+
+    private static final String WARM_UP_OSM = "<osm version='0.6'>"
+            + "<node id='-1' lat='59.0' lon='10.0'/><node id='-2' lat='59.0' lon='11.0'/><node id='-3' lat='60.0' lon='11.0'/>"
+            + "<way id='-1'><nd ref='-1'/><nd ref='-2'/><nd ref='-3'/><nd ref='-1'/>"
+            + "<tag k='codespace' v='WRM'/><tag k='name:nor' v='Warm up'/><tag k='reference' v='1'/></way></osm>";
+
+    private final HttpServer server;
+    private final Semaphore inFlight;
+    private final Duration timeout;
+    private final Supplier<OsmToNetexTransformer> transformers;
+
+    /**
+     * @param address      Where to listen, port 0 picks a free port
+     * @param maxInFlight  Number of conversions allowed to run at the same time
+     * @param timeout      How long a conversion may take before it is stopped, or null for no limit
+     * @param transformers Creates a configured transformer for each request
+     */
+    ConversionServer(InetSocketAddress address, int maxInFlight, Duration timeout, Supplier<OsmToNetexTransformer> transformers) throws IOException {
+        this.inFlight = new Semaphore(maxInFlight);
+        this.timeout = timeout;
+        this.transformers = transformers;
+        this.server = HttpServer.create(address, 0);
+        server.createContext(CONVERT_PATH, this::convert);
+        server.createContext(HEALTH_PATH, exchange -> respond(exchange, 200, "OK"));
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+    }
+
+    void start() {
+        long start = System.currentTimeMillis();
+        OsmToNetexTransformer.warmUp();
+        try {
+            transformers.get().marshallOsm(new InputSource(new ByteArrayInputStream(WARM_UP_OSM.getBytes(StandardCharsets.UTF_8))),
+                    OutputStream.nullOutputStream(), "TariffZone", "warm-up", ConversionServer.class.getSimpleName());
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Warm up conversion failed", e);
+        }
+        server.start();
+        logger.info("Warmed up in {} ms, listening on port {} with at most {} conversions in flight",
+                System.currentTimeMillis() - start, getPort(), inFlight.availablePermits());
+    }
+
+    void stop() {
+        server.stop(0);
+    }
+
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void convert(HttpExchange exchange) throws IOException {
+        boolean close = true;
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                respond(exchange, 405, "Use POST with an OSM XML body");
+                return;
+            }
+            if (!inFlight.tryAcquire()) {
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                respond(exchange, 429, "Too many conversions in flight");
+                return;
+            }
+            try {
+                convert(exchange, queryParameters(exchange.getRequestURI().getRawQuery()));
+            } catch (ResponseCutShortException e) {
+                // Closing the exchange would end the chunked body, leaving it open makes the server drop the connection
+                close = false;
+                throw e;
+            } finally {
+                inFlight.release();
+            }
+        } finally {
+            if (close) {
+                exchange.close();
+            }
+        }
+    }
+
+    private void convert(HttpExchange exchange, Map<String, String> parameters) throws IOException {
+        String targetEntity = parameters.get("targetEntity");
+        if (targetEntity == null) {
+            respond(exchange, 400, "Missing query parameter targetEntity");
+            return;
+        }
+        long start = System.currentTimeMillis();
+        OsmToNetexTransformer transformer = transformers.get();
+        boolean continueOnError = Boolean.parseBoolean(parameters.get("continueOnError"));
+        if (continueOnError) {
+            transformer.setValidationMode(ValidationMode.REPORT);
+        }
+        ConversionReport report = new ConversionReport();
+        ResponseStream response = new ResponseStream(exchange, () ->
+                exchange.getResponseHeaders().set(ISSUES_HEADER, String.valueOf(report.getIssues().size())));
+        try (InputStream body = requestBody(exchange)) {
+            if (body == null) {
+                respond(exchange, 415, "OSM PBF is not supported, send OSM XML, optionally compressed");
+                return;
+            }
+            Set<String> targetEntities = new LinkedHashSet<>(Arrays.asList(targetEntity.split(",")));
+            String generatedFrom = parameters.getOrDefault("generatedFrom", "upload");
+            OutputStream output = new BufferedOutputStream(response, 1 << 16);
+            // Runs on the request thread, the timeout stops the conversion from the thread completing the future
+            CompletableFuture<ConversionReport> conversion = targetEntities.size() == 1
+                    ? transformer.marshallOsmAsync(new InputSource(body), output, targetEntity,
+                    generatedFrom, ConversionServer.class.getSimpleName(), report, timeout, Runnable::run)
+                    : transformer.marshallOsmAsync(new InputSource(body), output, targetEntities,
+                    generatedFrom, ConversionServer.class.getSimpleName(), report, timeout, Runnable::run);
+            try {
+                conversion.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof TimeoutException) {
+                    logger.warn("Conversion of {} upload from {} stopped after {}", targetEntity, exchange.getRemoteAddress(), timeout);
+                    respondUnlessCommitted(exchange, response, 503, "The conversion took longer than " + timeout.toSeconds() + " seconds");
+                    return;
+                }
+                throw e.getCause() instanceof RuntimeException cause ? cause : e;
+            }
+            output.close();
+            logger.info("Converted {} upload to {} in {} ms", targetEntity, exchange.getRemoteAddress(), System.currentTimeMillis() - start);
+        } catch (ClassNotFoundException e) {
+            respondUnlessCommitted(exchange, response, 400, "Unknown target entity: " + targetEntity);
+        } catch (IllegalArgumentException e) {
+            respondUnlessCommitted(exchange, response, 422, e.getMessage());
+        } catch (RuntimeException e) {
+            logger.warn("Conversion failed", e);
+            respondUnlessCommitted(exchange, response, 400, e.getMessage());
+        }
+    }
+
+    /**
+     * @return the request body, decompressed if compressed with gzip, bzip2 or zstd, or null if it is OSM PBF
+     */
+    private static InputStream requestBody(HttpExchange exchange) throws IOException {
+        BufferedInputStream body = new BufferedInputStream(exchange.getRequestBody(), 1 << 16);
+        body.mark(8);
+        byte[] magic = body.readNBytes(7);
+        body.reset();
+        // A PBF file starts with the length of the first blob header, followed by its type field "OSMHeader"
+        if (magic.length == 7 && magic[4] == 0x0a && magic[5] == 0x09 && magic[6] == 'O') {
+            return null;
+        }
+        return CompressedInput.open(body);
+    }
+
+    private static void respondUnlessCommitted(HttpExchange exchange, ResponseStream response, int status, String message) throws IOException {
+        if (response.committed) {
+            // The status line is already sent, all that is left is to cut the response short
+            logger.warn("Conversion failed after the response was started: {}", message);
+            throw new ResponseCutShortException(message);
+        }
+        respond(exchange, status, message);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] bytes = String.valueOf(message).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream body = exchange.getResponseBody()) {
+            body.write(bytes);
+        }
+    }
+
+    private static Map<String, String> queryParameters(String rawQuery) {
+        Map<String, String> parameters = new HashMap<>();
+        if (rawQuery == null) {
+            return parameters;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int separator = pair.indexOf('=');
+            if (separator > 0) {
+                parameters.put(URLDecoder.decode(pair.substring(0, separator), StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair.substring(separator + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return parameters;
+    }
+
+    /**
+     * Thrown when a conversion fails after its response was started, so the client sees an incomplete response.
+     */
+    private static final class ResponseCutShortException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ResponseCutShortException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Sends a chunked 200 response on the first write, so errors found while mapping can still get their own status,
+     * while the NeTEx XML is streamed to the client as it is marshalled.
+     */
+    private static final class ResponseStream extends OutputStream {
+        private final HttpExchange exchange;
+        private final Runnable beforeCommit;
+        private OutputStream body;
+        private boolean committed;
+
+        ResponseStream(HttpExchange exchange, Runnable beforeCommit) {
+            this.exchange = exchange;
+            this.beforeCommit = beforeCommit;
+        }
+
+        private OutputStream body() throws IOException {
+            if (!committed) {
+                committed = true;
+                beforeCommit.run();
+                exchange.getResponseHeaders().set("Content-Type", "application/xml; charset=utf-8");
+                exchange.sendResponseHeaders(200, 0);
+                body = exchange.getResponseBody();
+            }
+            return body;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            body().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            body().write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (committed) {
+                body.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (committed) {
+                body.close();
+            }
+        }
+    }
+}
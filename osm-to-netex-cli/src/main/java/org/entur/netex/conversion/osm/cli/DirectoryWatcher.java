@@ -0,0 +1,201 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.netex.conversion.osm.cli;
+
+import org.entur.netex.conversion.osm.transformer.OsmToNetexTransformer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * Watches a directory and converts each OSM file again when it is saved.
+ * <p>
+ * Editors often write a file in several steps, so a file is converted once no event has been seen for it during the
+ * debounce delay. The SHA-256 of the content converted last is kept for each file, and saves that do not change the content
+ * are skipped. Conversions run one at a time on a single thread, with the shared contexts loaded at startup.
+ */
+class DirectoryWatcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(DirectoryWatcher.class);
+
+    static final long DEFAULT_DEBOUNCE_MILLIS = 250;
+
+    private final Path directory;
+    private final Path outputDir;
+    private final String targetEntity;
+    private final long debounceMillis;
+    private final BatchConverter.Conversion conversion;
+    private final PathMatcher inputMatcher = FileSystems.getDefault().getPathMatcher("glob:" + BatchConverter.DEFAULT_GLOB);
+    private final Map<Path, String> hashes = new ConcurrentHashMap<>();
+    final Map<Path, ScheduledFuture<?>> pending = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    DirectoryWatcher(Path directory, Path outputDir, String targetEntity, long debounceMillis, BatchConverter.Conversion conversion) {
+        this.directory = directory.toAbsolutePath();
+        this.outputDir = outputDir.toAbsolutePath();
+        this.targetEntity = targetEntity;
+        this.debounceMillis = debounceMillis;
+        this.conversion = conversion;
+    }
+
+    /**
+     * Converts the files whose output is missing or older, then watches the directory until the thread is interrupted
+     */
+    void run() throws IOException, InterruptedException {
+        OsmToNetexTransformer.warmUp();
+        Files.createDirectories(outputDir);
+        try (WatchService watchService = directory.getFileSystem().newWatchService()) {
+            directory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+            scan();
+            logger.info("Watching {} for changes, writing {} to {}", directory, targetEntity, outputDir);
+            while (true) {
+                WatchKey key = watchService.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == OVERFLOW) {
+                        scan();
+                        continue;
+                    }
+                    Path file = directory.resolve((Path) event.context());
+                    if (!isInput(file)) {
+                        continue;
+                    }
+                    if (event.kind() == ENTRY_DELETE) {
+                        hashes.remove(file);
+                    } else {
+                        schedule(file, debounceMillis);
+                    }
+                }
+                if (!key.reset()) {
+                    logger.warn("{} can no longer be watched", directory);
+                    return;
+                }
+            }
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    void scan() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, BatchConverter.DEFAULT_GLOB)) {
+            for (Path file : files) {
+                if (!isInput(file)) {
+                    continue;
+                }
+                Path output = BatchConverter.defaultOutputFile(file, outputDir);
+                if (Files.exists(output) && Files.getLastModifiedTime(output).compareTo(Files.getLastModifiedTime(file)) >= 0) {
+                    hashes.putIfAbsent(file, hash(file));
+                } else {
+                    schedule(file, 0);
+                }
+            }
+        }
+    }
+
+    private boolean isInput(Path file) {
+        String name = file.getFileName().toString();
+        return inputMatcher.matches(file.getFileName()) && !name.startsWith(".") && !BatchConverter.isOutputFile(name);
+    }
+
+    /**
+     * Schedules a conversion of the file, replacing the one already waiting for it. The conversion removes itself from
+     * the pending ones when it starts.
+     */
+    void schedule(Path file, long delayMillis) {
+        pending.compute(file, (f, waiting) -> {
+            if (waiting != null) {
+                waiting.cancel(false);
+            }
+            // The task cannot remove itself before compute returns, so the reference is set by then
+            AtomicReference<ScheduledFuture<?>> task = new AtomicReference<>();
+            task.set(scheduler.schedule(() -> {
+                pending.remove(f, task.get());
+                convertIfChanged(f);
+            }, delayMillis, TimeUnit.MILLISECONDS));
+            return task.get();
+        });
+    }
+
+    void convertIfChanged(Path file) {
+        long start = System.currentTimeMillis();
+        String hash;
+        try {
+            hash = hash(file);
+        } catch (NoSuchFileException e) {
+            hashes.remove(file);
+            return;
+        } catch (IOException e) {
+            logger.warn("Unable to read {}: {}", file, e.getMessage());
+            return;
+        }
+        if (hash.equals(hashes.get(file))) {
+            logger.debug("Content of {} is unchanged, skipping", file);
+            return;
+        }
+        BatchConverter.Job job = new BatchConverter.Job(file, targetEntity, BatchConverter.defaultOutputFile(file, outputDir));
+        try {
+            conversion.convert(job);
+            hashes.put(file, hash);
+            logger.info("Converted {} to {} in {} ms", file.getFileName(), job.netexOutputFile(), System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            // Forget the hash, so saving the same content again retries
+            hashes.remove(file);
+            logger.error("Failed to convert {}", file, e);
+        }
+    }
+
+    static String hash(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream input = Files.newInputStream(file)) {
+            int read;
+            while ((read = input.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+}
@@ -16,17 +16,38 @@
 package org.entur.netex.conversion.osm.cli;
 
 import org.apache.commons.cli.*;
+import org.entur.netex.conversion.osm.transformer.ConversionCache;
+import org.entur.netex.conversion.osm.transformer.ConversionReport;
+import org.entur.netex.conversion.osm.transformer.ConversionState;
 import org.entur.netex.conversion.osm.transformer.OsmToNetexTransformer;
+import org.entur.netex.conversion.osm.transformer.SchemaValidation;
+import org.entur.netex.conversion.osm.transformer.StopPlaceLocations;
+import org.entur.netex.conversion.osm.transformer.ValidationMode;
+import org.entur.netex.conversion.osm.transformer.ZoneDiff;
+import org.entur.netex.conversion.osm.transformer.ZoneFragmentCache;
+import org.entur.netex.conversion.osm.transformer.ZoneIndex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.commons.io.FilenameUtils;
 import org.xml.sax.InputSource;
 
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Entry point for running.
@@ -39,18 +60,97 @@ public class OsmToNetexApp {
     public static final String NETEX_OUTPUT_FILE = "netexOutputFile";
     public static final String NETEX_OUTPUT_FILE_DEFAULT_VALUE = "netex.xml";
     public static final String TARGET_ENTITY = "targetEntity";
+    public static final String STOP_PLACE_FILE = "stopPlaceFile";
+    public static final String CONTINUE_ON_ERROR = "continueOnError";
+    public static final String VALIDATE_GEOMETRY = "validateGeometry";
+    public static final String COMBINED = "combined";
+    public static final String COMPACT = "compact";
+    public static final String SCHEMA_VALIDATION = "schemaValidation";
+    public static final String OSM_VALIDATION = "osmValidation";
+    public static final String BATCH = "batch";
+    public static final String OUTPUT_DIR = "outputDir";
+    public static final String THREADS = "threads";
+    public static final String SERVE = "serve";
+    public static final String MAX_IN_FLIGHT = "maxInFlight";
+    public static final String REQUEST_TIMEOUT = "requestTimeout";
+    public static final String WATCH = "watch";
+    public static final String DEBOUNCE = "debounce";
+    public static final String CACHE_DIR = "cacheDir";
+    public static final String CACHE_SIZE = "cacheSize";
+    public static final long CACHE_SIZE_DEFAULT_MB = 1024;
+    public static final String MEMORY_BUDGET = "memoryBudget";
+    public static final String EXTERNAL_JOIN = "externalJoin";
+    public static final String SPILL_DIR = "spillDir";
+    public static final String PARSE_THREADS = "parseThreads";
+    public static final String DIFF_AGAINST = "diffAgainst";
+    public static final String STATE = "state";
+    public static final String OSM_CHANGE = "osmChange";
+    public static final String REPORT_FILE_SUFFIX = ".report.json";
+    public static final String INDEX_FILE_SUFFIX = ".index";
+    public static final String REMOVED_FILE_SUFFIX = ".removed.txt";
+    private static final String REPORT_CACHE_ENTRY = "report";
+    private static final String FRAGMENTS_CACHE_ENTRY = "fragments";
 
     public static void main(String[] args) throws Exception {
 
         Options options = new Options();
-        options.addOption(OSM_FILE, true, "Osm file to convert from");
+        options.addOption(OSM_FILE, true, "Osm file to convert from, optionally compressed with gzip, bzip2 or zstd");
         options.addOption(NETEX_OUTPUT_FILE, true, "Netex file name to write");
-        options.addOption(TARGET_ENTITY, true, "Target entity. TariffZone, FareZone or TopographicPlace");
+        options.addOption(TARGET_ENTITY, true, "Target entity. TariffZone, FareZone or TopographicPlace, or several separated by commas to convert them in one pass");
+        options.addOption(COMPACT, false, "Write the NeTEx XML without line breaks and indentation. Output files ending with .gz or .zip are compressed");
+        options.addOption(SCHEMA_VALIDATION, true, "When the NeTEx output is validated against the NeTEx schema: off, sync while marshalling, or async on another thread. Defaults to sync");
+        options.addOption(OSM_VALIDATION, true, "Whether the OSM input is validated against the OSM schema: off, sync while parsing, or async on another thread, which stops parsing at the first error. Defaults to off");
+        options.addOption(COMBINED, false, "With several target entities, write them all to one SiteFrame in netexOutputFile instead of one file per target entity");
+        options.addOption(STOP_PLACE_FILE, true, "CSV (id,lat,lon) or NeTEx file with stop places to assign to fare zones by location");
+        options.addOption(VALIDATE_GEOMETRY, false, "Check zone rings for closure and self-intersection, and orient them counterclockwise");
+        options.addOption(CONTINUE_ON_ERROR, false, "Skip invalid zones instead of aborting, and write all issues to <netexOutputFile>" + REPORT_FILE_SUFFIX);
+        options.addOption(BATCH, true, "Convert many files: a directory, a glob such as data/*.osm, or a manifest file with one input;targetEntity;output line per file");
+        options.addOption(OUTPUT_DIR, true, "Directory for the NeTEx files in batch mode. Defaults to the current directory");
+        options.addOption(Option.builder(SERVE).hasArg().type(Number.class)
+                .desc("Run a conversion service on this port, see ConversionServer. Stop it with Ctrl-C").build());
+        options.addOption(Option.builder(MAX_IN_FLIGHT).hasArg().type(Number.class)
+                .desc("Conversions the service runs at the same time before answering 429. Defaults to the number of processors").build());
+        options.addOption(Option.builder(REQUEST_TIMEOUT).hasArg().type(Number.class)
+                .desc("Seconds a conversion by the service may take before it is stopped and answered with 503. No limit by default").build());
+        options.addOption(WATCH, true, "Watch a directory and convert each *.osm and *.xml file again when its content changes. Output goes to outputDir");
+        options.addOption(Option.builder(DEBOUNCE).hasArg().type(Number.class)
+                .desc("Milliseconds without changes to a watched file before it is converted. Defaults to " + DirectoryWatcher.DEFAULT_DEBOUNCE_MILLIS).build());
+        options.addOption(Option.builder(THREADS).hasArg().type(Number.class)
+                .desc("Number of files converted at the same time in batch mode. Defaults to the number of processors").build());
+        options.addOption(DIFF_AGAINST, true, "Previous NeTEx export or zone index of the same target entity. Only the zones added or changed since then are written to netexOutputFile, the ids of removed zones to <netexOutputFile>" + REMOVED_FILE_SUFFIX
+                + ", and the index of all the zones to <netexOutputFile>" + INDEX_FILE_SUFFIX + " for the next run");
+        options.addOption(STATE, true, "Directory with the OSM data of the last conversion. Written when converting osmFile, and updated by osmChange");
+        options.addOption(OSM_CHANGE, true, "OSM change file (.osc) to apply to the state directory. Only the affected zones are converted, and written to netexOutputFile like with " + DIFF_AGAINST);
+        options.addOption(CACHE_DIR, true, "Directory where results are cached by a hash of the input, target entity, options and converter version. Unchanged inputs are copied from the cache instead of converted, and with a single target entity the zones of unchanged ways are reused when an input changed");
+        options.addOption(Option.builder(CACHE_SIZE).hasArg().type(Number.class)
+                .desc("Megabytes in the cache directory above which the least recently used results are evicted. Defaults to " + CACHE_SIZE_DEFAULT_MB).build());
+        options.addOption(Option.builder(MEMORY_BUDGET).hasArg().type(Number.class)
+                .desc("Megabytes of heap the nodes of an input may take. The coordinates of nodes beyond it are written to a memory-mapped file in spillDir. No limit by default").build());
+        options.addOption(EXTERNAL_JOIN, false, "Join the nodes with the ways by sorting both in files in spillDir, for inputs whose nodes do not fit in memory. Overrides memoryBudget");
+        options.addOption(Option.builder(PARSE_THREADS).hasArg().type(Number.class)
+                .desc("Threads parsing an uncompressed OSM file, each a range of the file. Not combined with osmValidation, memoryBudget or externalJoin. Defaults to 1").build());
+        options.addOption(SPILL_DIR, true, "Directory for the node coordinates exceeding memoryBudget or joined by externalJoin. Defaults to the temporary directory");
 
 
         CommandLineParser parser = new DefaultParser();
         try {
             CommandLine cmd = parser.parse(options, args);
+            if (cmd.hasOption(SERVE)) {
+                serve(cmd);
+                return;
+            }
+            if (cmd.hasOption(WATCH)) {
+                watch(cmd);
+                return;
+            }
+            if (cmd.hasOption(BATCH)) {
+                boolean succeeded = batch(cmd);
+                System.exit(succeeded ? 0 : 1);
+            }
+            if (cmd.hasOption(OSM_CHANGE)) {
+                applyChange(cmd);
+                return;
+            }
             String osmFile = cmd.getOptionValue(OSM_FILE);
             if (osmFile == null) {
                 printHelp(options);
@@ -59,7 +159,7 @@ public class OsmToNetexApp {
 
             logger.info("got osm file: {}", osmFile);
 
-            final String baseFileName = FilenameUtils.removeExtension(Paths.get(osmFile).getFileName().toString());
+            final String baseFileName = CompressedInput.baseName(Paths.get(osmFile));
 
             String outPutFileName = new SimpleDateFormat("'"+baseFileName+"_'yyyyMMddHHmmss'.xml'").format(new Date());
 
@@ -67,7 +167,31 @@ public class OsmToNetexApp {
 
             String targetEntity = cmd.getOptionValue(TARGET_ENTITY);
 
-            transform(osmFile, netexOutputFile, targetEntity);
+            String stopPlaceFile = cmd.getOptionValue(STOP_PLACE_FILE);
+
+            boolean continueOnError = cmd.hasOption(CONTINUE_ON_ERROR);
+
+            boolean combined = cmd.hasOption(COMBINED);
+
+            StopPlaceLocations stopPlaceLocations = stopPlaceFile == null ? null : StopPlaceLocations.read(Paths.get(stopPlaceFile));
+
+            if (cmd.hasOption(DIFF_AGAINST)) {
+                transformDiff(createTransformer(stopPlaceLocations, continueOnError, cmd), osmFile, netexOutputFile, targetEntity, Paths.get(cmd.getOptionValue(DIFF_AGAINST)), continueOnError);
+                return;
+            }
+
+            OsmToNetexTransformer osmToNetexTransformer = createTransformer(stopPlaceLocations, continueOnError, cmd);
+            if (cmd.hasOption(STATE)) {
+                osmToNetexTransformer.setStateDirectory(Paths.get(cmd.getOptionValue(STATE)));
+            }
+            // The state is saved from the parsed input, which a conversion copied from the cache does not parse
+            ConversionCache cache = cmd.hasOption(STATE) ? null : openCache(cmd);
+            transform(cache, cacheOptions(cmd), osmToNetexTransformer, osmFile, netexOutputFile, targetEntity, combined, continueOnError);
+            logCacheStats(cache);
+
+            if (cmd.hasOption(STATE)) {
+                logger.info("Saved the OSM data to {} for later changes", cmd.getOptionValue(STATE));
+            }
         } catch (UnrecognizedOptionException e) {
             logger.error("Unable to convert to NeTEx", e);
             printHelp(options);
@@ -75,17 +199,312 @@ public class OsmToNetexApp {
         }
     }
 
-    private static void transform(String osmInputFile, String netexOutputFile, String targetEntity) throws IOException, ClassNotFoundException {
+    private static boolean batch(CommandLine cmd) throws IOException, ParseException {
+        String stopPlaceFile = cmd.getOptionValue(STOP_PLACE_FILE);
+        StopPlaceLocations stopPlaceLocations = stopPlaceFile == null ? null : StopPlaceLocations.read(Paths.get(stopPlaceFile));
+        boolean continueOnError = cmd.hasOption(CONTINUE_ON_ERROR);
+        boolean combined = cmd.hasOption(COMBINED);
+        Path outputDir = Paths.get(cmd.getOptionValue(OUTPUT_DIR, "."));
+        Number threads = cmd.hasOption(THREADS) ? (Number) cmd.getParsedOptionValue(THREADS) : Runtime.getRuntime().availableProcessors();
+
+        ConversionCache cache = openCache(cmd);
+        String cacheOptions = cacheOptions(cmd);
+
+        List<BatchConverter.Job> jobs = BatchConverter.findJobs(cmd.getOptionValue(BATCH), cmd.getOptionValue(TARGET_ENTITY), outputDir);
+        List<BatchConverter.Result> results = BatchConverter.run(jobs, threads.intValue(), job ->
+                transform(cache, cacheOptions, createTransformer(stopPlaceLocations, continueOnError, cmd),
+                        job.osmFile().toString(), job.netexOutputFile().toString(), job.targetEntity(), combined, continueOnError));
+        logCacheStats(cache);
+        return results.stream().allMatch(BatchConverter.Result::succeeded);
+    }
+
+    private static void watch(CommandLine cmd) throws IOException, ParseException, InterruptedException {
+        String targetEntity = cmd.getOptionValue(TARGET_ENTITY);
+        if (targetEntity == null) {
+            throw new IllegalArgumentException("A target entity is required to watch a directory");
+        }
+        String stopPlaceFile = cmd.getOptionValue(STOP_PLACE_FILE);
+        StopPlaceLocations stopPlaceLocations = stopPlaceFile == null ? null : StopPlaceLocations.read(Paths.get(stopPlaceFile));
+        boolean continueOnError = cmd.hasOption(CONTINUE_ON_ERROR);
+        boolean combined = cmd.hasOption(COMBINED);
+        Number debounce = cmd.hasOption(DEBOUNCE) ? (Number) cmd.getParsedOptionValue(DEBOUNCE) : DirectoryWatcher.DEFAULT_DEBOUNCE_MILLIS;
+        ConversionCache cache = openCache(cmd);
+        String cacheOptions = cacheOptions(cmd);
+        if (cache != null) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> logCacheStats(cache)));
+        }
+
+        new DirectoryWatcher(Paths.get(cmd.getOptionValue(WATCH)), Paths.get(cmd.getOptionValue(OUTPUT_DIR, cmd.getOptionValue(WATCH))), targetEntity, debounce.longValue(), job ->
+                transform(cache, cacheOptions, createTransformer(stopPlaceLocations, continueOnError, cmd),
+                        job.osmFile().toString(), job.netexOutputFile().toString(), job.targetEntity(), combined, continueOnError)).run();
+    }
+
+    private static void serve(CommandLine cmd) throws IOException, ParseException {
+        String stopPlaceFile = cmd.getOptionValue(STOP_PLACE_FILE);
+        StopPlaceLocations stopPlaceLocations = stopPlaceFile == null ? null : StopPlaceLocations.read(Paths.get(stopPlaceFile));
+        Number port = cmd.getParsedOptionValue(SERVE);
+        Number maxInFlight = cmd.hasOption(MAX_IN_FLIGHT) ? (Number) cmd.getParsedOptionValue(MAX_IN_FLIGHT) : Runtime.getRuntime().availableProcessors();
+
+        Duration requestTimeout = cmd.hasOption(REQUEST_TIMEOUT) ? Duration.ofSeconds(((Number) cmd.getParsedOptionValue(REQUEST_TIMEOUT)).longValue()) : null;
+
+        ConversionServer server = new ConversionServer(new InetSocketAddress(port.intValue()), maxInFlight.intValue(), requestTimeout,
+                () -> createTransformer(stopPlaceLocations, false, cmd));
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+        server.start();
+    }
+
+    private static OsmToNetexTransformer createTransformer(StopPlaceLocations stopPlaceLocations, boolean continueOnError, CommandLine cmd) {
         OsmToNetexTransformer osmToNetexTransformer = new OsmToNetexTransformer();
+        osmToNetexTransformer.setStopPlaceLocations(stopPlaceLocations);
+        if (continueOnError) {
+            osmToNetexTransformer.setValidationMode(ValidationMode.REPORT);
+        }
+        osmToNetexTransformer.setGeometryValidation(cmd.hasOption(VALIDATE_GEOMETRY));
+        osmToNetexTransformer.setFormattedOutput(!cmd.hasOption(COMPACT));
+        osmToNetexTransformer.setSchemaValidation(schemaValidation(cmd, SCHEMA_VALIDATION, SchemaValidation.SYNC));
+        osmToNetexTransformer.setOsmValidation(schemaValidation(cmd, OSM_VALIDATION, SchemaValidation.OFF));
+        if (cmd.hasOption(MEMORY_BUDGET)) {
+            osmToNetexTransformer.setMemoryBudget(Long.parseLong(cmd.getOptionValue(MEMORY_BUDGET)) * 1024 * 1024);
+        }
+        osmToNetexTransformer.setExternalNodeJoin(cmd.hasOption(EXTERNAL_JOIN));
+        if (cmd.hasOption(PARSE_THREADS)) {
+            osmToNetexTransformer.setParseThreads(Integer.parseInt(cmd.getOptionValue(PARSE_THREADS)));
+        }
+        if (cmd.hasOption(SPILL_DIR)) {
+            osmToNetexTransformer.setSpillDirectory(Paths.get(cmd.getOptionValue(SPILL_DIR)));
+        }
+        return osmToNetexTransformer;
+    }
+
+    private static SchemaValidation schemaValidation(CommandLine cmd, String option, SchemaValidation defaultValue) {
+        return SchemaValidation.valueOf(cmd.getOptionValue(option, defaultValue.name()).toUpperCase());
+    }
+
+    private static ConversionCache openCache(CommandLine cmd) throws IOException, ParseException {
+        if (!cmd.hasOption(CACHE_DIR)) {
+            return null;
+        }
+        Number megabytes = cmd.hasOption(CACHE_SIZE) ? (Number) cmd.getParsedOptionValue(CACHE_SIZE) : CACHE_SIZE_DEFAULT_MB;
+        return new ConversionCache(Paths.get(cmd.getOptionValue(CACHE_DIR)), megabytes.longValue() * 1024 * 1024);
+    }
 
-        InputSource osmInputSource = new InputSource(osmInputFile);
-        FileOutputStream fileOutputStream = new FileOutputStream(netexOutputFile);
+    /**
+     * The options that change the result of a conversion, as part of the cache key
+     */
+    private static String cacheOptions(CommandLine cmd) throws IOException {
+        String stopPlaceFile = cmd.getOptionValue(STOP_PLACE_FILE);
+        return String.join(";",
+                COMBINED + "=" + cmd.hasOption(COMBINED),
+                CONTINUE_ON_ERROR + "=" + cmd.hasOption(CONTINUE_ON_ERROR),
+                VALIDATE_GEOMETRY + "=" + cmd.hasOption(VALIDATE_GEOMETRY),
+                COMPACT + "=" + cmd.hasOption(COMPACT),
+                STOP_PLACE_FILE + "=" + (stopPlaceFile == null ? "" : DirectoryWatcher.hash(Paths.get(stopPlaceFile))));
+    }
 
-        osmToNetexTransformer.marshallOsm(osmInputSource, fileOutputStream, targetEntity, osmInputFile, OsmToNetexApp.class.getSimpleName());
+    private static void logCacheStats(ConversionCache cache) {
+        if (cache != null) {
+            ConversionCache.Stats stats = cache.getStats();
+            logger.info("Conversion cache: {} hits, {} misses, {} evictions, {} entries of {} bytes",
+                    stats.hits(), stats.misses(), stats.evictions(), stats.entries(), stats.bytes());
+        }
+    }
+
+    /**
+     * Copies the files of an earlier conversion of the same input from the cache, or converts and caches them
+     */
+    private static void transform(ConversionCache cache, String cacheOptions, OsmToNetexTransformer osmToNetexTransformer, String osmInputFile, String netexOutputFile, String targetEntity, boolean combined, boolean continueOnError) throws IOException, ClassNotFoundException {
+        if (cache == null) {
+            transform(osmToNetexTransformer, osmInputFile, netexOutputFile, targetEntity, combined, continueOnError);
+            return;
+        }
+        String key = ConversionCache.key(Paths.get(osmInputFile), targetEntity, cacheOptions, OutputSink.Compression.of(Paths.get(netexOutputFile)).name());
+        Map<String, Path> outputs = new LinkedHashMap<>();
+        Set<String> targetEntities = targetEntity == null ? Set.of() : new LinkedHashSet<>(Arrays.asList(targetEntity.split(",")));
+        if (targetEntities.size() <= 1 || combined) {
+            outputs.put(key, Paths.get(netexOutputFile));
+        } else {
+            for (String target : targetEntities) {
+                outputs.put(key + "-" + target, Paths.get(targetOutputFile(netexOutputFile, target)));
+            }
+        }
+        if (continueOnError) {
+            outputs.put(key + "-" + REPORT_CACHE_ENTRY, Paths.get(netexOutputFile + REPORT_FILE_SUFFIX));
+        }
+
+        boolean hit = true;
+        for (Map.Entry<String, Path> output : outputs.entrySet()) {
+            hit = hit && cache.get(output.getKey(), output.getValue());
+        }
+        if (hit) {
+            logger.info("{} is unchanged, copied {} from the conversion cache", osmInputFile, netexOutputFile);
+            return;
+        }
+
+        if (targetEntities.size() == 1) {
+            transformWithFragments(cache, cacheOptions, osmToNetexTransformer, osmInputFile, netexOutputFile, targetEntity, continueOnError);
+        } else {
+            transform(osmToNetexTransformer, osmInputFile, netexOutputFile, targetEntity, combined, continueOnError);
+        }
+        for (Map.Entry<String, Path> output : outputs.entrySet()) {
+            cache.put(output.getKey(), output.getValue());
+        }
+    }
+
+    /**
+     * Converts a changed input with the zone fragments of its previous conversion, which are kept in the cache by input path
+     */
+    private static void transformWithFragments(ConversionCache cache, String cacheOptions, OsmToNetexTransformer osmToNetexTransformer, String osmInputFile, String netexOutputFile, String targetEntity, boolean continueOnError) throws IOException, ClassNotFoundException {
+        String key = ConversionCache.key(FRAGMENTS_CACHE_ENTRY, Paths.get(osmInputFile).toAbsolutePath().toString(), targetEntity, cacheOptions);
+        Path fragments = Files.createTempFile(FRAGMENTS_CACHE_ENTRY, null);
+        try {
+            ZoneFragmentCache zoneFragmentCache = cache.get(key, fragments) ? ZoneFragmentCache.load(fragments) : new ZoneFragmentCache();
+            osmToNetexTransformer.setZoneFragmentCache(zoneFragmentCache);
+            transform(osmToNetexTransformer, osmInputFile, netexOutputFile, targetEntity, false, continueOnError);
+            zoneFragmentCache.save(fragments);
+            cache.put(key, fragments);
+        } finally {
+            Files.deleteIfExists(fragments);
+        }
+    }
+
+    private static void transform(OsmToNetexTransformer osmToNetexTransformer, String osmInputFile, String netexOutputFile, String targetEntity, boolean combined, boolean continueOnError) throws IOException, ClassNotFoundException {
+        ConversionReport report = new ConversionReport();
+
+        Set<String> targetEntities = targetEntity == null ? Set.of() : new LinkedHashSet<>(Arrays.asList(targetEntity.split(",")));
+
+        try (InputStream osmInput = openWithProgress(osmToNetexTransformer, osmInputFile)) {
+            transform(osmToNetexTransformer, inputSource(osmInput, osmInputFile), osmInputFile, netexOutputFile, targetEntity, targetEntities, combined, report);
+        }
+
+        if (continueOnError) {
+            String reportFile = netexOutputFile + REPORT_FILE_SUFFIX;
+            report.writeJson(Paths.get(reportFile));
+            logger.info("Converted {} and skipped {} elements. {} issues written to {}", report.getConverted(), report.getSkipped(), report.getIssues().size(), reportFile);
+        }
 
         logger.info("Done. Check the result in the file {}", netexOutputFile);
     }
 
+    private static void transform(OsmToNetexTransformer osmToNetexTransformer, InputSource osmInputSource, String osmInputFile, String netexOutputFile, String targetEntity,
+                                  Set<String> targetEntities, boolean combined, ConversionReport report) throws IOException, ClassNotFoundException {
+        if (targetEntities.size() <= 1) {
+            try (OutputSink sink = OutputSink.open(Paths.get(netexOutputFile))) {
+                osmToNetexTransformer.marshallOsm(osmInputSource, sink.stream(), targetEntity, osmInputFile, OsmToNetexApp.class.getSimpleName(), report);
+                sink.commit();
+            }
+        } else if (combined) {
+            try (OutputSink sink = OutputSink.open(Paths.get(netexOutputFile))) {
+                osmToNetexTransformer.marshallOsm(osmInputSource, sink.stream(), targetEntities, osmInputFile, OsmToNetexApp.class.getSimpleName(), report);
+                sink.commit();
+            }
+        } else {
+            Map<String, OutputSink> sinks = new LinkedHashMap<>();
+            try {
+                Map<String, OutputStream> outputs = new LinkedHashMap<>();
+                for (String target : targetEntities) {
+                    String outputFile = targetOutputFile(netexOutputFile, target);
+                    sinks.put(target, OutputSink.open(Paths.get(outputFile)));
+                    outputs.put(target, sinks.get(target).stream());
+                    logger.info("Writing {} to {}", target, outputFile);
+                }
+                osmToNetexTransformer.marshallOsm(osmInputSource, outputs, osmInputFile, OsmToNetexApp.class.getSimpleName(), report);
+                OutputSink.commitAll(sinks.values());
+            } finally {
+                for (OutputSink sink : sinks.values()) {
+                    sink.close();
+                }
+            }
+        }
+    }
+
+
+    private static void applyChange(CommandLine cmd) throws IOException, ClassNotFoundException {
+        String targetEntity = cmd.getOptionValue(TARGET_ENTITY);
+        if (targetEntity == null || targetEntity.contains(",") || !cmd.hasOption(STATE)) {
+            throw new IllegalArgumentException("A single target entity and a state directory are required to apply an OSM change");
+        }
+        String osmChangeFile = cmd.getOptionValue(OSM_CHANGE);
+        String stopPlaceFile = cmd.getOptionValue(STOP_PLACE_FILE);
+        StopPlaceLocations stopPlaceLocations = stopPlaceFile == null ? null : StopPlaceLocations.read(Paths.get(stopPlaceFile));
+        boolean continueOnError = cmd.hasOption(CONTINUE_ON_ERROR);
+        String netexOutputFile = cmd.getOptionValue(NETEX_OUTPUT_FILE, CompressedInput.baseName(Paths.get(osmChangeFile)) + ".xml");
+        OsmToNetexTransformer osmToNetexTransformer = createTransformer(stopPlaceLocations, continueOnError, cmd);
+
+        ConversionReport report = new ConversionReport();
+        ZoneDiff diff;
+        try (ConversionState state = ConversionState.open(Paths.get(cmd.getOptionValue(STATE)));
+             InputStream osmChange = CompressedInput.open(Paths.get(osmChangeFile));
+             OutputSink sink = OutputSink.open(Paths.get(netexOutputFile))) {
+            diff = osmToNetexTransformer.marshallChange(state, new InputSource(osmChange), sink.stream(), targetEntity, osmChangeFile, OsmToNetexApp.class.getSimpleName(), report);
+            sink.commit();
+            state.commit();
+        }
+        writeDiffFiles(diff, netexOutputFile, report, continueOnError);
+    }
+
+    private static void transformDiff(OsmToNetexTransformer osmToNetexTransformer, String osmInputFile, String netexOutputFile, String targetEntity, Path previousExport, boolean continueOnError) throws IOException, ClassNotFoundException {
+        if (targetEntity == null || targetEntity.contains(",")) {
+            throw new IllegalArgumentException("A single target entity is required to compare with a previous export");
+        }
+        ZoneIndex previous = ZoneIndex.read(previousExport);
+        ConversionReport report = new ConversionReport();
+
+        ZoneDiff diff;
+        try (InputStream osmInput = openWithProgress(osmToNetexTransformer, osmInputFile);
+             OutputSink sink = OutputSink.open(Paths.get(netexOutputFile))) {
+            diff = osmToNetexTransformer.marshallOsmDiff(inputSource(osmInput, osmInputFile), sink.stream(), targetEntity, previous, osmInputFile, OsmToNetexApp.class.getSimpleName(), report);
+            sink.commit();
+        }
+        diff.index().write(Paths.get(netexOutputFile + INDEX_FILE_SUFFIX));
+        writeDiffFiles(diff, netexOutputFile, report, continueOnError);
+    }
+
+    /**
+     * Opens an input file and lets the transformer log the progress of converting it
+     *
+     * @return the input, or null when the transformer parses the file itself on several threads
+     */
+    private static InputStream openWithProgress(OsmToNetexTransformer osmToNetexTransformer, String osmInputFile) throws IOException {
+        Path file = Paths.get(osmInputFile);
+        if (osmToNetexTransformer.getParseThreads() > 1 && CompressedInput.format(file) == CompressedInput.Format.XML) {
+            osmToNetexTransformer.setProgressListener(new ProgressPrinter(file.getFileName().toString(), Files.size(file), null));
+            return null;
+        }
+        AtomicLong position = new AtomicLong();
+        osmToNetexTransformer.setProgressListener(new ProgressPrinter(file.getFileName().toString(), Files.size(file), position));
+        return CompressedInput.open(file, position);
+    }
+
+    private static InputSource inputSource(InputStream osmInput, String osmInputFile) {
+        return osmInput == null ? new InputSource(Paths.get(osmInputFile).toUri().toString()) : new InputSource(osmInput);
+    }
+
+    private static void writeDiffFiles(ZoneDiff diff, String netexOutputFile, ConversionReport report, boolean continueOnError) throws IOException {
+        Files.write(Paths.get(netexOutputFile + REMOVED_FILE_SUFFIX), diff.removed());
+
+        if (continueOnError) {
+            String reportFile = netexOutputFile + REPORT_FILE_SUFFIX;
+            report.writeJson(Paths.get(reportFile));
+            logger.info("Converted {} and skipped {} elements. {} issues written to {}", report.getConverted(), report.getSkipped(), report.getIssues().size(), reportFile);
+        }
+        logger.info("Done. {} added and {} changed zones in {}, {} removed zone ids in {}", diff.added().size(), diff.changed().size(), netexOutputFile,
+                diff.removed().size(), netexOutputFile + REMOVED_FILE_SUFFIX);
+    }
+
+    /**
+     * Inserts the target entity before the extension of the output file name, and before a .gz or .zip suffix after it,
+     * e.g. netex_FareZone.xml or netex_FareZone.xml.gz
+     */
+    static String targetOutputFile(String netexOutputFile, String targetEntity) {
+        String name = netexOutputFile;
+        String compression = "";
+        if (OutputSink.Compression.of(Paths.get(netexOutputFile)) != OutputSink.Compression.NONE) {
+            compression = "." + FilenameUtils.getExtension(name);
+            name = FilenameUtils.removeExtension(name);
+        }
+        String extension = FilenameUtils.getExtension(name);
+        return FilenameUtils.removeExtension(name) + "_" + targetEntity + (extension.isEmpty() ? "" : "." + extension) + compression;
+    }
 
     private static void printHelp(Options options) {
         HelpFormatter formatter = new HelpFormatter();
@@ -0,0 +1,457 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+
+package org.entur.netex.conversion.osm.cli;
+
+import org.apache.commons.io.FilenameUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a NeTEx output file, compressed with gzip or zip when its name ends with .gz or .zip.
+ * <p>
+ * The output is written to a temporary file next to the target through a file channel with a large buffer, and moved
+ * over the target by {@link #commit()}. A sink closed without a commit deletes the temporary file, so a failed
+ * conversion leaves an earlier output file as it was instead of a partial one. Sinks written together are committed
+ * with {@link #commitAll(Collection)}, which writes every file to disk before moving any of them over its target.
+ * <p>
+ * Compressed output is deflated in blocks on a pool of threads like pigz does: each block is compressed with the end of
+ * the previous block as dictionary and ends on a byte boundary, so the blocks are written one after the other as a single
+ * deflate stream that any gzip or zip reader can read.
+ */
+final class OutputSink implements Closeable {
+
+    enum Compression {
+        NONE, GZIP, ZIP;
+
+        static Compression of(Path file) {
+            return switch (FilenameUtils.getExtension(file.getFileName().toString()).toLowerCase()) {
+                case "gz" -> GZIP;
+                case "zip" -> ZIP;
+                default -> NONE;
+            };
+        }
+    }
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final Path file;
+    private final Path temporary;
+    private final FileChannel channel;
+    private final ChannelOutput channelOutput;
+    private final OutputStream stream;
+    private boolean committed;
+
+    private OutputSink(Path file, int threads) throws IOException {
+        this.file = file;
+        Path directory = file.toAbsolutePath().getParent();
+        // Created like the target would be rather than with createTempFile, whose files are only readable by the owner
+        this.temporary = directory.resolve("." + file.getFileName() + "." + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+        this.channel = FileChannel.open(temporary, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+        this.channelOutput = new ChannelOutput(channel);
+        this.stream = switch (Compression.of(file)) {
+            case NONE -> channelOutput;
+            case GZIP -> new GzipOutput(channelOutput, threads);
+            case ZIP -> new ZipOutput(channelOutput, threads, entryName(file));
+        };
+    }
+
+    /**
+     * Opens a sink deflating on the number of available processors
+     */
+    static OutputSink open(Path file) throws IOException {
+        return open(file, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threads Number of threads deflating compressed output
+     */
+    static OutputSink open(Path file, int threads) throws IOException {
+        return new OutputSink(file, threads);
+    }
+
+    /**
+     * The name of the XML file in a zip file, e.g. netex.xml in netex.zip
+     */
+    static String entryName(Path file) {
+        String name = FilenameUtils.removeExtension(file.getFileName().toString());
+        return FilenameUtils.getExtension(name).isEmpty() ? name + ".xml" : name;
+    }
+
+    OutputStream stream() {
+        return stream;
+    }
+
+    /**
+     * Finishes the compressed stream, writes the file to disk and moves it over the target
+     */
+    void commit() throws IOException {
+        prepare();
+        publish();
+    }
+
+    /**
+     * Commits several sinks so that a failure to finish or write any of them leaves all their targets as they were.
+     * Only the moves over the targets, which are renames, can still fail after the first target is replaced.
+     */
+    static void commitAll(Collection<OutputSink> sinks) throws IOException {
+        for (OutputSink sink : sinks) {
+            sink.prepare();
+        }
+        for (OutputSink sink : sinks) {
+            sink.publish();
+        }
+    }
+
+    private void prepare() throws IOException {
+        stream.close();
+        channel.force(false);
+        channel.close();
+    }
+
+    private void publish() throws IOException {
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        committed = true;
+    }
+
+    /**
+     * Deletes the temporary file unless the sink was committed
+     */
+    @Override
+    public void close() throws IOException {
+        if (committed) {
+            return;
+        }
+        try {
+            if (stream instanceof DeflateOutput deflateOutput) {
+                deflateOutput.abort();
+            }
+            channel.close();
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Buffers writes in a direct buffer, so the channel writes large blocks without copying them again
+     */
+    private static final class ChannelOutput extends OutputStream {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private long written;
+
+        ChannelOutput(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+                int copied = Math.min(len, buffer.remaining());
+                buffer.put(b, off, copied);
+                off += copied;
+                len -= copied;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                written += channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        long position() {
+            return written + buffer.position();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    /**
+     * Deflates blocks of the input on a pool and writes them in order, keeping a bounded number of blocks in flight
+     */
+    private abstract static class DeflateOutput extends OutputStream {
+        private static final int BLOCK_SIZE = 1 << 17;
+        private static final int DICTIONARY_SIZE = 1 << 15;
+
+        protected final ChannelOutput output;
+        private final ExecutorService pool;
+        private final int window;
+        private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+        private final CRC32 crc = new CRC32();
+        private byte[] block = new byte[BLOCK_SIZE];
+        private int count;
+        private byte[] dictionary;
+        private long uncompressedSize;
+        private long compressedSize;
+        private boolean closed;
+
+        DeflateOutput(ChannelOutput output, int threads) {
+            this.output = output;
+            int poolSize = Math.max(1, threads);
+            this.pool = Executors.newFixedThreadPool(poolSize, runnable -> Thread.ofPlatform().daemon().name("deflate").unstarted(runnable));
+            this.window = poolSize * 2;
+        }
+
+        protected abstract void writeTrailer(long crc, long uncompressedSize, long compressedSize) throws IOException;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int copied = Math.min(len, block.length - count);
+                System.arraycopy(b, off, block, count, copied);
+                count += copied;
+                off += copied;
+                len -= copied;
+                if (count == block.length) {
+                    submit(false);
+                }
+            }
+        }
+
+        private void submit(boolean last) throws IOException {
+            byte[] input = block;
+            int length = count;
+            byte[] previous = dictionary;
+            crc.update(input, 0, length);
+            uncompressedSize += length;
+            pending.add(pool.submit(() -> deflate(input, length, previous, last)));
+            dictionary = length >= DICTIONARY_SIZE ? Arrays.copyOfRange(input, length - DICTIONARY_SIZE, length) : null;
+            block = new byte[BLOCK_SIZE];
+            count = 0;
+            while (pending.size() > (last ? 0 : window)) {
+                writeNext();
+            }
+        }
+
+        private void writeNext() throws IOException {
+            try {
+                byte[] deflated = pending.poll().get();
+                output.write(deflated);
+                compressedSize += deflated.length;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while deflating output");
+            } catch (ExecutionException e) {
+                throw new IOException("Unable to deflate output", e.getCause());
+            }
+        }
+
+        /**
+         * Deflates a block so it ends on a byte boundary with a sync flush, or ends the stream if it is the last block
+         */
+        private static byte[] deflate(byte[] input, int length, byte[] dictionary, boolean last) {
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            try {
+                if (dictionary != null) {
+                    deflater.setDictionary(dictionary);
+                }
+                deflater.setInput(input, 0, length);
+                if (last) {
+                    deflater.finish();
+                }
+                byte[] deflated = new byte[length / 2 + 64];
+                int size = 0;
+                while (true) {
+                    if (size == deflated.length) {
+                        deflated = Arrays.copyOf(deflated, deflated.length * 2);
+                    }
+                    int produced = deflater.deflate(deflated, size, deflated.length - size, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                    size += produced;
+                    if (last ? deflater.finished() : size < deflated.length) {
+                        return Arrays.copyOf(deflated, size);
+                    }
+                }
+            } finally {
+                deflater.end();
+            }
+        }
+
+        @Override
+        public void flush() {
+            // Blocks are only deflated when full, flushing a partial block would make the output larger
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                submit(true);
+                writeTrailer(crc.getValue(), uncompressedSize, compressedSize);
+                output.close();
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+
+        void abort() {
+            closed = true;
+            pool.shutdownNow();
+        }
+
+        protected void writeInt(int value) throws IOException {
+            output.write(value & 0xff);
+            output.write((value >>> 8) & 0xff);
+            output.write((value >>> 16) & 0xff);
+            output.write((value >>> 24) & 0xff);
+        }
+
+        protected void writeShort(int value) throws IOException {
+            output.write(value & 0xff);
+            output.write((value >>> 8) & 0xff);
+        }
+    }
+
+    private static final class GzipOutput extends DeflateOutput {
+        private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+        GzipOutput(ChannelOutput output, int threads) throws IOException {
+            super(output, threads);
+            output.write(HEADER);
+        }
+
+        @Override
+        protected void writeTrailer(long crc, long uncompressedSize, long compressedSize) throws IOException {
+            writeInt((int) crc);
+            writeInt((int) uncompressedSize);
+        }
+    }
+
+    /**
+     * A zip file with one entry. The sizes and checksum follow the data in a data descriptor, since they are not known
+     * when the local header is written.
+     */
+    private static final class ZipOutput extends DeflateOutput {
+        private static final int LOCAL_HEADER = 0x04034b50;
+        private static final int DATA_DESCRIPTOR = 0x08074b50;
+        private static final int CENTRAL_HEADER = 0x02014b50;
+        private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+        private static final int VERSION = 20;
+        // Sizes in a data descriptor, names in UTF-8
+        private static final int FLAGS = 0x0808;
+        private static final long MAX_SIZE = 0xffffffffL;
+
+        private final byte[] name;
+        private final int time;
+        private final int date;
+
+        ZipOutput(ChannelOutput output, int threads, String entryName) throws IOException {
+            super(output, threads);
+            this.name = entryName.getBytes(StandardCharsets.UTF_8);
+            LocalDateTime now = LocalDateTime.now();
+            this.time = now.getHour() << 11 | now.getMinute() << 5 | now.getSecond() / 2;
+            this.date = (now.getYear() - 1980) << 9 | now.getMonthValue() << 5 | now.getDayOfMonth();
+            writeInt(LOCAL_HEADER);
+            writeEntryFields(0, 0, 0);
+            writeShort(name.length);
+            writeShort(0);
+            output.write(name);
+        }
+
+        private void writeEntryFields(long crc, long compressedSize, long uncompressedSize) throws IOException {
+            writeShort(VERSION);
+            writeShort(FLAGS);
+            writeShort(Deflater.DEFLATED);
+            writeShort(time);
+            writeShort(date);
+            writeInt((int) crc);
+            writeInt((int) compressedSize);
+            writeInt((int) uncompressedSize);
+        }
+
+        @Override
+        protected void writeTrailer(long crc, long uncompressedSize, long compressedSize) throws IOException {
+            if (uncompressedSize > MAX_SIZE || compressedSize > MAX_SIZE) {
+                throw new IOException("Zip output of more than 4 GB is not supported, write gzip instead");
+            }
+            writeInt(DATA_DESCRIPTOR);
+            writeInt((int) crc);
+            writeInt((int) compressedSize);
+            writeInt((int) uncompressedSize);
+
+            long centralDirectory = output.position();
+            writeInt(CENTRAL_HEADER);
+            writeShort(VERSION);
+            writeEntryFields(crc, compressedSize, uncompressedSize);
+            writeShort(name.length);
+            // Extra field, comment, disk number, internal and external attributes, and the offset of the local header
+            writeShort(0);
+            writeShort(0);
+            writeShort(0);
+            writeShort(0);
+            writeInt(0);
+            writeInt(0);
+            output.write(name);
+            long centralDirectorySize = output.position() - centralDirectory;
+
+            writeInt(END_OF_CENTRAL_DIRECTORY);
+            writeShort(0);
+            writeShort(0);
+            writeShort(1);
+            writeShort(1);
+            writeInt((int) centralDirectorySize);
+            writeInt((int) centralDirectory);
+            writeShort(0);
+        }
+    }
+}
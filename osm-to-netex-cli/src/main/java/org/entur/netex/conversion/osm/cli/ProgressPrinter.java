@@ -0,0 +1,109 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.netex.conversion.osm.cli;
+
+import org.entur.netex.conversion.osm.transformer.ConversionMetrics;
+import org.entur.netex.conversion.osm.transformer.ProgressListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Logs a progress line at most every few seconds while a file is converted, with the throughput of the current stage
+ * and the time it has left where its total is known. Conversions shorter than the interval log nothing.
+ * <p>
+ * Reading is measured in bytes of the file, also when it is compressed, so its total is the size of the file. Each stage
+ * keeps the time and amount of its first update as baseline, so stages that run interleaved, like mapping and writing
+ * zone fragments, each get their own rate.
+ */
+final class ProgressPrinter implements ProgressListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProgressPrinter.class);
+
+    static final long INTERVAL_MILLIS = 5000;
+    private static final double MB = 1 << 20;
+
+    private final String name;
+    private final long fileSize;
+    private final AtomicLong position;
+    private final long start = System.nanoTime();
+    private long next = start + TimeUnit.MILLISECONDS.toNanos(INTERVAL_MILLIS);
+    private final Map<ConversionMetrics.Stage, Baseline> baselines = new EnumMap<>(ConversionMetrics.Stage.class);
+
+    private record Baseline(long time, long amount) {
+    }
+
+    /**
+     * @param position The bytes of the file read so far, see {@link CompressedInput#open(java.nio.file.Path, AtomicLong)},
+     *                 or null to use the bytes read by the parser, for a file the transformer reads itself
+     */
+    ProgressPrinter(String name, long fileSize, AtomicLong position) {
+        this.name = name;
+        this.fileSize = fileSize;
+        this.position = position;
+    }
+
+    @Override
+    public synchronized void progress(Progress progress) {
+        long now = System.nanoTime();
+        long amount = switch (progress.stage()) {
+            case UNMARSHAL -> position == null ? progress.bytes() : position.get();
+            case MAP -> progress.elements();
+            default -> progress.bytes();
+        };
+        ConversionMetrics.Stage stage = progress.stage();
+        Baseline baseline = baselines.get(stage);
+        if (baseline == null) {
+            baselines.put(stage, stage == ConversionMetrics.Stage.UNMARSHAL ? new Baseline(start, 0) : new Baseline(now, amount));
+            if (stage != ConversionMetrics.Stage.UNMARSHAL) {
+                // The rate of a stage is only known from its second update
+                return;
+            }
+            baseline = baselines.get(stage);
+        }
+        if (now < next) {
+            return;
+        }
+        next = now + TimeUnit.MILLISECONDS.toNanos(INTERVAL_MILLIS);
+
+        double seconds = (now - baseline.time()) / 1e9;
+        double rate = seconds > 0 ? (amount - baseline.amount()) / seconds : 0;
+        switch (stage) {
+            case UNMARSHAL -> logger.info("{}: reading {}% ({} of {} MB), {} elements, {} MB/s{}", name,
+                    fileSize > 0 ? amount * 100 / fileSize : 0, megabytes(amount), megabytes(fileSize), progress.elements(),
+                    megabytes(rate), timeLeft(fileSize - amount, rate));
+            case MAP -> logger.info("{}: mapping {} of {} zones, {} zones/s{}", name, amount, progress.totalElements(),
+                    Math.round(rate), progress.totalElements() < 0 ? "" : timeLeft(progress.totalElements() - amount, rate));
+            default -> logger.info("{}: writing {} MB, {} MB/s", name, megabytes(amount), megabytes(rate));
+        }
+    }
+
+    private static String megabytes(double bytes) {
+        return String.format("%.1f", bytes / MB);
+    }
+
+    private static String timeLeft(long remaining, double rate) {
+        if (rate <= 0 || remaining < 0) {
+            return "";
+        }
+        long seconds = Math.round(remaining / rate);
+        return String.format(", about %d:%02d:%02d left", seconds / 3600, seconds / 60 % 60, seconds % 60);
+    }
+}
@@ -0,0 +1,98 @@
+package org.entur.netex.conversion.osm.cli;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+public class BatchConverterTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void findsInputsInDirectoryButNotOutputsOfPreviousRun() throws IOException {
+        for (String name : List.of("b.osm", "a.xml.gz", "c.osm.bz2", "notes.txt", "a_netex.xml", "b_netex_FareZone.xml")) {
+            Files.writeString(directory.resolve(name), "<osm/>");
+        }
+        Files.createDirectory(directory.resolve("d.osm"));
+        Path output = directory.resolve("out");
+
+        List<BatchConverter.Job> jobs = BatchConverter.findJobs(directory.toString(), "TariffZone", output);
+
+        Assertions.assertEquals(List.of(
+                new BatchConverter.Job(directory.resolve("a.xml.gz"), "TariffZone", output.resolve("a_netex.xml")),
+                new BatchConverter.Job(directory.resolve("b.osm"), "TariffZone", output.resolve("b_netex.xml")),
+                new BatchConverter.Job(directory.resolve("c.osm.bz2"), "TariffZone", output.resolve("c_netex.xml"))), jobs);
+
+        List<BatchConverter.Job> globbed = BatchConverter.findJobs(directory.resolve("*.xml").toString(), "FareZone", directory);
+        Assertions.assertEquals(List.of(), globbed);
+        Assertions.assertThrows(IllegalArgumentException.class, () -> BatchConverter.findJobs(directory.toString(), null, output));
+    }
+
+    @Test
+    public void readsManifestRelativeToItsDirectory() throws IOException {
+        Path manifest = directory.resolve("batch.txt");
+        Files.writeString(manifest, String.join("\n",
+                "# input;targetEntity;output",
+                "",
+                "zones/tariff.osm;TariffZone;netex/tariff.xml",
+                "  places.osm.gz ; TopographicPlace ",
+                "/data/fare.osm;FareZone;",
+                ""));
+        Path output = directory.resolve("out");
+
+        List<BatchConverter.Job> jobs = BatchConverter.findJobs(manifest.toString(), null, output);
+
+        Assertions.assertEquals(List.of(
+                new BatchConverter.Job(directory.resolve("zones/tariff.osm"), "TariffZone", directory.resolve("netex/tariff.xml")),
+                new BatchConverter.Job(directory.resolve("places.osm.gz"), "TopographicPlace", output.resolve("places_netex.xml")),
+                new BatchConverter.Job(Path.of("/data/fare.osm"), "FareZone", output.resolve("fare_netex.xml"))), jobs);
+
+        Files.writeString(manifest, "tariff.osm\n");
+        IllegalArgumentException e = Assertions.assertThrows(IllegalArgumentException.class,
+                () -> BatchConverter.findJobs(manifest.toString(), null, output));
+        Assertions.assertTrue(e.getMessage().startsWith("Line 1 of "), e.getMessage());
+    }
+
+    @Test
+    public void recognizesOutputFilesOfSeveralTargets() {
+        Assertions.assertEquals("out/a_netex_FareZone.xml", OsmToNetexApp.targetOutputFile("out/a_netex.xml", "FareZone"));
+        Assertions.assertEquals("out/a_netex_FareZone.xml.gz", OsmToNetexApp.targetOutputFile("out/a_netex.xml.gz", "FareZone"));
+        Assertions.assertEquals("out/a_netex_FareZone.zip", OsmToNetexApp.targetOutputFile("out/a_netex.zip", "FareZone"));
+        Assertions.assertEquals("out/netex_FareZone", OsmToNetexApp.targetOutputFile("out/netex", "FareZone"));
+
+        for (String name : List.of("a_netex.xml", "a_netex.xml.gz", "a_netex.zip", "a_netex_FareZone.xml", "a_netex_FareZone.xml.gz", "a_netex_FareZone.zip")) {
+            Assertions.assertTrue(BatchConverter.isOutputFile(name), name);
+        }
+        for (String name : List.of("a.osm", "a.xml.gz", "netex.xml", "a_netex.osm.bz2")) {
+            Assertions.assertFalse(BatchConverter.isOutputFile(name), name);
+        }
+    }
+
+    @Test
+    public void continuesAfterFailedConversion() {
+        List<BatchConverter.Job> jobs = List.of(
+                new BatchConverter.Job(directory.resolve("a.osm"), "TariffZone", directory.resolve("out/a_netex.xml")),
+                new BatchConverter.Job(directory.resolve("b.osm"), "TariffZone", directory.resolve("out/b_netex.xml")),
+                new BatchConverter.Job(directory.resolve("c.osm"), "TariffZone", directory.resolve("out/c_netex.xml")));
+
+        List<BatchConverter.Result> results = BatchConverter.run(jobs, 2, job -> {
+            if (job.osmFile().endsWith("b.osm")) {
+                throw new IOException("Unreadable");
+            }
+            Files.writeString(job.netexOutputFile(), "<PublicationDelivery/>");
+        });
+
+        Assertions.assertEquals(jobs, results.stream().map(BatchConverter.Result::job).toList());
+        Assertions.assertEquals(List.of(true, false, true), results.stream().map(BatchConverter.Result::succeeded).toList());
+        Assertions.assertEquals("Unreadable", results.get(1).error().getMessage());
+        Assertions.assertTrue(Files.exists(directory.resolve("out/a_netex.xml")));
+        Assertions.assertTrue(Files.exists(directory.resolve("out/c_netex.xml")));
+        Assertions.assertEquals(List.of(), BatchConverter.run(List.of(), 2, job -> Assertions.fail()));
+    }
+}
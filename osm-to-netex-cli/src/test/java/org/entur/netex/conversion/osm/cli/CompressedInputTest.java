@@ -0,0 +1,149 @@
+package org.entur.netex.conversion.osm.cli;
+
+import com.github.luben.zstd.ZstdOutputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+public class CompressedInputTest {
+
+    private static final int MEMBER_BYTES = 1 << 16;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void readsSingleMemberGzip() throws IOException {
+        byte[] data = text(8 << 20);
+        assertRoundTrip(data, write("single.osm.gz", gzip(data, 0, data.length)));
+    }
+
+    @Test
+    public void readsMultiMemberGzip() throws IOException {
+        byte[] data = text(8 << 20);
+        ByteArrayOutputStream members = new ByteArrayOutputStream();
+        for (int offset = 0; offset < data.length; offset += MEMBER_BYTES) {
+            members.write(gzip(data, offset, Math.min(MEMBER_BYTES, data.length - offset)));
+        }
+        assertRoundTrip(data, write("multi.osm.gz", members.toByteArray()));
+    }
+
+    @Test
+    public void readsMultiStreamBzip2() throws IOException {
+        byte[] data = text(8 << 20);
+        ByteArrayOutputStream streams = new ByteArrayOutputStream();
+        for (int offset = 0; offset < data.length; offset += 900_000) {
+            try (OutputStream output = new BZip2CompressorOutputStream(nonClosing(streams))) {
+                output.write(data, offset, Math.min(900_000, data.length - offset));
+            }
+        }
+        assertRoundTrip(data, write("multi.osm.bz2", streams.toByteArray()));
+    }
+
+    @Test
+    public void readsZstd() throws IOException {
+        byte[] data = text(1 << 20);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream output = new ZstdOutputStream(compressed)) {
+            output.write(data);
+        }
+        assertRoundTrip(data, write("input.osm.zst", compressed.toByteArray()));
+    }
+
+    @Test
+    public void readsMemberLargerThanWindowSliceAsStream() throws IOException {
+        byte[] data = text(12 << 20);
+        ByteArrayOutputStream members = new ByteArrayOutputStream();
+        members.write(gzip(data, 0, MEMBER_BYTES));
+        members.write(gzip(data, MEMBER_BYTES, data.length - 2 * MEMBER_BYTES));
+        members.write(gzip(data, data.length - MEMBER_BYTES, MEMBER_BYTES));
+        assertRoundTrip(data, write("large.osm.gz", members.toByteArray()));
+    }
+
+    @Test
+    public void readsMembersWithHeaderInsideCompressedData() throws IOException {
+        byte[] data = text(8 << 20);
+        // Stored deflate blocks copy the data, so a member header in the data is a false match for the scanner
+        for (int offset = 1000; offset < data.length; offset += 100_000) {
+            System.arraycopy(new byte[]{0x1f, (byte) 0x8b, 8, 0}, 0, data, offset, 4);
+        }
+        ByteArrayOutputStream members = new ByteArrayOutputStream();
+        for (int offset = 0; offset < data.length; offset += 1 << 20) {
+            ByteArrayOutputStream member = new ByteArrayOutputStream();
+            try (OutputStream output = new GZIPOutputStream(member) {
+                {
+                    def.setLevel(Deflater.NO_COMPRESSION);
+                }
+            }) {
+                output.write(data, offset, Math.min(1 << 20, data.length - offset));
+            }
+            members.write(member.toByteArray());
+        }
+        assertRoundTrip(data, write("stored.osm.gz", members.toByteArray()));
+    }
+
+    @Test
+    public void recognizesFormatByContent() throws IOException {
+        byte[] data = text(1000);
+        Assertions.assertEquals(CompressedInput.Format.GZIP, CompressedInput.format(write("input.osm", gzip(data, 0, data.length))));
+        Assertions.assertEquals(CompressedInput.Format.XML, CompressedInput.format(write("input.osm.gz", data)));
+        Assertions.assertEquals("oslo", CompressedInput.baseName(Path.of("oslo.osm.bz2")));
+    }
+
+    private void assertRoundTrip(byte[] expected, Path file) throws IOException {
+        for (int threads : new int[]{1, 4}) {
+            try (InputStream input = CompressedInput.open(file, threads)) {
+                Assertions.assertArrayEquals(expected, input.readAllBytes(), file + " with " + threads + " threads");
+            }
+        }
+    }
+
+    private Path write(String name, byte[] bytes) throws IOException {
+        return Files.write(directory.resolve(name), bytes);
+    }
+
+    private static byte[] gzip(byte[] data, int offset, int length) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream output = new GZIPOutputStream(compressed)) {
+            output.write(data, offset, length);
+        }
+        return compressed.toByteArray();
+    }
+
+    private static OutputStream nonClosing(OutputStream output) {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                output.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                output.write(b, off, len);
+            }
+        };
+    }
+
+    /**
+     * @return random letters and tags, which compress to about half their size so that the files take the parallel path
+     */
+    private static byte[] text(int length) {
+        Random random = new Random(length);
+        byte[] text = new byte[length];
+        for (int i = 0; i < length; i++) {
+            text[i] = i % 64 == 63 ? (byte) '\n' : (byte) ('a' + random.nextInt(26));
+        }
+        return text;
+    }
+}
@@ -0,0 +1,180 @@
+package org.entur.netex.conversion.osm.cli;
+
+import org.entur.netex.conversion.osm.transformer.ConversionReport;
+import org.entur.netex.conversion.osm.transformer.OsmToNetexTransformer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.xml.sax.InputSource;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+public class ConversionServerTest {
+
+    private static final String ZONE = "<way id='-1'><nd ref='-1'/><nd ref='-2'/><nd ref='-3'/><nd ref='-1'/>"
+            + "<tag k='area' v='tariffZone'/><tag k='codespace' v='TST'/><tag k='name:nor' v='Zone'/><tag k='reference' v='1'/></way>";
+    private static final String NODES = "<node id='-1' lat='59.0' lon='10.0'/><node id='-2' lat='59.0' lon='11.0'/><node id='-3' lat='60.0' lon='11.0'/>";
+    private static final String OSM = "<osm version='0.6'>" + NODES + ZONE + "</osm>";
+
+    private final HttpClient client = HttpClient.newHttpClient();
+    private ConversionServer server;
+
+    @AfterEach
+    public void stop() {
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void convertsPostedOsm() throws Exception {
+        start(1, null, OsmToNetexTransformer::new);
+
+        HttpResponse<String> response = post("targetEntity=TariffZone", OSM.getBytes(StandardCharsets.UTF_8));
+        Assertions.assertEquals(200, response.statusCode());
+        Assertions.assertTrue(response.body().contains("TST:TariffZone:1"), response.body());
+        Assertions.assertEquals("0", response.headers().firstValue(ConversionServer.ISSUES_HEADER).orElseThrow());
+
+        HttpResponse<String> health = client.send(HttpRequest.newBuilder(uri(ConversionServer.HEALTH_PATH)).build(), HttpResponse.BodyHandlers.ofString());
+        Assertions.assertEquals(200, health.statusCode());
+    }
+
+    @Test
+    public void rejectsOtherMethodsThanPost() throws Exception {
+        start(1, null, OsmToNetexTransformer::new);
+
+        HttpResponse<String> response = client.send(HttpRequest.newBuilder(uri(ConversionServer.CONVERT_PATH + "?targetEntity=TariffZone")).build(),
+                HttpResponse.BodyHandlers.ofString());
+        Assertions.assertEquals(405, response.statusCode());
+        Assertions.assertEquals("POST", response.headers().firstValue("Allow").orElseThrow());
+    }
+
+    @Test
+    public void rejectsPbf() throws Exception {
+        start(1, null, OsmToNetexTransformer::new);
+
+        byte[] pbf = {0, 0, 0, 0x0d, 0x0a, 0x09, 'O', 'S', 'M', 'H', 'e', 'a', 'd', 'e', 'r'};
+        Assertions.assertEquals(415, post("targetEntity=TariffZone", pbf).statusCode());
+    }
+
+    @Test
+    public void rejectsConversionsBeyondInFlightLimit() throws Exception {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicBoolean hold = new AtomicBoolean();
+        start(1, null, () -> {
+            // Holds the first request after warm up inside the in-flight limit
+            if (hold.getAndSet(false)) {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return new OsmToNetexTransformer();
+        });
+        hold.set(true);
+
+        CompletableFuture<HttpResponse<String>> first = client.sendAsync(request("targetEntity=TariffZone", OSM.getBytes(StandardCharsets.UTF_8)),
+                HttpResponse.BodyHandlers.ofString());
+        Assertions.assertTrue(entered.await(10, TimeUnit.SECONDS));
+        HttpResponse<String> rejected = post("targetEntity=TariffZone", OSM.getBytes(StandardCharsets.UTF_8));
+        Assertions.assertEquals(429, rejected.statusCode());
+        Assertions.assertEquals("1", rejected.headers().firstValue("Retry-After").orElseThrow());
+
+        release.countDown();
+        Assertions.assertEquals(200, first.get(10, TimeUnit.SECONDS).statusCode());
+        Assertions.assertEquals(200, post("targetEntity=TariffZone", OSM.getBytes(StandardCharsets.UTF_8)).statusCode());
+    }
+
+    @Test
+    public void stopsConversionsTakingLongerThanTimeout() throws Exception {
+        start(2, Duration.ofMillis(1), OsmToNetexTransformer::new);
+
+        StringBuilder osm = new StringBuilder("<osm version='0.6'>").append(NODES);
+        for (int i = 1; i <= 5_000; i++) {
+            osm.append("<node id='").append(i).append("' lat='59.5' lon='10.5'/>");
+        }
+        osm.append(ZONE).append("</osm>");
+        byte[] body = osm.toString().getBytes(StandardCharsets.UTF_8);
+
+        Assertions.assertEquals(503, post("targetEntity=TariffZone", body).statusCode());
+        Assertions.assertEquals(503, post("targetEntity=TariffZone,FareZone", body).statusCode());
+    }
+
+    @Test
+    public void reportsIssuesInHeaderWhenContinuingOnError() throws Exception {
+        start(1, null, OsmToNetexTransformer::new);
+        String invalid = "<osm version='0.6'>" + NODES + ZONE.replace("<tag k='codespace' v='TST'/>", "") + "</osm>";
+
+        HttpResponse<String> response = post("targetEntity=TariffZone&continueOnError=true", invalid.getBytes(StandardCharsets.UTF_8));
+        Assertions.assertEquals(200, response.statusCode());
+        Assertions.assertEquals("1", response.headers().firstValue(ConversionServer.ISSUES_HEADER).orElseThrow());
+
+        Assertions.assertEquals(422, post("targetEntity=TariffZone", invalid.getBytes(StandardCharsets.UTF_8)).statusCode());
+        Assertions.assertEquals(400, post("targetEntity=Zone", OSM.getBytes(StandardCharsets.UTF_8)).statusCode());
+        Assertions.assertEquals(400, post("", OSM.getBytes(StandardCharsets.UTF_8)).statusCode());
+    }
+
+    @Test
+    public void cutsResponseShortWhenConversionFailsAfterItStarted() throws Exception {
+        byte[] written = new byte[100_000];
+        Arrays.fill(written, (byte) ' ');
+        start(1, null, () -> new OsmToNetexTransformer() {
+            @Override
+            public CompletableFuture<ConversionReport> marshallOsmAsync(InputSource osmInput, OutputStream output, String targetEntity, String generatedFrom,
+                                                                        String participantRef, ConversionReport report, Duration timeout, Executor executor) {
+                try {
+                    output.write(written);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return CompletableFuture.failedFuture(new IllegalArgumentException("Failed after writing"));
+            }
+        });
+
+        HttpResponse<byte[]> response;
+        try {
+            response = client.send(request("targetEntity=TariffZone", OSM.getBytes(StandardCharsets.UTF_8)), HttpResponse.BodyHandlers.ofByteArray());
+        } catch (IOException e) {
+            // The response was cut short before its end
+            return;
+        }
+        Assertions.fail("Got a complete response of " + response.body().length + " bytes with status " + response.statusCode());
+    }
+
+    private void start(int maxInFlight, Duration timeout, Supplier<OsmToNetexTransformer> transformers) throws IOException {
+        server = new ConversionServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), maxInFlight, timeout, transformers);
+        server.start();
+    }
+
+    private URI uri(String path) {
+        return URI.create("http://localhost:" + server.getPort() + path);
+    }
+
+    private HttpRequest request(String query, byte[] body) {
+        return HttpRequest.newBuilder(uri(ConversionServer.CONVERT_PATH + "?" + query)).POST(HttpRequest.BodyPublishers.ofByteArray(body)).build();
+    }
+
+    private HttpResponse<String> post(String query, byte[] body) throws IOException, InterruptedException {
+        return client.send(request(query, body), HttpResponse.BodyHandlers.ofString());
+    }
+}
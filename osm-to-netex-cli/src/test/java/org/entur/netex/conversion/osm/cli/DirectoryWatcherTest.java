@@ -0,0 +1,104 @@
+package org.entur.netex.conversion.osm.cli;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class DirectoryWatcherTest {
+
+    @TempDir
+    Path directory;
+
+    private final BlockingQueue<BatchConverter.Job> converted = new LinkedBlockingQueue<>();
+
+    @Test
+    public void skipsContentConvertedBefore() throws IOException {
+        Path file = directory.resolve("a.osm");
+        Files.writeString(file, "<osm/>");
+        DirectoryWatcher watcher = new DirectoryWatcher(directory, directory.resolve("out"), "TariffZone", 0, converted::add);
+
+        watcher.convertIfChanged(file);
+        Assertions.assertEquals(new BatchConverter.Job(file, "TariffZone", directory.resolve("out/a_netex.xml")), converted.poll());
+
+        watcher.convertIfChanged(file);
+        Assertions.assertNull(converted.poll());
+
+        Files.writeString(file, "<osm version='0.6'/>");
+        watcher.convertIfChanged(file);
+        Assertions.assertNotNull(converted.poll());
+
+        Files.delete(file);
+        watcher.convertIfChanged(file);
+        Assertions.assertNull(converted.poll());
+    }
+
+    @Test
+    public void retriesSameContentAfterFailedConversion() throws IOException {
+        Path file = directory.resolve("a.osm");
+        Files.writeString(file, "<osm/>");
+        DirectoryWatcher watcher = new DirectoryWatcher(directory, directory, "TariffZone", 0, job -> {
+            converted.add(job);
+            if (converted.size() == 1) {
+                throw new IllegalArgumentException("Broken");
+            }
+        });
+
+        watcher.convertIfChanged(file);
+        watcher.convertIfChanged(file);
+        watcher.convertIfChanged(file);
+        Assertions.assertEquals(2, converted.size());
+    }
+
+    @Test
+    public void convertsOnceAfterDebounceDelay() throws Exception {
+        Path file = directory.resolve("a.osm");
+        Files.writeString(file, "<osm/>");
+        DirectoryWatcher watcher = new DirectoryWatcher(directory, directory, "TariffZone", 200, converted::add);
+
+        for (int i = 0; i < 5; i++) {
+            watcher.schedule(file, 200);
+        }
+        Assertions.assertEquals(1, watcher.pending.size());
+        Assertions.assertNotNull(converted.poll(10, TimeUnit.SECONDS));
+        Assertions.assertNull(converted.poll(400, TimeUnit.MILLISECONDS));
+        Assertions.assertTrue(watcher.pending.isEmpty());
+    }
+
+    @Test
+    public void convertsFilesWithMissingOrOlderOutputAtStartup() throws Exception {
+        Path output = directory.resolve("out");
+        Files.createDirectory(output);
+        Instant now = Instant.now();
+        for (String name : new String[] {"missing.osm", "older.osm", "newer.osm"}) {
+            Files.writeString(directory.resolve(name), "<osm/>");
+            Files.setLastModifiedTime(directory.resolve(name), FileTime.from(now.minusSeconds(60)));
+        }
+        Files.writeString(output.resolve("older_netex.xml"), "<PublicationDelivery/>");
+        Files.setLastModifiedTime(output.resolve("older_netex.xml"), FileTime.from(now.minusSeconds(120)));
+        Files.writeString(output.resolve("newer_netex.xml"), "<PublicationDelivery/>");
+        Files.writeString(directory.resolve("previous_netex.xml"), "<PublicationDelivery/>");
+        DirectoryWatcher watcher = new DirectoryWatcher(directory, output, "TariffZone", 0, converted::add);
+
+        watcher.scan();
+
+        Set<Path> files = new HashSet<>();
+        files.add(converted.poll(10, TimeUnit.SECONDS).osmFile());
+        files.add(converted.poll(10, TimeUnit.SECONDS).osmFile());
+        Assertions.assertEquals(Set.of(directory.resolve("missing.osm"), directory.resolve("older.osm")), files);
+        Assertions.assertNull(converted.poll(200, TimeUnit.MILLISECONDS));
+        // The content of the file converted before startup is known, saving it unchanged is skipped
+        watcher.convertIfChanged(directory.resolve("newer.osm"));
+        Assertions.assertNull(converted.poll());
+    }
+}
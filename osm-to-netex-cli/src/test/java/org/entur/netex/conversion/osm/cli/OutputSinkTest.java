@@ -0,0 +1,105 @@
+package org.entur.netex.conversion.osm.cli;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+public class OutputSinkTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void writesGzipReadableByGzipInputStream() throws IOException {
+        byte[] data = xml(3_000_000);
+        Path file = directory.resolve("netex.xml.gz");
+        write(file, data, 4);
+        try (InputStream input = new GZIPInputStream(Files.newInputStream(file))) {
+            Assertions.assertArrayEquals(data, input.readAllBytes());
+        }
+    }
+
+    @Test
+    public void writesZipReadableByZipInputStream() throws IOException {
+        byte[] data = xml(3_000_000);
+        Path file = directory.resolve("netex.zip");
+        write(file, data, 4);
+        try (ZipInputStream input = new ZipInputStream(Files.newInputStream(file))) {
+            ZipEntry entry = input.getNextEntry();
+            Assertions.assertNotNull(entry);
+            Assertions.assertEquals("netex.xml", entry.getName());
+            Assertions.assertArrayEquals(data, input.readAllBytes());
+            Assertions.assertNull(input.getNextEntry());
+        }
+    }
+
+    @Test
+    public void writesSmallAndEmptyCompressedOutput() throws IOException {
+        for (byte[] data : List.of(new byte[0], "<x/>".getBytes(StandardCharsets.UTF_8))) {
+            Path file = directory.resolve("small.xml.gz");
+            write(file, data, 1);
+            try (InputStream input = new GZIPInputStream(Files.newInputStream(file))) {
+                Assertions.assertArrayEquals(data, input.readAllBytes());
+            }
+        }
+    }
+
+    @Test
+    public void keepsTargetWhenClosedWithoutCommit() throws IOException {
+        Path file = directory.resolve("netex.xml");
+        Files.writeString(file, "earlier");
+        try (OutputSink sink = OutputSink.open(file, 2)) {
+            sink.stream().write(xml(1000));
+        }
+        Assertions.assertEquals("earlier", Files.readString(file));
+        try (Stream<Path> files = Files.list(directory)) {
+            Assertions.assertEquals(List.of(file), files.toList());
+        }
+    }
+
+    @Test
+    public void commitsAllSinksTogether() throws IOException {
+        Path first = directory.resolve("first.xml");
+        Path second = directory.resolve("second.xml.gz");
+        try (OutputSink firstSink = OutputSink.open(first, 2); OutputSink secondSink = OutputSink.open(second, 2)) {
+            firstSink.stream().write(xml(1000));
+            secondSink.stream().write(xml(2000));
+            OutputSink.commitAll(List.of(firstSink, secondSink));
+        }
+        Assertions.assertArrayEquals(xml(1000), Files.readAllBytes(first));
+        try (InputStream input = new GZIPInputStream(Files.newInputStream(second))) {
+            Assertions.assertArrayEquals(xml(2000), input.readAllBytes());
+        }
+    }
+
+    private static void write(Path file, byte[] data, int threads) throws IOException {
+        try (OutputSink sink = OutputSink.open(file, threads)) {
+            // Uneven writes, so blocks are filled across write calls
+            for (int offset = 0; offset < data.length; offset += 7919) {
+                sink.stream().write(data, offset, Math.min(7919, data.length - offset));
+            }
+            sink.commit();
+        }
+    }
+
+    private static byte[] xml(int length) {
+        Random random = new Random(length);
+        StringBuilder xml = new StringBuilder(length + 100);
+        while (xml.length() < length) {
+            xml.append("<node id=\"").append(random.nextInt(1_000_000)).append("\" lat=\"").append(random.nextDouble()).append("\"/>\n");
+        }
+        return xml.substring(0, length).getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+
+package org.entur.netex.conversion.osm.transformer;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+import javax.xml.validation.Schema;
+import javax.xml.validation.ValidatorHandler;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Passes the SAX events of the OSM input on to the unmarshaller, and copies them in batches to a {@link ValidatorHandler}
+ * on another thread, see {@link SchemaValidation#ASYNC}.
+ * <p>
+ * The parse is cancelled by throwing the schema error from the next event once the validator has found it, so invalid
+ * input fails about as early as with the schema on the unmarshaller, without validating on the parsing thread.
+ */
+final class AsyncOsmValidator extends XMLFilterImpl {
+
+    private static final int BATCH_SIZE = 4096;
+    private static final int QUEUE_BATCHES = 64;
+    private static final List<Event> END = List.of();
+
+    private final Schema schema;
+    private final BlockingQueue<List<Event>> batches = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private volatile SAXException error;
+    private volatile boolean stopped;
+    private List<Event> batch = new ArrayList<>(BATCH_SIZE);
+    private Locator locator;
+    private int peakQueueDepth;
+
+    AsyncOsmValidator(Schema schema) {
+        this.schema = schema;
+    }
+
+    private sealed interface Event {
+    }
+
+    private record StartElement(String uri, String localName, String qName, Attributes attributes, int line, int column) implements Event {
+    }
+
+    private record EndElement(String uri, String localName, String qName, int line, int column) implements Event {
+    }
+
+    private record Characters(char[] text) implements Event {
+    }
+
+    private record StartPrefixMapping(String prefix, String uri) implements Event {
+    }
+
+    private record EndPrefixMapping(String prefix) implements Event {
+    }
+
+    /**
+     * Waits for the validator to check the events of the whole document
+     *
+     * @throws SAXException the first schema error
+     */
+    void await() throws SAXException {
+        try {
+            finished.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SAXException("Interrupted while validating", e);
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Stops the validator, e.g. when parsing failed for another reason
+     */
+    void stop() {
+        stopped = true;
+        batches.clear();
+        batches.offer(END);
+    }
+
+    @Override
+    public void setDocumentLocator(Locator locator) {
+        this.locator = locator;
+        super.setDocumentLocator(locator);
+    }
+
+    @Override
+    public void startDocument() throws SAXException {
+        Thread.ofPlatform().daemon().name("osm-validation").start(this::validate);
+        super.startDocument();
+    }
+
+    @Override
+    public void endDocument() throws SAXException {
+        super.endDocument();
+        send();
+        queue(END);
+    }
+
+    @Override
+    public void startPrefixMapping(String prefix, String uri) throws SAXException {
+        add(new StartPrefixMapping(prefix, uri));
+        super.startPrefixMapping(prefix, uri);
+    }
+
+    @Override
+    public void endPrefixMapping(String prefix) throws SAXException {
+        add(new EndPrefixMapping(prefix));
+        super.endPrefixMapping(prefix);
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+        add(new StartElement(uri, localName(localName, qName), qName, attributes(atts), line(), column()));
+        super.startElement(uri, localName, qName, atts);
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        add(new EndElement(uri, localName(localName, qName), qName, line(), column()));
+        super.endElement(uri, localName, qName);
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        add(new Characters(Arrays.copyOfRange(ch, start, start + length)));
+        super.characters(ch, start, length);
+    }
+
+    /**
+     * The parser is not namespace aware, so the local names the validator needs are taken from the qualified names
+     */
+    private static String localName(String localName, String qName) {
+        return localName == null || localName.isEmpty() ? qName.substring(qName.indexOf(':') + 1) : localName;
+    }
+
+    private static Attributes attributes(Attributes atts) {
+        AttributesImpl copy = new AttributesImpl(atts);
+        for (int i = 0; i < copy.getLength(); i++) {
+            copy.setLocalName(i, localName(copy.getLocalName(i), copy.getQName(i)));
+        }
+        return copy;
+    }
+
+    private int line() {
+        return locator == null ? -1 : locator.getLineNumber();
+    }
+
+    private int column() {
+        return locator == null ? -1 : locator.getColumnNumber();
+    }
+
+    private void add(Event event) throws SAXException {
+        if (error != null) {
+            throw error;
+        }
+        batch.add(event);
+        if (batch.size() == BATCH_SIZE) {
+            send();
+        }
+    }
+
+    private void send() throws SAXException {
+        if (!batch.isEmpty()) {
+            queue(batch);
+            batch = new ArrayList<>(BATCH_SIZE);
+        }
+    }
+
+    private void queue(List<Event> events) throws SAXException {
+        try {
+            while (!stopped && !batches.offer(events, 100, TimeUnit.MILLISECONDS)) {
+                if (error != null) {
+                    throw error;
+                }
+            }
+            peakQueueDepth = Math.max(peakQueueDepth, batches.size());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SAXException("Interrupted while validating", e);
+        }
+    }
+
+    /**
+     * @return the most batches waiting for the validator at a time, read on the parsing thread
+     */
+    int getPeakQueueDepth() {
+        return peakQueueDepth;
+    }
+
+    private void validate() {
+        EventLocator eventLocator = new EventLocator(locator);
+        ValidatorHandler validator = schema.newValidatorHandler();
+        try {
+            validator.setDocumentLocator(eventLocator);
+            validator.startDocument();
+            while (true) {
+                List<Event> events = batches.take();
+                if (events == END) {
+                    break;
+                }
+                for (Event event : events) {
+                    switch (event) {
+                        case StartElement e -> {
+                            eventLocator.at(e.line(), e.column());
+                            validator.startElement(e.uri(), e.localName(), e.qName(), e.attributes());
+                        }
+                        case EndElement e -> {
+                            eventLocator.at(e.line(), e.column());
+                            validator.endElement(e.uri(), e.localName(), e.qName());
+                        }
+                        case Characters e -> validator.characters(e.text(), 0, e.text().length);
+                        case StartPrefixMapping e -> validator.startPrefixMapping(e.prefix(), e.uri());
+                        case EndPrefixMapping e -> validator.endPrefixMapping(e.prefix());
+                    }
+                }
+            }
+            if (!stopped) {
+                validator.endDocument();
+            }
+        } catch (SAXException e) {
+            error = e;
+            stopped = true;
+            batches.clear();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            finished.countDown();
+        }
+    }
+
+    /**
+     * The position of the event being validated, so schema errors point at the line of the input
+     */
+    private static final class EventLocator implements Locator {
+        private final String publicId;
+        private final String systemId;
+        private int line = -1;
+        private int column = -1;
+
+        EventLocator(Locator locator) {
+            this.publicId = locator == null ? null : locator.getPublicId();
+            this.systemId = locator == null ? null : locator.getSystemId();
+        }
+
+        void at(int line, int column) {
+            this.line = line;
+            this.column = column;
+        }
+
+        @Override
+        public String getPublicId() {
+            return publicId;
+        }
+
+        @Override
+        public String getSystemId() {
+            return systemId;
+        }
+
+        @Override
+        public int getLineNumber() {
+            return line;
+        }
+
+        @Override
+        public int getColumnNumber() {
+            return column;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+
+package org.entur.netex.conversion.osm.transformer;
+
+import org.xml.sax.SAXException;
+
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Validates a copy of the marshalled output against a schema on another thread, see {@link SchemaValidation#ASYNC}.
+ * <p>
+ * The bytes written to {@link #tee(OutputStream)} are copied in chunks to a bounded queue read by the validator, so the
+ * marshalling thread only waits for the validator when it falls behind by more than the queue holds. The validator reads
+ * the bytes back with its own parser rather than receiving a copy of the SAX events, which would take the marshaller off
+ * its fast path of writing UTF-8 directly to the stream.
+ */
+final class AsyncSchemaValidator implements AutoCloseable {
+
+    private static final int CHUNK_SIZE = 1 << 16;
+    private static final int QUEUE_CHUNKS = 256;
+    private static final byte[] END = new byte[0];
+
+    private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(QUEUE_CHUNKS);
+    private final CompletableFuture<Void> validation = new CompletableFuture<>();
+    private volatile boolean done;
+    private byte[] chunk = new byte[CHUNK_SIZE];
+    private int count;
+    private boolean ended;
+    private int peakQueueDepth;
+
+    AsyncSchemaValidator(Schema schema) {
+        Thread.ofPlatform().daemon().name("netex-validation").start(() -> {
+            try {
+                schema.newValidator().validate(new StreamSource(new ChunkInput()));
+                validation.complete(null);
+            } catch (Throwable e) {
+                validation.completeExceptionally(e);
+            } finally {
+                done = true;
+                chunks.clear();
+            }
+        });
+    }
+
+    /**
+     * @return a stream writing to output and to the validator
+     */
+    OutputStream tee(OutputStream output) {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                output.write(b);
+                copy(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                output.write(b, off, len);
+                copy(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                output.flush();
+            }
+        };
+    }
+
+    /**
+     * Ends the input of the validator and waits for it
+     *
+     * @throws SAXException the first schema error
+     */
+    void await() throws SAXException {
+        try {
+            send(Arrays.copyOf(chunk, count));
+            send(END);
+            ended = true;
+            validation.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while validating", e);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SAXException saxException) {
+                throw saxException;
+            }
+            throw new IllegalStateException("Validation failed", e.getCause());
+        }
+    }
+
+    /**
+     * Stops the validator if {@link #await()} was not reached, e.g. when marshalling failed
+     */
+    @Override
+    public void close() {
+        if (!ended) {
+            done = true;
+            chunks.clear();
+            chunks.offer(END);
+        }
+    }
+
+    private void copy(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int copied = Math.min(len, chunk.length - count);
+            System.arraycopy(b, off, chunk, count, copied);
+            count += copied;
+            off += copied;
+            len -= copied;
+            if (count == chunk.length) {
+                send(chunk);
+                chunk = new byte[CHUNK_SIZE];
+                count = 0;
+            }
+        }
+    }
+
+    /**
+     * Queues a chunk, or drops it once the validator is done, which it is early when it has found an error
+     */
+    private void send(byte[] bytes) throws IOException {
+        try {
+            while (!done && !chunks.offer(bytes, 100, TimeUnit.MILLISECONDS)) {
+                // The validator is behind
+            }
+            peakQueueDepth = Math.max(peakQueueDepth, chunks.size());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while validating");
+        }
+    }
+
+    /**
+     * @return the most chunks waiting for the validator at a time, read on the writing thread
+     */
+    int getPeakQueueDepth() {
+        return peakQueueDepth;
+    }
+
+    private final class ChunkInput extends InputStream {
+        private byte[] current;
+        private int position;
+
+        private boolean next() throws IOException {
+            while (current == null || position == current.length) {
+                if (current == END) {
+                    return false;
+                }
+                try {
+                    current = chunks.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while validating");
+                }
+                position = 0;
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return next() ? current[position++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!next()) {
+                return -1;
+            }
+            int read = Math.min(len, current.length - position);
+            System.arraycopy(current, position, b, off, read);
+            position += read;
+            return read;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.netex.conversion.osm.transformer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * On-disk cache of conversion results, keyed by a hash of the input bytes, the target entity, the conversion options
+ * and the converter version.
+ * <p>
+ * Each entry is one file in the cache directory. The total size is bounded, and the least recently used entries are
+ * evicted first. Recency is kept in the last modified time of the files, so it survives restarts. Entries are written to a
+ * temporary file and moved in place, so processes sharing a directory never see a partial entry.
+ * <p>
+ * The cached NeTEx is returned as it was first produced, including its publication timestamp.
+ */
+public class ConversionCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConversionCache.class);
+
+    private static final String ENTRY_SUFFIX = ".cached";
+    private static final String POM_PROPERTIES = "META-INF/maven/io.entur/osm-to-netex-beta/pom.properties";
+
+    private static String converterVersion;
+
+    private final Path directory;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Opens a cache directory, creating it if needed
+     *
+     * @param directory Where the entries are stored
+     * @param maxBytes  Total size of the entries above which the least recently used are evicted
+     */
+    public ConversionCache(Path directory, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(directory);
+
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + ENTRY_SUFFIX)) {
+            stream.forEach(files::add);
+        }
+        Map<Path, FileTime> modified = new LinkedHashMap<>();
+        for (Path file : files) {
+            modified.put(file, Files.getLastModifiedTime(file));
+        }
+        files.sort((a, b) -> modified.get(a).compareTo(modified.get(b)));
+        for (Path file : files) {
+            long size = Files.size(file);
+            String name = file.getFileName().toString();
+            entries.put(name.substring(0, name.length() - ENTRY_SUFFIX.length()), size);
+            bytes += size;
+        }
+        logger.info("Opened conversion cache {} with {} entries of {} bytes in total", directory, entries.size(), bytes);
+    }
+
+    /**
+     * Computes the key of a conversion.
+     *
+     * @param input The OSM input file, whose bytes are hashed
+     * @param parts Everything else that affects the output, such as the target entity and options
+     * @return a hex encoded SHA-256 of the converter version, the parts and the input bytes
+     */
+    public static String key(Path input, String... parts) throws IOException {
+        MessageDigest digest = digest(parts);
+        digest.update((byte) 0);
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = Files.newInputStream(input)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Computes a key from the converter version and the given parts only, for entries that do not depend on the input bytes
+     */
+    public static String key(String... parts) {
+        return HexFormat.of().formatHex(digest(parts).digest());
+    }
+
+    private static MessageDigest digest(String... parts) {
+        MessageDigest digest = sha256();
+        digest.update(converterVersion().getBytes(StandardCharsets.UTF_8));
+        for (String part : parts) {
+            digest.update((byte) 0);
+            digest.update(String.valueOf(part).getBytes(StandardCharsets.UTF_8));
+        }
+        return digest;
+    }
+
+    /**
+     * Copies a cached result to a file.
+     *
+     * @return true on a hit, false if there is no entry for the key
+     */
+    public synchronized boolean get(String key, Path target) throws IOException {
+        // get, not containsKey, so the entry becomes the most recently used
+        if (entries.get(key) == null) {
+            misses++;
+            return false;
+        }
+        Path entry = entryFile(key);
+        try {
+            Files.copy(entry, target, StandardCopyOption.REPLACE_EXISTING);
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (NoSuchFileException e) {
+            // Evicted by another process sharing the directory
+            bytes -= entries.remove(key);
+            misses++;
+            return false;
+        }
+        hits++;
+        return true;
+    }
+
+    /**
+     * Stores a conversion result and evicts the least recently used entries above the size bound
+     */
+    public synchronized void put(String key, Path result) throws IOException {
+        Path temporary = Files.createTempFile(directory, key, ".tmp");
+        try {
+            Files.copy(result, temporary, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temporary, entryFile(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+        long size = Files.size(entryFile(key));
+        Long previous = entries.put(key, size);
+        bytes += size - (previous == null ? 0 : previous);
+        evict();
+    }
+
+    private void evict() throws IOException {
+        Iterator<Map.Entry<String, Long>> eldest = entries.entrySet().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            Files.deleteIfExists(entryFile(entry.getKey()));
+            bytes -= entry.getValue();
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    private Path entryFile(String key) {
+        return directory.resolve(key + ENTRY_SUFFIX);
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(hits, misses, evictions, entries.size(), bytes);
+    }
+
+    /**
+     * Cache statistics since the cache was opened, except entries and bytes which describe the directory
+     */
+    public record Stats(long hits, long misses, long evictions, int entries, long bytes) {
+    }
+
+    /**
+     * The version of this library. For snapshots, the time the classes were built is added, so a rebuilt converter
+     * does not return results cached by an earlier build.
+     */
+    static synchronized String converterVersion() {
+        if (converterVersion == null) {
+            converterVersion = readConverterVersion();
+        }
+        return converterVersion;
+    }
+
+    private static String readConverterVersion() {
+        String version = null;
+        try (InputStream in = ConversionCache.class.getClassLoader().getResourceAsStream(POM_PROPERTIES)) {
+            if (in != null) {
+                Properties properties = new Properties();
+                properties.load(in);
+                version = properties.getProperty("version");
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (version == null || version.endsWith("SNAPSHOT")) {
+            URL classFile = OsmToNetexTransformer.class.getResource(OsmToNetexTransformer.class.getSimpleName() + ".class");
+            try {
+                version = version + "@" + (classFile == null ? 0 : classFile.openConnection().getLastModified());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return version;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.netex.conversion.osm.transformer;
+
+import org.xml.sax.InputSource;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Lets a conversion running on another thread be stopped. The parser reads and the marshaller writes through streams
+ * that check it, and the mapper checks it for each element, so a cancelled conversion stops within one buffer or zone.
+ */
+final class ConversionCancellation {
+
+    private volatile boolean cancelled;
+
+    void cancel() {
+        cancelled = true;
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @throws CancellationException if the conversion has been cancelled
+     */
+    void check() {
+        if (cancelled) {
+            throw new CancellationException("The conversion was cancelled");
+        }
+    }
+
+    /**
+     * @return an input reading the stream or reader of the given one, stopping when the conversion is cancelled
+     */
+    InputSource wrap(InputSource source) {
+        InputSource wrapped = new InputSource(source.getSystemId());
+        wrapped.setPublicId(source.getPublicId());
+        wrapped.setEncoding(source.getEncoding());
+        if (source.getCharacterStream() != null) {
+            wrapped.setCharacterStream(wrap(source.getCharacterStream()));
+        } else if (source.getByteStream() != null) {
+            wrapped.setByteStream(wrap(source.getByteStream()));
+        }
+        return wrapped;
+    }
+
+    InputStream wrap(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                check();
+                return super.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                check();
+                return super.read(b, off, len);
+            }
+        };
+    }
+
+    Reader wrap(Reader reader) {
+        return new FilterReader(reader) {
+            @Override
+            public int read() throws IOException {
+                check();
+                return super.read();
+            }
+
+            @Override
+            public int read(char[] cbuf, int off, int len) throws IOException {
+                check();
+                return super.read(cbuf, off, len);
+            }
+        };
+    }
+
+    OutputStream wrap(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                check();
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                check();
+                out.write(b, off, len);
+            }
+        };
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.netex.conversion.osm.transformer;
+
+/**
+ * State shared by the stages of a single conversion.
+ */
+class ConversionContext {
+
+    private static final int PROGRESS_ELEMENTS = 1 << 10;
+
+    private final ValidationMode validationMode;
+    private final ConversionReport report;
+    private final ConversionCancellation cancellation = new ConversionCancellation();
+    private boolean geometryValidation;
+    private ProgressListener progressListener = ProgressListener.NONE;
+    private long totalElements = -1;
+    private long elements;
+
+    ConversionContext(ValidationMode validationMode, ConversionReport report) {
+        this.validationMode = validationMode;
+        this.report = report;
+    }
+
+    static ConversionContext failFast() {
+        return new ConversionContext(ValidationMode.FAIL_FAST, new ConversionReport());
+    }
+
+    ValidationMode getValidationMode() {
+        return validationMode;
+    }
+
+    ConversionReport getReport() {
+        return report;
+    }
+
+    boolean isGeometryValidation() {
+        return geometryValidation;
+    }
+
+    void setGeometryValidation(boolean geometryValidation) {
+        this.geometryValidation = geometryValidation;
+    }
+
+    /**
+     * @param totalElements The number of elements the mapping will accept, skip or copy from a cache
+     */
+    void setProgress(ProgressListener progressListener, long totalElements) {
+        this.progressListener = progressListener;
+        this.totalElements = totalElements;
+    }
+
+    ConversionCancellation getCancellation() {
+        return cancellation;
+    }
+
+    /**
+     * Decides whether an element with the given issues is converted.
+     *
+     * @param issues         The issues found for the element
+     * @param failureMessage Message of the exception thrown in {@link ValidationMode#FAIL_FAST}
+     * @return true if the element has no errors, false if it must be skipped
+     * @throws IllegalArgumentException if the element has errors and the mode is {@link ValidationMode#FAIL_FAST}
+     * @throws java.util.concurrent.CancellationException if the conversion has been cancelled
+     */
+    boolean accept(ElementIssues issues, String failureMessage) {
+        count();
+        if (!issues.hasErrors()) {
+            report.addIssues(issues.getIssues());
+            report.elementConverted();
+            return true;
+        }
+        if (validationMode == ValidationMode.FAIL_FAST) {
+            IllegalArgumentException exception = new IllegalArgumentException(failureMessage);
+            issues.getIssues().stream()
+                    .filter(issue -> issue.severity() == ConversionIssue.Severity.ERROR)
+                    .forEach(issue -> exception.addSuppressed(new IllegalArgumentException(issue.message())));
+            throw exception;
+        }
+        report.addIssues(issues.getIssues());
+        report.elementSkipped();
+        return false;
+    }
+
+    /**
+     * Counts an element whose zone was copied from a cache instead of being mapped
+     *
+     * @throws java.util.concurrent.CancellationException if the conversion has been cancelled
+     */
+    void acceptCached() {
+        count();
+        report.elementConverted();
+    }
+
+    private void count() {
+        cancellation.check();
+        if (++elements % PROGRESS_ELEMENTS == 0 || elements == totalElements) {
+            progressListener.progress(new ProgressListener.Progress(ConversionMetrics.Stage.MAP, -1, elements, totalElements));
+        }
+    }
+}
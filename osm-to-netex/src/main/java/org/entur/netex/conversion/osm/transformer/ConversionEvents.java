@@ -0,0 +1,88 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.netex.conversion.osm.transformer;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * JDK Flight Recorder events of the conversions, so CPU samples and GC pauses in a recording can be tied to the input and
+ * the zone being converted. The stages of a conversion run on the thread of its conversion event.
+ * <p>
+ * A disabled event is not given any values, so the events cost close to nothing outside a recording.
+ */
+final class ConversionEvents {
+
+    static final String CATEGORY = "OSM to NeTEx";
+
+    private ConversionEvents() {
+    }
+
+    @Name("org.entur.netex.osm.Conversion")
+    @Label("Conversion")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class Conversion extends Event {
+        @Label("Generated From")
+        String generatedFrom;
+
+        @Label("Target Entity")
+        String targetEntity;
+
+        @Label("Zones")
+        int zones;
+
+        @Label("Skipped")
+        int skipped;
+    }
+
+    @Name("org.entur.netex.osm.ConversionStage")
+    @Label("Conversion Stage")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class Stage extends Event {
+        @Label("Stage")
+        String stage;
+    }
+
+    /**
+     * Recorded for the zones taking longer to map than the threshold setting of the event, 10 ms unless set otherwise
+     * in the recording
+     */
+    @Name("org.entur.netex.osm.SlowZone")
+    @Label("Slow Zone")
+    @Description("A way or multipolygon relation that took long to map to a zone")
+    @Category(CATEGORY)
+    @Threshold("10 ms")
+    static final class SlowZone extends Event {
+        @Label("Element Type")
+        String elementType;
+
+        @Label("Element Id")
+        long elementId;
+
+        @Label("Vertices")
+        int vertices;
+
+        @Label("Target Entity")
+        String targetEntity;
+    }
+}
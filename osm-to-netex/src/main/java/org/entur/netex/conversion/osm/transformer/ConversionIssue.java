@@ -0,0 +1,47 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.netex.conversion.osm.transformer;
+
+/**
+ * A problem found in the OSM input during conversion. Issues are plain values without stack traces,
+ * so that a whole file can be checked cheaply.
+ *
+ * @param severity    {@link Severity#ERROR} if the element was skipped, {@link Severity#WARNING} if it was converted anyway
+ * @param elementType The OSM element type: node, way or relation
+ * @param elementId   The OSM id of the element
+ * @param tag         The tag the issue concerns, or null if it is not about a tag
+ * @param rule        Short machine-readable name of the rule that was broken, for example missing-tag
+ * @param message     Human-readable description
+ */
+public record ConversionIssue(Severity severity, String elementType, String elementId, String tag, String rule, String message) {
+
+    public static final String MISSING_TAG = "missing-tag";
+    public static final String INVALID_VALUE = "invalid-value";
+    public static final String INVALID_DATE = "invalid-date";
+    public static final String INVALID_GEOMETRY = "invalid-geometry";
+    public static final String RING_NOT_CLOSED = "ring-not-closed";
+    public static final String TOO_FEW_POSITIONS = "too-few-positions";
+    public static final String SELF_INTERSECTION = "self-intersection";
+    public static final String DROPPED_RING = "dropped-ring";
+    public static final String DANGLING_REFERENCE = "dangling-reference";
+    public static final String UNMAPPED_MEMBER = "unmapped-member";
+    public static final String UNROUTED = "unrouted";
+
+    public enum Severity {
+        ERROR,
+        WARNING
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.netex.conversion.osm.transformer;
+
+import java.time.Duration;
+
+/**
+ * Receives the timings and counts of each conversion, see {@link OsmToNetexTransformer#setMetrics(ConversionMetrics)}.
+ * All methods do nothing by default, so an implementation only overrides what it records.
+ * <p>
+ * Conversions running at the same time report to the same instance, so implementations must be thread safe.
+ * {@link MeterRegistryMetrics} records into a metrics registry such as Micrometer's.
+ */
+public interface ConversionMetrics {
+
+    /**
+     * Records nothing, the default
+     */
+    ConversionMetrics NONE = new ConversionMetrics() {
+    };
+
+    enum Stage {
+        /**
+         * Parsing the OSM XML into the Osm model, including an OSM schema validation
+         */
+        UNMARSHAL,
+        /**
+         * Indexing the nodes by id
+         */
+        NODE_INDEX,
+        /**
+         * Mapping ways and relations to zones
+         */
+        MAP,
+        /**
+         * Writing the NeTEx XML, including a NeTEx schema validation
+         */
+        MARSHAL
+    }
+
+    /**
+     * A stage of a conversion has completed
+     */
+    default void stage(Stage stage, Duration duration) {
+    }
+
+    /**
+     * Elements of a conversion, by type: {@code node}, {@code way} and {@code relation} parsed, and {@code zone}
+     * converted and {@code skipped} by the validation
+     */
+    default void elements(String type, long count) {
+    }
+
+    default void bytesRead(long bytes) {
+    }
+
+    default void bytesWritten(long bytes) {
+    }
+
+    /**
+     * The node references of the ways that were mapped, and how long the mapping took
+     */
+    default void vertices(long count, Duration duration) {
+    }
+
+    /**
+     * The most entries waiting at a time in a bounded queue between two threads of a conversion: {@code osm-validation}
+     * or {@code netex-validation}
+     */
+    default void peakQueueDepth(String queue, int depth) {
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.netex.conversion.osm.transformer;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Result of validating the OSM input during a conversion: every issue found and how many elements were converted or skipped.
+ * The report is safe to fill from several threads.
+ */
+public class ConversionReport {
+
+    private final List<ConversionIssue> issues = new ArrayList<>();
+    private final AtomicInteger converted = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+
+    public void addIssues(Collection<ConversionIssue> newIssues) {
+        synchronized (issues) {
+            issues.addAll(newIssues);
+        }
+    }
+
+    public List<ConversionIssue> getIssues() {
+        synchronized (issues) {
+            return List.copyOf(issues);
+        }
+    }
+
+    /**
+     * @return true if any element was skipped because of an error
+     */
+    public boolean hasErrors() {
+        return getIssues().stream().anyMatch(issue -> issue.severity() == ConversionIssue.Severity.ERROR);
+    }
+
+    /**
+     * @return the number of OSM elements converted to NeTEx
+     */
+    public int getConverted() {
+        return converted.get();
+    }
+
+    /**
+     * @return the number of OSM elements skipped because of errors
+     */
+    public int getSkipped() {
+        return skipped.get();
+    }
+
+    void elementConverted() {
+        converted.incrementAndGet();
+    }
+
+    void elementSkipped() {
+        skipped.incrementAndGet();
+    }
+
+    /**
+     * Writes the report as JSON
+     *
+     * @param path The file to write
+     * @throws IOException if the file cannot be written
+     */
+    public void writeJson(Path path) throws IOException {
+        try (OutputStream out = Files.newOutputStream(path)) {
+            writeJson(out);
+        }
+    }
+
+    /**
+     * Writes the report as JSON. The stream is flushed but not closed.
+     *
+     * @param outputStream Where the JSON is written
+     * @throws IOException if the stream cannot be written
+     */
+    public void writeJson(OutputStream outputStream) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+        writer.write("{\n  \"converted\": " + getConverted() + ",\n  \"skipped\": " + getSkipped() + ",\n  \"issues\": [");
+        List<ConversionIssue> snapshot = getIssues();
+        for (int i = 0; i < snapshot.size(); i++) {
+            ConversionIssue issue = snapshot.get(i);
+            writer.write(i == 0 ? "\n" : ",\n");
+            writer.write("    {\"severity\": " + quote(issue.severity().name())
+                    + ", \"elementType\": " + quote(issue.elementType())
+                    + ", \"elementId\": " + quote(issue.elementId())
+                    + ", \"tag\": " + quote(issue.tag())
+                    + ", \"rule\": " + quote(issue.rule())
+                    + ", \"message\": " + quote(issue.message()) + "}");
+        }
+        writer.write(snapshot.isEmpty() ? "]\n}\n" : "\n  ]\n}\n");
+        writer.flush();
+    }
+
+    private static String quote(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> sb.append("\\\"");
+                case '\\' -> sb.append("\\\\");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                case '\t' -> sb.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+                }
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -0,0 +1,482 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.netex.conversion.osm.transformer;
+
+import org.openstreetmap.osm.Member;
+import org.openstreetmap.osm.Nd;
+import org.openstreetmap.osm.Node;
+import org.openstreetmap.osm.Osm;
+import org.openstreetmap.osm.Relation;
+import org.openstreetmap.osm.Tag;
+import org.openstreetmap.osm.Way;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.InputSource;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.stream.StreamSource;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The OSM data of the last conversion, kept on disk so that OSM change files can be applied to it without parsing the
+ * whole input again.
+ * <p>
+ * Node coordinates are kept in a memory-mapped {@link NodeStore}. Ways and relations are few in zone data and are kept
+ * in memory, with a reverse index from each node to the ways using it, and written to a file after each change.
+ * <p>
+ * A change is applied in two steps. {@link #apply(InputSource)} returns the affected elements and keeps the change
+ * pending, and {@link #commit()} saves it once its delivery has been written. Until then the state on disk is that of
+ * the previous change, so a change whose conversion failed can be applied again.
+ */
+public class ConversionState implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConversionState.class);
+
+    static final String NODES_FILE = "nodes.bin";
+    static final String ELEMENTS_FILE = "elements.bin";
+    private static final int FORMAT_VERSION = 1;
+    private static final String CREATE = "create";
+    private static final String MODIFY = "modify";
+    private static final String DELETE = "delete";
+
+    private final Path directory;
+    private final NodeStore nodes;
+    private final Map<BigInteger, Way> ways = new LinkedHashMap<>();
+    private final Map<BigInteger, Relation> relations = new LinkedHashMap<>();
+    private final Map<BigInteger, Set<BigInteger>> waysByNode = new HashMap<>();
+    // The pending change: its actions in order and the elements after it, null when deleted
+    private final List<Action> pendingActions = new ArrayList<>();
+    private final Map<BigInteger, double[]> pendingNodes = new HashMap<>();
+    private final Map<BigInteger, Way> pendingWays = new HashMap<>();
+    private final Map<BigInteger, Relation> pendingRelations = new HashMap<>();
+
+    private ConversionState(Path directory, NodeStore nodes) {
+        this.directory = directory;
+        this.nodes = nodes;
+    }
+
+    /**
+     * Creates the state of a complete OSM snapshot in an empty or missing directory. OSM data parsed with the
+     * {@link OsmToNetexTransformer#setExternalNodeJoin(boolean) external node join} only has the nodes of its ways and relations.
+     */
+    public static ConversionState create(Path directory, Osm osm) throws IOException {
+        Files.createDirectories(directory);
+        Files.deleteIfExists(directory.resolve(NODES_FILE));
+        NodeSpill.Index spilledNodes = osm instanceof NodeSpill.SpilledOsm spilled ? spilled.getNodeIndex() : null;
+        ConversionState state = new ConversionState(directory, NodeStore.open(directory.resolve(NODES_FILE),
+                spilledNodes == null ? osm.getNode().size() : spilledNodes.count()));
+        if (spilledNodes != null) {
+            spilledNodes.forEach(state.nodes::put);
+        }
+        for (Node node : osm.getNode()) {
+            state.nodes.put(node.getId().longValue(), NodeStore.stored(node.getLat()), NodeStore.stored(node.getLon()));
+        }
+        osm.getWay().forEach(state::putWay);
+        osm.getRelation().forEach(relation -> state.relations.put(relation.getId(), relation));
+        state.save();
+        logger.info("Created conversion state in {} with {} nodes, {} ways and {} relations", directory, state.nodes.size(), state.ways.size(), state.relations.size());
+        return state;
+    }
+
+    /**
+     * Opens a state created by {@link #create(Path, Osm)}
+     */
+    public static ConversionState open(Path directory) throws IOException {
+        if (!Files.exists(directory.resolve(ELEMENTS_FILE))) {
+            throw new IllegalArgumentException("No conversion state in " + directory);
+        }
+        ConversionState state = new ConversionState(directory, NodeStore.open(directory.resolve(NODES_FILE), 0));
+        state.load();
+        return state;
+    }
+
+    /**
+     * The ways and relations whose zones are affected by a change, before and after it, with the nodes they use.
+     * Member ways of affected relations are included, so that multipolygons and groups of tariff zones are complete.
+     */
+    public record Change(Osm before, Osm after) {
+    }
+
+    /**
+     * Reads an {@code osmChange} document with create, modify and delete sections, and keeps it pending until
+     * {@link #commit()}. A change that was not committed is discarded.
+     *
+     * @return the elements affected by the change, including ways using nodes that moved and the member ways of changed
+     * relations, before and after the change
+     */
+    public Change apply(InputSource osmChange) {
+        discardPending();
+        List<Action> actions = readChange(osmChange);
+
+        Set<BigInteger> affectedWays = new LinkedHashSet<>();
+        Set<BigInteger> affectedRelations = new LinkedHashSet<>();
+        for (Action action : actions) {
+            if (action.element() instanceof Node node && !CREATE.equals(action.type())) {
+                affectedWays.addAll(waysByNode.getOrDefault(node.getId(), Set.of()));
+            } else if (action.element() instanceof Way way) {
+                affectedWays.add(way.getId());
+            } else if (action.element() instanceof Relation relation) {
+                affectedRelations.add(relation.getId());
+                // A way leaving or joining a multipolygon becomes or stops being a zone of its own
+                addMemberWays(relations.get(relation.getId()), affectedWays);
+                addMemberWays(relation, affectedWays);
+            }
+        }
+        for (Relation relation : relations.values()) {
+            if (relation.getMember().stream().anyMatch(member -> OsmToNetexMapper.WAY.equals(member.getType()) && affectedWays.contains(member.getRef()))) {
+                affectedRelations.add(relation.getId());
+            }
+        }
+
+        Osm before = subset(affectedWays, affectedRelations);
+        for (Action action : actions) {
+            pend(action);
+        }
+        Osm after = subset(affectedWays, affectedRelations);
+        logger.info("Read {} changes, {} ways and {} relations affected", actions.size(), affectedWays.size(), affectedRelations.size());
+        return new Change(before, after);
+    }
+
+    private static void addMemberWays(Relation relation, Set<BigInteger> wayIds) {
+        if (relation != null) {
+            relation.getMember().stream()
+                    .filter(member -> OsmToNetexMapper.WAY.equals(member.getType()))
+                    .forEach(member -> wayIds.add(member.getRef()));
+        }
+    }
+
+    /**
+     * Applies the change returned by the last {@link #apply(InputSource)} and saves the state
+     */
+    public void commit() throws IOException {
+        if (pendingActions.isEmpty()) {
+            return;
+        }
+        for (Action action : pendingActions) {
+            applyAction(action);
+        }
+        int applied = pendingActions.size();
+        discardPending();
+        save();
+        logger.info("Saved {} changes to the conversion state in {}", applied, directory);
+    }
+
+    private void pend(Action action) {
+        pendingActions.add(action);
+        boolean delete = DELETE.equals(action.type());
+        if (action.element() instanceof Node node) {
+            pendingNodes.put(node.getId(), delete ? null : new double[]{NodeStore.stored(node.getLat()), NodeStore.stored(node.getLon())});
+        } else if (action.element() instanceof Way way) {
+            pendingWays.put(way.getId(), delete ? null : way);
+        } else if (action.element() instanceof Relation relation) {
+            pendingRelations.put(relation.getId(), delete ? null : relation);
+        }
+    }
+
+    private void discardPending() {
+        pendingActions.clear();
+        pendingNodes.clear();
+        pendingWays.clear();
+        pendingRelations.clear();
+    }
+
+    private void applyAction(Action action) throws IOException {
+        boolean delete = DELETE.equals(action.type());
+        if (action.element() instanceof Node node) {
+            if (delete) {
+                nodes.remove(node.getId().longValue());
+            } else {
+                nodes.put(node.getId().longValue(), NodeStore.stored(node.getLat()), NodeStore.stored(node.getLon()));
+            }
+        } else if (action.element() instanceof Way way) {
+            removeWay(way.getId());
+            if (!delete) {
+                putWay(way);
+            }
+        } else if (action.element() instanceof Relation relation) {
+            if (delete) {
+                relations.remove(relation.getId());
+            } else {
+                relations.put(relation.getId(), relation);
+            }
+        }
+    }
+
+    /**
+     * @return the ways and relations with these ids that exist with the pending change, the member ways of the relations
+     * and the nodes of all the ways
+     */
+    private Osm subset(Set<BigInteger> wayIds, Set<BigInteger> relationIds) {
+        Osm osm = new Osm();
+        Set<BigInteger> included = new LinkedHashSet<>(wayIds);
+        for (BigInteger relationId : relationIds) {
+            Relation relation = pendingRelations.containsKey(relationId) ? pendingRelations.get(relationId) : relations.get(relationId);
+            if (relation != null) {
+                osm.getRelation().add(relation);
+                relation.getMember().stream()
+                        .filter(member -> OsmToNetexMapper.WAY.equals(member.getType()))
+                        .forEach(member -> included.add(member.getRef()));
+            }
+        }
+        Set<BigInteger> nodeIds = new LinkedHashSet<>();
+        for (BigInteger wayId : included) {
+            Way way = pendingWays.containsKey(wayId) ? pendingWays.get(wayId) : ways.get(wayId);
+            if (way != null) {
+                osm.getWay().add(way);
+                way.getNd().forEach(nd -> nodeIds.add(nd.getRef()));
+            }
+        }
+        double[] latLon = new double[2];
+        for (BigInteger nodeId : nodeIds) {
+            double[] coordinates = pendingNodes.containsKey(nodeId) ? pendingNodes.get(nodeId)
+                    : nodes.get(nodeId.longValue(), latLon) ? latLon : null;
+            if (coordinates != null) {
+                Node node = new Node();
+                node.setId(nodeId);
+                node.setLat(NodeStore.coordinate(coordinates[0]));
+                node.setLon(NodeStore.coordinate(coordinates[1]));
+                osm.getNode().add(node);
+            }
+        }
+        return osm;
+    }
+
+    private void putWay(Way way) {
+        ways.put(way.getId(), way);
+        for (Nd nd : way.getNd()) {
+            waysByNode.computeIfAbsent(nd.getRef(), ref -> new HashSet<>(2)).add(way.getId());
+        }
+    }
+
+    private void removeWay(BigInteger id) {
+        Way way = ways.remove(id);
+        if (way != null) {
+            for (Nd nd : way.getNd()) {
+                Set<BigInteger> users = waysByNode.get(nd.getRef());
+                if (users != null && users.remove(id) && users.isEmpty()) {
+                    waysByNode.remove(nd.getRef());
+                }
+            }
+        }
+    }
+
+    private record Action(String type, Object element) {
+    }
+
+    private static List<Action> readChange(InputSource osmChange) {
+        List<Action> actions = new ArrayList<>();
+        StreamSource source = new StreamSource(osmChange.getSystemId());
+        source.setInputStream(osmChange.getByteStream());
+        source.setReader(osmChange.getCharacterStream());
+        try {
+            XMLInputFactory factory = XMLInputFactory.newFactory();
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            XMLStreamReader reader = factory.createXMLStreamReader(source);
+            String type = null;
+            Object element = null;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    switch (reader.getLocalName()) {
+                        case CREATE, MODIFY, DELETE -> type = reader.getLocalName();
+                        case "node" -> {
+                            Node node = new Node();
+                            node.setId(new BigInteger(reader.getAttributeValue(null, "id")));
+                            String lat = reader.getAttributeValue(null, "lat");
+                            String lon = reader.getAttributeValue(null, "lon");
+                            if (lat != null && lon != null) {
+                                node.setLat(Double.valueOf(lat));
+                                node.setLon(Double.valueOf(lon));
+                            }
+                            element = node;
+                        }
+                        case "way" -> {
+                            Way way = new Way();
+                            way.setId(new BigInteger(reader.getAttributeValue(null, "id")));
+                            element = way;
+                        }
+                        case "relation" -> {
+                            Relation relation = new Relation();
+                            relation.setId(new BigInteger(reader.getAttributeValue(null, "id")));
+                            element = relation;
+                        }
+                        case "nd" -> {
+                            Nd nd = new Nd();
+                            nd.setRef(new BigInteger(reader.getAttributeValue(null, "ref")));
+                            ((Way) element).getNd().add(nd);
+                        }
+                        case "member" -> {
+                            Member member = new Member();
+                            member.setType(reader.getAttributeValue(null, "type"));
+                            member.setRef(new BigInteger(reader.getAttributeValue(null, "ref")));
+                            member.setRole(reader.getAttributeValue(null, "role"));
+                            ((Relation) element).getMember().add(member);
+                        }
+                        case "tag" -> {
+                            Tag tag = new Tag();
+                            tag.setK(reader.getAttributeValue(null, "k"));
+                            tag.setV(reader.getAttributeValue(null, "v"));
+                            if (element instanceof Way way) {
+                                way.getTag().add(tag);
+                            } else if (element instanceof Relation relation) {
+                                relation.getTag().add(tag);
+                            }
+                        }
+                        default -> {
+                        }
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if (name.equals("node") || name.equals("way") || name.equals("relation")) {
+                        if (type == null) {
+                            throw new IllegalArgumentException(name + " " + idOf(element) + " is outside of a create, modify or delete section");
+                        }
+                        if (element instanceof Node node && !DELETE.equals(type) && node.getLat() == null) {
+                            throw new IllegalArgumentException("node " + node.getId() + " has no coordinates");
+                        }
+                        actions.add(new Action(type, element));
+                        element = null;
+                    } else if (name.equals(type)) {
+                        type = null;
+                    }
+                }
+            }
+            reader.close();
+        } catch (XMLStreamException e) {
+            throw new IllegalArgumentException("Unable to read OSM change", e);
+        }
+        return actions;
+    }
+
+    private static BigInteger idOf(Object element) {
+        if (element instanceof Node node) {
+            return node.getId();
+        }
+        return element instanceof Way way ? way.getId() : ((Relation) element).getId();
+    }
+
+    private void save() throws IOException {
+        nodes.force();
+        Path temporary = Files.createTempFile(directory, ELEMENTS_FILE, ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(ways.size());
+                for (Way way : ways.values()) {
+                    out.writeLong(way.getId().longValue());
+                    writeTags(out, way.getTag());
+                    out.writeInt(way.getNd().size());
+                    for (Nd nd : way.getNd()) {
+                        out.writeLong(nd.getRef().longValue());
+                    }
+                }
+                out.writeInt(relations.size());
+                for (Relation relation : relations.values()) {
+                    out.writeLong(relation.getId().longValue());
+                    writeTags(out, relation.getTag());
+                    out.writeInt(relation.getMember().size());
+                    for (Member member : relation.getMember()) {
+                        out.writeUTF(member.getType());
+                        out.writeLong(member.getRef().longValue());
+                        out.writeUTF(member.getRole() == null ? "" : member.getRole());
+                    }
+                }
+            }
+            Files.move(temporary, directory.resolve(ELEMENTS_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private void load() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(directory.resolve(ELEMENTS_FILE))))) {
+            if (in.readInt() != FORMAT_VERSION) {
+                throw new IllegalArgumentException("The conversion state in " + directory + " was written by another version");
+            }
+            int wayCount = in.readInt();
+            for (int i = 0; i < wayCount; i++) {
+                Way way = new Way();
+                way.setId(BigInteger.valueOf(in.readLong()));
+                readTags(in, way.getTag());
+                int ndCount = in.readInt();
+                for (int j = 0; j < ndCount; j++) {
+                    Nd nd = new Nd();
+                    nd.setRef(BigInteger.valueOf(in.readLong()));
+                    way.getNd().add(nd);
+                }
+                putWay(way);
+            }
+            int relationCount = in.readInt();
+            for (int i = 0; i < relationCount; i++) {
+                Relation relation = new Relation();
+                relation.setId(BigInteger.valueOf(in.readLong()));
+                readTags(in, relation.getTag());
+                int memberCount = in.readInt();
+                for (int j = 0; j < memberCount; j++) {
+                    Member member = new Member();
+                    member.setType(in.readUTF());
+                    member.setRef(BigInteger.valueOf(in.readLong()));
+                    member.setRole(in.readUTF());
+                    relation.getMember().add(member);
+                }
+                relations.put(relation.getId(), relation);
+            }
+        }
+    }
+
+    private static void writeTags(DataOutputStream out, List<Tag> tags) throws IOException {
+        out.writeInt(tags.size());
+        for (Tag tag : tags) {
+            out.writeUTF(tag.getK());
+            out.writeUTF(tag.getV());
+        }
+    }
+
+    private static void readTags(DataInputStream in, List<Tag> tags) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            Tag tag = new Tag();
+            tag.setK(in.readUTF());
+            tag.setV(in.readUTF());
+            tags.add(tag);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        nodes.close();
+    }
+}
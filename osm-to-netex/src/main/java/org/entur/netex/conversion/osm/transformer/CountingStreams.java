@@ -0,0 +1,105 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.netex.conversion.osm.transformer;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.function.LongConsumer;
+
+/**
+ * Streams counting the bytes passing through them, for {@link ConversionMetrics}
+ */
+final class CountingStreams {
+
+    private CountingStreams() {
+    }
+
+    static final class Input extends FilterInputStream {
+        private long count;
+
+        Input(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        long count() {
+            return count;
+        }
+    }
+
+    static final class Output extends FilterOutputStream {
+        private static final int PROGRESS_BYTES = 1 << 20;
+
+        private final LongConsumer progress;
+        private long count;
+
+        Output(OutputStream out) {
+            this(out, null);
+        }
+
+        /**
+         * @param progress Receives the count each time another megabyte has been written, or null
+         */
+        Output(OutputStream out, LongConsumer progress) {
+            super(out);
+            this.progress = progress;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            added(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            added(len);
+        }
+
+        private void added(int len) {
+            long before = count;
+            count += len;
+            if (progress != null && before / PROGRESS_BYTES != count / PROGRESS_BYTES) {
+                progress.accept(count);
+            }
+        }
+
+        long count() {
+            return count;
+        }
+    }
+}
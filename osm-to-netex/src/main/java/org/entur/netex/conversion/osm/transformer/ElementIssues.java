@@ -0,0 +1,63 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.netex.conversion.osm.transformer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.entur.netex.conversion.osm.transformer.ConversionIssue.Severity.ERROR;
+import static org.entur.netex.conversion.osm.transformer.ConversionIssue.Severity.WARNING;
+
+/**
+ * Collects the issues found while mapping a single OSM element.
+ */
+final class ElementIssues {
+
+    private final String elementType;
+    private final String elementId;
+    private final List<ConversionIssue> issues = new ArrayList<>();
+    private boolean errors;
+
+    ElementIssues(String elementType, Object elementId) {
+        this.elementType = elementType;
+        this.elementId = String.valueOf(elementId);
+    }
+
+    void missingTag(String tag) {
+        error(tag, ConversionIssue.MISSING_TAG, String.format("Missing tag or tag value: %s", tag));
+    }
+
+    void invalidValue(String tag, String value) {
+        error(tag, ConversionIssue.INVALID_VALUE, String.format("Invalid value for tag %s: %s", tag, value));
+    }
+
+    void error(String tag, String rule, String message) {
+        errors = true;
+        issues.add(new ConversionIssue(ERROR, elementType, elementId, tag, rule, message));
+    }
+
+    void warning(String tag, String rule, String message) {
+        issues.add(new ConversionIssue(WARNING, elementType, elementId, tag, rule, message));
+    }
+
+    boolean hasErrors() {
+        return errors;
+    }
+
+    List<ConversionIssue> getIssues() {
+        return issues;
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.netex.conversion.osm.transformer;
+
+import org.openstreetmap.osm.Member;
+import org.openstreetmap.osm.Nd;
+import org.openstreetmap.osm.Osm;
+import org.openstreetmap.osm.Relation;
+import org.openstreetmap.osm.Way;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Joins the nodes of an input with the node references of its ways and relations without holding either in memory,
+ * for inputs whose nodes do not fit even in a {@link NodeStore}, and whose nodes need not be sorted.
+ * <p>
+ * The nodes are written to sorted runs by an {@link ExternalSorter} while parsing, and so are the node references once
+ * the input has been parsed. Both are then merged in the order of their ids, and each referenced node is written once
+ * to a file sorted by id. The mapping looks nodes up in that file by binary search. The nodes of a way mostly have
+ * consecutive ids, so the lookups of a zone read the same few pages.
+ */
+final class ExternalNodeJoin implements NodeSpill.Sink {
+
+    private static final Logger logger = LoggerFactory.getLogger(ExternalNodeJoin.class);
+
+    private static final String JOINED_FILE = "joined";
+
+    private final Path directory;
+    private final int runRecords;
+    private final ExternalSorter nodes;
+
+    /**
+     * @param directory  Where the sorted runs and the joined nodes are written
+     * @param runRecords Number of nodes or references sorted in memory at a time
+     */
+    ExternalNodeJoin(Path directory, int runRecords) {
+        this.directory = directory;
+        this.runRecords = runRecords;
+        this.nodes = new ExternalSorter(directory, "nodes", 3, runRecords);
+    }
+
+    @Override
+    public void put(long id, double lat, double lon) throws IOException {
+        nodes.add(id, Double.doubleToRawLongBits(lat), Double.doubleToRawLongBits(lon));
+    }
+
+    @Override
+    public NodeSpill.Index index(Osm osm) throws IOException {
+        long start = System.currentTimeMillis();
+        Path joined = directory.resolve(JOINED_FILE);
+        long joinedNodes = 0;
+        try (ExternalSorter refs = new ExternalSorter(directory, "refs", 1, runRecords)) {
+            for (Way way : osm.getWay()) {
+                for (Nd nd : way.getNd()) {
+                    if (nd.getRef() != null) {
+                        refs.add(nd.getRef().longValue());
+                    }
+                }
+            }
+            for (Relation relation : osm.getRelation()) {
+                for (Member member : relation.getMember()) {
+                    if ("node".equals(member.getType()) && member.getRef() != null) {
+                        refs.add(member.getRef().longValue());
+                    }
+                }
+            }
+
+            try (ExternalSorter.Cursor nodeCursor = nodes.sorted();
+                 ExternalSorter.Cursor refCursor = refs.sorted();
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(joined), 1 << 16))) {
+                boolean node = nodeCursor.next();
+                boolean first = true;
+                long previous = 0;
+                while (refCursor.next()) {
+                    long ref = refCursor.get(0);
+                    if (!first && ref == previous) {
+                        continue;
+                    }
+                    first = false;
+                    previous = ref;
+                    while (node && nodeCursor.get(0) < ref) {
+                        node = nodeCursor.next();
+                    }
+                    if (node && nodeCursor.get(0) == ref) {
+                        out.writeLong(ref);
+                        out.writeLong(nodeCursor.get(1));
+                        out.writeLong(nodeCursor.get(2));
+                        joinedNodes++;
+                    }
+                }
+            }
+            logger.info("Joined {} node references with {} nodes in {} and {} sorted runs, {} nodes referenced, in {} ms",
+                    refs.size(), nodes.size(), refs.runs(), nodes.runs(), joinedNodes, System.currentTimeMillis() - start);
+        } finally {
+            nodes.close();
+        }
+        return new SortedNodes(directory, joined, joinedNodes);
+    }
+
+    @Override
+    public void discard() {
+        try {
+            nodes.close();
+        } catch (IOException e) {
+            logger.warn("Unable to delete sorted runs in {}", directory, e);
+        }
+        NodeSpill.delete(directory, directory.resolve(JOINED_FILE));
+    }
+
+    /**
+     * The joined nodes, as id, latitude and longitude sorted by id in a memory-mapped file. The file is mapped in
+     * segments, since a single mapping is limited to 2 GB.
+     */
+    private static final class SortedNodes extends NodeSpill.Index {
+
+        private static final int RECORD_BYTES = 24;
+        private static final int SEGMENT_BITS = 24;
+
+        private final Path file;
+        private final long count;
+        private final MappedByteBuffer[] segments;
+
+        private SortedNodes(Path directory, Path file, long count) throws IOException {
+            super(directory);
+            this.file = file;
+            this.count = count;
+            long segmentRecords = 1L << SEGMENT_BITS;
+            segments = new MappedByteBuffer[(int) ((count + segmentRecords - 1) / segmentRecords)];
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                for (int i = 0; i < segments.length; i++) {
+                    long records = Math.min(segmentRecords, count - i * segmentRecords);
+                    segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, i * segmentRecords * RECORD_BYTES, records * RECORD_BYTES);
+                }
+            }
+        }
+
+        @Override
+        boolean coordinates(long id, double[] latLon) {
+            long low = 0;
+            long high = count - 1;
+            while (low <= high) {
+                long middle = (low + high) >>> 1;
+                long key = segments[(int) (middle >>> SEGMENT_BITS)].getLong(offset(middle));
+                if (key < id) {
+                    low = middle + 1;
+                } else if (key > id) {
+                    high = middle - 1;
+                } else {
+                    MappedByteBuffer segment = segments[(int) (middle >>> SEGMENT_BITS)];
+                    latLon[0] = Double.longBitsToDouble(segment.getLong(offset(middle) + 8));
+                    latLon[1] = Double.longBitsToDouble(segment.getLong(offset(middle) + 16));
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static int offset(long record) {
+            return (int) (record & ((1L << SEGMENT_BITS) - 1)) * RECORD_BYTES;
+        }
+
+        @Override
+        long count() {
+            return count;
+        }
+
+        @Override
+        void forEach(NodeStore.Visitor visitor) throws IOException {
+            for (long record = 0; record < count; record++) {
+                MappedByteBuffer segment = segments[(int) (record >>> SEGMENT_BITS)];
+                int offset = offset(record);
+                visitor.visit(segment.getLong(offset), Double.longBitsToDouble(segment.getLong(offset + 8)), Double.longBitsToDouble(segment.getLong(offset + 16)));
+            }
+        }
+
+        @Override
+        public void close() {
+            NodeSpill.delete(getDirectory(), file);
+        }
+    }
+}
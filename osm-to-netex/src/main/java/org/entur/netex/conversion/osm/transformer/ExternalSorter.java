@@ -0,0 +1,297 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.netex.conversion.osm.transformer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts more records than fit in memory. Each record is a fixed number of longs, sorted by the first. Records are
+ * collected in a buffer of fixed size, which is sorted and written to a run file when full. The runs are then merged,
+ * at most {@value #MAX_RUNS} at a time, so the memory used does not depend on the number of records and all the files
+ * are written and read sequentially.
+ */
+final class ExternalSorter implements Closeable {
+
+    static final int RUN_RECORDS = 1 << 18;
+
+    private static final int MAX_RUNS = 64;
+    private static final int BUFFER_BYTES = 1 << 16;
+
+    private final Path directory;
+    private final String name;
+    private final int width;
+    private final long[] buffer;
+    private long[] scratch;
+    private int buffered;
+    private final List<Path> runs = new ArrayList<>();
+    private int createdRuns;
+    private long size;
+
+    /**
+     * @param directory  Where the run files are written
+     * @param name       Prefix of the run files
+     * @param width      Number of longs of each record, the first one being the key
+     * @param runRecords Number of records sorted in memory at a time
+     */
+    ExternalSorter(Path directory, String name, int width, int runRecords) {
+        this.directory = directory;
+        this.name = name;
+        this.width = width;
+        this.buffer = new long[runRecords * width];
+    }
+
+    /**
+     * Adds a record of width 1
+     */
+    void add(long key) throws IOException {
+        buffer[buffered++] = key;
+        added();
+    }
+
+    /**
+     * Adds a record of width 3
+     */
+    void add(long key, long a, long b) throws IOException {
+        buffer[buffered++] = key;
+        buffer[buffered++] = a;
+        buffer[buffered++] = b;
+        added();
+    }
+
+    private void added() throws IOException {
+        size++;
+        if (buffered == buffer.length) {
+            writeRun();
+        }
+    }
+
+    long size() {
+        return size;
+    }
+
+    int runs() {
+        return createdRuns;
+    }
+
+    private void writeRun() throws IOException {
+        sortBuffer();
+        Path run = directory.resolve(name + "-" + createdRuns++);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run), BUFFER_BYTES))) {
+            for (int i = 0; i < buffered; i++) {
+                out.writeLong(buffer[i]);
+            }
+        }
+        runs.add(run);
+        buffered = 0;
+    }
+
+    /**
+     * Sorts the buffered records by key with a bottom-up merge sort, since the records are not single values
+     */
+    private void sortBuffer() {
+        if (width == 1) {
+            Arrays.sort(buffer, 0, buffered);
+            return;
+        }
+        int records = buffered / width;
+        if (scratch == null) {
+            scratch = new long[buffer.length];
+        }
+        long[] source = buffer;
+        long[] target = scratch;
+        for (int length = 1; length < records; length <<= 1) {
+            for (int start = 0; start < records; start += 2 * length) {
+                int middle = Math.min(start + length, records);
+                int end = Math.min(start + 2 * length, records);
+                int left = start;
+                int right = middle;
+                for (int i = start; i < end; i++) {
+                    int from = right >= end || (left < middle && source[left * width] <= source[right * width]) ? left++ : right++;
+                    System.arraycopy(source, from * width, target, i * width, width);
+                }
+            }
+            long[] sorted = target;
+            target = source;
+            source = sorted;
+        }
+        if (source != buffer) {
+            System.arraycopy(source, 0, buffer, 0, buffered);
+        }
+    }
+
+    /**
+     * Sorts the records added so far. No records may be added after this.
+     *
+     * @return the records in the order of their keys
+     */
+    Cursor sorted() throws IOException {
+        if (runs.isEmpty()) {
+            sortBuffer();
+            return new BufferCursor();
+        }
+        if (buffered > 0) {
+            writeRun();
+        }
+        while (runs.size() > MAX_RUNS) {
+            List<Path> merged = new ArrayList<>(runs.subList(0, MAX_RUNS));
+            runs.subList(0, MAX_RUNS).clear();
+            Path run = directory.resolve(name + "-" + createdRuns++);
+            try (MergeCursor cursor = new MergeCursor(merged);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run), BUFFER_BYTES))) {
+                while (cursor.next()) {
+                    for (int i = 0; i < width; i++) {
+                        out.writeLong(cursor.get(i));
+                    }
+                }
+            }
+            runs.add(run);
+        }
+        MergeCursor cursor = new MergeCursor(new ArrayList<>(runs));
+        runs.clear();
+        return cursor;
+    }
+
+    /**
+     * Deletes the run files left
+     */
+    @Override
+    public void close() throws IOException {
+        for (Path run : runs) {
+            Files.deleteIfExists(run);
+        }
+        runs.clear();
+    }
+
+    /**
+     * Sorted records, read one at a time
+     */
+    interface Cursor extends Closeable {
+
+        /**
+         * @return false when there are no more records
+         */
+        boolean next() throws IOException;
+
+        /**
+         * @return the long at the index of the current record, 0 being the key
+         */
+        long get(int index);
+    }
+
+    private final class BufferCursor implements Cursor {
+
+        private int position = -width;
+
+        @Override
+        public boolean next() {
+            position += width;
+            return position < buffered;
+        }
+
+        @Override
+        public long get(int index) {
+            return buffer[position + index];
+        }
+
+        @Override
+        public void close() {
+            buffered = 0;
+        }
+    }
+
+    /**
+     * Merges runs by always reading from the run with the smallest key. The runs are deleted when closed.
+     */
+    private final class MergeCursor implements Cursor {
+
+        private final List<Run> open = new ArrayList<>();
+        private final PriorityQueue<Run> queue = new PriorityQueue<>((a, b) -> Long.compare(a.record[0], b.record[0]));
+        private Run current;
+
+        MergeCursor(List<Path> files) throws IOException {
+            try {
+                for (Path file : files) {
+                    Run run = new Run(file);
+                    open.add(run);
+                    if (run.read()) {
+                        queue.add(run);
+                    }
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            if (current != null && current.read()) {
+                queue.add(current);
+            }
+            current = queue.poll();
+            return current != null;
+        }
+
+        @Override
+        public long get(int index) {
+            return current.record[index];
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (Run run : open) {
+                run.in.close();
+                Files.deleteIfExists(run.file);
+            }
+        }
+    }
+
+    private final class Run {
+
+        private final Path file;
+        private final DataInputStream in;
+        private final long[] record = new long[width];
+
+        Run(Path file) throws IOException {
+            this.file = file;
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), BUFFER_BYTES));
+        }
+
+        boolean read() throws IOException {
+            try {
+                record[0] = in.readLong();
+            } catch (EOFException e) {
+                return false;
+            }
+            for (int i = 1; i < width; i++) {
+                record[i] = in.readLong();
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.netex.conversion.osm.transformer;
+
+import jakarta.xml.bind.JAXBElement;
+import org.rutebanken.netex.model.FareZone;
+import org.rutebanken.netex.model.ObjectFactory;
+import org.rutebanken.netex.model.PointRefStructure;
+import org.rutebanken.netex.model.PointRefs_RelStructure;
+import org.rutebanken.netex.model.ScheduledStopPointRefStructure;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Replaces the members of fare zones with the stop places located inside each zone's polygon.
+ * <p>
+ * The zone bounding boxes are bucketed into a uniform grid, so every stop place is only tested against the
+ * zones whose bounding box overlaps its grid cell.
+ */
+class FareZoneMemberAssigner {
+
+    private static final Logger logger = LoggerFactory.getLogger(FareZoneMemberAssigner.class);
+
+    private final StopPlaceLocations stopPlaces;
+
+    FareZoneMemberAssigner(StopPlaceLocations stopPlaces) {
+        this.stopPlaces = stopPlaces;
+    }
+
+    void assignMembers(List<FareZone> fareZones) {
+        long start = System.currentTimeMillis();
+        ZonePolygon[] polygons = fareZones.stream()
+                .map(fareZone -> ZonePolygon.fromPolygonType(fareZone.getPolygon()))
+                .toArray(ZonePolygon[]::new);
+
+        GridIndex index = new GridIndex(polygons);
+
+        int[][] zonesPerStop = IntStream.range(0, stopPlaces.size())
+                .parallel()
+                .mapToObj(i -> index.containing(stopPlaces.lat(i), stopPlaces.lon(i)))
+                .toArray(int[][]::new);
+
+        List<List<String>> membersPerZone = new ArrayList<>(fareZones.size());
+        for (int z = 0; z < fareZones.size(); z++) {
+            membersPerZone.add(new ArrayList<>());
+        }
+        for (int stop = 0; stop < zonesPerStop.length; stop++) {
+            for (int zone : zonesPerStop[stop]) {
+                membersPerZone.get(zone).add(stopPlaces.id(stop));
+            }
+        }
+
+        int assigned = 0;
+        for (int z = 0; z < fareZones.size(); z++) {
+            FareZone fareZone = fareZones.get(z);
+            if (polygons[z] == null) {
+                logger.warn("Fare zone {} has no polygon, keeping members from tags", fareZone.getId());
+                continue;
+            }
+            List<JAXBElement<? extends PointRefStructure>> stopPoints = membersPerZone.get(z).stream()
+                    .<JAXBElement<? extends PointRefStructure>>map(stopPlace -> new ObjectFactory().createScheduledStopPointRef(new ScheduledStopPointRefStructure().withRef(stopPlace)))
+                    .toList();
+            fareZone.setMembers(stopPoints.isEmpty() ? null : new PointRefs_RelStructure().withPointRef(stopPoints));
+            assigned += stopPoints.size();
+        }
+        logger.info("Assigned {} stop place memberships from {} stop places to {} fare zones in {} ms",
+                assigned, stopPlaces.size(), fareZones.size(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Uniform grid over the union of the zone bounding boxes. Each cell lists the zones whose bounding box overlaps it.
+     */
+    static class GridIndex {
+
+        private static final int[] NONE = new int[0];
+
+        private final ZonePolygon[] polygons;
+        private final int columns;
+        private final int rows;
+        private final double minLat;
+        private final double minLon;
+        private final double cellHeight;
+        private final double cellWidth;
+        private final int[][] cells;
+
+        GridIndex(ZonePolygon[] polygons) {
+            this.polygons = polygons;
+            double minLat = Double.POSITIVE_INFINITY;
+            double maxLat = Double.NEGATIVE_INFINITY;
+            double minLon = Double.POSITIVE_INFINITY;
+            double maxLon = Double.NEGATIVE_INFINITY;
+            int count = 0;
+            for (ZonePolygon polygon : polygons) {
+                if (polygon != null) {
+                    minLat = Math.min(minLat, polygon.minLat());
+                    maxLat = Math.max(maxLat, polygon.maxLat());
+                    minLon = Math.min(minLon, polygon.minLon());
+                    maxLon = Math.max(maxLon, polygon.maxLon());
+                    count++;
+                }
+            }
+            int side = Math.max(1, (int) Math.ceil(Math.sqrt(count) * 2));
+            this.columns = count == 0 ? 0 : side;
+            this.rows = count == 0 ? 0 : side;
+            this.minLat = minLat;
+            this.minLon = minLon;
+            this.cellHeight = Math.max((maxLat - minLat) / Math.max(rows, 1), Double.MIN_NORMAL);
+            this.cellWidth = Math.max((maxLon - minLon) / Math.max(columns, 1), Double.MIN_NORMAL);
+            this.cells = new int[rows * columns][];
+
+            int[] sizes = new int[cells.length];
+            for (int pass = 0; pass < 2; pass++) {
+                if (pass == 1) {
+                    for (int c = 0; c < cells.length; c++) {
+                        cells[c] = sizes[c] == 0 ? NONE : new int[sizes[c]];
+                    }
+                    Arrays.fill(sizes, 0);
+                }
+                for (int z = 0; z < polygons.length; z++) {
+                    ZonePolygon polygon = polygons[z];
+                    if (polygon == null) {
+                        continue;
+                    }
+                    int row0 = row(polygon.minLat());
+                    int row1 = row(polygon.maxLat());
+                    int col0 = column(polygon.minLon());
+                    int col1 = column(polygon.maxLon());
+                    for (int row = row0; row <= row1; row++) {
+                        for (int col = col0; col <= col1; col++) {
+                            int cell = row * columns + col;
+                            if (pass == 1) {
+                                cells[cell][sizes[cell]] = z;
+                            }
+                            sizes[cell]++;
+                        }
+                    }
+                }
+            }
+        }
+
+        private int row(double lat) {
+            return Math.min(rows - 1, Math.max(0, (int) ((lat - minLat) / cellHeight)));
+        }
+
+        private int column(double lon) {
+            return Math.min(columns - 1, Math.max(0, (int) ((lon - minLon) / cellWidth)));
+        }
+
+        /**
+         * @return the indexes of the polygons containing the position, in ascending order
+         */
+        int[] containing(double lat, double lon) {
+            if (cells.length == 0 || lat < minLat || lon < minLon
+                    || lat > minLat + rows * cellHeight || lon > minLon + columns * cellWidth) {
+                return NONE;
+            }
+            int[] candidates = cells[row(lat) * columns + column(lon)];
+            int[] result = NONE;
+            int found = 0;
+            for (int candidate : candidates) {
+                if (polygons[candidate].contains(lat, lon)) {
+                    if (found == result.length) {
+                        result = Arrays.copyOf(result, Math.max(2, found * 2));
+                    }
+                    result[found++] = candidate;
+                }
+            }
+            return found == result.length ? result : Arrays.copyOf(result, found);
+        }
+    }
+}
@@ -0,0 +1,449 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.netex.conversion.osm.transformer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Sanity checks for polygon rings: closure, minimum number of positions, self-intersection and orientation.
+ * <p>
+ * Self-intersection is detected with a Shamos-Hoey sweep line in O(n log n). Longitude is used as x and latitude as y.
+ */
+final class GeometryValidator {
+
+    static final int MIN_POSITIONS = 4;
+
+    private GeometryValidator() {
+    }
+
+    /**
+     * Validates a ring and normalises its orientation: counterclockwise for exteriors and clockwise for interiors.
+     *
+     * @param ring     The ring to check
+     * @param exterior true for the exterior ring of a polygon, false for a hole
+     * @param issues   Receives an error for each broken rule
+     * @return the ring, reversed if it had the wrong orientation
+     */
+    static Ring validate(Ring ring, boolean exterior, ElementIssues issues) {
+        int n = ring.size();
+        if (n < MIN_POSITIONS) {
+            issues.error(null, ConversionIssue.TOO_FEW_POSITIONS, String.format("Ring has %d positions, at least %d are required", n, MIN_POSITIONS));
+            return ring;
+        }
+        if (ring.lat(0) != ring.lat(n - 1) || ring.lon(0) != ring.lon(n - 1)) {
+            issues.error(null, ConversionIssue.RING_NOT_CLOSED, String.format("Ring is not closed, first position (%s %s) differs from last (%s %s)",
+                    ring.lat(0), ring.lon(0), ring.lat(n - 1), ring.lon(n - 1)));
+            return ring;
+        }
+        double[] intersection = findSelfIntersection(ring);
+        if (intersection != null) {
+            issues.error(null, ConversionIssue.SELF_INTERSECTION, String.format("Ring intersects itself near (%s %s)", intersection[1], intersection[0]));
+            return ring;
+        }
+        double area = ring.signedArea();
+        if (area == 0) {
+            issues.error(null, ConversionIssue.TOO_FEW_POSITIONS, "Ring has no area");
+            return ring;
+        }
+        boolean counterclockwise = area > 0;
+        return counterclockwise == exterior ? ring : ring.reversed();
+    }
+
+    /**
+     * @return the x and y of a point where two non-adjacent edges meet, or two adjacent edges overlap, or null if the ring is simple
+     */
+    static double[] findSelfIntersection(Ring ring) {
+        double[] xs = new double[ring.size()];
+        double[] ys = new double[ring.size()];
+        int m = 0;
+        for (int i = 0; i < ring.size(); i++) {
+            // Consecutive duplicate positions form zero length edges, which are dropped
+            if (m > 0 && xs[m - 1] == ring.lon(i) && ys[m - 1] == ring.lat(i)) {
+                continue;
+            }
+            xs[m] = ring.lon(i);
+            ys[m] = ring.lat(i);
+            m++;
+        }
+        // m - 1 distinct vertices, the last position repeats the first
+        int vertices = m - 1;
+        if (vertices < 3) {
+            return null;
+        }
+        return new Sweep(xs, ys, vertices).run();
+    }
+
+    private static double orientation(double ax, double ay, double bx, double by, double cx, double cy) {
+        return (bx - ax) * (cy - ay) - (by - ay) * (cx - ax);
+    }
+
+    private static boolean onSegment(double ax, double ay, double bx, double by, double px, double py) {
+        return Math.min(ax, bx) <= px && px <= Math.max(ax, bx) && Math.min(ay, by) <= py && py <= Math.max(ay, by);
+    }
+
+    /**
+     * Shamos-Hoey sweep over the vertices in lexicographic (x, y) order. The status structure holds the edges
+     * crossing the sweep line ordered by y, and only edges that become neighbours in it are tested against each other.
+     * <p>
+     * The status is a treap whose nodes are the edges themselves. Edges are compared by their y at the sweep line
+     * only to be inserted or to locate the event point; an edge is removed, and its neighbours found, through its own
+     * node. Rounding may reorder the y of two edges between events, but then an edge is still removed in O(log n).
+     */
+    private static final class Sweep {
+
+        private final double[] xs;
+        private final double[] ys;
+        private final int vertices;
+        private final Edge[] edges;
+        private final Edge probe;
+        private Edge root;
+
+        private double sweepX;
+        private double sweepY;
+        private boolean beforeEvent;
+
+        Sweep(double[] xs, double[] ys, int vertices) {
+            this.xs = xs;
+            this.ys = ys;
+            this.vertices = vertices;
+            this.edges = new Edge[vertices];
+            SplittableRandom random = new SplittableRandom(vertices);
+            for (int i = 0; i < vertices; i++) {
+                edges[i] = new Edge(i, random.nextLong());
+            }
+            this.probe = new Edge(-1, 0);
+        }
+
+        double[] run() {
+            Integer[] order = new Integer[vertices];
+            for (int i = 0; i < vertices; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.<Integer>comparingDouble(i -> xs[i]).thenComparingDouble(i -> ys[i]));
+
+            List<Edge> ending = new ArrayList<>(2);
+            List<Edge> starting = new ArrayList<>(2);
+            for (int k = 0; k < vertices; k++) {
+                int v = order[k];
+                double px = xs[v];
+                double py = ys[v];
+                if (k + 1 < vertices && xs[order[k + 1]] == px && ys[order[k + 1]] == py) {
+                    // The ring passes twice through the same position
+                    return new double[]{px, py};
+                }
+                sweepX = px;
+                sweepY = py;
+
+                ending.clear();
+                starting.clear();
+                for (Edge edge : new Edge[]{edges[(v - 1 + vertices) % vertices], edges[v]}) {
+                    (edge.leftVertex() == v ? starting : ending).add(edge);
+                }
+
+                beforeEvent = true;
+                for (Edge edge : ending) {
+                    remove(edge);
+                }
+
+                Edge below = lower(probe);
+                Edge above = ceiling(probe);
+                if (contains(below, px, py) || contains(above, px, py)) {
+                    return new double[]{px, py};
+                }
+
+                beforeEvent = false;
+                if (starting.isEmpty()) {
+                    if (intersects(below, above)) {
+                        return new double[]{px, py};
+                    }
+                    continue;
+                }
+                if (starting.size() == 2 && adjacentOverlap(starting.get(0), starting.get(1))) {
+                    return new double[]{px, py};
+                }
+                for (Edge edge : starting) {
+                    insert(edge);
+                }
+                Edge lowest = starting.get(0);
+                Edge highest = starting.get(starting.size() - 1);
+                if (compare(lowest, highest) > 0) {
+                    lowest = highest;
+                    highest = starting.get(0);
+                }
+                if (intersects(lowest.previous(), lowest) || intersects(highest, highest.next())) {
+                    return new double[]{px, py};
+                }
+            }
+            return null;
+        }
+
+        private void insert(Edge edge) {
+            if (root == null) {
+                root = edge;
+                return;
+            }
+            Edge node = root;
+            while (true) {
+                if (compare(edge, node) < 0) {
+                    if (node.left == null) {
+                        node.left = edge;
+                        break;
+                    }
+                    node = node.left;
+                } else {
+                    if (node.right == null) {
+                        node.right = edge;
+                        break;
+                    }
+                    node = node.right;
+                }
+            }
+            edge.parent = node;
+            while (edge.parent != null && edge.parent.priority < edge.priority) {
+                rotateUp(edge);
+            }
+        }
+
+        private void remove(Edge edge) {
+            while (edge.left != null || edge.right != null) {
+                rotateUp(edge.right == null || (edge.left != null && edge.left.priority > edge.right.priority) ? edge.left : edge.right);
+            }
+            replaceChild(edge.parent, edge, null);
+            edge.parent = null;
+        }
+
+        /**
+         * Moves a node above its parent, keeping the order of the nodes
+         */
+        private void rotateUp(Edge node) {
+            Edge parent = node.parent;
+            if (node == parent.left) {
+                parent.left = node.right;
+                if (node.right != null) {
+                    node.right.parent = parent;
+                }
+                node.right = parent;
+            } else {
+                parent.right = node.left;
+                if (node.left != null) {
+                    node.left.parent = parent;
+                }
+                node.left = parent;
+            }
+            replaceChild(parent.parent, parent, node);
+            node.parent = parent.parent;
+            parent.parent = node;
+        }
+
+        private void replaceChild(Edge parent, Edge child, Edge replacement) {
+            if (parent == null) {
+                root = replacement;
+            } else if (parent.left == child) {
+                parent.left = replacement;
+            } else {
+                parent.right = replacement;
+            }
+        }
+
+        /**
+         * @return the highest edge ordered before the given one, or null
+         */
+        private Edge lower(Edge edge) {
+            Edge result = null;
+            for (Edge node = root; node != null; ) {
+                if (compare(node, edge) < 0) {
+                    result = node;
+                    node = node.right;
+                } else {
+                    node = node.left;
+                }
+            }
+            return result;
+        }
+
+        /**
+         * @return the lowest edge not ordered before the given one, or null
+         */
+        private Edge ceiling(Edge edge) {
+            Edge result = null;
+            for (Edge node = root; node != null; ) {
+                if (compare(node, edge) >= 0) {
+                    result = node;
+                    node = node.left;
+                } else {
+                    node = node.right;
+                }
+            }
+            return result;
+        }
+
+        private int compare(Edge a, Edge b) {
+            if (a == b) {
+                return 0;
+            }
+            int c = Double.compare(yAtSweep(a), yAtSweep(b));
+            if (c != 0) {
+                return c;
+            }
+            if (a == probe) {
+                return -1;
+            }
+            if (b == probe) {
+                return 1;
+            }
+            // Edges meeting at the event point: order them as they are just after it, or just before it when removing
+            c = Double.compare(a.slope(), b.slope());
+            if (c != 0) {
+                return beforeEvent ? -c : c;
+            }
+            return Integer.compare(a.index, b.index);
+        }
+
+        private double yAtSweep(Edge edge) {
+            if (edge == probe) {
+                return sweepY;
+            }
+            double x1 = xs[edge.index];
+            double y1 = ys[edge.index];
+            double x2 = xs[edge.index + 1];
+            double y2 = ys[edge.index + 1];
+            if (x1 == x2) {
+                return Math.max(Math.min(y1, y2), Math.min(Math.max(y1, y2), sweepY));
+            }
+            if (sweepX <= Math.min(x1, x2)) {
+                return x1 < x2 ? y1 : y2;
+            }
+            if (sweepX >= Math.max(x1, x2)) {
+                return x1 < x2 ? y2 : y1;
+            }
+            return y1 + (y2 - y1) * (sweepX - x1) / (x2 - x1);
+        }
+
+        private boolean contains(Edge edge, double px, double py) {
+            if (edge == null) {
+                return false;
+            }
+            int i = edge.index;
+            return orientation(xs[i], ys[i], xs[i + 1], ys[i + 1], px, py) == 0
+                    && onSegment(xs[i], ys[i], xs[i + 1], ys[i + 1], px, py)
+                    && !(xs[i] == px && ys[i] == py) && !(xs[i + 1] == px && ys[i + 1] == py);
+        }
+
+        private boolean adjacent(Edge a, Edge b) {
+            int d = Math.abs(a.index - b.index);
+            return d == 1 || d == vertices - 1;
+        }
+
+        /**
+         * Adjacent edges share a vertex, they only intersect if they fold back onto each other
+         */
+        private boolean adjacentOverlap(Edge a, Edge b) {
+            int shared = a.index + 1 == b.index || (b.index == 0 && a.index == vertices - 1) ? b.index : a.index;
+            int p = shared == a.index ? a.index + 1 : a.index;
+            int q = shared == b.index ? b.index + 1 : b.index;
+            double sx = xs[shared];
+            double sy = ys[shared];
+            return orientation(sx, sy, xs[p], ys[p], xs[q], ys[q]) == 0
+                    && (xs[p] - sx) * (xs[q] - sx) + (ys[p] - sy) * (ys[q] - sy) > 0;
+        }
+
+        private boolean intersects(Edge a, Edge b) {
+            if (a == null || b == null) {
+                return false;
+            }
+            if (adjacent(a, b)) {
+                return adjacentOverlap(a, b);
+            }
+            int i = a.index;
+            int j = b.index;
+            double ax = xs[i], ay = ys[i], bx = xs[i + 1], by = ys[i + 1];
+            double cx = xs[j], cy = ys[j], dx = xs[j + 1], dy = ys[j + 1];
+            double d1 = orientation(cx, cy, dx, dy, ax, ay);
+            double d2 = orientation(cx, cy, dx, dy, bx, by);
+            double d3 = orientation(ax, ay, bx, by, cx, cy);
+            double d4 = orientation(ax, ay, bx, by, dx, dy);
+            if (((d1 > 0 && d2 < 0) || (d1 < 0 && d2 > 0)) && ((d3 > 0 && d4 < 0) || (d3 < 0 && d4 > 0))) {
+                return true;
+            }
+            return (d1 == 0 && onSegment(cx, cy, dx, dy, ax, ay))
+                    || (d2 == 0 && onSegment(cx, cy, dx, dy, bx, by))
+                    || (d3 == 0 && onSegment(ax, ay, bx, by, cx, cy))
+                    || (d4 == 0 && onSegment(ax, ay, bx, by, dx, dy));
+        }
+
+        /**
+         * Edge i runs from vertex i to vertex i + 1. While it crosses the sweep line, it is a node of the status.
+         */
+        private final class Edge {
+            private final int index;
+            private final long priority;
+            private Edge parent;
+            private Edge left;
+            private Edge right;
+
+            Edge(int index, long priority) {
+                this.index = index;
+                this.priority = priority;
+            }
+
+            Edge previous() {
+                Edge node = this;
+                if (node.left != null) {
+                    node = node.left;
+                    while (node.right != null) {
+                        node = node.right;
+                    }
+                    return node;
+                }
+                while (node.parent != null && node == node.parent.left) {
+                    node = node.parent;
+                }
+                return node.parent;
+            }
+
+            Edge next() {
+                Edge node = this;
+                if (node.right != null) {
+                    node = node.right;
+                    while (node.left != null) {
+                        node = node.left;
+                    }
+                    return node;
+                }
+                while (node.parent != null && node == node.parent.right) {
+                    node = node.parent;
+                }
+                return node.parent;
+            }
+
+            int leftVertex() {
+                int a = index;
+                int b = index + 1;
+                boolean aFirst = xs[a] < xs[b] || (xs[a] == xs[b] && ys[a] < ys[b]);
+                return aFirst ? a : b % vertices;
+            }
+
+            double slope() {
+                double dx = xs[index + 1] - xs[index];
+                return dx == 0 ? Double.POSITIVE_INFINITY : (ys[index + 1] - ys[index]) / dx;
+            }
+        }
+    }
+}
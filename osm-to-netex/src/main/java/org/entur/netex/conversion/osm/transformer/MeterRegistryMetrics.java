@@ -0,0 +1,91 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.netex.conversion.osm.transformer;
+
+import java.time.Duration;
+import java.util.Locale;
+
+/**
+ * Records conversion metrics into a metrics registry, as timers, counters and distribution summaries named
+ * {@value #PREFIX}*. With Micrometer:
+ * <pre>{@code
+ * new MeterRegistryMetrics(new MeterRegistryMetrics.Registry() {
+ *     public void timer(String name, Duration duration, String... tags) {
+ *         meterRegistry.timer(name, tags).record(duration);
+ *     }
+ *     public void counter(String name, double amount, String... tags) {
+ *         meterRegistry.counter(name, tags).increment(amount);
+ *     }
+ *     public void summary(String name, double value, String... tags) {
+ *         meterRegistry.summary(name, tags).record(value);
+ *     }
+ * });
+ * }</pre>
+ */
+public class MeterRegistryMetrics implements ConversionMetrics {
+
+    public static final String PREFIX = "osm2netex.";
+
+    /**
+     * The meters of a registry. Tags are given as alternating keys and values.
+     */
+    public interface Registry {
+        void timer(String name, Duration duration, String... tags);
+
+        void counter(String name, double amount, String... tags);
+
+        void summary(String name, double value, String... tags);
+    }
+
+    private final Registry registry;
+
+    public MeterRegistryMetrics(Registry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public void stage(Stage stage, Duration duration) {
+        registry.timer(PREFIX + "stage", duration, "stage", stage.name().toLowerCase(Locale.ROOT));
+    }
+
+    @Override
+    public void elements(String type, long count) {
+        registry.counter(PREFIX + "elements", count, "type", type);
+    }
+
+    @Override
+    public void bytesRead(long bytes) {
+        registry.counter(PREFIX + "bytes", bytes, "direction", "read");
+    }
+
+    @Override
+    public void bytesWritten(long bytes) {
+        registry.counter(PREFIX + "bytes", bytes, "direction", "written");
+    }
+
+    @Override
+    public void vertices(long count, Duration duration) {
+        registry.counter(PREFIX + "vertices", count);
+        if (!duration.isZero()) {
+            registry.summary(PREFIX + "vertices.per.second", count * 1e9 / duration.toNanos());
+        }
+    }
+
+    @Override
+    public void peakQueueDepth(String queue, int depth) {
+        registry.summary(PREFIX + "queue.peak", depth, "queue", queue);
+    }
+}
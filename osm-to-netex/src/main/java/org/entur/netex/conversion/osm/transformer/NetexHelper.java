@@ -16,24 +16,30 @@
 package org.entur.netex.conversion.osm.transformer;
 
 import org.rutebanken.netex.model.*;
-import org.rutebanken.netex.validation.NeTExValidator;
-import org.xml.sax.SAXException;
 
-import jakarta.xml.bind.JAXBContext;
+import jakarta.xml.bind.JAXBElement;
 import jakarta.xml.bind.JAXBException;
+import jakarta.xml.bind.MarshalException;
 import jakarta.xml.bind.Marshaller;
+import org.xml.sax.SAXException;
 
-import java.io.IOException;
+import java.io.ByteArrayOutputStream;
 import java.io.OutputStream;
 import java.net.UnknownHostException;
 import java.time.LocalDateTime;
+import java.util.function.Consumer;
 
 import static org.entur.netex.conversion.osm.transformer.OsmToNetexMapper.DEFAULT_VERSION;
 
 public class NetexHelper {
 
     private final ObjectFactory netexObjectFactory;
-    private final Marshaller marshaller;
+
+    private boolean formattedOutput = true;
+
+    private SchemaValidation schemaValidation = SchemaValidation.SYNC;
+
+    private ConversionMetrics metrics = ConversionMetrics.NONE;
 
     /**
      * Creates a NetexHelper that lets you manually control which ObjectFactory that is used for generating the NeTEx data
@@ -43,13 +49,32 @@ public class NetexHelper {
      */
     public NetexHelper(ObjectFactory netexObjectFactory) {
         this.netexObjectFactory = netexObjectFactory;
-        try {
-            marshaller = JAXBContext.newInstance(StopPlace.class).createMarshaller();
-            marshaller.setSchema(new NeTExValidator().getSchema());
-            marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
-        } catch (JAXBException | SAXException | IOException e) {
-            throw new RuntimeException(e);
-        }
+        SharedContexts.netexContext();
+    }
+
+    /**
+     * @param formattedOutput false to write the XML without line breaks and indentation, defaults to true
+     */
+    public void setFormattedOutput(boolean formattedOutput) {
+        this.formattedOutput = formattedOutput;
+    }
+
+    /**
+     * @param schemaValidation When the output is validated against the NeTEx schema, defaults to {@link SchemaValidation#SYNC}
+     */
+    public void setSchemaValidation(SchemaValidation schemaValidation) {
+        this.schemaValidation = schemaValidation;
+    }
+
+    /**
+     * @param metrics Receives the peak queue depth of the asynchronous schema validation, defaults to {@link ConversionMetrics#NONE}
+     */
+    public void setMetrics(ConversionMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    boolean isFormattedOutput() {
+        return formattedOutput;
     }
 
     /**
@@ -59,11 +84,73 @@ public class NetexHelper {
      * @param outputStream                 THe XML is piped through the outputStream
      */
     public void marshalNetex(PublicationDeliveryStructure publicationDeliveryStructure, OutputStream outputStream) {
+        validating(outputStream, output -> {
+            try {
+                createMarshaller().marshal(netexObjectFactory.createPublicationDelivery(publicationDeliveryStructure), output);
+            } catch (JAXBException e) {
+                throw new RuntimeException("Failed to generate XML output", e);
+            }
+        });
+    }
+
+    /**
+     * Lets write produce a document on output. With {@link SchemaValidation#ASYNC} the document is validated on another
+     * thread while it is written, and a schema error is thrown as if the marshaller had found it.
+     */
+    void validating(OutputStream output, Consumer<OutputStream> write) {
+        if (schemaValidation != SchemaValidation.ASYNC) {
+            write.accept(output);
+            return;
+        }
+        try (AsyncSchemaValidator validator = new AsyncSchemaValidator(SharedContexts.netexSchema())) {
+            write.accept(validator.tee(output));
+            validator.await();
+            metrics.peakQueueDepth("netex-validation", validator.getPeakQueueDepth());
+        } catch (SAXException e) {
+            throw new RuntimeException("Failed to generate XML output", new MarshalException(e));
+        }
+    }
+
+    /**
+     * Marshals a zone on its own, without XML declaration, as a fragment to be spliced into a document by {@link ZoneFragmentWriter}
+     */
+    byte[] marshalFragment(Zone_VersionStructure zone) {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
         try {
-            marshaller.marshal(netexObjectFactory.createPublicationDelivery(publicationDeliveryStructure), outputStream);
+            Marshaller marshaller = createMarshaller();
+            marshaller.setProperty(Marshaller.JAXB_FRAGMENT, true);
+            marshaller.marshal(zoneElement(zone), outputStream);
         } catch (JAXBException e) {
             throw new RuntimeException("Failed to generate XML output", e);
         }
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * @return the zone wrapped in the element used for it in a SiteFrame
+     */
+    protected JAXBElement<? extends Zone_VersionStructure> zoneElement(Zone_VersionStructure zone) {
+        if (zone instanceof FareZone fareZone) {
+            return netexObjectFactory.createFareZone(fareZone);
+        } else if (zone instanceof TariffZone tariffZone) {
+            return netexObjectFactory.createTariffZone(tariffZone);
+        } else if (zone instanceof TopographicPlace topographicPlace) {
+            return netexObjectFactory.createTopographicPlace(topographicPlace);
+        }
+        throw new IllegalArgumentException(zone.getClass() + " is not supported");
+    }
+
+    /**
+     * Marshallers are not thread safe, so one is created from the shared context for each document. Only a synchronous
+     * schema validation is set on the marshaller.
+     */
+    private Marshaller createMarshaller() throws JAXBException {
+        Marshaller marshaller = SharedContexts.netexContext().createMarshaller();
+        if (schemaValidation == SchemaValidation.SYNC) {
+            marshaller.setSchema(SharedContexts.netexSchema());
+        }
+        marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, formattedOutput);
+        return marshaller;
     }
 
     @SuppressWarnings("unchecked")
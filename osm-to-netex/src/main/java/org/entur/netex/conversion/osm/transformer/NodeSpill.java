@@ -0,0 +1,393 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.netex.conversion.osm.transformer;
+
+import org.openstreetmap.osm.Node;
+import org.openstreetmap.osm.Osm;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Keeps the node coordinates of an OSM input within a memory budget. Nodes are parsed into the OSM data as usual until
+ * their estimated size in the heap would exceed the budget. From then on the coordinates of each node are written to a
+ * {@link NodeStore} in a temporary file and the node is left out of the parsed data. The nodes parsed before are moved
+ * to the store when the parsing is done.
+ * <p>
+ * With an external join, every node is written to an {@link ExternalNodeJoin} instead, which joins them with the
+ * references of the ways by sorting both on disk.
+ * <p>
+ * Only the id and coordinates of a spilled node are kept, which is all the mapping of zones uses. A node without
+ * coordinates is spilled too, so that the same nodes are found whether they were spilled or not.
+ */
+class NodeSpill extends XMLFilterImpl {
+
+    private static final Logger logger = LoggerFactory.getLogger(NodeSpill.class);
+
+    /**
+     * Estimated heap size of a parsed node with its id and coordinates, and of its entry in the node index
+     */
+    static final long NODE_BYTES = 256;
+
+    private static final String STORE_FILE = "nodes";
+
+    private final long memoryBudget;
+    private final Path directory;
+    private final boolean externalJoin;
+    private final int joinRunRecords;
+    private Path spillDirectory;
+    private Sink sink;
+    private long nodes;
+    private int depth;
+    private int skippedDepth;
+
+    /**
+     * @param memoryBudget   Bytes the parsed nodes may take in the heap
+     * @param directory      Where the temporary files are created, or null for the default temporary directory
+     * @param externalJoin   Whether all the nodes are spilled and joined with the ways by an {@link ExternalNodeJoin}
+     * @param joinRunRecords Number of nodes or references the external join sorts in memory at a time
+     */
+    NodeSpill(long memoryBudget, Path directory, boolean externalJoin, int joinRunRecords) {
+        this.memoryBudget = externalJoin ? 0 : memoryBudget;
+        this.directory = directory;
+        this.externalJoin = externalJoin;
+        this.joinRunRecords = joinRunRecords;
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+        depth++;
+        if (skippedDepth > 0) {
+            return;
+        }
+        if (depth == 2 && "node".equals(qName) && ++nodes * NODE_BYTES > memoryBudget) {
+            spill(atts);
+            skippedDepth = depth;
+            return;
+        }
+        super.startElement(uri, localName, qName, atts);
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        int ended = depth--;
+        if (skippedDepth > 0) {
+            if (ended == skippedDepth) {
+                skippedDepth = 0;
+            }
+            return;
+        }
+        super.endElement(uri, localName, qName);
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        if (skippedDepth == 0) {
+            super.characters(ch, start, length);
+        }
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+        if (skippedDepth == 0) {
+            super.ignorableWhitespace(ch, start, length);
+        }
+    }
+
+    private void spill(Attributes atts) throws SAXException {
+        String lat = atts.getValue("lat");
+        String lon = atts.getValue("lon");
+        try {
+            if (sink == null) {
+                spillDirectory = directory == null ? Files.createTempDirectory("osm-nodes") : Files.createTempDirectory(directory, "osm-nodes");
+                if (externalJoin) {
+                    sink = new ExternalNodeJoin(spillDirectory, joinRunRecords);
+                    logger.info("Joining nodes with ways by an external sort in {}", spillDirectory);
+                } else {
+                    sink = new StoreSink(NodeStore.temporary(spillDirectory.resolve(STORE_FILE), nodes * 2), spillDirectory);
+                    logger.info("More than {} nodes would take more than the memory budget of {} MB, spilling node coordinates to {}",
+                            nodes - 1, memoryBudget / (1024 * 1024), spillDirectory);
+                }
+            }
+            sink.put(Long.parseLong(atts.getValue("id")), lat == null ? NodeStore.MISSING : Double.parseDouble(lat),
+                    lon == null ? NodeStore.MISSING : Double.parseDouble(lon));
+        } catch (IOException e) {
+            throw new SAXException("Unable to spill node coordinates to " + spillDirectory, e);
+        }
+    }
+
+    /**
+     * Moves the nodes left in the parsed data to the spilled ones, if any node has been spilled
+     *
+     * @param osm The parsed OSM data
+     * @return the parsed data, or a {@link SpilledOsm} without nodes reading them from disk
+     */
+    Osm finish(Osm osm) {
+        if (sink == null) {
+            return osm;
+        }
+        try {
+            for (Node node : osm.getNode()) {
+                sink.put(node.getId().longValue(), NodeStore.stored(node.getLat()), NodeStore.stored(node.getLon()));
+            }
+            osm.getNode().clear();
+            Index index = sink.index(osm);
+            sink = null;
+            return new SpilledOsm(osm, index);
+        } catch (IOException e) {
+            discard();
+            throw new UncheckedIOException("Unable to spill node coordinates to " + spillDirectory, e);
+        }
+    }
+
+    /**
+     * Deletes the spilled nodes, when the parsing has failed
+     */
+    void discard() {
+        if (sink != null) {
+            sink.discard();
+            sink = null;
+        }
+    }
+
+    /**
+     * Deletes the files and then the directory of spilled nodes, logging a warning if it fails
+     */
+    static void delete(Path directory, Path... files) {
+        try {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+            Files.deleteIfExists(directory);
+        } catch (IOException e) {
+            logger.warn("Unable to delete spilled nodes in {}", directory, e);
+        }
+    }
+
+    /**
+     * Where the spilled nodes go
+     */
+    interface Sink {
+
+        void put(long id, double lat, double lon) throws IOException;
+
+        /**
+         * @param osm The parsed OSM data, without nodes
+         * @return the index of the nodes, which owns the files from now on
+         */
+        Index index(Osm osm) throws IOException;
+
+        /**
+         * Deletes the files
+         */
+        void discard();
+    }
+
+    private record StoreSink(NodeStore store, Path directory) implements Sink {
+
+        @Override
+        public void put(long id, double lat, double lon) throws IOException {
+            store.put(id, lat, lon);
+        }
+
+        @Override
+        public Index index(Osm osm) {
+            return new StoreIndex(store, directory);
+        }
+
+        @Override
+        public void discard() {
+            new StoreIndex(store, directory).close();
+        }
+    }
+
+    /**
+     * OSM data whose nodes have been spilled to disk. {@link #getNode()} is empty.
+     */
+    static final class SpilledOsm extends Osm implements Closeable {
+
+        private final Index nodeIndex;
+
+        private SpilledOsm(Osm osm, Index nodeIndex) {
+            this.nodeIndex = nodeIndex;
+            setBounds(osm.getBounds());
+            setGenerator(osm.getGenerator());
+            setVersion(osm.getVersion());
+            getWay().addAll(osm.getWay());
+            getRelation().addAll(osm.getRelation());
+        }
+
+        /**
+         * @return empty OSM data sharing the nodes of this one
+         */
+        SpilledOsm withoutElements() {
+            return new SpilledOsm(new Osm(), nodeIndex);
+        }
+
+        Index getNodeIndex() {
+            return nodeIndex;
+        }
+
+        /**
+         * Deletes the spilled nodes
+         */
+        @Override
+        public void close() {
+            nodeIndex.close();
+        }
+    }
+
+    /**
+     * Read-only view of spilled nodes as the node index of the mapping. Each lookup creates a node with the id and coordinates.
+     * Iterating reads all the nodes from disk into the heap, the mapping only looks nodes up.
+     */
+    abstract static class Index extends AbstractMap<BigInteger, Node> implements Closeable {
+
+        private final Path directory;
+
+        Index(Path directory) {
+            this.directory = directory;
+        }
+
+        /**
+         * @param latLon Receives the latitude and longitude of the node
+         * @return false if there is no node with this id
+         */
+        abstract boolean coordinates(long id, double[] latLon);
+
+        abstract long count();
+
+        /**
+         * Visits each node with its coordinates
+         */
+        abstract void forEach(NodeStore.Visitor visitor) throws IOException;
+
+        /**
+         * Deletes the files of the nodes and their directory
+         */
+        @Override
+        public abstract void close();
+
+        @Override
+        public Node get(Object key) {
+            if (!(key instanceof BigInteger id)) {
+                return null;
+            }
+            double[] latLon = new double[2];
+            if (!coordinates(id.longValue(), latLon)) {
+                return null;
+            }
+            return node(id, latLon[0], latLon[1]);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key instanceof BigInteger id && coordinates(id.longValue(), new double[2]);
+        }
+
+        @Override
+        public int size() {
+            return (int) Math.min(count(), Integer.MAX_VALUE);
+        }
+
+        @Override
+        public Set<Entry<BigInteger, Node>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<Entry<BigInteger, Node>> iterator() {
+                    List<Entry<BigInteger, Node>> entries = new ArrayList<>(size());
+                    try {
+                        Index.this.forEach((id, lat, lon) -> {
+                            BigInteger key = BigInteger.valueOf(id);
+                            entries.add(new SimpleImmutableEntry<>(key, node(key, lat, lon)));
+                        });
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("Unable to read spilled nodes in " + directory, e);
+                    }
+                    return Collections.unmodifiableList(entries).iterator();
+                }
+
+                @Override
+                public int size() {
+                    return Index.this.size();
+                }
+            };
+        }
+
+        private static Node node(BigInteger id, double lat, double lon) {
+            Node node = new Node();
+            node.setId(id);
+            node.setLat(NodeStore.coordinate(lat));
+            node.setLon(NodeStore.coordinate(lon));
+            return node;
+        }
+
+        Path getDirectory() {
+            return directory;
+        }
+    }
+
+    private static final class StoreIndex extends Index {
+
+        private final NodeStore store;
+
+        private StoreIndex(NodeStore store, Path directory) {
+            super(directory);
+            this.store = store;
+        }
+
+        @Override
+        boolean coordinates(long id, double[] latLon) {
+            return store.get(id, latLon);
+        }
+
+        @Override
+        long count() {
+            return store.size();
+        }
+
+        @Override
+        void forEach(NodeStore.Visitor visitor) throws IOException {
+            store.forEach(visitor);
+        }
+
+        @Override
+        public synchronized void close() {
+            try {
+                store.delete();
+            } catch (IOException e) {
+                logger.warn("Unable to delete spilled nodes in {}", getDirectory(), e);
+            }
+            delete(getDirectory());
+        }
+    }
+}
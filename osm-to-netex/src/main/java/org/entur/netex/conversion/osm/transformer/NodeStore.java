@@ -0,0 +1,323 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.netex.conversion.osm.transformer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Node coordinates in a memory-mapped file, so they survive between runs and are paged in only when used.
+ * <p>
+ * The file is an open addressing hash table with linear probing. Each slot holds the node id and its latitude and
+ * longitude. The table is rebuilt in a new file twice as large when it gets more than 60% full. The slots are
+ * mapped in segments, since a single mapping is limited to 2 GB.
+ * <p>
+ * A node without coordinates is stored with {@link #MISSING} as latitude and longitude. A temporary store, see
+ * {@link #temporary(Path, long)}, never forces its pages to the file, so growing it does not sync files that are
+ * deleted after the conversion.
+ */
+final class NodeStore implements Closeable {
+
+    private static final long MAGIC = 0x6f736d6e6f646573L;
+    private static final int HEADER_BYTES = 32;
+    private static final int SLOT_BYTES = 24;
+    private static final int SEGMENT_BITS = 24;
+    private static final long MIN_CAPACITY = 1 << 10;
+    private static final double MAX_LOAD = 0.6;
+    // Stored keys are ids with the sign bit flipped, so a zero filled slot is empty
+    private static final long EMPTY = 0;
+    private static final long DELETED = 1;
+
+    /**
+     * The stored latitude and longitude of a node without coordinates
+     */
+    static final double MISSING = Double.NaN;
+
+    private final Path file;
+    private final boolean durable;
+    private FileChannel channel;
+    private MappedByteBuffer header;
+    private MappedByteBuffer[] segments;
+    private long capacity;
+    private long size;
+    private long deleted;
+
+    /**
+     * Receives the nodes of a store
+     */
+    interface Visitor {
+        void visit(long id, double lat, double lon) throws IOException;
+    }
+
+    private NodeStore(Path file, boolean durable) {
+        this.file = file;
+        this.durable = durable;
+    }
+
+    /**
+     * Opens the store in the file, or creates it with room for the expected number of nodes
+     */
+    static NodeStore open(Path file, long expectedNodes) throws IOException {
+        NodeStore store = new NodeStore(file, true);
+        if (Files.exists(file)) {
+            store.map();
+        } else {
+            store.create(file, capacityFor(expectedNodes));
+            store.map();
+        }
+        return store;
+    }
+
+    /**
+     * Creates a store that is not written to the file by closing or rebuilding it, for nodes that are deleted once used
+     */
+    static NodeStore temporary(Path file, long expectedNodes) throws IOException {
+        NodeStore store = new NodeStore(file, false);
+        store.create(file, capacityFor(expectedNodes));
+        store.map();
+        return store;
+    }
+
+    /**
+     * @return the stored value of a coordinate, {@link #MISSING} if the node has none
+     */
+    static double stored(Double coordinate) {
+        return coordinate == null ? MISSING : coordinate;
+    }
+
+    /**
+     * @return the coordinate of a stored value, null if the node has none
+     */
+    static Double coordinate(double stored) {
+        return Double.isNaN(stored) ? null : stored;
+    }
+
+    private static long capacityFor(long nodes) {
+        long capacity = MIN_CAPACITY;
+        while (capacity * MAX_LOAD < nodes) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private void create(Path target, long capacity) throws IOException {
+        try (FileChannel created = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer newHeader = created.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+            newHeader.putLong(0, MAGIC);
+            newHeader.putLong(8, capacity);
+            // Extends the file, the slots read as zero
+            created.write(ByteBuffer.allocate(1), HEADER_BYTES + capacity * SLOT_BYTES - 1);
+            if (durable) {
+                newHeader.force();
+            }
+        }
+    }
+
+    private void map() throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+        if (header.getLong(0) != MAGIC) {
+            throw new IllegalArgumentException(file + " is not a node store");
+        }
+        capacity = header.getLong(8);
+        size = header.getLong(16);
+        deleted = header.getLong(24);
+        long segmentSlots = Math.min(capacity, 1L << SEGMENT_BITS);
+        segments = new MappedByteBuffer[(int) (capacity / segmentSlots)];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_BYTES + i * segmentSlots * SLOT_BYTES, segmentSlots * SLOT_BYTES);
+        }
+    }
+
+    long size() {
+        return size;
+    }
+
+    /**
+     * Adds or replaces the coordinates of a node
+     */
+    void put(long id, double lat, double lon) throws IOException {
+        if ((size + deleted + 1) > capacity * MAX_LOAD) {
+            rebuild(capacityFor(size + 1) * 2);
+        }
+        long key = key(id);
+        long slot = slot(key);
+        long free = -1;
+        long stored;
+        while ((stored = keyAt(slot)) != EMPTY) {
+            if (stored == key) {
+                write(slot, key, lat, lon);
+                return;
+            }
+            if (stored == DELETED && free < 0) {
+                free = slot;
+            }
+            slot = (slot + 1) & (capacity - 1);
+        }
+        if (free >= 0) {
+            slot = free;
+            deleted--;
+        }
+        write(slot, key, lat, lon);
+        size++;
+        writeCounts();
+    }
+
+    /**
+     * @param latLon Receives the latitude and longitude of the node
+     * @return false if the store has no node with this id
+     */
+    boolean get(long id, double[] latLon) {
+        long slot = find(key(id));
+        if (slot < 0) {
+            return false;
+        }
+        MappedByteBuffer segment = segments[(int) (slot >>> SEGMENT_BITS)];
+        int offset = offset(slot);
+        latLon[0] = segment.getDouble(offset + 8);
+        latLon[1] = segment.getDouble(offset + 16);
+        return true;
+    }
+
+    void remove(long id) {
+        long slot = find(key(id));
+        if (slot >= 0) {
+            segments[(int) (slot >>> SEGMENT_BITS)].putLong(offset(slot), DELETED);
+            size--;
+            deleted++;
+            writeCounts();
+        }
+    }
+
+    /**
+     * Visits the nodes in the order of their slots
+     */
+    void forEach(Visitor visitor) throws IOException {
+        for (long slot = 0; slot < capacity; slot++) {
+            long key = keyAt(slot);
+            if (key != EMPTY && key != DELETED) {
+                MappedByteBuffer segment = segments[(int) (slot >>> SEGMENT_BITS)];
+                int offset = offset(slot);
+                visitor.visit(key ^ Long.MIN_VALUE, segment.getDouble(offset + 8), segment.getDouble(offset + 16));
+            }
+        }
+    }
+
+    private long find(long key) {
+        long slot = slot(key);
+        long stored;
+        while ((stored = keyAt(slot)) != EMPTY) {
+            if (stored == key) {
+                return slot;
+            }
+            slot = (slot + 1) & (capacity - 1);
+        }
+        return -1;
+    }
+
+    private void rebuild(long newCapacity) throws IOException {
+        Path rebuilt = file.resolveSibling(file.getFileName() + ".rebuild");
+        Files.deleteIfExists(rebuilt);
+        create(rebuilt, newCapacity);
+        NodeStore target = new NodeStore(rebuilt, durable);
+        target.map();
+        forEach(target::put);
+        target.close();
+        close();
+        Files.move(rebuilt, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        map();
+    }
+
+    private long keyAt(long slot) {
+        return segments[(int) (slot >>> SEGMENT_BITS)].getLong(offset(slot));
+    }
+
+    private void write(long slot, long key, double lat, double lon) {
+        MappedByteBuffer segment = segments[(int) (slot >>> SEGMENT_BITS)];
+        int offset = offset(slot);
+        segment.putLong(offset, key);
+        segment.putDouble(offset + 8, lat);
+        segment.putDouble(offset + 16, lon);
+    }
+
+    private void writeCounts() {
+        header.putLong(16, size);
+        header.putLong(24, deleted);
+    }
+
+    private static int offset(long slot) {
+        return (int) (slot & ((1L << SEGMENT_BITS) - 1)) * SLOT_BYTES;
+    }
+
+    private long slot(long key) {
+        // Fibonacci hashing spreads consecutive ids over the table
+        return (key * 0x9E3779B97F4A7C15L >>> 17) & (capacity - 1);
+    }
+
+    private static long key(long id) {
+        long key = id ^ Long.MIN_VALUE;
+        if (key == EMPTY || key == DELETED) {
+            throw new IllegalArgumentException("Node id " + id + " cannot be stored");
+        }
+        return key;
+    }
+
+    /**
+     * Writes the mapped pages to the file
+     */
+    void force() {
+        header.force();
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    /**
+     * Closes the store without writing the mapped pages, and deletes the file
+     */
+    void delete() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+            header = null;
+            segments = null;
+        }
+        Files.deleteIfExists(file);
+    }
+
+    /**
+     * Writes the mapped pages to the file unless the store is temporary, and closes it
+     */
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            if (durable) {
+                force();
+            }
+            channel.close();
+            channel = null;
+            header = null;
+            segments = null;
+        }
+    }
+}
@@ -16,7 +16,6 @@
 package org.entur.netex.conversion.osm.transformer;
 
 import net.opengis.gml._3.AbstractRingPropertyType;
-import net.opengis.gml._3.DirectPositionListType;
 import net.opengis.gml._3.LinearRingType;
 import net.opengis.gml._3.PolygonType;
 import org.openstreetmap.osm.Member;
@@ -37,6 +36,7 @@ import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.util.*;
+import java.util.function.IntSupplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -72,6 +72,17 @@ class OsmToNetexMapper<T extends Zone_VersionStructure> {
     protected static final String TARIFFZONETYPE = "tariffZone";
     protected static final String ZONETOPOLOGY = "zoneTopology";
     protected static final String TZMAPPING = "tzMapping";
+    protected static final String TYPE = "type";
+    protected static final String MULTIPOLYGON = "multipolygon";
+    protected static final String BOUNDARY = "boundary";
+    protected static final String WAY = "way";
+    protected static final String RELATION = "relation";
+    protected static final String INNER = "inner";
+    protected static final String GROUP_OF_TARIFF_ZONE_ID = "GroupOfTariffZoneId";
+    protected static final String AREA = "area";
+    protected static final String FAREZONE = "fareZone";
+    protected static final String TOPOGRAPHIC_PLACE = "topographicPlace";
+    protected static final String ADMINISTRATIVE = "administrative";
 
 
     /*
@@ -92,32 +103,165 @@ class OsmToNetexMapper<T extends Zone_VersionStructure> {
     private static final Logger logger = LoggerFactory.getLogger(OsmToNetexMapper.class);
     private static final net.opengis.gml._3.ObjectFactory openGisObjectFactory = new net.opengis.gml._3.ObjectFactory();
     private final NetexHelper netexHelper;
+    private final ConversionContext context;
 
     protected OsmToNetexMapper(NetexHelper netexHelper) {
+        this(netexHelper, ConversionContext.failFast());
+    }
+
+    protected OsmToNetexMapper(NetexHelper netexHelper, ConversionContext context) {
         this.netexHelper = netexHelper;
+        this.context = context;
     }
 
+    /**
+     * Maps ways to zones. Ways that are invalid are left out when the validation mode is {@link ValidationMode#REPORT}.
+     */
     protected Stream<Map.Entry<BigInteger, T>> mapWaysToZoneList(List<Way> ways, Map<BigInteger, Node> mapOfNodes, Class<T> clazz) {
-        return ways.stream().map(way -> mapWayToZone(way, mapOfNodes, clazz));
+        return ways.stream().map(way -> mapWayToZone(way, mapOfNodes, clazz)).filter(Objects::nonNull);
     }
 
+    /**
+     * @return the zone mapped from the way, or null if the way is invalid and the validation mode is {@link ValidationMode#REPORT}
+     */
     protected Map.Entry<BigInteger, T> mapWayToZone(Way way, Map<BigInteger, Node> mapOfNodes, Class<T> clazz) {
+        ConversionEvents.SlowZone event = new ConversionEvents.SlowZone();
+        event.begin();
+        ElementIssues issues = new ElementIssues(WAY, way.getId());
+        T zone = createZone(way.getTag(), clazz, issues);
+        if (!issues.hasErrors()) {
+            zone.setPolygon(mapNodes(way, mapOfNodes, issues));
+        }
+        endSlowZone(event, WAY, way.getId(), () -> way.getNd().size(), clazz);
+        if (!context.accept(issues, failureMessage(issues, WAY, way.getId()))) {
+            return null;
+        }
+
+        return Map.entry(way.getId(), zone);
+    }
+
+    protected Stream<Map.Entry<BigInteger, T>> mapMultipolygonsToZoneList(List<Relation> relations, Map<BigInteger, Way> waysById, Map<BigInteger, Node> mapOfNodes, Class<T> clazz) {
+        return relations.stream().map(relation -> mapMultipolygonToZone(relation, waysById, mapOfNodes, clazz)).filter(Objects::nonNull);
+    }
+
+    /**
+     * Maps a multipolygon relation to a zone. The tags of the relation are used for the zone,
+     * and the outer and inner member ways are joined into the exterior and interior rings of the polygon.
+     */
+    protected Map.Entry<BigInteger, T> mapMultipolygonToZone(Relation relation, Map<BigInteger, Way> waysById, Map<BigInteger, Node> mapOfNodes, Class<T> clazz) {
+        ConversionEvents.SlowZone event = new ConversionEvents.SlowZone();
+        event.begin();
+        ElementIssues issues = new ElementIssues(RELATION, relation.getId());
+        T zone = createZone(relation.getTag(), clazz, issues);
+        if (!issues.hasErrors()) {
+            try {
+                zone.setPolygon(mapMultipolygon(relation, waysById, mapOfNodes, issues));
+            } catch (IllegalArgumentException e) {
+                if (context.getValidationMode() == ValidationMode.FAIL_FAST) {
+                    throw e;
+                }
+                issues.error(null, ConversionIssue.INVALID_GEOMETRY, e.getMessage());
+            }
+        }
+        endSlowZone(event, RELATION, relation.getId(), () -> relation.getMember().stream()
+                .filter(member -> WAY.equals(member.getType()))
+                .map(member -> waysById.get(member.getRef()))
+                .filter(Objects::nonNull)
+                .mapToInt(way -> way.getNd().size())
+                .sum(), clazz);
+        if (!context.accept(issues, failureMessage(issues, RELATION, relation.getId()))) {
+            return null;
+        }
+
+        return Map.entry(relation.getId(), zone);
+    }
+
+    /**
+     * Commits the event if the mapping took longer than its threshold, see {@link ConversionEvents.SlowZone}. The vertices
+     * are only counted then.
+     */
+    private static void endSlowZone(ConversionEvents.SlowZone event, String elementType, BigInteger id, IntSupplier vertices, Class<?> clazz) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.elementType = elementType;
+            event.elementId = id.longValue();
+            event.vertices = vertices.getAsInt();
+            event.targetEntity = clazz.getSimpleName();
+            event.commit();
+        }
+    }
+
+    private static String failureMessage(ElementIssues issues, String elementType, BigInteger id) {
+        boolean tagErrors = issues.getIssues().stream()
+                .anyMatch(issue -> ConversionIssue.MISSING_TAG.equals(issue.rule()) || ConversionIssue.INVALID_VALUE.equals(issue.rule()));
+        return tagErrors ? "Some required tags are missing" : String.format("Invalid geometry for %s %s", elementType, id);
+    }
+
+    private T createZone(List<Tag> tags, Class<T> clazz, ElementIssues issues) {
         T zone = netexHelper.createNetexObject(clazz);
 
         zone.setVersion(DEFAULT_VERSION);
 
         if (clazz.getSimpleName().equals("FareZone")) {
-            mapFareZoneTags(way.getTag(), (FareZone) zone);
+            mapFareZoneTags(tags, (FareZone) zone, issues);
         } else {
-            mapTags(way.getTag(), zone, clazz.getSimpleName());
+            mapTags(tags, zone, clazz.getSimpleName(), issues);
         }
+        return zone;
+    }
 
-        zone.setPolygon(mapNodes(way, mapOfNodes));
+    /**
+     * @return true if the relation describes an area built from member ways
+     */
+    protected static boolean isMultipolygon(Relation relation) {
+        return relation.getTag().stream()
+                .anyMatch(tag -> TYPE.equals(tag.getK()) && (MULTIPOLYGON.equals(tag.getV()) || BOUNDARY.equals(tag.getV())));
+    }
 
-        return Map.entry(way.getId(), zone);
+    /**
+     * Tells which target entity a way or relation is a zone for, when several targets are converted in one pass.
+     * <ul>
+     *     <li>{@code tariffZone=fareZone} is a {@link FareZone}</li>
+     *     <li>{@code area=tariffZone} is a {@link TariffZone}</li>
+     *     <li>{@code area=topographicPlace} or {@code boundary=administrative} is a {@link TopographicPlace}</li>
+     * </ul>
+     *
+     * @return the simple class name of the target entity, or null if the tags match none of them
+     */
+    protected static String targetEntityOf(List<Tag> tags) {
+        String area = null;
+        for (Tag tag : tags) {
+            if (TARIFFZONETYPE.equals(tag.getK()) && FAREZONE.equals(tag.getV())) {
+                return FareZone.class.getSimpleName();
+            }
+            if (AREA.equals(tag.getK()) || (BOUNDARY.equals(tag.getK()) && ADMINISTRATIVE.equals(tag.getV()))) {
+                area = tag.getV();
+            }
+        }
+        if (TARIFFZONETYPE.equals(area)) {
+            return TariffZone.class.getSimpleName();
+        }
+        if (TOPOGRAPHIC_PLACE.equals(area) || ADMINISTRATIVE.equals(area)) {
+            return TopographicPlace.class.getSimpleName();
+        }
+        return null;
+    }
+
+    /**
+     * @return the ways that are zones on their own, which excludes untagged ways only used as multipolygon segments
+     */
+    protected static List<Way> standaloneWays(List<Way> ways, List<Relation> multipolygons) {
+        Set<BigInteger> segmentIds = multipolygons.stream()
+                .flatMap(relation -> relation.getMember().stream())
+                .filter(member -> WAY.equals(member.getType()))
+                .map(Member::getRef)
+                .collect(Collectors.toSet());
+        return ways.stream()
+                .filter(way -> !segmentIds.contains(way.getId()) || way.getTag().stream().anyMatch(tag -> CODESPACE.equals(tag.getK())))
+                .toList();
     }
 
-    protected void mapFareZoneTags(List<Tag> tags, FareZone zone) {
+    protected void mapFareZoneTags(List<Tag> tags, FareZone zone, ElementIssues tagErrors) {
          /*
     <tag k='area' v='tariffZone' />
     <tag k='authorityRef' v='VOT:Authority:VTFK_ID' />**
@@ -132,7 +276,6 @@ class OsmToNetexMapper<T extends Zone_VersionStructure> {
     <tag k='valid_from' v='2021-02-01' />**
     <tag k='zoneTopology' v='tiled' />**
      */
-        List<IllegalArgumentException> tagErrors = new ArrayList<>();
         String codespace = null;
         String fareZoneId = null;
         String privateCode = null;
@@ -158,12 +301,20 @@ class OsmToNetexMapper<T extends Zone_VersionStructure> {
             } else if (tag.getK().startsWith(ZONETOPOLOGY)) {
                 String value = tag.getV();
                 tagErrorCollector(ZONETOPOLOGY, value, tagErrors);
-                zone.withZoneTopology(ZoneTopologyEnumeration.fromValue(value));
+                try {
+                    zone.withZoneTopology(ZoneTopologyEnumeration.fromValue(value));
+                } catch (IllegalArgumentException e) {
+                    tagErrors.invalidValue(ZONETOPOLOGY, value);
+                }
             } else if (tag.getK().startsWith(SCOPINGMETHOD)) {
                 final String value = tag.getV();
                 tagErrorCollector(SCOPINGMETHOD, value, tagErrors);
-                final ScopingMethodEnumeration scopingMethodEnumeration = ScopingMethodEnumeration.fromValue(value);
-                zone.withScopingMethod(scopingMethodEnumeration);
+                try {
+                    final ScopingMethodEnumeration scopingMethodEnumeration = ScopingMethodEnumeration.fromValue(value);
+                    zone.withScopingMethod(scopingMethodEnumeration);
+                } catch (IllegalArgumentException e) {
+                    tagErrors.invalidValue(SCOPINGMETHOD, value);
+                }
 
             } else if (tag.getK().startsWith(MEMBERS)) {
                 final String value = tag.getV();
@@ -197,6 +348,7 @@ class OsmToNetexMapper<T extends Zone_VersionStructure> {
                     fromDate = LocalDateTime.ofInstant(instant, ZoneId.systemDefault());
                 } catch (ParseException e) {
                     logger.info("Unable to parse and set valid from date: {}", e.getMessage());
+                    tagErrors.warning(VALID_FROM, ConversionIssue.INVALID_DATE, "Unable to parse valid from date: " + validFrom);
                 }
 
             } else if (tag.getK().equals(VALID_TO)) {
@@ -209,6 +361,7 @@ class OsmToNetexMapper<T extends Zone_VersionStructure> {
                     toDate = LocalDateTime.ofInstant(instant, ZoneId.systemDefault());
                 } catch (ParseException e) {
                     logger.info("Unable to parse and set valid to date: {}", e.getMessage());
+                    tagErrors.warning(VALID_TO, ConversionIssue.INVALID_DATE, "Unable to parse valid to date: " + validTo);
                 }
 
             } else if (tag.getK().startsWith(FAREZONEID)) {
@@ -231,7 +384,9 @@ class OsmToNetexMapper<T extends Zone_VersionStructure> {
         tagErrorCollector(FAREZONEID, fareZoneId, tagErrors);
         tagErrorCollector(PRIVATECODE, privateCode, tagErrors);
 
-        checkTagErrors(tagErrors);
+        if (tagErrors.hasErrors()) {
+            return;
+        }
 
         zone.withPrivateCode(new PrivateCodeStructure().withValue(privateCode));
         generateOrSetTzMapping(zone, tzMapping, privateCode, codespace);
@@ -248,30 +403,83 @@ class OsmToNetexMapper<T extends Zone_VersionStructure> {
 
     }
 
-    private PolygonType mapNodes(Way way, Map<BigInteger, Node> mapOfNodes) {
-
-        DirectPositionListType dplt = new DirectPositionListType();
-        way.getNd().stream()
-                .map(nd -> mapOfNodes.get(nd.getRef()))
-                .forEachOrdered(node -> {
-                    dplt.getValue().add(node.getLat());
-                    dplt.getValue().add(node.getLon());
-                });
-
-        AbstractRingPropertyType abstractRingPropertyType = new AbstractRingPropertyType()
-                .withAbstractRing(openGisObjectFactory.createLinearRing(new LinearRingType().withPosList(dplt)));
+    private PolygonType mapNodes(Way way, Map<BigInteger, Node> mapOfNodes, ElementIssues issues) {
+        Ring ring = checkRing(toRing(way.getNd().stream().mapToLong(nd -> nd.getRef().longValue()).toArray(), mapOfNodes), true, issues);
 
         return new PolygonType()
                 .withId("GEN-PolygonType" + way.getId())
-                .withExterior(abstractRingPropertyType);
+                .withExterior(ringProperty(ring));
     }
 
-    private void mapTags(List<Tag> tags, Zone_VersionStructure zone, String className) {
+    private PolygonType mapMultipolygon(Relation relation, Map<BigInteger, Way> waysById, Map<BigInteger, Node> mapOfNodes, ElementIssues issues) {
+        List<long[]> outerSegments = new ArrayList<>();
+        List<long[]> innerSegments = new ArrayList<>();
+        for (Member member : relation.getMember()) {
+            if (!WAY.equals(member.getType())) {
+                continue;
+            }
+            Way way = waysById.get(member.getRef());
+            if (way == null) {
+                throw new IllegalArgumentException(String.format("Multipolygon relation %s references missing way %s", relation.getId(), member.getRef()));
+            }
+            long[] nodeRefs = way.getNd().stream().mapToLong(nd -> nd.getRef().longValue()).toArray();
+            (INNER.equals(member.getRole()) ? innerSegments : outerSegments).add(nodeRefs);
+        }
+
+        List<Ring> outerRings = RingAssembler.assemble(outerSegments).stream().map(ids -> toRing(ids, mapOfNodes)).toList();
+        List<Ring> innerRings = RingAssembler.assemble(innerSegments).stream().map(ids -> toRing(ids, mapOfNodes)).toList();
+        if (outerRings.isEmpty()) {
+            throw new IllegalArgumentException(String.format("Multipolygon relation %s has no outer ring", relation.getId()));
+        }
+
+        Ring exterior = outerRings.stream().max(Comparator.comparingDouble(ring -> Math.abs(ring.signedArea()))).orElseThrow();
+        if (outerRings.size() > 1) {
+            issues.warning(null, ConversionIssue.DROPPED_RING, String.format("Multipolygon has %d outer rings, only the largest is used as zone polygon",
+                    outerRings.size()));
+        }
+
+        PolygonType polygon = new PolygonType()
+                .withId("GEN-PolygonTypeRelation" + relation.getId())
+                .withExterior(ringProperty(checkRing(exterior, true, issues)));
+        for (Ring inner : innerRings) {
+            if (exterior.contains(inner.lat(0), inner.lon(0))) {
+                polygon.getInterior().add(ringProperty(checkRing(inner, false, issues)));
+            } else {
+                issues.warning(null, ConversionIssue.DROPPED_RING, String.format("Inner ring starting at (%s %s) is outside the outer ring and left out",
+                        inner.lat(0), inner.lon(0)));
+            }
+        }
+        return polygon;
+    }
+
+    /**
+     * Validates and orients the ring when geometry validation is enabled
+     */
+    private Ring checkRing(Ring ring, boolean exterior, ElementIssues issues) {
+        return context.isGeometryValidation() ? GeometryValidator.validate(ring, exterior, issues) : ring;
+    }
+
+    private Ring toRing(long[] nodeRefs, Map<BigInteger, Node> mapOfNodes) {
+        double[] lats = new double[nodeRefs.length];
+        double[] lons = new double[nodeRefs.length];
+        for (int i = 0; i < nodeRefs.length; i++) {
+            Node node = mapOfNodes.get(BigInteger.valueOf(nodeRefs[i]));
+            lats[i] = node.getLat();
+            lons[i] = node.getLon();
+        }
+        return new Ring(lats, lons);
+    }
+
+    private AbstractRingPropertyType ringProperty(Ring ring) {
+        return new AbstractRingPropertyType()
+                .withAbstractRing(openGisObjectFactory.createLinearRing(new LinearRingType().withPosList(ring.toPosList())));
+    }
+
+    private void mapTags(List<Tag> tags, Zone_VersionStructure zone, String className, ElementIssues tagErrors) {
         String codespace = null;
         String reference = null;
         LocalDateTime fromDate = null;
         LocalDateTime toDate = null;
-        List<IllegalArgumentException> tagErrors = new ArrayList<>();
 
         for (Tag tag : tags) {
 
@@ -301,6 +509,7 @@ class OsmToNetexMapper<T extends Zone_VersionStructure> {
                     fromDate = LocalDateTime.ofInstant(instant, ZoneId.systemDefault());
                 } catch (ParseException e) {
                     logger.info("Unable to parse and set valid from date: {}", e.getMessage());
+                    tagErrors.warning(VALID_FROM, ConversionIssue.INVALID_DATE, "Unable to parse valid from date: " + validFrom);
                 }
             } else if (tag.getK().equals(VALID_TO)) {
                 String validTo = tag.getV();
@@ -312,6 +521,7 @@ class OsmToNetexMapper<T extends Zone_VersionStructure> {
                     toDate = LocalDateTime.ofInstant(instant, ZoneId.systemDefault());
                 } catch (ParseException e) {
                     logger.info("Unable to parse and set valid to date: {}", e.getMessage());
+                    tagErrors.warning(VALID_TO, ConversionIssue.INVALID_DATE, "Unable to parse valid to date: " + validTo);
                 }
 
             }
@@ -329,7 +539,9 @@ class OsmToNetexMapper<T extends Zone_VersionStructure> {
         tagErrorCollector(CODESPACE, codespace, tagErrors);
         tagErrorCollector(REFERENCE, reference, tagErrors);
 
-        checkTagErrors(tagErrors);
+        if (tagErrors.hasErrors()) {
+            return;
+        }
 
         zone.setId(generateId(codespace, className, reference));
     }
@@ -342,50 +554,52 @@ class OsmToNetexMapper<T extends Zone_VersionStructure> {
         return osmTagName.substring(osmTagName.lastIndexOf(':') + 1);
     }
 
-    private void tagErrorCollector(String name, String value, List<IllegalArgumentException> errors) {
+    private void tagErrorCollector(String name, String value, ElementIssues errors) {
         if (value == null) {
-            errors.add(new IllegalArgumentException(String.format("Missing tag or tag value: %s", name)));
-        }
-    }
-
-    private void checkTagErrors(List<IllegalArgumentException> errors) {
-        if(!errors.isEmpty()) {
-            IllegalArgumentException exception = new IllegalArgumentException("Some required tags are missing");
-            errors.forEach(exception::addSuppressed);
-            throw exception;
+            errors.missingTag(name);
         }
     }
 
-    protected Stream<GroupOfTariffZones> mapRelationsToGroupOfTariffZones(List<Relation> relations, Map<BigInteger, String> fareZoneMaps) {
-        return relations.stream().map(rel -> mapRelationToGroupOfTariffZones(rel, fareZoneMaps));
+    protected Stream<GroupOfTariffZones> mapRelationsToGroupOfTariffZones(List<Relation> relations, Map<BigInteger, String> fareZoneMaps, Map<BigInteger, String> multipolygonZoneMaps) {
+        return relations.stream().map(rel -> mapRelationToGroupOfTariffZones(rel, fareZoneMaps, multipolygonZoneMaps)).filter(Objects::nonNull);
     }
 
-    private GroupOfTariffZones mapRelationToGroupOfTariffZones(Relation relation, Map<BigInteger, String> fareZoneMaps) {
+    private GroupOfTariffZones mapRelationToGroupOfTariffZones(Relation relation, Map<BigInteger, String> fareZoneMaps, Map<BigInteger, String> multipolygonZoneMaps) {
         final GroupOfTariffZones groupOfTariffZones = new ObjectFactory().createGroupOfTariffZones();
-        mapRelationTags(relation.getTag(), groupOfTariffZones);
+        ElementIssues issues = new ElementIssues(RELATION, relation.getId());
+        mapRelationTags(relation.getTag(), groupOfTariffZones, issues);
 
         final TariffZoneRefs_RelStructure tariffZoneRefsRelStructure = new TariffZoneRefs_RelStructure();
 
-        relation.getMember().stream().map(Member::getRef)
-                .map(member -> new ObjectFactory().createTariffZoneRef(
-                        new TariffZoneRef()
-                                .withRef(fareZoneMaps.get(member))
-                                .withVersion(DEFAULT_VERSION)))
-                .forEach(tariffZoneRefsRelStructure.getTariffZoneRef_()::add);
+        for (Member member : relation.getMember()) {
+            String zoneId = RELATION.equals(member.getType()) ? multipolygonZoneMaps.get(member.getRef()) : fareZoneMaps.get(member.getRef());
+            if (zoneId == null) {
+                issues.error(null, ConversionIssue.UNMAPPED_MEMBER, String.format("Member %s %s is not a mapped zone", member.getType(), member.getRef()));
+                continue;
+            }
+            tariffZoneRefsRelStructure.getTariffZoneRef_().add(new ObjectFactory().createTariffZoneRef(
+                    new TariffZoneRef()
+                            .withRef(zoneId)
+                            .withVersion(DEFAULT_VERSION)));
+        }
+
+        if (!context.accept(issues, String.format("Invalid group of tariff zones: relation %s", relation.getId()))) {
+            return null;
+        }
 
         groupOfTariffZones.withMembers(tariffZoneRefsRelStructure);
 
         return groupOfTariffZones;
     }
 
-    private void mapRelationTags(List<Tag> tags, GroupOfTariffZones groupOfTariffZones) {
+    private void mapRelationTags(List<Tag> tags, GroupOfTariffZones groupOfTariffZones, ElementIssues issues) {
 
         String groupOfTariffZoneId = null;
         String privateCode = null;
         String purposeOfGroupingRef = null;
 
         for (Tag tag : tags) {
-            if (tag.getK().equals("GroupOfTariffZoneId")) {
+            if (tag.getK().equals(GROUP_OF_TARIFF_ZONE_ID)) {
                 groupOfTariffZoneId = tag.getV();
             } else if (tag.getK().startsWith(NAME)) {
                 String keyName = tag.getK();
@@ -399,7 +613,8 @@ class OsmToNetexMapper<T extends Zone_VersionStructure> {
         }
 
         if(groupOfTariffZoneId == null) {
-            throw new IllegalArgumentException(String.format("Missing tag or tag value: %s", "GroupOfTariffZoneId"));
+            issues.missingTag(GROUP_OF_TARIFF_ZONE_ID);
+            return;
         }
 
         groupOfTariffZones.setId(groupOfTariffZoneId);
@@ -17,6 +17,8 @@ package org.entur.netex.conversion.osm.transformer;
 
 import org.openstreetmap.osm.Node;
 import org.openstreetmap.osm.Osm;
+import org.openstreetmap.osm.Relation;
+import org.openstreetmap.osm.Way;
 import org.rutebanken.netex.model.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,11 +29,31 @@ import jakarta.xml.bind.JAXBElement;
 import jakarta.xml.bind.JAXBException;
 
 import javax.xml.parsers.ParserConfigurationException;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.math.BigInteger;
+import java.net.URI;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class OsmToNetexTransformer {
 
@@ -39,6 +61,31 @@ public class OsmToNetexTransformer {
 
     private final NetexHelper netexHelper;
 
+    private StopPlaceLocations stopPlaceLocations;
+
+    private ValidationMode validationMode = ValidationMode.FAIL_FAST;
+
+    private boolean geometryValidation;
+
+    private ZoneFragmentCache zoneFragmentCache;
+
+    private SchemaValidation osmValidation = SchemaValidation.OFF;
+
+    private ConversionMetrics metrics = ConversionMetrics.NONE;
+
+    private ProgressListener progressListener = ProgressListener.NONE;
+
+    private long memoryBudget;
+
+    private boolean externalNodeJoin;
+
+    private int joinRunRecords = ExternalSorter.RUN_RECORDS;
+
+    private int parseThreads = 1;
+
+    private Path spillDirectory;
+    private Path stateDirectory;
+
     /**
      * Creates a new OsmToNetexTransformer using the standard ObjectFactory
      */
@@ -47,6 +94,174 @@ public class OsmToNetexTransformer {
         this.netexHelper = new NetexHelper(netexObjectFactory);
     }
 
+    /**
+     * Loads the JAXB contexts and XML schemas shared by all transformers in the JVM, so the first conversion does not pay for it.
+     * Long running processes converting many files can call this at startup.
+     */
+    public static void warmUp() {
+        SharedContexts.netexContext();
+        SharedContexts.netexSchema();
+        SharedContexts.osmContext();
+    }
+
+    /**
+     * Assign stop places to fare zones by location instead of using the members tag of each zone.
+     * Every stop place is added as a member of all the fare zones whose polygon contains it.
+     *
+     * @param stopPlaceLocations The stop places to assign, or null to use the members tag
+     */
+    public void setStopPlaceLocations(StopPlaceLocations stopPlaceLocations) {
+        this.stopPlaceLocations = stopPlaceLocations;
+    }
+
+    /**
+     * Sets how invalid OSM elements are handled. Defaults to {@link ValidationMode#FAIL_FAST}.
+     *
+     * @param validationMode {@link ValidationMode#REPORT} to skip invalid zones and collect the issues in a {@link ConversionReport}
+     */
+    public void setValidationMode(ValidationMode validationMode) {
+        this.validationMode = validationMode;
+    }
+
+    /**
+     * Checks every zone ring for closure, at least four positions and self-intersection, and orients exterior rings
+     * counterclockwise and interior rings clockwise. Invalid zones are handled according to the validation mode.
+     *
+     * @param geometryValidation true to check zone geometries, defaults to false
+     */
+    public void setGeometryValidation(boolean geometryValidation) {
+        this.geometryValidation = geometryValidation;
+    }
+
+    /**
+     * Writes the NeTEx XML without line breaks and indentation when false. Compact output is smaller and quicker to
+     * write and compress, formatted output is easier to read and compare.
+     *
+     * @param formattedOutput false for compact output, defaults to true
+     */
+    public void setFormattedOutput(boolean formattedOutput) {
+        netexHelper.setFormattedOutput(formattedOutput);
+    }
+
+    /**
+     * Sets when the NeTEx output is validated against the NeTEx schema. Validating on another thread takes the validation
+     * off the marshalling thread, at the cost of a second parse of the output and a thread per conversion.
+     *
+     * @param schemaValidation {@link SchemaValidation#OFF}, {@link SchemaValidation#SYNC} or {@link SchemaValidation#ASYNC}, defaults to SYNC
+     */
+    public void setSchemaValidation(SchemaValidation schemaValidation) {
+        netexHelper.setSchemaValidation(schemaValidation);
+    }
+
+    /**
+     * Sets whether the OSM input is validated against the OSM schema. Without validation, invalid input fails later with
+     * errors about the elements it is missing. {@link SchemaValidation#ASYNC} validates on another thread while parsing.
+     *
+     * @param osmValidation {@link SchemaValidation#OFF}, {@link SchemaValidation#SYNC} or {@link SchemaValidation#ASYNC}, defaults to OFF
+     */
+    public void setOsmValidation(SchemaValidation osmValidation) {
+        this.osmValidation = osmValidation;
+    }
+
+    /**
+     * @param metrics Receives the stage timings, element and byte counts and queue depths of each conversion, defaults to
+     *                {@link ConversionMetrics#NONE}
+     */
+    public void setMetrics(ConversionMetrics metrics) {
+        this.metrics = metrics;
+        netexHelper.setMetrics(metrics);
+    }
+
+    /**
+     * @param progressListener Receives the progress of reading, mapping and writing each conversion, defaults to
+     *                         {@link ProgressListener#NONE}
+     */
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Sets how much heap the nodes of an input may take. When the nodes read so far would take more, estimated at
+     * {@value NodeSpill#NODE_BYTES} bytes each, the coordinates of the rest are written to a memory-mapped file and the
+     * nodes read before are moved there once the input has been read. The mapping then reads the coordinates from the
+     * file, and the file is deleted when the conversion is done. Does not apply to {@link #map(Osm, String, String, String)},
+     * whose nodes are already in memory.
+     *
+     * @param memoryBudget Bytes the nodes may take in the heap, or 0 to always keep them in the heap, which is the default
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Joins the nodes of an input with the node references of its ways and relations by sorting both on disk, for
+     * inputs whose nodes do not fit in memory even as coordinates. Memory use does not depend on the number of nodes, and
+     * the files are written and read sequentially. Only the referenced nodes are kept for the mapping, in a file sorted by
+     * id. Takes precedence over {@link #setMemoryBudget(long)}, and likewise does not apply to {@link #map(Osm, String, String, String)}.
+     *
+     * @param externalNodeJoin Whether all nodes are joined on disk, defaults to false
+     */
+    public void setExternalNodeJoin(boolean externalNodeJoin) {
+        this.externalNodeJoin = externalNodeJoin;
+    }
+
+    /**
+     * @param joinRunRecords Number of nodes or references the {@link #setExternalNodeJoin(boolean) external join} sorts
+     *                       in memory at a time
+     */
+    void setJoinRunRecords(int joinRunRecords) {
+        this.joinRunRecords = joinRunRecords;
+    }
+
+    /**
+     * Parses an input file on several threads. The file is split into ranges at the start of nodes, ways and relations,
+     * which are parsed at the same time and put together in order. Applies to an {@link InputSource} with only the file
+     * URI as system id, and without {@link #setOsmValidation(SchemaValidation) OSM validation},
+     * {@link #setMemoryBudget(long) memory budget} or {@link #setExternalNodeJoin(boolean) external join}. Files that
+     * are small, not UTF-8, or cannot be split are parsed on one thread as before.
+     *
+     * @param parseThreads Number of threads parsing an input file, defaults to 1
+     */
+    public void setParseThreads(int parseThreads) {
+        this.parseThreads = parseThreads;
+    }
+
+    public int getParseThreads() {
+        return parseThreads;
+    }
+
+    /**
+     * @param spillDirectory Where node coordinates exceeding the memory budget or joined on disk are written, or null for
+     *                       the default temporary directory
+     */
+    public void setSpillDirectory(Path spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * Saves the OSM data of each conversion from an {@link InputSource} as a {@link ConversionState}, for OSM change files
+     * to be applied to it with {@link #marshallChange(ConversionState, InputSource, OutputStream, String, String, String, ConversionReport)}.
+     * The state is created from the data parsed for the conversion, so the input is read only once.
+     *
+     * @param stateDirectory The directory of the state, replaced by each conversion, or null to not save it, which is the default
+     */
+    public void setStateDirectory(Path stateDirectory) {
+        this.stateDirectory = stateDirectory;
+    }
+
+    /**
+     * Reuses the marshalled XML of zones mapped from unchanged ways when marshalling a single target entity. Each zone is
+     * marshalled on its own and written as soon as it is ready, so the whole publication delivery is never held in memory.
+     * <p>
+     * Multipolygon relations are always mapped again. The cache is not used for {@link FareZone} when stop places are
+     * assigned by location or the input has groups of tariff zones, since those depend on other zones.
+     *
+     * @param zoneFragmentCache The cache to read and add fragments to, or null to marshal the whole publication delivery at once
+     */
+    public void setZoneFragmentCache(ZoneFragmentCache zoneFragmentCache) {
+        this.zoneFragmentCache = zoneFragmentCache;
+    }
+
     /**
      * Marshall an OSM XML Input into a NeTEx XML OutputStream
      *
@@ -58,16 +273,496 @@ public class OsmToNetexTransformer {
      * @throws ClassNotFoundException If {@param targetEntity} is not set to an allowed value
      */
     public void marshallOsm(InputSource osmInput, OutputStream output, String targetEntity, String generatedFrom, String participantRef) throws ClassNotFoundException {
+        marshallOsm(osmInput, output, targetEntity, generatedFrom, participantRef, new ConversionReport());
+    }
+
+    /**
+     * Marshall an OSM XML Input into a NeTEx XML OutputStream, collecting validation issues in a report
+     *
+     * @param osmInput       The OSM XML input
+     * @param output         The NeTEx XML output
+     * @param targetEntity   The type of NeTEx structure the input is expected to be converted into. Supports {@link FareZone}, {@link TariffZone} and {@link TopographicPlace}. Will throw {@link ClassNotFoundException} on all other values
+     * @param generatedFrom  The name of the data used as input
+     * @param participantRef Which system created the data
+     * @param report         Receives the issues found in the input
+     * @throws ClassNotFoundException If {@param targetEntity} is not set to an allowed value
+     */
+    public void marshallOsm(InputSource osmInput, OutputStream output, String targetEntity, String generatedFrom, String participantRef, ConversionReport report) throws ClassNotFoundException {
+        marshallOsm(osmInput, output, targetEntity, generatedFrom, participantRef, createContext(report));
+    }
+
+    private void marshallOsm(InputSource osmInput, OutputStream output, String targetEntity, String generatedFrom, String participantRef, ConversionContext context) throws ClassNotFoundException {
+        ConversionEvents.Conversion event = beginConversion();
+        Osm osm = null;
         try {
-            OsmUnmarshaller osmUnmarshaller = new OsmUnmarshaller(false);
+            osm = unmarshall(osmInput);
+            Class<? extends Zone_VersionStructure> clazz = validateAndGetDestinationClass(targetEntity);
+            if (zoneFragmentCache != null && fragmentsApply(clazz, osm)) {
+                marshallZoneFragments(osm, clazz, output, generatedFrom, participantRef, context);
+                return;
+            }
+            PublicationDeliveryStructure publicationDeliveryStructure = map(osm, targetEntity, generatedFrom, participantRef, context);
+            marshal(publicationDeliveryStructure, output);
+        } finally {
+            release(osm);
+            endConversion(event, generatedFrom, targetEntity, context.getReport());
+        }
+    }
+
+    private static ConversionEvents.Conversion beginConversion() {
+        ConversionEvents.Conversion event = new ConversionEvents.Conversion();
+        event.begin();
+        return event;
+    }
+
+    private static void endConversion(ConversionEvents.Conversion event, String generatedFrom, String targetEntity, ConversionReport report) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.generatedFrom = generatedFrom;
+            event.targetEntity = targetEntity;
+            event.zones = report.getConverted();
+            event.skipped = report.getSkipped();
+            event.commit();
+        }
+    }
+
+    /**
+     * Marshall an OSM XML Input into a NeTEx XML OutputStream on a virtual thread, see
+     * {@link #marshallOsmAsync(InputSource, OutputStream, String, String, String, ConversionReport, Duration, Executor)}
+     */
+    public CompletableFuture<ConversionReport> marshallOsmAsync(InputSource osmInput, OutputStream output, String targetEntity, String generatedFrom, String participantRef, ConversionReport report, Duration timeout) throws ClassNotFoundException {
+        return marshallOsmAsync(osmInput, output, targetEntity, generatedFrom, participantRef, report, timeout, runnable -> Thread.ofVirtual().name("netex-conversion").start(runnable));
+    }
+
+    /**
+     * Marshall an OSM XML Input into a NeTEx XML OutputStream on an executor.
+     * <p>
+     * When the returned future is cancelled, or completed in any other way before the conversion is done, the parsing,
+     * mapping and writing stop at the next buffer read or written or the next element mapped. The output is then
+     * incomplete, and it is left to the caller to discard it.
+     *
+     * @param osmInput       The OSM XML input
+     * @param output         The NeTEx XML output
+     * @param targetEntity   The type of NeTEx structure the input is expected to be converted into. Supports {@link FareZone}, {@link TariffZone} and {@link TopographicPlace}. Will throw {@link ClassNotFoundException} on all other values
+     * @param generatedFrom  The name of the data used as input
+     * @param participantRef Which system created the data
+     * @param report         Receives the issues found in the input
+     * @param timeout        How long the conversion may take before the future completes with a {@link java.util.concurrent.TimeoutException} and the conversion is stopped, or null for no limit
+     * @param executor       Runs the conversion
+     * @return a future completed with the report when the output has been written
+     * @throws ClassNotFoundException If {@param targetEntity} is not set to an allowed value
+     */
+    public CompletableFuture<ConversionReport> marshallOsmAsync(InputSource osmInput, OutputStream output, String targetEntity, String generatedFrom, String participantRef, ConversionReport report, Duration timeout, Executor executor) throws ClassNotFoundException {
+        validateAndGetDestinationClass(targetEntity);
+        return convertAsync(report, timeout, executor, (context, cancellation) ->
+                marshallOsm(cancellation.wrap(osmInput), cancellation.wrap(output), targetEntity, generatedFrom, participantRef, context));
+    }
+
+    @FunctionalInterface
+    private interface Conversion {
+        void convert(ConversionContext context, ConversionCancellation cancellation) throws ClassNotFoundException;
+    }
+
+    private CompletableFuture<ConversionReport> convertAsync(ConversionReport report, Duration timeout, Executor executor, Conversion conversion) {
+        ConversionContext context = createContext(report);
+        ConversionCancellation cancellation = context.getCancellation();
+
+        CompletableFuture<ConversionReport> future = new CompletableFuture<>();
+        future.whenComplete((result, e) -> cancellation.cancel());
+        if (timeout != null) {
+            future.orTimeout(timeout.toNanos(), TimeUnit.NANOSECONDS);
+        }
+        try {
+            executor.execute(() -> {
+                if (future.isDone()) {
+                    return;
+                }
+                try {
+                    conversion.convert(context, cancellation);
+                    future.complete(report);
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Marshall an OSM XML Input into one NeTEx XML OutputStream per target entity. The input is parsed once,
+     * and each zone is routed to a target entity by its tags, see {@link #map(Osm, Set, String, String, ConversionReport)}.
+     *
+     * @param osmInput       The OSM XML input
+     * @param outputs        The NeTEx XML output for each target entity. Supports {@link FareZone}, {@link TariffZone} and {@link TopographicPlace}
+     * @param generatedFrom  The name of the data used as input
+     * @param participantRef Which system created the data
+     * @param report         Receives the issues found in the input
+     * @throws ClassNotFoundException If one of the target entities is not set to an allowed value
+     */
+    public void marshallOsm(InputSource osmInput, Map<String, OutputStream> outputs, String generatedFrom, String participantRef, ConversionReport report) throws ClassNotFoundException {
+        ConversionEvents.Conversion event = beginConversion();
+        Osm osm = null;
+        try {
+            osm = unmarshall(osmInput);
+            Map<String, PublicationDeliveryStructure> deliveries = map(osm, outputs.keySet(), generatedFrom, participantRef, report);
+            for (Map.Entry<String, OutputStream> output : outputs.entrySet()) {
+                marshal(deliveries.get(validateAndGetDestinationClass(output.getKey()).getSimpleName()), output.getValue());
+            }
+        } finally {
+            release(osm);
+            endConversion(event, generatedFrom, String.join(",", outputs.keySet()), report);
+        }
+    }
+
+    /**
+     * Marshall an OSM XML Input into one NeTEx XML OutputStream with a single SiteFrame holding the zones of all the target entities.
+     *
+     * @param osmInput       The OSM XML input
+     * @param output         The NeTEx XML output
+     * @param targetEntities The types of NeTEx structure the input is converted into. Supports {@link FareZone}, {@link TariffZone} and {@link TopographicPlace}
+     * @param generatedFrom  The name of the data used as input
+     * @param participantRef Which system created the data
+     * @param report         Receives the issues found in the input
+     * @throws ClassNotFoundException If one of the target entities is not set to an allowed value
+     */
+    public void marshallOsm(InputSource osmInput, OutputStream output, Set<String> targetEntities, String generatedFrom, String participantRef, ConversionReport report) throws ClassNotFoundException {
+        marshallOsm(osmInput, output, targetEntities, generatedFrom, participantRef, createContext(report));
+    }
+
+    private void marshallOsm(InputSource osmInput, OutputStream output, Set<String> targetEntities, String generatedFrom, String participantRef, ConversionContext context) throws ClassNotFoundException {
+        ConversionEvents.Conversion event = beginConversion();
+        Osm osm = null;
+        try {
+            osm = unmarshall(osmInput);
+            marshal(mapCombined(osm, targetEntities, generatedFrom, participantRef, context), output);
+        } finally {
+            release(osm);
+            endConversion(event, generatedFrom, String.join(",", targetEntities), context.getReport());
+        }
+    }
+
+    /**
+     * Marshall an OSM XML Input into one NeTEx XML OutputStream with a single SiteFrame holding the zones of all the
+     * target entities, on an executor. Stops like
+     * {@link #marshallOsmAsync(InputSource, OutputStream, String, String, String, ConversionReport, Duration, Executor)}.
+     *
+     * @param osmInput       The OSM XML input
+     * @param output         The NeTEx XML output
+     * @param targetEntities The types of NeTEx structure the input is converted into. Supports {@link FareZone}, {@link TariffZone} and {@link TopographicPlace}
+     * @param generatedFrom  The name of the data used as input
+     * @param participantRef Which system created the data
+     * @param report         Receives the issues found in the input
+     * @param timeout        How long the conversion may take before the future completes with a {@link java.util.concurrent.TimeoutException} and the conversion is stopped, or null for no limit
+     * @param executor       Runs the conversion
+     * @return a future completed with the report when the output has been written
+     * @throws ClassNotFoundException If one of the target entities is not set to an allowed value
+     */
+    public CompletableFuture<ConversionReport> marshallOsmAsync(InputSource osmInput, OutputStream output, Set<String> targetEntities, String generatedFrom, String participantRef, ConversionReport report, Duration timeout, Executor executor) throws ClassNotFoundException {
+        for (String targetEntity : targetEntities) {
+            validateAndGetDestinationClass(targetEntity);
+        }
+        return convertAsync(report, timeout, executor, (context, cancellation) ->
+                marshallOsm(cancellation.wrap(osmInput), cancellation.wrap(output), targetEntities, generatedFrom, participantRef, context));
+    }
+
+    /**
+     * Marshall only the zones added or changed since a previous export of the same target entity
+     *
+     * @param osmInput       The OSM XML input
+     * @param output         The NeTEx XML output, see {@link #mapDiff(Osm, String, ZoneIndex, String, String, ConversionReport)}
+     * @param targetEntity   The type of NeTEx structure the input is expected to be converted into. Supports {@link FareZone}, {@link TariffZone} and {@link TopographicPlace}
+     * @param previous       The zones of the previous export
+     * @param generatedFrom  The name of the data used as input
+     * @param participantRef Which system created the data
+     * @param report         Receives the issues found in the input
+     * @return the ids of the added, changed and removed zones, and the index of all the converted zones
+     * @throws ClassNotFoundException If {@param targetEntity} is not set to an allowed value
+     */
+    public ZoneDiff marshallOsmDiff(InputSource osmInput, OutputStream output, String targetEntity, ZoneIndex previous, String generatedFrom, String participantRef, ConversionReport report) throws ClassNotFoundException {
+        Osm osm = unmarshall(osmInput);
+        try {
+            ZoneDiff diff = mapDiff(osm, targetEntity, previous, generatedFrom, participantRef, report);
+            marshal(diff.delivery(), output);
+            return diff;
+        } finally {
+            release(osm);
+        }
+    }
+
+    /**
+     * Maps the OSM data and keeps only the zones added or changed since a previous export. Added zones are marked with
+     * modification {@code new} and changed zones with {@code revise}. Removed zones are only listed in the result, since
+     * a delivery cannot hold a zone without its content. Groups of tariff zones are always kept.
+     *
+     * @param osm            The parsed OSM XML as a Java Object
+     * @param targetEntity   The type of NeTEx structure the input is expected to be converted into. Supports {@link FareZone}, {@link TariffZone} and {@link TopographicPlace}
+     * @param previous       The zones of the previous export, see {@link ZoneIndex#read(java.nio.file.Path)}
+     * @param generatedFrom  The name of the data used as input
+     * @param participantRef Which system created the data
+     * @param report         Receives the issues found in the input
+     * @return the delivery with the added and changed zones, and the ids of the added, changed and removed zones
+     * @throws ClassNotFoundException If {@param targetEntity} is not set to an allowed value
+     */
+    public ZoneDiff mapDiff(Osm osm, String targetEntity, ZoneIndex previous, String generatedFrom, String participantRef, ConversionReport report) throws ClassNotFoundException {
+        return diff(map(osm, targetEntity, generatedFrom, participantRef, report), previous);
+    }
+
+    /**
+     * Applies an OSM change file to a conversion state and marshalls the zones it affects, like
+     * {@link #marshallOsmDiff(InputSource, OutputStream, String, ZoneIndex, String, String, ConversionReport)} with the
+     * zones of the affected elements before the change as previous export. Zones of other elements are not mapped.
+     * <p>
+     * The change is left pending in the state. Call {@link ConversionState#commit()} once the output has been stored, so
+     * that the change can be applied again if the conversion or the output fails.
+     *
+     * @param state          The OSM data of the previous conversion, which the change is applied to
+     * @param osmChange      The OSM change XML, with create, modify and delete sections
+     * @param output         The NeTEx XML output, with the zones added or changed by the change
+     * @param targetEntity   The type of NeTEx structure the input is expected to be converted into. Supports {@link FareZone}, {@link TariffZone} and {@link TopographicPlace}
+     * @param generatedFrom  The name of the data used as input
+     * @param participantRef Which system created the data
+     * @param report         Receives the issues found in the changed elements
+     * @return the ids of the added, changed and removed zones
+     * @throws ClassNotFoundException If {@param targetEntity} is not set to an allowed value
+     */
+    public ZoneDiff marshallChange(ConversionState state, InputSource osmChange, OutputStream output, String targetEntity, String generatedFrom, String participantRef, ConversionReport report) throws ClassNotFoundException, IOException {
+        ConversionState.Change change = state.apply(osmChange);
+        ZoneIndex before = diff(mapUnrecorded(change.before(), targetEntity, generatedFrom, participantRef), new ZoneIndex()).index();
+        ZoneDiff diff = diff(map(change.after(), targetEntity, generatedFrom, participantRef, createContext(report)), before);
+        marshal(diff.delivery(), output);
+        return diff;
+    }
+
+    /**
+     * Maps the elements of a change as they were before it, without recording metrics or progress, so that only the
+     * conversion of the change itself is counted. Elements skipped by the previous conversion may be part of the change,
+     * so issues are only reported, and they are left out of the previous zones.
+     */
+    private PublicationDeliveryStructure mapUnrecorded(Osm osm, String targetEntity, String generatedFrom, String participantRef) throws ClassNotFoundException {
+        Class<? extends Zone_VersionStructure> clazz = validateAndGetDestinationClass(targetEntity);
+        ConversionContext context = createContext(new ConversionReport(), ValidationMode.REPORT);
+        Osm checkedOsm = ReferentialIntegrityCheck.check(osm).apply(osm, context);
+        SiteFrame siteFrame = generateSiteFrame(clazz, checkedOsm, indexNodes(checkedOsm), context);
+        return netexHelper.createPublicationDelivery(siteFrame, generatedFrom, participantRef);
+    }
 
-            Osm osm = osmUnmarshaller.unmarshall(osmInput);
+    private ZoneDiff diff(PublicationDeliveryStructure delivery, ZoneIndex previous) {
+        SiteFrame siteFrame = (SiteFrame) delivery.getDataObjects().getCompositeFrameOrCommonFrame().get(0).getValue();
 
-            PublicationDeliveryStructure publicationDeliveryStructure = map(osm, targetEntity, generatedFrom, participantRef);
-            netexHelper.marshalNetex(publicationDeliveryStructure, output);
+        ZoneIndex current = new ZoneIndex();
+        List<String> added = new ArrayList<>();
+        List<String> changed = new ArrayList<>();
+        if (siteFrame.getTariffZones() != null) {
+            siteFrame.getTariffZones().getTariffZone().removeIf(zone -> unchanged(zone.getValue(), previous, current, added, changed));
+            if (siteFrame.getTariffZones().getTariffZone().isEmpty()) {
+                siteFrame.setTariffZones(null);
+            }
+        }
+        if (siteFrame.getTopographicPlaces() != null) {
+            siteFrame.getTopographicPlaces().getTopographicPlace().removeIf(zone -> unchanged(zone, previous, current, added, changed));
+            if (siteFrame.getTopographicPlaces().getTopographicPlace().isEmpty()) {
+                siteFrame.setTopographicPlaces(null);
+            }
+        }
+        List<String> removed = previous.ids().stream().filter(id -> current.get(id) == null).toList();
+        logger.info("{} zones added, {} changed and {} removed since the previous export", added.size(), changed.size(), removed.size());
+        return new ZoneDiff(delivery, current, added, changed, removed);
+    }
 
+    private boolean unchanged(Zone_VersionStructure zone, ZoneIndex previous, ZoneIndex current, List<String> added, List<String> changed) {
+        String hash = ZoneIndex.hash(netexHelper.marshalFragment(zone));
+        current.put(zone.getId(), hash);
+        String previousHash = previous.get(zone.getId());
+        if (previousHash == null) {
+            zone.setModification(ModificationEnumeration.NEW);
+            added.add(zone.getId());
+            return false;
+        }
+        if (!previousHash.equals(hash)) {
+            zone.setModification(ModificationEnumeration.REVISE);
+            changed.add(zone.getId());
+            return false;
+        }
+        return true;
+    }
+
+    private boolean fragmentsApply(Class<? extends Zone_VersionStructure> clazz, Osm osm) {
+        if (!FareZone.class.equals(clazz)) {
+            return true;
+        }
+        return stopPlaceLocations == null && osm.getRelation().stream().allMatch(OsmToNetexMapper::isMultipolygon);
+    }
+
+    /**
+     * Writes the zones of the standalone ways from the fragment cache when their way is unchanged, and marshals the others
+     * one by one. Zones with issues are not cached, so their issues are reported on each conversion.
+     */
+    private <T extends Zone_VersionStructure> void marshallZoneFragments(Osm osm, Class<T> clazz, OutputStream output, String generatedFrom, String participantRef, ConversionContext context) {
+
+        Osm checkedOsm = ReferentialIntegrityCheck.check(osm).apply(osm, context);
+
+        T placeholder = netexHelper.createNetexObject(clazz);
+        placeholder.setVersion(OsmToNetexMapper.DEFAULT_VERSION);
+        placeholder.setId("OSM:" + clazz.getSimpleName() + ":ZoneFragments");
+        placeholder.setName(new MultilingualString().withValue(placeholder.getId()));
+        SiteFrame skeleton = netexHelper.createSiteFrame();
+        addPlaceholder(skeleton, placeholder);
+        ByteArrayOutputStream skeletonXml = new ByteArrayOutputStream();
+        netexHelper.marshalNetex(netexHelper.createPublicationDelivery(skeleton, generatedFrom, participantRef), skeletonXml);
+
+        Map<BigInteger, Node> mapOfNodes = mapNodes(checkedOsm);
+        context.setProgress(progressListener, zonesToMap(checkedOsm, clazz));
+        FragmentsWritten[] written = new FragmentsWritten[1];
+        CountingStreams.Output countingOutput = new CountingStreams.Output(output, this::written);
+        // Zones are mapped while the document is written, the time spent mapping them is recorded as the map stage
+        StageTimer timer = StageTimer.start(metrics, ConversionMetrics.Stage.MARSHAL);
+        try (timer) {
+            netexHelper.validating(countingOutput, validatedOutput -> {
+                ZoneFragmentWriter writer = new ZoneFragmentWriter(skeletonXml.toByteArray(), placeholder.getId(), validatedOutput);
+                written[0] = writeZoneFragments(checkedOsm, mapOfNodes, clazz, writer, context);
+                if (!writer.finish()) {
+                    netexHelper.marshalNetex(netexHelper.createPublicationDelivery(netexHelper.createSiteFrame(), generatedFrom, participantRef), validatedOutput);
+                }
+            });
+            timer.exclude(written[0].mapping());
+        }
+        metrics.bytesWritten(countingOutput.count());
+        metrics.stage(ConversionMetrics.Stage.MAP, written[0].mapping());
+        recordZones(context.getReport());
+        logger.info("Copied {} zones from the fragment cache", written[0].cached());
+        logReport(context.getReport());
+    }
+
+    /**
+     * @param cached  The number of zones copied from the fragment cache
+     * @param mapping The time spent mapping the other zones
+     */
+    private record FragmentsWritten(int cached, Duration mapping) {
+    }
+
+    private <T extends Zone_VersionStructure> FragmentsWritten writeZoneFragments(Osm osm, Map<BigInteger, Node> mapOfNodes, Class<T> clazz, ZoneFragmentWriter writer, ConversionContext context) {
+        ConversionReport report = context.getReport();
+        List<Relation> multipolygons = multipolygons(osm);
+        OsmToNetexMapper<T> osmToNetexMapper = new OsmToNetexMapper<>(netexHelper, context);
+
+        int cached = 0;
+        long mapping = 0;
+        for (Way way : OsmToNetexMapper.standaloneWays(osm.getWay(), multipolygons)) {
+            String key = ZoneFragmentCache.key(way, mapOfNodes, clazz.getSimpleName(), geometryValidation, netexHelper.isFormattedOutput());
+            byte[] fragment = zoneFragmentCache.get(key);
+            if (fragment != null) {
+                context.acceptCached();
+                writer.write(fragment);
+                cached++;
+                continue;
+            }
+            int issues = report.getIssues().size();
+            long start = System.nanoTime();
+            Map.Entry<BigInteger, T> zone = osmToNetexMapper.mapWayToZone(way, mapOfNodes, clazz);
+            mapping += System.nanoTime() - start;
+            if (zone != null) {
+                fragment = netexHelper.marshalFragment(withDescriptor(zone.getValue()));
+                if (report.getIssues().size() == issues) {
+                    zoneFragmentCache.put(key, fragment);
+                }
+                writer.write(fragment);
+            }
+        }
+        long start = System.nanoTime();
+        List<Map.Entry<BigInteger, T>> zones = osmToNetexMapper.mapMultipolygonsToZoneList(multipolygons, waysById(osm), mapOfNodes, clazz).toList();
+        mapping += System.nanoTime() - start;
+        zones.forEach(zone -> writer.write(netexHelper.marshalFragment(withDescriptor(zone.getValue()))));
+        return new FragmentsWritten(cached, Duration.ofNanos(mapping));
+    }
+
+    private void addPlaceholder(SiteFrame siteFrame, Zone_VersionStructure placeholder) {
+        if (placeholder instanceof TopographicPlace topographicPlace) {
+            siteFrame.withTopographicPlaces(new TopographicPlacesInFrame_RelStructure().withTopographicPlace(withDescriptor(topographicPlace)));
+        } else {
+            TariffZonesInFrame_RelStructure tariffZones = new TariffZonesInFrame_RelStructure();
+            tariffZones.getTariffZone().add(netexHelper.zoneElement(placeholder));
+            siteFrame.withTariffZones(tariffZones);
+        }
+    }
+
+    private static <T extends Zone_VersionStructure> T withDescriptor(T zone) {
+        if (zone instanceof TopographicPlace topographicPlace) {
+            topographicPlace.setDescriptor(new TopographicPlaceDescriptor_VersionedChildStructure().withName(topographicPlace.getName()));
+        }
+        return zone;
+    }
+
+    private Osm unmarshall(InputSource osmInput) {
+        try {
+            StageTimer timer = StageTimer.start(metrics, ConversionMetrics.Stage.UNMARSHAL);
+
+            Path parallelFile = parallelFile(osmInput);
+            InputSource input = osmInput;
+            CountingStreams.Input countingInput = null;
+            if (osmInput.getByteStream() != null && osmInput.getCharacterStream() == null || parallelFile != null) {
+                // A file that turns out not to split is read through a counting stream too, for the progress of reading it
+                countingInput = new CountingStreams.Input(parallelFile != null
+                        ? new BufferedInputStream(Files.newInputStream(parallelFile), 1 << 16) : osmInput.getByteStream());
+                input = new InputSource(countingInput);
+                input.setSystemId(osmInput.getSystemId());
+                input.setPublicId(osmInput.getPublicId());
+                input.setEncoding(osmInput.getEncoding());
+            }
+            CountingStreams.Input bytesRead = countingInput;
+            NodeSpill nodeSpill = memoryBudget > 0 || externalNodeJoin ? new NodeSpill(memoryBudget, spillDirectory, externalNodeJoin, joinRunRecords) : null;
+            OsmUnmarshaller osmUnmarshaller = new OsmUnmarshaller(osmValidation, progressListener == ProgressListener.NONE ? null
+                    : elements -> progressListener.progress(new ProgressListener.Progress(ConversionMetrics.Stage.UNMARSHAL,
+                    bytesRead == null ? -1 : bytesRead.count(), elements, -1)), nodeSpill);
+            AtomicLong bytesParsed = new AtomicLong();
+            Osm osm = null;
+            boolean rangesParsed = false;
+            boolean parsed = false;
+            try (timer) {
+                if (parallelFile != null) {
+                    osm = ParallelOsmParser.parse(parallelFile, parseThreads, progressListener == ProgressListener.NONE ? null
+                            : elements -> progressListener.progress(new ProgressListener.Progress(ConversionMetrics.Stage.UNMARSHAL,
+                            bytesParsed.get(), elements, -1)), bytesParsed);
+                }
+                rangesParsed = osm != null;
+                if (osm == null) {
+                    osm = osmUnmarshaller.unmarshall(input);
+                }
+                if (nodeSpill != null) {
+                    osm = nodeSpill.finish(osm);
+                }
+                parsed = true;
+            } finally {
+                if (!parsed && nodeSpill != null) {
+                    nodeSpill.discard();
+                }
+                if (parallelFile != null) {
+                    countingInput.close();
+                }
+            }
+
+            int nodes = osm instanceof NodeSpill.SpilledOsm spilled ? spilled.getNodeIndex().size() : osm.getNode().size();
             logger.info("Unmarshalled OSM file. generator: {}, version: {}, nodes: {}, ways: {}, relations: {}",
-                    osm.getGenerator(), osm.getVersion(), osm.getNode().size(), osm.getWay().size(), osm.getRelation().size());
+                    osm.getGenerator(), osm.getVersion(), nodes, osm.getWay().size(), osm.getRelation().size());
+            metrics.elements("node", nodes);
+            if (osm instanceof NodeSpill.SpilledOsm) {
+                metrics.elements("spilled-node", nodes);
+            }
+            metrics.elements("way", osm.getWay().size());
+            metrics.elements("relation", osm.getRelation().size());
+            if (rangesParsed) {
+                metrics.bytesRead(bytesParsed.get());
+            } else if (countingInput != null) {
+                metrics.bytesRead(countingInput.count());
+            }
+            if (osmValidation == SchemaValidation.ASYNC) {
+                metrics.peakQueueDepth("osm-validation", osmUnmarshaller.getPeakQueueDepth());
+            }
+            if (stateDirectory != null) {
+                saveState(osm);
+            }
+            return osm;
         } catch (IOException e) {
             throw new RuntimeException("Unable to read input file", e);
         }
@@ -84,6 +779,21 @@ public class OsmToNetexTransformer {
      * @throws ClassNotFoundException If {@param targetEntity} is not set to an allowed value
      */
     public PublicationDeliveryStructure map(Osm osm, String targetEntity, String generatedFrom, String participantRef) throws ClassNotFoundException {
+        return map(osm, targetEntity, generatedFrom, participantRef, new ConversionReport());
+    }
+
+    /**
+     * Creates a PublicationDeliveryStructure from a parsed OSM data object, collecting validation issues in a report
+     *
+     * @param osm            The parsed OSM XML as a Java Object
+     * @param targetEntity   The type of NeTEx structure the input is expected to be converted into. Supports {@link FareZone}, {@link TariffZone} and {@link TopographicPlace}. Will throw {@link ClassNotFoundException} on all other values
+     * @param generatedFrom  The name of the data used as input
+     * @param participantRef Which system created the data
+     * @param report         Receives the issues found in the input
+     * @return a {@link PublicationDeliveryStructure} object containing the converted data
+     * @throws ClassNotFoundException If {@param targetEntity} is not set to an allowed value
+     */
+    public PublicationDeliveryStructure map(Osm osm, String targetEntity, String generatedFrom, String participantRef, ConversionReport report) throws ClassNotFoundException {
 
         /*
          * 1. Parse relations to collect ways first
@@ -91,83 +801,460 @@ public class OsmToNetexTransformer {
          * 3. Parse nodes and ways
          */
 
+        return map(osm, targetEntity, generatedFrom, participantRef, createContext(report));
+    }
+
+    private PublicationDeliveryStructure map(Osm osm, String targetEntity, String generatedFrom, String participantRef, ConversionContext context) throws ClassNotFoundException {
         Class<? extends Zone_VersionStructure> clazz = validateAndGetDestinationClass(targetEntity);
 
+        osm = ReferentialIntegrityCheck.check(osm).apply(osm, context);
+
+        Map<BigInteger, Node> mapOfNodes = mapNodes(osm);
+
+        context.setProgress(progressListener, zonesToMap(osm, clazz));
+        StageTimer timer = StageTimer.start(metrics, ConversionMetrics.Stage.MAP);
         SiteFrame siteFrame;
+        try (timer) {
+            siteFrame = generateSiteFrame(clazz, osm, mapOfNodes, context);
+        }
+        mapped(osm, timer.duration(), context.getReport());
+        logReport(context.getReport());
+        return netexHelper.createPublicationDelivery(siteFrame, generatedFrom, participantRef);
+    }
 
-        Map<BigInteger, Node> mapOfNodes = osm.getNode().stream()
-                .collect(Collectors.toMap(Node::getId, node -> node));
+    /**
+     * Maps an OSM input to a lazily evaluated stream of zones, so an application can process the zones one at a time
+     * without the whole SiteFrame being held in memory. Each zone is mapped when the stream gets to it.
+     * <p>
+     * The input is parsed when this method is called. {@link FareZone}s with stop places assigned by location, or in an
+     * input with groups of tariff zones, depend on each other and are all mapped before the first one is returned.
+     * Groups of tariff zones are not part of the stream.
+     *
+     * @param osmInput     The OSM XML input
+     * @param targetEntity The type of the zones. Supports {@link FareZone}, {@link TariffZone} and {@link TopographicPlace}
+     * @param report       Receives the issues found in the input as the stream is consumed
+     * @return the zones, in the order of the ways and then the multipolygon relations of the input. Closing the stream
+     * deletes the node coordinates spilled to disk, see {@link #setMemoryBudget(long)}
+     * @throws ClassNotFoundException If {@param targetEntity} is not set to an allowed value
+     */
+    public Stream<Zone_VersionStructure> streamZones(InputSource osmInput, String targetEntity, ConversionReport report) throws ClassNotFoundException {
+        Class<? extends Zone_VersionStructure> clazz = validateAndGetDestinationClass(targetEntity);
+        return streamZones(unmarshall(osmInput), clazz, createContext(report));
+    }
+
+    /**
+     * Publishes the zones of an OSM input to a single subscriber, as many as it has requested at a time, see
+     * {@link #streamZones(InputSource, String, ConversionReport)}. The input is parsed and the zones are mapped on a virtual
+     * thread once the subscriber has requested the first zone. Errors, also in parsing, are signalled with onError.
+     *
+     * @param osmInput     The OSM XML input
+     * @param targetEntity The type of the zones. Supports {@link FareZone}, {@link TariffZone} and {@link TopographicPlace}
+     * @param report       Receives the issues found in the input as zones are published
+     * @throws ClassNotFoundException If {@param targetEntity} is not set to an allowed value
+     */
+    public Flow.Publisher<Zone_VersionStructure> publishZones(InputSource osmInput, String targetEntity, ConversionReport report) throws ClassNotFoundException {
+        return publishZones(osmInput, targetEntity, report, runnable -> Thread.ofVirtual().name("zone-publisher").start(runnable));
+    }
+
+    /**
+     * @param executor Runs the parsing and mapping
+     * @see #publishZones(InputSource, String, ConversionReport)
+     */
+    public Flow.Publisher<Zone_VersionStructure> publishZones(InputSource osmInput, String targetEntity, ConversionReport report, Executor executor) throws ClassNotFoundException {
+        Class<? extends Zone_VersionStructure> clazz = validateAndGetDestinationClass(targetEntity);
+        return new ZonePublisher(() -> streamZones(unmarshall(osmInput), clazz, createContext(report)), executor);
+    }
+
+    private <T extends Zone_VersionStructure> Stream<Zone_VersionStructure> streamZones(Osm osm, Class<T> clazz, ConversionContext context) {
+        try {
+            return mapZonesLazily(osm, clazz, context).onClose(() -> release(osm));
+        } catch (RuntimeException e) {
+            release(osm);
+            throw e;
+        }
+    }
+
+    private <T extends Zone_VersionStructure> Stream<Zone_VersionStructure> mapZonesLazily(Osm osm, Class<T> clazz, ConversionContext context) {
+        Osm checkedOsm = ReferentialIntegrityCheck.check(osm).apply(osm, context);
+        Map<BigInteger, Node> mapOfNodes = mapNodes(checkedOsm);
+        if (!fragmentsApply(clazz, checkedOsm)) {
+            SiteFrame siteFrame = generateSiteFrame(clazz, checkedOsm, mapOfNodes, context);
+            return siteFrame.getTariffZones() == null ? Stream.empty()
+                    : siteFrame.getTariffZones().getTariffZone().stream().<Zone_VersionStructure>map(JAXBElement::getValue);
+        }
+        OsmToNetexMapper<T> osmToNetexMapper = new OsmToNetexMapper<>(netexHelper, context);
+        return mapZones(checkedOsm, mapOfNodes, osmToNetexMapper, clazz)
+                .<Zone_VersionStructure>map(Map.Entry::getValue)
+                .map(OsmToNetexTransformer::withDescriptor);
+    }
+
+    /**
+     * Creates one PublicationDeliveryStructure per target entity from a parsed OSM data object. The reference check and the
+     * node index are shared by all the target entities.
+     * <p>
+     * With more than one target entity, each way and multipolygon relation is routed by its tags:
+     * {@code tariffZone=fareZone} to {@link FareZone}, {@code area=tariffZone} to {@link TariffZone}, and
+     * {@code area=topographicPlace} or {@code boundary=administrative} to {@link TopographicPlace}. Other relations are
+     * groups of tariff zones and go with {@link FareZone}. Zones matching none of the target entities are left out with a warning.
+     *
+     * @param osm            The parsed OSM XML as a Java Object
+     * @param targetEntities The types of NeTEx structure the input is converted into. Supports {@link FareZone}, {@link TariffZone} and {@link TopographicPlace}
+     * @param generatedFrom  The name of the data used as input
+     * @param participantRef Which system created the data
+     * @param report         Receives the issues found in the input
+     * @return the converted data, keyed by the simple class name of each target entity
+     * @throws ClassNotFoundException If one of the target entities is not set to an allowed value
+     */
+    public Map<String, PublicationDeliveryStructure> map(Osm osm, Set<String> targetEntities, String generatedFrom, String participantRef, ConversionReport report) throws ClassNotFoundException {
+        Map<String, PublicationDeliveryStructure> deliveries = new LinkedHashMap<>();
+        mapSiteFrames(osm, targetEntities, createContext(report))
+                .forEach((target, siteFrame) -> deliveries.put(target, netexHelper.createPublicationDelivery(siteFrame, generatedFrom, participantRef)));
+        return deliveries;
+    }
+
+    /**
+     * Creates a PublicationDeliveryStructure with a single SiteFrame holding the zones of all the target entities.
+     * Zones are routed as in {@link #map(Osm, Set, String, String, ConversionReport)}.
+     *
+     * @param osm            The parsed OSM XML as a Java Object
+     * @param targetEntities The types of NeTEx structure the input is converted into. Supports {@link FareZone}, {@link TariffZone} and {@link TopographicPlace}
+     * @param generatedFrom  The name of the data used as input
+     * @param participantRef Which system created the data
+     * @param report         Receives the issues found in the input
+     * @return a {@link PublicationDeliveryStructure} object containing the converted data
+     * @throws ClassNotFoundException If one of the target entities is not set to an allowed value
+     */
+    public PublicationDeliveryStructure mapCombined(Osm osm, Set<String> targetEntities, String generatedFrom, String participantRef, ConversionReport report) throws ClassNotFoundException {
+        return mapCombined(osm, targetEntities, generatedFrom, participantRef, createContext(report));
+    }
+
+    private PublicationDeliveryStructure mapCombined(Osm osm, Set<String> targetEntities, String generatedFrom, String participantRef, ConversionContext context) throws ClassNotFoundException {
+        SiteFrame combined = netexHelper.createSiteFrame();
+        mapSiteFrames(osm, targetEntities, context).values().forEach(siteFrame -> mergeSiteFrame(combined, siteFrame));
+        return netexHelper.createPublicationDelivery(combined, generatedFrom, participantRef);
+    }
+
+    private Map<String, SiteFrame> mapSiteFrames(Osm osm, Set<String> targetEntities, ConversionContext context) throws ClassNotFoundException {
+        if (targetEntities.isEmpty()) {
+            throw new IllegalArgumentException("At least one target entity is required");
+        }
+        Map<String, Class<? extends Zone_VersionStructure>> classes = new LinkedHashMap<>();
+        for (String targetEntity : targetEntities) {
+            Class<? extends Zone_VersionStructure> clazz = validateAndGetDestinationClass(targetEntity);
+            classes.put(clazz.getSimpleName(), clazz);
+        }
+
+        osm = ReferentialIntegrityCheck.check(osm).apply(osm, context);
+
+        Map<BigInteger, Node> mapOfNodes = mapNodes(osm);
+
+        StageTimer timer = StageTimer.start(metrics, ConversionMetrics.Stage.MAP);
+        Map<String, SiteFrame> siteFrames = new LinkedHashMap<>();
+        try (timer) {
+            Map<String, Osm> routed = route(osm, classes.keySet(), context);
+            context.setProgress(progressListener, classes.entrySet().stream()
+                    .mapToLong(target -> zonesToMap(routed.get(target.getKey()), target.getValue())).sum());
+            for (Map.Entry<String, Class<? extends Zone_VersionStructure>> target : classes.entrySet()) {
+                siteFrames.put(target.getKey(), generateSiteFrame(target.getValue(), routed.get(target.getKey()), mapOfNodes, context));
+            }
+        }
+        mapped(osm, timer.duration(), context.getReport());
+        logReport(context.getReport());
+        return siteFrames;
+    }
+
+    private ConversionContext createContext(ConversionReport report) {
+        return createContext(report, validationMode);
+    }
+
+    private ConversionContext createContext(ConversionReport report, ValidationMode validationMode) {
+        ConversionContext context = new ConversionContext(validationMode, report);
+        context.setGeometryValidation(geometryValidation);
+        return context;
+    }
+
+    private Map<BigInteger, Node> mapNodes(Osm osm) {
+        if (osm instanceof NodeSpill.SpilledOsm spilled) {
+            logger.info("Reading {} nodes from {}", spilled.getNodeIndex().size(), spilled.getNodeIndex().getDirectory());
+            return spilled.getNodeIndex();
+        }
+        Map<BigInteger, Node> mapOfNodes;
+        StageTimer timer = StageTimer.start(metrics, ConversionMetrics.Stage.NODE_INDEX);
+        try (timer) {
+            mapOfNodes = indexNodes(osm);
+        }
         logger.info("Mapped {} nodes from osm file", mapOfNodes.size());
+        return mapOfNodes;
+    }
+
+    private static Map<BigInteger, Node> indexNodes(Osm osm) {
+        if (osm instanceof NodeSpill.SpilledOsm spilled) {
+            return spilled.getNodeIndex();
+        }
+        return osm.getNode().stream()
+                .collect(Collectors.toMap(Node::getId, node -> node));
+    }
+
+    /**
+     * @return the file of an input given only by its file URI, when it may be parsed on several threads, otherwise null
+     */
+    private Path parallelFile(InputSource osmInput) {
+        if (parseThreads < 2 || osmValidation != SchemaValidation.OFF || memoryBudget > 0 || externalNodeJoin
+                || osmInput.getByteStream() != null || osmInput.getCharacterStream() != null || osmInput.getSystemId() == null) {
+            return null;
+        }
+        try {
+            URI uri = URI.create(osmInput.getSystemId());
+            return "file".equals(uri.getScheme()) ? Path.of(uri) : null;
+        } catch (IllegalArgumentException | FileSystemNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Creates the {@link ConversionState} of the input in the state directory. If that fails, the node coordinates of
+     * the input spilled to disk are deleted before the error is thrown.
+     */
+    private void saveState(Osm osm) throws IOException {
+        try {
+            ConversionState.create(stateDirectory, osm).close();
+        } catch (IOException | RuntimeException e) {
+            release(osm);
+            throw e;
+        }
+    }
+
+    private static void release(Osm osm) {
+        if (osm instanceof NodeSpill.SpilledOsm spilled) {
+            spilled.close();
+        }
+    }
+
+    private void marshal(PublicationDeliveryStructure publicationDeliveryStructure, OutputStream output) {
+        CountingStreams.Output countingOutput = new CountingStreams.Output(output, this::written);
+        StageTimer timer = StageTimer.start(metrics, ConversionMetrics.Stage.MARSHAL);
+        try (timer) {
+            netexHelper.marshalNetex(publicationDeliveryStructure, countingOutput);
+        }
+        metrics.bytesWritten(countingOutput.count());
+    }
+
+    /**
+     * Records the mapping stage, with the node references of all the ways as its vertices
+     */
+    private void mapped(Osm osm, Duration duration, ConversionReport report) {
+        metrics.vertices(osm.getWay().stream().mapToLong(way -> way.getNd().size()).sum(), duration);
+        recordZones(report);
+    }
+
+    private void written(long bytes) {
+        progressListener.progress(new ProgressListener.Progress(ConversionMetrics.Stage.MARSHAL, bytes, -1, -1));
+    }
 
+    /**
+     * @return the number of standalone ways and multipolygon relations, and of groups of tariff zones for {@link FareZone},
+     * or -1 when no one listens to the progress
+     */
+    private long zonesToMap(Osm osm, Class<? extends Zone_VersionStructure> clazz) {
+        if (progressListener == ProgressListener.NONE) {
+            return -1;
+        }
+        List<Relation> multipolygons = multipolygons(osm);
+        long zones = OsmToNetexMapper.standaloneWays(osm.getWay(), multipolygons).size() + multipolygons.size();
+        return FareZone.class.equals(clazz) ? zones + osm.getRelation().size() - multipolygons.size() : zones;
+    }
+
+    private void recordZones(ConversionReport report) {
+        metrics.elements("zone", report.getConverted());
+        metrics.elements("skipped", report.getSkipped());
+    }
+
+    private void logReport(ConversionReport report) {
+        if (!report.getIssues().isEmpty()) {
+            logger.info("Converted {} elements and skipped {} with {} issues", report.getConverted(), report.getSkipped(), report.getIssues().size());
+        }
+    }
+
+    private SiteFrame generateSiteFrame(Class<? extends Zone_VersionStructure> clazz, Osm osm, Map<BigInteger, Node> mapOfNodes, ConversionContext context) {
         if (clazz.isAssignableFrom(TariffZone.class)) {
-            siteFrame = generateSiteFrameFromTariffZone(osm, mapOfNodes);
+            return generateSiteFrameFromTariffZone(osm, mapOfNodes, context);
         } else if (clazz.isAssignableFrom(FareZone.class)) {
-            siteFrame = generateSiteFrameFromFareZone(osm, mapOfNodes);
+            return generateSiteFrameFromFareZone(osm, mapOfNodes, context);
         } else if (clazz.isAssignableFrom(TopographicPlace.class)) {
-            siteFrame = generateSiteFrameFromTopographicPlace(osm, mapOfNodes);
+            return generateSiteFrameFromTopographicPlace(osm, mapOfNodes, context);
         } else {
             throw new IllegalArgumentException(clazz + " is not supported");
         }
-        return netexHelper.createPublicationDelivery(siteFrame, generatedFrom, participantRef);
+    }
+
+    /**
+     * Splits the ways and relations between the target entities. The parts share the node index, so they hold no nodes.
+     * Untagged ways used as multipolygon segments go with the relations using them.
+     */
+    private Map<String, Osm> route(Osm osm, Set<String> targets, ConversionContext context) {
+        if (targets.size() == 1) {
+            return Map.of(targets.iterator().next(), osm);
+        }
+        Map<String, Osm> routed = new HashMap<>();
+        targets.forEach(target -> routed.put(target, new Osm()));
+
+        Map<BigInteger, Set<String>> segmentTargets = new HashMap<>();
+        for (Relation relation : osm.getRelation()) {
+            if (!OsmToNetexMapper.isMultipolygon(relation)) {
+                Osm fareZones = routed.get(FareZone.class.getSimpleName());
+                if (fareZones != null) {
+                    fareZones.getRelation().add(relation);
+                }
+                continue;
+            }
+            String target = OsmToNetexMapper.targetEntityOf(relation.getTag());
+            if (target == null || !routed.containsKey(target)) {
+                unrouted(OsmToNetexMapper.RELATION, relation.getId(), target, context);
+                continue;
+            }
+            routed.get(target).getRelation().add(relation);
+            relation.getMember().stream()
+                    .filter(member -> OsmToNetexMapper.WAY.equals(member.getType()))
+                    .forEach(member -> segmentTargets.computeIfAbsent(member.getRef(), id -> new HashSet<>()).add(target));
+        }
+
+        for (Way way : osm.getWay()) {
+            String target = OsmToNetexMapper.targetEntityOf(way.getTag());
+            boolean zone = target != null && routed.containsKey(target);
+            if (zone) {
+                routed.get(target).getWay().add(way);
+            }
+            Set<String> segmentOf = segmentTargets.getOrDefault(way.getId(), Set.of());
+            segmentOf.stream().filter(t -> !t.equals(target)).forEach(t -> routed.get(t).getWay().add(way));
+            if (!zone && segmentOf.isEmpty() && way.getTag().stream().anyMatch(tag -> OsmToNetexMapper.CODESPACE.equals(tag.getK()))) {
+                unrouted(OsmToNetexMapper.WAY, way.getId(), target, context);
+            }
+        }
+        routed.forEach((target, part) -> logger.info("Routed {} ways and {} relations to {}", part.getWay().size(), part.getRelation().size(), target));
+        return routed;
+    }
+
+    private void unrouted(String elementType, BigInteger id, String target, ConversionContext context) {
+        String message = target == null
+                ? String.format("%s %s has no tags telling which target entity it belongs to", elementType, id)
+                : String.format("%s %s is a %s, which is not among the target entities", elementType, id, target);
+        context.getReport().addIssues(List.of(new ConversionIssue(ConversionIssue.Severity.WARNING, elementType, String.valueOf(id), null, ConversionIssue.UNROUTED, message)));
+    }
+
+    /**
+     * Adds the zones, groups of tariff zones and topographic places of a SiteFrame to another
+     */
+    private void mergeSiteFrame(SiteFrame combined, SiteFrame siteFrame) {
+        if (siteFrame.getTariffZones() != null) {
+            if (combined.getTariffZones() == null) {
+                combined.withTariffZones(new TariffZonesInFrame_RelStructure());
+            }
+            combined.getTariffZones().getTariffZone().addAll(siteFrame.getTariffZones().getTariffZone());
+        }
+        if (siteFrame.getGroupsOfTariffZones() != null) {
+            if (combined.getGroupsOfTariffZones() == null) {
+                combined.withGroupsOfTariffZones(new GroupsOfTariffZonesInFrame_RelStructure());
+            }
+            combined.getGroupsOfTariffZones().getGroupOfTariffZones().addAll(siteFrame.getGroupsOfTariffZones().getGroupOfTariffZones());
+        }
+        if (siteFrame.getTopographicPlaces() != null) {
+            if (combined.getTopographicPlaces() == null) {
+                combined.withTopographicPlaces(new TopographicPlacesInFrame_RelStructure());
+            }
+            combined.getTopographicPlaces().getTopographicPlace().addAll(siteFrame.getTopographicPlaces().getTopographicPlace());
+        }
     }
 
 
-    private SiteFrame generateSiteFrameFromTariffZone(Osm osm, Map<BigInteger, Node> mapOfNodes) {
+    private SiteFrame generateSiteFrameFromTariffZone(Osm osm, Map<BigInteger, Node> mapOfNodes, ConversionContext context) {
         SiteFrame siteFrame = netexHelper.createSiteFrame();
-        OsmToNetexMapper<TariffZone> osmToNetexMapper = new OsmToNetexMapper<>(netexHelper);
+        OsmToNetexMapper<TariffZone> osmToNetexMapper = new OsmToNetexMapper<>(netexHelper, context);
         TariffZonesInFrame_RelStructure tariffZonesInFrame = new TariffZonesInFrame_RelStructure();
-        osmToNetexMapper.mapWaysToZoneList(osm.getWay(), mapOfNodes, TariffZone.class)
+        mapZones(osm, mapOfNodes, osmToNetexMapper, TariffZone.class)
                 .map(Map.Entry::getValue)
                 .map(tariffZone -> new ObjectFactory().createTariffZone(tariffZone))
                 .forEach(tariffZonesInFrame.getTariffZone()::add);
 
-        siteFrame.withTariffZones(tariffZonesInFrame);
+        if (!tariffZonesInFrame.getTariffZone().isEmpty()) {
+            siteFrame.withTariffZones(tariffZonesInFrame);
+        }
         return siteFrame;
     }
 
-    private SiteFrame generateSiteFrameFromFareZone(Osm osm, Map<BigInteger, Node> mapOfNodes) {
+    private SiteFrame generateSiteFrameFromFareZone(Osm osm, Map<BigInteger, Node> mapOfNodes, ConversionContext context) {
         SiteFrame siteFrame = netexHelper.createSiteFrame();
-        OsmToNetexMapper<FareZone> osmToNetexMapper = new OsmToNetexMapper<>(netexHelper);
+        OsmToNetexMapper<FareZone> osmToNetexMapper = new OsmToNetexMapper<>(netexHelper, context);
         final TariffZonesInFrame_RelStructure tariffZonesInFrame = new TariffZonesInFrame_RelStructure();
 
-        if (osm.getRelation() != null && !osm.getRelation().isEmpty()) {
-            GroupsOfTariffZonesInFrame_RelStructure groupOfTariffZones = new GroupsOfTariffZonesInFrame_RelStructure();
+        final List<Relation> multipolygons = multipolygons(osm);
+        final List<Map.Entry<BigInteger, FareZone>> fareZones = osmToNetexMapper.mapWaysToZoneList(OsmToNetexMapper.standaloneWays(osm.getWay(), multipolygons), mapOfNodes, FareZone.class).toList();
+        final List<Map.Entry<BigInteger, FareZone>> multipolygonFareZones = osmToNetexMapper.mapMultipolygonsToZoneList(multipolygons, waysById(osm), mapOfNodes, FareZone.class).toList();
+
+        if (stopPlaceLocations != null) {
+            new FareZoneMemberAssigner(stopPlaceLocations).assignMembers(Stream.concat(fareZones.stream(), multipolygonFareZones.stream()).map(Map.Entry::getValue).toList());
+        }
 
-            final Map<BigInteger, String> fareZoneMaps = osmToNetexMapper.mapWaysToZoneList(osm.getWay(), mapOfNodes, FareZone.class)
-                    .peek(fareZone -> {
-                        JAXBElement<FareZone> fz = new ObjectFactory().createFareZone(fareZone.getValue());
-                        tariffZonesInFrame.getTariffZone().add(fz);
-                    }).collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue().getId()));
+        Stream.concat(fareZones.stream(), multipolygonFareZones.stream())
+                .map(Map.Entry::getValue)
+                .map(fareZone -> new ObjectFactory().createFareZone(fareZone))
+                .forEach(fz -> tariffZonesInFrame.getTariffZone().add(fz));
 
-            osmToNetexMapper.mapRelationsToGroupOfTariffZones(osm.getRelation(), fareZoneMaps).forEach(g -> groupOfTariffZones.getGroupOfTariffZones().add(g));
-            siteFrame.withGroupsOfTariffZones(groupOfTariffZones);
+        final List<Relation> groupRelations = osm.getRelation().stream()
+                .filter(relation -> !OsmToNetexMapper.isMultipolygon(relation))
+                .toList();
+        if (!groupRelations.isEmpty()) {
+            GroupsOfTariffZonesInFrame_RelStructure groupOfTariffZones = new GroupsOfTariffZonesInFrame_RelStructure();
 
-        } else {
-            osmToNetexMapper.mapWaysToZoneList(osm.getWay(), mapOfNodes, FareZone.class)
-                    .map(Map.Entry::getValue)
-                    .map(fareZone -> new ObjectFactory().createFareZone(fareZone))
-                    .forEach(fz -> tariffZonesInFrame.getTariffZone().add(fz));
+            final Map<BigInteger, String> fareZoneMaps = fareZones.stream()
+                    .collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue().getId()));
+            final Map<BigInteger, String> multipolygonZoneMaps = multipolygonFareZones.stream()
+                    .collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue().getId()));
+
+            osmToNetexMapper.mapRelationsToGroupOfTariffZones(groupRelations, fareZoneMaps, multipolygonZoneMaps).forEach(g -> groupOfTariffZones.getGroupOfTariffZones().add(g));
+            if (!groupOfTariffZones.getGroupOfTariffZones().isEmpty()) {
+                siteFrame.withGroupsOfTariffZones(groupOfTariffZones);
+            }
         }
 
-        siteFrame.withTariffZones(tariffZonesInFrame);
+        if (!tariffZonesInFrame.getTariffZone().isEmpty()) {
+            siteFrame.withTariffZones(tariffZonesInFrame);
+        }
         return siteFrame;
     }
 
-    private SiteFrame generateSiteFrameFromTopographicPlace(Osm osm, Map<BigInteger, Node> mapOfNodes) {
+    private SiteFrame generateSiteFrameFromTopographicPlace(Osm osm, Map<BigInteger, Node> mapOfNodes, ConversionContext context) {
         SiteFrame siteFrame = netexHelper.createSiteFrame();
-        OsmToNetexMapper<TopographicPlace> osmToNetexMapper = new OsmToNetexMapper<>(netexHelper);
+        OsmToNetexMapper<TopographicPlace> osmToNetexMapper = new OsmToNetexMapper<>(netexHelper, context);
 
         final TopographicPlacesInFrame_RelStructure topographicPlacesInFrame = new TopographicPlacesInFrame_RelStructure();
-        osmToNetexMapper.mapWaysToZoneList(osm.getWay(), mapOfNodes, TopographicPlace.class).
-                map(Map.Entry::getValue)
-                .forEach(tp -> {
-                    tp.setDescriptor(new TopographicPlaceDescriptor_VersionedChildStructure().withName(tp.getName()));
-                    topographicPlacesInFrame.getTopographicPlace().add(tp);
-                });
-        siteFrame.withTopographicPlaces(topographicPlacesInFrame);
+        mapZones(osm, mapOfNodes, osmToNetexMapper, TopographicPlace.class)
+                .map(Map.Entry::getValue)
+                .map(OsmToNetexTransformer::withDescriptor)
+                .forEach(topographicPlacesInFrame.getTopographicPlace()::add);
+        if (!topographicPlacesInFrame.getTopographicPlace().isEmpty()) {
+            siteFrame.withTopographicPlaces(topographicPlacesInFrame);
+        }
         return siteFrame;
     }
 
+    /**
+     * Maps both the standalone ways and the multipolygon relations of the OSM data to zones
+     */
+    private <T extends Zone_VersionStructure> Stream<Map.Entry<BigInteger, T>> mapZones(Osm osm, Map<BigInteger, Node> mapOfNodes, OsmToNetexMapper<T> osmToNetexMapper, Class<T> clazz) {
+        List<Relation> multipolygons = multipolygons(osm);
+        return Stream.concat(
+                osmToNetexMapper.mapWaysToZoneList(OsmToNetexMapper.standaloneWays(osm.getWay(), multipolygons), mapOfNodes, clazz),
+                osmToNetexMapper.mapMultipolygonsToZoneList(multipolygons, waysById(osm), mapOfNodes, clazz));
+    }
+
+    private List<Relation> multipolygons(Osm osm) {
+        return osm.getRelation().stream().filter(OsmToNetexMapper::isMultipolygon).toList();
+    }
+
+    private Map<BigInteger, Way> waysById(Osm osm) {
+        return osm.getWay().stream().collect(Collectors.toMap(Way::getId, way -> way));
+    }
+
 
     @SuppressWarnings("unchecked")
     private Class<? extends Zone_VersionStructure> validateAndGetDestinationClass(String className) throws ClassNotFoundException {
@@ -1,12 +1,13 @@
 package org.entur.netex.conversion.osm.transformer;
 
 import org.openstreetmap.osm.Osm;
+import org.xml.sax.Attributes;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.XMLFilter;
 import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.XMLFilterImpl;
 
-import jakarta.xml.bind.JAXBContext;
 import jakarta.xml.bind.JAXBException;
 import jakarta.xml.bind.Unmarshaller;
 import jakarta.xml.bind.UnmarshallerHandler;
@@ -15,6 +16,7 @@ import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 import java.io.IOException;
+import java.util.function.LongConsumer;
 
 /**
  * Unmarshaller that makes it possible to read OSM XML files without namespace.
@@ -23,10 +25,13 @@ public class OsmUnmarshaller {
 
     private static final String OSM_NAMESPACE = "http://openstreetmap.org/osm/0.6";
 
-    private final XMLFilter namespaceFilter;
+    private static final int PROGRESS_ELEMENTS = 1 << 14;
+
+    private final XMLFilter reader;
 
     private final UnmarshallerHandler unmarshallerHandler;
 
+    private final AsyncOsmValidator asyncValidator;
 
     /**
      * Creates a new Marshaller to read OSM XML data into Java objects
@@ -34,25 +39,56 @@ public class OsmUnmarshaller {
      * @param performValidation Indicates if marshall shall validate the OSM source
      */
     public OsmUnmarshaller(boolean performValidation) {
-        try {
-            JAXBContext osmContext = null;
+        this(performValidation ? SchemaValidation.SYNC : SchemaValidation.OFF);
+    }
 
-            osmContext = JAXBContext.newInstance(Osm.class);
+    /**
+     * Creates a new Marshaller to read OSM XML data into Java objects
+     *
+     * @param schemaValidation Whether the OSM source is validated against the OSM schema by the unmarshaller, on another thread
+     *                         while parsing, or not at all
+     */
+    public OsmUnmarshaller(SchemaValidation schemaValidation) {
+        this(schemaValidation, null, null);
+    }
 
-            namespaceFilter = new NamespaceFilter(OSM_NAMESPACE);
+    /**
+     * @param elementProgress Receives the number of nodes, ways and relations read so far, every few thousand elements
+     *                        and at the end of the document, or null
+     * @param nodeSpill       Takes the nodes out of the parsed data once they exceed its memory budget, or null
+     */
+    OsmUnmarshaller(SchemaValidation schemaValidation, LongConsumer elementProgress, NodeSpill nodeSpill) {
+        try {
+            XMLFilter namespaceFilter = new NamespaceFilter(OSM_NAMESPACE);
             SAXParserFactory saxParserFactory = SAXParserFactory.newInstance();
             SAXParser saxParser = saxParserFactory.newSAXParser();
             XMLReader xmlReader = saxParser.getXMLReader();
             namespaceFilter.setParent(xmlReader);
-            Unmarshaller osmContextUnmarshaller = osmContext.createUnmarshaller();
+            Unmarshaller osmContextUnmarshaller = SharedContexts.osmContext().createUnmarshaller();
 
-            if (performValidation) {
-                OsmSchemaValidator osmSchemaValidator = new OsmSchemaValidator();
-                osmContextUnmarshaller.setSchema(osmSchemaValidator.getSchema());
+            if (schemaValidation == SchemaValidation.SYNC) {
+                osmContextUnmarshaller.setSchema(SharedContexts.osmSchema());
             }
             unmarshallerHandler = osmContextUnmarshaller.getUnmarshallerHandler();
-            namespaceFilter.setContentHandler(unmarshallerHandler);
-        } catch (JAXBException | ParserConfigurationException | SAXException | IOException e) {
+            XMLFilter filter = namespaceFilter;
+            if (elementProgress != null) {
+                filter = new ElementCounter(elementProgress);
+                filter.setParent(namespaceFilter);
+            }
+            if (schemaValidation == SchemaValidation.ASYNC) {
+                asyncValidator = new AsyncOsmValidator(SharedContexts.osmSchema());
+                asyncValidator.setParent(filter);
+                filter = asyncValidator;
+            } else {
+                asyncValidator = null;
+            }
+            if (nodeSpill != null) {
+                nodeSpill.setParent(filter);
+                filter = nodeSpill;
+            }
+            filter.setContentHandler(unmarshallerHandler);
+            reader = filter;
+        } catch (JAXBException | ParserConfigurationException | SAXException e) {
             throw new RuntimeException("Failed to create OSM UnMarshaller", e);
         }
     }
@@ -67,11 +103,62 @@ public class OsmUnmarshaller {
      */
     public Osm unmarshall(InputSource source) throws IOException{
         try {
-            namespaceFilter.parse(source);
+            if (asyncValidator == null) {
+                reader.parse(source);
+            } else {
+                parseAndValidate(source);
+            }
             return (Osm) unmarshallerHandler.getResult();
         } catch (JAXBException | SAXException e) {
             throw new RuntimeException("Failed parsing XML", e);
         }
     }
 
+    /**
+     * @return the most batches of events waiting for the asynchronous validator at a time, 0 without it
+     */
+    int getPeakQueueDepth() {
+        return asyncValidator == null ? 0 : asyncValidator.getPeakQueueDepth();
+    }
+
+    private void parseAndValidate(InputSource source) throws IOException, SAXException {
+        boolean parsed = false;
+        try {
+            reader.parse(source);
+            parsed = true;
+        } finally {
+            if (!parsed) {
+                asyncValidator.stop();
+            }
+        }
+        asyncValidator.await();
+    }
+
+    /**
+     * Counts the nodes, ways and relations passing through
+     */
+    private static final class ElementCounter extends XMLFilterImpl {
+        private final LongConsumer progress;
+        private long elements;
+
+        ElementCounter(LongConsumer progress) {
+            this.progress = progress;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+            if ("node".equals(qName) || "way".equals(qName) || "relation".equals(qName)) {
+                if (++elements % PROGRESS_ELEMENTS == 0) {
+                    progress.accept(elements);
+                }
+            }
+            super.startElement(uri, localName, qName, atts);
+        }
+
+        @Override
+        public void endDocument() throws SAXException {
+            progress.accept(elements);
+            super.endDocument();
+        }
+    }
 }
@@ -0,0 +1,334 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.netex.conversion.osm.transformer;
+
+import org.openstreetmap.osm.Osm;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.InputSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parses an OSM XML file on several threads. OSM XML is a flat sequence of node, way and relation elements in the root
+ * element, so the memory-mapped file is split into byte ranges, each moved forward to the start of the next of those
+ * elements, and each range is parsed on its own as the body of a root element of its own. The parsed ranges are
+ * concatenated in order.
+ * <p>
+ * The split is speculative: an element name found inside a comment or a CDATA section is not the start of an element.
+ * The range before it then ends inside the comment or section and fails to parse, and the file is parsed sequentially
+ * instead. So is a file that is not UTF-8 or has a document type declaration, since the ranges are parsed without the prolog.
+ * The ranges still being parsed then fail at their next read, so they do not hold on to the threads and the file while it
+ * is parsed again.
+ */
+final class ParallelOsmParser {
+
+    private static final Logger logger = LoggerFactory.getLogger(ParallelOsmParser.class);
+
+    static final long MIN_PARALLEL_BYTES = 4 << 20;
+
+    private static final int RANGES_PER_THREAD = 4;
+    private static final int SCAN_BYTES = 1 << 16;
+    private static final int PROLOG_BYTES = 1 << 16;
+    private static final byte[][] ELEMENT_STARTS = {bytes("<node"), bytes("<way"), bytes("<relation")};
+    private static final byte[] OPEN_ROOT = bytes("<osm>");
+    private static final byte[] CLOSE_ROOT = bytes("</osm>");
+    private static final Pattern ROOT = Pattern.compile("<osm[\\s>]");
+    private static final Pattern ENCODING = Pattern.compile("encoding\\s*=\\s*[\"']([^\"']*)[\"']");
+
+    private ParallelOsmParser() {
+    }
+
+    /**
+     * @param threads         Number of ranges parsed at the same time
+     * @param elementProgress Receives the number of nodes, ways and relations parsed so far by all the threads, or null
+     * @param bytesParsed     Set to the number of bytes of the file parsed so far
+     * @return the parsed data, or null if the file must be parsed sequentially
+     * @throws IOException if unable to read the file
+     */
+    static Osm parse(Path file, int threads, LongConsumer elementProgress, AtomicLong bytesParsed) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (threads < 2 || size < MIN_PARALLEL_BYTES) {
+                return null;
+            }
+            long bodyStart = bodyStart(channel);
+            if (bodyStart < 0) {
+                logger.info("Parsing {} sequentially, since it is not UTF-8 or has a document type declaration", file.getFileName());
+                return null;
+            }
+            List<Long> starts = rangeStarts(channel, bodyStart, size, threads * RANGES_PER_THREAD);
+            if (starts.size() < 2) {
+                return null;
+            }
+            long start = System.currentTimeMillis();
+            Osm osm = parseRanges(channel, starts, size, threads, elementProgress, bytesParsed);
+            if (osm != null) {
+                logger.info("Parsed {} in {} ranges on {} threads in {} ms", file.getFileName(), starts.size(), threads, System.currentTimeMillis() - start);
+            }
+            return osm;
+        }
+    }
+
+    /**
+     * @return the offset after the start tag of the root element, or -1 if the file cannot be split
+     */
+    private static long bodyStart(FileChannel channel) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate((int) Math.min(PROLOG_BYTES, channel.size()));
+        read(channel, head, 0);
+        // Latin-1 keeps one character per byte, so indexes in the text are offsets in the file
+        String text = new String(head.array(), 0, head.position(), StandardCharsets.ISO_8859_1);
+        if (text.startsWith("\u00fe\u00ff") || text.startsWith("\u00ff\u00fe")) {
+            return -1;
+        }
+        Matcher root = ROOT.matcher(text);
+        if (!root.find()) {
+            return -1;
+        }
+        String prolog = text.substring(0, root.start());
+        Matcher encoding = ENCODING.matcher(prolog);
+        if (prolog.contains("<!DOCTYPE") || encoding.find() && !encoding.group(1).toUpperCase(Locale.ROOT).equals("UTF-8")) {
+            return -1;
+        }
+        char quote = 0;
+        for (int i = root.end() - 1; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (quote != 0) {
+                quote = c == quote ? 0 : quote;
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (c == '>') {
+                return text.charAt(i - 1) == '/' ? -1 : i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the offset of each range, the first one being 0, so that it includes the prolog and the root start tag
+     */
+    private static List<Long> rangeStarts(FileChannel channel, long bodyStart, long size, int ranges) throws IOException {
+        long rangeBytes = Math.max(SCAN_BYTES, (size - bodyStart) / ranges);
+        List<Long> starts = new ArrayList<>();
+        starts.add(0L);
+        for (long offset = bodyStart + rangeBytes; offset < size; offset += rangeBytes) {
+            long start = elementStart(channel, Math.max(offset, starts.get(starts.size() - 1) + 1), size);
+            if (start < 0) {
+                break;
+            }
+            if (start > starts.get(starts.size() - 1)) {
+                starts.add(start);
+            }
+        }
+        for (int i = 0; i < starts.size(); i++) {
+            long end = i + 1 < starts.size() ? starts.get(i + 1) : size;
+            if (end - starts.get(i) > Integer.MAX_VALUE - CLOSE_ROOT.length) {
+                return List.of(0L);
+            }
+        }
+        return starts;
+    }
+
+    /**
+     * @return the offset of the first node, way or relation start tag from the given offset, or -1 if there is none
+     */
+    private static long elementStart(FileChannel channel, long from, long size) throws IOException {
+        int overlap = bytes("<relation ").length;
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BYTES);
+        for (long position = from; position < size; position += SCAN_BYTES - overlap) {
+            buffer.clear();
+            read(channel, buffer, position);
+            byte[] bytes = buffer.array();
+            int limit = buffer.position();
+            for (int i = 0; i < limit; i++) {
+                if (bytes[i] == '<' && isElementStart(bytes, i, limit)) {
+                    return position + i;
+                }
+            }
+            if (position + limit >= size) {
+                break;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Fills the buffer from the position, or up to the end of the file
+     */
+    private static void read(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0) {
+            // Read until full or at the end
+        }
+    }
+
+    private static boolean isElementStart(byte[] bytes, int offset, int limit) {
+        for (byte[] start : ELEMENT_STARTS) {
+            int end = offset + start.length;
+            if (end < limit && startsWith(bytes, offset, start)) {
+                byte next = bytes[end];
+                return next == ' ' || next == '\t' || next == '\n' || next == '\r' || next == '>' || next == '/';
+            }
+        }
+        return false;
+    }
+
+    private static boolean startsWith(byte[] bytes, int offset, byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Osm parseRanges(FileChannel channel, List<Long> starts, long size, int threads, LongConsumer elementProgress,
+                                   AtomicLong bytesParsed) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads, runnable -> Thread.ofPlatform().daemon().name("osm-parser").unstarted(runnable));
+        AtomicLong elements = new AtomicLong();
+        AtomicBoolean cancelled = new AtomicBoolean();
+        List<Future<Osm>> parts = new ArrayList<>();
+        try {
+            for (int i = 0; i < starts.size(); i++) {
+                long start = starts.get(i);
+                long end = i + 1 < starts.size() ? starts.get(i + 1) : size;
+                byte[] prefix = i == 0 ? new byte[0] : OPEN_ROOT;
+                byte[] suffix = i + 1 < starts.size() ? CLOSE_ROOT : new byte[0];
+                parts.add(pool.submit(() -> parseRange(channel, start, end, prefix, suffix, elementProgress, elements, bytesParsed, cancelled)));
+            }
+            Osm osm = null;
+            for (int i = 0; i < parts.size(); i++) {
+                Osm part;
+                try {
+                    part = parts.get(i).get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof UncheckedIOException io) {
+                        throw io.getCause();
+                    }
+                    if (e.getCause() instanceof Error error) {
+                        throw error;
+                    }
+                    logger.warn("The range at byte {} did not parse on its own, parsing the file sequentially: {}", starts.get(i), e.getCause().getMessage());
+                    return null;
+                }
+                if (osm == null) {
+                    osm = part;
+                } else {
+                    if (osm.getBounds() == null) {
+                        osm.setBounds(part.getBounds());
+                    }
+                    osm.getNode().addAll(part.getNode());
+                    osm.getWay().addAll(part.getWay());
+                    osm.getRelation().addAll(part.getRelation());
+                }
+            }
+            return osm;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while parsing", e);
+        } finally {
+            // The SAX parsers do not check for interrupts, the ranges still running stop at their next read
+            cancelled.set(true);
+            pool.shutdownNow();
+        }
+    }
+
+    private static Osm parseRange(FileChannel channel, long start, long end, byte[] prefix, byte[] suffix, LongConsumer elementProgress,
+                                  AtomicLong elements, AtomicLong bytesParsed, AtomicBoolean cancelled) {
+        try {
+            ByteBuffer range = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            InputStream input = new SequenceInputStream(Collections.enumeration(List.of(
+                    new ByteArrayInputStream(prefix), new RangeInputStream(range, bytesParsed, cancelled), new ByteArrayInputStream(suffix))));
+            long[] reported = new long[1];
+            OsmUnmarshaller unmarshaller = new OsmUnmarshaller(SchemaValidation.OFF, elementProgress == null ? null : parsed -> {
+                elementProgress.accept(elements.addAndGet(parsed - reported[0]));
+                reported[0] = parsed;
+            }, null);
+            return unmarshaller.unmarshall(new InputSource(input));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Reads a mapped range, adding the bytes read to a count shared by the ranges, until the parsing is cancelled
+     */
+    private static final class RangeInputStream extends InputStream {
+
+        private final ByteBuffer range;
+        private final AtomicLong bytesParsed;
+        private final AtomicBoolean cancelled;
+
+        RangeInputStream(ByteBuffer range, AtomicLong bytesParsed, AtomicBoolean cancelled) {
+            this.range = range;
+            this.bytesParsed = bytesParsed;
+            this.cancelled = cancelled;
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkCancelled();
+            if (!range.hasRemaining()) {
+                return -1;
+            }
+            bytesParsed.incrementAndGet();
+            return range.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            checkCancelled();
+            if (!range.hasRemaining()) {
+                return -1;
+            }
+            int read = Math.min(len, range.remaining());
+            range.get(b, off, read);
+            bytesParsed.addAndGet(read);
+            return read;
+        }
+
+        private void checkCancelled() throws IOException {
+            if (cancelled.get()) {
+                throw new IOException("Parsing of the ranges cancelled");
+            }
+        }
+    }
+}
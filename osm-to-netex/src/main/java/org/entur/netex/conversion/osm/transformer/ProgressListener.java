@@ -0,0 +1,46 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.netex.conversion.osm.transformer;
+
+/**
+ * Receives the progress of each conversion, see {@link OsmToNetexTransformer#setProgressListener(ProgressListener)}.
+ * It is called on the converting thread every few thousand elements or megabytes, so an implementation that prints
+ * should throttle itself, and one shared by conversions running at the same time must be thread safe. With
+ * {@link OsmToNetexTransformer#setParseThreads(int)}, the progress of reading is reported by several parsing threads
+ * at the same time.
+ */
+@FunctionalInterface
+public interface ProgressListener {
+
+    /**
+     * Ignores the progress, the default
+     */
+    ProgressListener NONE = progress -> {
+    };
+
+    void progress(Progress progress);
+
+    /**
+     * @param stage         {@link ConversionMetrics.Stage#UNMARSHAL} while reading, {@link ConversionMetrics.Stage#MAP}
+     *                      while mapping and {@link ConversionMetrics.Stage#MARSHAL} while writing
+     * @param bytes         Bytes read from the input while reading, as passed to the parser, and bytes written while
+     *                      writing. -1 when they are not counted, such as for an input given as characters
+     * @param elements      Nodes, ways and relations read while reading, zones mapped or skipped while mapping, -1 while writing
+     * @param totalElements Zones to map while mapping, -1 otherwise
+     */
+    record Progress(ConversionMetrics.Stage stage, long bytes, long elements, long totalElements) {
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.netex.conversion.osm.transformer;
+
+import org.openstreetmap.osm.Member;
+import org.openstreetmap.osm.Nd;
+import org.openstreetmap.osm.Node;
+import org.openstreetmap.osm.Osm;
+import org.openstreetmap.osm.Relation;
+import org.openstreetmap.osm.Way;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import static org.entur.netex.conversion.osm.transformer.ConversionIssue.Severity.ERROR;
+import static org.entur.netex.conversion.osm.transformer.ConversionIssue.Severity.WARNING;
+import static org.entur.netex.conversion.osm.transformer.OsmToNetexMapper.RELATION;
+import static org.entur.netex.conversion.osm.transformer.OsmToNetexMapper.WAY;
+
+/**
+ * Checks that every node referenced by a way and every member of a relation exist in the OSM data,
+ * before any mapping starts. A missing member that the mapping does not read, such as the label node of a boundary, is
+ * reported as a warning and leaves its relation to be mapped.
+ * <p>
+ * The ids of each element type are kept in a sorted primitive array, so the check is a binary search per reference
+ * and uses eight bytes per element. Nodes spilled to disk by {@link NodeSpill} are looked up in their store.
+ */
+class ReferentialIntegrityCheck {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReferentialIntegrityCheck.class);
+
+    private static final String NODE = "node";
+
+    private final List<ConversionIssue> issues = new ArrayList<>();
+    private final Set<BigInteger> brokenWays = new HashSet<>();
+    private final Set<BigInteger> brokenRelations = new HashSet<>();
+
+    private ReferentialIntegrityCheck() {
+    }
+
+    static ReferentialIntegrityCheck check(Osm osm) {
+        long start = System.currentTimeMillis();
+        ReferentialIntegrityCheck check = new ReferentialIntegrityCheck();
+
+        long[] nodeIds = sortedIds(osm.getNode(), Node::getId);
+        long[] wayIds = sortedIds(osm.getWay(), Way::getId);
+        long[] relationIds = sortedIds(osm.getRelation(), Relation::getId);
+        Predicate<BigInteger> hasNode = osm instanceof NodeSpill.SpilledOsm spilled
+                ? spilled.getNodeIndex()::containsKey
+                : ref -> contains(nodeIds, ref);
+
+        for (Way way : osm.getWay()) {
+            for (Nd nd : way.getNd()) {
+                if (!hasNode.test(nd.getRef())) {
+                    check.dangling(ERROR, WAY, way.getId(), NODE, nd.getRef());
+                    check.brokenWays.add(way.getId());
+                }
+            }
+        }
+        for (Relation relation : osm.getRelation()) {
+            for (Member member : relation.getMember()) {
+                boolean exists = switch (String.valueOf(member.getType())) {
+                    case NODE -> hasNode.test(member.getRef());
+                    case WAY -> contains(wayIds, member.getRef());
+                    case RELATION -> contains(relationIds, member.getRef());
+                    default -> false;
+                };
+                if (exists) {
+                    continue;
+                }
+                if (isMapped(relation, member)) {
+                    check.dangling(ERROR, RELATION, relation.getId(), member.getType(), member.getRef());
+                    check.brokenRelations.add(relation.getId());
+                } else {
+                    check.dangling(WARNING, RELATION, relation.getId(), member.getType(), member.getRef());
+                }
+            }
+        }
+
+        logger.info("Checked references of {} ways and {} relations in {} ms, found {} dangling references",
+                osm.getWay().size(), osm.getRelation().size(), System.currentTimeMillis() - start, check.issues.size());
+        return check;
+    }
+
+    private static <E> long[] sortedIds(List<E> elements, Function<E, BigInteger> id) {
+        long[] ids = new long[elements.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = id.apply(elements.get(i)).longValue();
+        }
+        Arrays.parallelSort(ids);
+        return ids;
+    }
+
+    private static boolean contains(long[] sortedIds, BigInteger id) {
+        return id != null && Arrays.binarySearch(sortedIds, id.longValue()) >= 0;
+    }
+
+    /**
+     * @return true if the mapping reads the member: a way of a multipolygon, or a zone of a group of tariff zones. Other
+     * members, such as the admin centre node or the subareas of a boundary, are left out of the zones.
+     */
+    private static boolean isMapped(Relation relation, Member member) {
+        return OsmToNetexMapper.isMultipolygon(relation)
+                ? WAY.equals(member.getType())
+                : WAY.equals(member.getType()) || RELATION.equals(member.getType());
+    }
+
+    private void dangling(ConversionIssue.Severity severity, String elementType, BigInteger elementId, String refType, BigInteger ref) {
+        issues.add(new ConversionIssue(severity, elementType, String.valueOf(elementId), null, ConversionIssue.DANGLING_REFERENCE,
+                String.format("%s %s references missing %s %s", elementType, elementId, refType, ref)));
+    }
+
+    /**
+     * @return true if no way or relation references a missing element that its mapping reads
+     */
+    boolean isValid() {
+        return brokenWays.isEmpty() && brokenRelations.isEmpty();
+    }
+
+    List<ConversionIssue> getIssues() {
+        return issues;
+    }
+
+    /**
+     * Applies the result of the check according to the validation mode.
+     *
+     * @return the OSM data to map, without the broken ways and relations when the mode is {@link ValidationMode#REPORT}
+     * @throws IllegalArgumentException listing every dangling reference that breaks a way or relation when the mode is
+     *                                  {@link ValidationMode#FAIL_FAST}
+     */
+    Osm apply(Osm osm, ConversionContext context) {
+        if (isValid()) {
+            context.getReport().addIssues(issues);
+            return osm;
+        }
+        if (context.getValidationMode() == ValidationMode.FAIL_FAST) {
+            List<String> errors = issues.stream().filter(issue -> issue.severity() == ERROR).map(ConversionIssue::message).toList();
+            throw new IllegalArgumentException(String.format("Found %d dangling references:%n%s", errors.size(),
+                    String.join(System.lineSeparator(), errors)));
+        }
+        context.getReport().addIssues(issues);
+        brokenWays.forEach(id -> context.getReport().elementSkipped());
+        brokenRelations.forEach(id -> context.getReport().elementSkipped());
+
+        Osm filtered = osm instanceof NodeSpill.SpilledOsm spilled ? spilled.withoutElements() : new Osm();
+        filtered.setBounds(osm.getBounds());
+        filtered.setGenerator(osm.getGenerator());
+        filtered.setVersion(osm.getVersion());
+        filtered.getNode().addAll(osm.getNode());
+        osm.getWay().stream().filter(way -> !brokenWays.contains(way.getId())).forEach(filtered.getWay()::add);
+        osm.getRelation().stream().filter(relation -> !brokenRelations.contains(relation.getId())).forEach(filtered.getRelation()::add);
+        return filtered;
+    }
+}
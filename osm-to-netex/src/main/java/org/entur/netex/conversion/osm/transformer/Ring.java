@@ -0,0 +1,149 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.netex.conversion.osm.transformer;
+
+import net.opengis.gml._3.DirectPositionListType;
+
+import java.util.List;
+
+/**
+ * A ring of positions kept in two primitive coordinate arrays, in the same order as the GML posList.
+ */
+final class Ring {
+
+    private final double[] lats;
+    private final double[] lons;
+
+    Ring(double[] lats, double[] lons) {
+        if (lats.length != lons.length) {
+            throw new IllegalArgumentException("Latitude and longitude arrays differ in length");
+        }
+        this.lats = lats;
+        this.lons = lons;
+    }
+
+    /**
+     * Reads a ring from a GML posList with alternating latitude and longitude values
+     */
+    static Ring fromPosList(DirectPositionListType posList) {
+        List<Double> values = posList.getValue();
+        int size = values.size() / 2;
+        double[] lats = new double[size];
+        double[] lons = new double[size];
+        for (int i = 0; i < size; i++) {
+            lats[i] = values.get(2 * i);
+            lons[i] = values.get(2 * i + 1);
+        }
+        return new Ring(lats, lons);
+    }
+
+    DirectPositionListType toPosList() {
+        DirectPositionListType dplt = new DirectPositionListType();
+        List<Double> values = dplt.getValue();
+        for (int i = 0; i < lats.length; i++) {
+            values.add(lats[i]);
+            values.add(lons[i]);
+        }
+        return dplt;
+    }
+
+    /**
+     * @return a ring with the same positions in the opposite direction
+     */
+    Ring reversed() {
+        int n = lats.length;
+        double[] reversedLats = new double[n];
+        double[] reversedLons = new double[n];
+        for (int i = 0; i < n; i++) {
+            reversedLats[i] = lats[n - 1 - i];
+            reversedLons[i] = lons[n - 1 - i];
+        }
+        return new Ring(reversedLats, reversedLons);
+    }
+
+    int size() {
+        return lats.length;
+    }
+
+    double lat(int i) {
+        return lats[i];
+    }
+
+    double lon(int i) {
+        return lons[i];
+    }
+
+    double minLat() {
+        double min = Double.POSITIVE_INFINITY;
+        for (double lat : lats) {
+            min = Math.min(min, lat);
+        }
+        return min;
+    }
+
+    double maxLat() {
+        double max = Double.NEGATIVE_INFINITY;
+        for (double lat : lats) {
+            max = Math.max(max, lat);
+        }
+        return max;
+    }
+
+    double minLon() {
+        double min = Double.POSITIVE_INFINITY;
+        for (double lon : lons) {
+            min = Math.min(min, lon);
+        }
+        return min;
+    }
+
+    double maxLon() {
+        double max = Double.NEGATIVE_INFINITY;
+        for (double lon : lons) {
+            max = Math.max(max, lon);
+        }
+        return max;
+    }
+
+    /**
+     * Signed area by the shoelace formula in degrees, positive when the ring runs counterclockwise
+     */
+    double signedArea() {
+        double sum = 0;
+        int n = lats.length;
+        for (int i = 0, j = n - 1; i < n; j = i++) {
+            sum += (lons[j] - lons[i]) * (lats[j] + lats[i]);
+        }
+        return sum / 2;
+    }
+
+    /**
+     * Even-odd ray casting. The loop body only touches the two primitive arrays and has no early exit,
+     * which keeps it friendly to the JIT's loop optimisations.
+     */
+    boolean contains(double lat, double lon) {
+        boolean inside = false;
+        int n = lats.length;
+        for (int i = 0, j = n - 1; i < n; j = i++) {
+            double latI = lats[i];
+            double latJ = lats[j];
+            boolean crosses = (latI > lat) != (latJ > lat)
+                    && lon < (lons[j] - lons[i]) * (lat - latI) / (latJ - latI) + lons[i];
+            inside ^= crosses;
+        }
+        return inside;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.netex.conversion.osm.transformer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Joins way segments, given as arrays of node ids, into closed rings.
+ * <p>
+ * Every segment end is put in a hash index from node id to the segments ending there, so each join is a
+ * constant time lookup and the whole assembly is linear in the number of nodes.
+ */
+final class RingAssembler {
+
+    private RingAssembler() {
+    }
+
+    /**
+     * @param segments The way segments, in any order and direction
+     * @return the closed rings, each starting and ending with the same node id
+     * @throws IllegalArgumentException if the segments do not form closed rings
+     */
+    static List<long[]> assemble(List<long[]> segments) {
+        Map<Long, int[]> endpoints = new HashMap<>(segments.size() * 4);
+        for (int i = 0; i < segments.size(); i++) {
+            long[] segment = segments.get(i);
+            if (segment.length < 2) {
+                throw new IllegalArgumentException("Way segment with less than two nodes");
+            }
+            if (!isClosed(segment)) {
+                addEndpoint(endpoints, segment[0], i);
+                addEndpoint(endpoints, segment[segment.length - 1], i);
+            }
+        }
+
+        boolean[] used = new boolean[segments.size()];
+        List<long[]> rings = new ArrayList<>();
+        for (int i = 0; i < segments.size(); i++) {
+            if (used[i]) {
+                continue;
+            }
+            used[i] = true;
+            long[] first = segments.get(i);
+            if (isClosed(first)) {
+                rings.add(first);
+                continue;
+            }
+
+            LongList ring = new LongList(first.length * 4);
+            ring.addAll(first, false);
+            long start = first[0];
+            long end = first[first.length - 1];
+            while (end != start) {
+                int next = nextSegment(endpoints, end, used);
+                if (next < 0) {
+                    throw new IllegalArgumentException(String.format("Ring starting at node %d is not closed, no way continues from node %d", start, end));
+                }
+                used[next] = true;
+                long[] segment = segments.get(next);
+                boolean reversed = segment[0] != end;
+                ring.addAll(segment, reversed);
+                end = reversed ? segment[0] : segment[segment.length - 1];
+            }
+            rings.add(ring.toArray());
+        }
+        return rings;
+    }
+
+    private static boolean isClosed(long[] segment) {
+        return segment.length > 1 && segment[0] == segment[segment.length - 1];
+    }
+
+    private static void addEndpoint(Map<Long, int[]> endpoints, long nodeId, int segment) {
+        int[] existing = endpoints.get(nodeId);
+        if (existing == null) {
+            endpoints.put(nodeId, new int[]{segment});
+        } else {
+            int[] extended = Arrays.copyOf(existing, existing.length + 1);
+            extended[existing.length] = segment;
+            endpoints.put(nodeId, extended);
+        }
+    }
+
+    private static int nextSegment(Map<Long, int[]> endpoints, long nodeId, boolean[] used) {
+        int[] candidates = endpoints.get(nodeId);
+        if (candidates != null) {
+            for (int candidate : candidates) {
+                if (!used[candidate]) {
+                    return candidate;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Growable primitive list. When appending a segment the shared first node is skipped.
+     */
+    private static final class LongList {
+        private long[] values;
+        private int size;
+
+        LongList(int capacity) {
+            values = new long[Math.max(capacity, 4)];
+        }
+
+        void addAll(long[] segment, boolean reversed) {
+            int skip = size == 0 ? 0 : 1;
+            int count = segment.length - skip;
+            if (size + count > values.length) {
+                values = Arrays.copyOf(values, Math.max(values.length * 2, size + count));
+            }
+            for (int i = skip; i < segment.length; i++) {
+                values[size++] = reversed ? segment[segment.length - 1 - i] : segment[i];
+            }
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+
+package org.entur.netex.conversion.osm.transformer;
+
+/**
+ * When XML is validated against its schema: the NeTEx output, see {@link OsmToNetexTransformer#setSchemaValidation}, or the
+ * OSM input, see {@link OsmToNetexTransformer#setOsmValidation}. Schema errors are reported the same way in each mode that
+ * validates: the conversion fails with a {@link RuntimeException}, caused by a {@link jakarta.xml.bind.MarshalException}
+ * for the output and by a {@link org.xml.sax.SAXException} for the input.
+ */
+public enum SchemaValidation {
+    /**
+     * Do not validate the output
+     */
+    OFF,
+    /**
+     * Validate while marshalling or parsing, on the same thread
+     */
+    SYNC,
+    /**
+     * Validate a copy of the output on another thread while marshalling, and wait for it before the conversion returns.
+     * Output already written when an error is found is not taken back. Input is validated from a copy of the parser's
+     * events on another thread, and parsing is cancelled on the first error.
+     */
+    ASYNC
+}
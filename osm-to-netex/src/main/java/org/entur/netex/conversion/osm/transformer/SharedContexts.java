@@ -0,0 +1,95 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.netex.conversion.osm.transformer;
+
+import jakarta.xml.bind.JAXBContext;
+import jakarta.xml.bind.JAXBException;
+import org.openstreetmap.osm.Osm;
+import org.rutebanken.netex.model.StopPlace;
+import org.rutebanken.netex.validation.NeTExValidator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.SAXException;
+
+import javax.xml.validation.Schema;
+import java.io.IOException;
+
+/**
+ * JAXB contexts and XML schemas shared by all conversions in the JVM.
+ * <p>
+ * Contexts and schemas are thread safe and expensive to create, the NeTEx schema alone takes seconds to load.
+ * Each is created on first use. Marshallers, unmarshallers and validators are not thread safe and are created from these per conversion.
+ */
+final class SharedContexts {
+
+    private static final Logger logger = LoggerFactory.getLogger(SharedContexts.class);
+
+    private static JAXBContext netexContext;
+    private static Schema netexSchema;
+    private static JAXBContext osmContext;
+    private static Schema osmSchema;
+
+    private SharedContexts() {
+    }
+
+    static synchronized JAXBContext netexContext() {
+        if (netexContext == null) {
+            long start = System.currentTimeMillis();
+            try {
+                netexContext = JAXBContext.newInstance(StopPlace.class);
+            } catch (JAXBException e) {
+                throw new RuntimeException("Failed to create NeTEx JAXB context", e);
+            }
+            logger.info("Created NeTEx JAXB context in {} ms", System.currentTimeMillis() - start);
+        }
+        return netexContext;
+    }
+
+    static synchronized Schema netexSchema() {
+        if (netexSchema == null) {
+            long start = System.currentTimeMillis();
+            try {
+                netexSchema = new NeTExValidator().getSchema();
+            } catch (SAXException | IOException e) {
+                throw new RuntimeException("Failed to load NeTEx schema", e);
+            }
+            logger.info("Loaded NeTEx schema in {} ms", System.currentTimeMillis() - start);
+        }
+        return netexSchema;
+    }
+
+    static synchronized JAXBContext osmContext() {
+        if (osmContext == null) {
+            try {
+                osmContext = JAXBContext.newInstance(Osm.class);
+            } catch (JAXBException e) {
+                throw new RuntimeException("Failed to create OSM JAXB context", e);
+            }
+        }
+        return osmContext;
+    }
+
+    static synchronized Schema osmSchema() {
+        if (osmSchema == null) {
+            try {
+                osmSchema = new OsmSchemaValidator().getSchema();
+            } catch (SAXException | IOException e) {
+                throw new RuntimeException("Failed to load OSM schema", e);
+            }
+        }
+        return osmSchema;
+    }
+}
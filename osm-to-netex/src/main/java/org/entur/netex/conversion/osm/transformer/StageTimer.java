@@ -0,0 +1,67 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.netex.conversion.osm.transformer;
+
+import java.time.Duration;
+
+/**
+ * Times a stage of a conversion for {@link ConversionMetrics}, and records it as a {@link ConversionEvents.Stage}
+ * flight recorder event. The stage is recorded when closed, also when it failed.
+ */
+final class StageTimer implements AutoCloseable {
+
+    private final ConversionMetrics metrics;
+    private final ConversionMetrics.Stage stage;
+    private final ConversionEvents.Stage event = new ConversionEvents.Stage();
+    private final long start = System.nanoTime();
+    private Duration duration;
+    private long excluded;
+
+    private StageTimer(ConversionMetrics metrics, ConversionMetrics.Stage stage) {
+        this.metrics = metrics;
+        this.stage = stage;
+        event.begin();
+    }
+
+    static StageTimer start(ConversionMetrics metrics, ConversionMetrics.Stage stage) {
+        return new StageTimer(metrics, stage);
+    }
+
+    /**
+     * @return how long the stage took, once closed
+     */
+    Duration duration() {
+        return duration;
+    }
+
+    /**
+     * Leaves time recorded as another stage out of this one, for stages that run interleaved
+     */
+    void exclude(Duration other) {
+        excluded += other.toNanos();
+    }
+
+    @Override
+    public void close() {
+        duration = Duration.ofNanos(System.nanoTime() - start - excluded);
+        metrics.stage(stage, duration);
+        event.end();
+        if (event.shouldCommit()) {
+            event.stage = stage.name();
+            event.commit();
+        }
+    }
+}
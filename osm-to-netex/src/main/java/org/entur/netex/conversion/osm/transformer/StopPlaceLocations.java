@@ -0,0 +1,222 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.netex.conversion.osm.transformer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Stop place ids with their coordinates, used to assign stop places to the fare zones that contain them.
+ * <p>
+ * The locations can be read from a CSV file with the columns {@code id,lat,lon} (comma or semicolon separated,
+ * optional header line) or from a NeTEx file, in which case the centroid of every {@code StopPlace} is used.
+ */
+public class StopPlaceLocations {
+
+    private static final Logger logger = LoggerFactory.getLogger(StopPlaceLocations.class);
+
+    private static final String STOP_PLACE = "StopPlace";
+    private static final String CENTROID = "Centroid";
+    private static final String LATITUDE = "Latitude";
+    private static final String LONGITUDE = "Longitude";
+
+    private final String[] ids;
+    private final double[] lats;
+    private final double[] lons;
+
+    /**
+     * Creates stop place locations from parallel arrays
+     *
+     * @param ids  The stop place ids, for example NSR:StopPlace:1
+     * @param lats The latitude of each stop place
+     * @param lons The longitude of each stop place
+     */
+    public StopPlaceLocations(String[] ids, double[] lats, double[] lons) {
+        if (ids.length != lats.length || ids.length != lons.length) {
+            throw new IllegalArgumentException("Stop place ids and coordinates differ in length");
+        }
+        this.ids = ids;
+        this.lats = lats;
+        this.lons = lons;
+    }
+
+    /**
+     * Reads stop place locations from a CSV or NeTEx file. Files whose first non-blank character is '&lt;' are read as NeTEx.
+     *
+     * @param path The file to read
+     * @return the stop place locations found in the file
+     * @throws IOException if the file cannot be read or parsed
+     */
+    public static StopPlaceLocations read(Path path) throws IOException {
+        StopPlaceLocations locations = isXml(path) ? readNetex(path) : readCsv(path);
+        logger.info("Read {} stop place locations from {}", locations.size(), path);
+        return locations;
+    }
+
+    private static boolean isXml(Path path) throws IOException {
+        try (InputStream in = Files.newInputStream(path)) {
+            int c;
+            while ((c = in.read()) != -1) {
+                if (!Character.isWhitespace(c) && c != 0xEF && c != 0xBB && c != 0xBF) {
+                    return c == '<';
+                }
+            }
+        }
+        return false;
+    }
+
+    private static StopPlaceLocations readCsv(Path path) throws IOException {
+        Builder builder = new Builder();
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.strip();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] columns = line.split("[,;]");
+                if (columns.length < 3) {
+                    throw new IOException(String.format("Expected id,lat,lon on line %d of %s", lineNumber, path));
+                }
+                try {
+                    builder.add(columns[0].strip(), Double.parseDouble(columns[1].strip()), Double.parseDouble(columns[2].strip()));
+                } catch (NumberFormatException e) {
+                    if (lineNumber > 1) {
+                        throw new IOException(String.format("Invalid coordinate on line %d of %s", lineNumber, path), e);
+                    }
+                    // First line is a header
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    private static StopPlaceLocations readNetex(Path path) throws IOException {
+        Builder builder = new Builder();
+        XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        try (InputStream in = Files.newInputStream(path)) {
+            XMLStreamReader reader = inputFactory.createXMLStreamReader(in);
+            try {
+                // Depth of the current StopPlace and of its own Centroid, so that quay centroids are ignored
+                int depth = 0;
+                int stopPlaceDepth = -1;
+                int centroidDepth = -1;
+                String id = null;
+                String field = null;
+                double lat = Double.NaN;
+                double lon = Double.NaN;
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        depth++;
+                        String name = reader.getLocalName();
+                        if (stopPlaceDepth < 0 && STOP_PLACE.equals(name)) {
+                            stopPlaceDepth = depth;
+                            id = reader.getAttributeValue(null, "id");
+                            lat = Double.NaN;
+                            lon = Double.NaN;
+                        } else if (stopPlaceDepth > 0 && depth == stopPlaceDepth + 1 && CENTROID.equals(name)) {
+                            centroidDepth = depth;
+                        } else if (centroidDepth > 0 && (LATITUDE.equals(name) || LONGITUDE.equals(name))) {
+                            field = name;
+                        }
+                    } else if (event == XMLStreamConstants.CHARACTERS && field != null) {
+                        double value = Double.parseDouble(reader.getText().strip());
+                        if (LATITUDE.equals(field)) {
+                            lat = value;
+                        } else {
+                            lon = value;
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT) {
+                        field = null;
+                        if (depth == centroidDepth) {
+                            centroidDepth = -1;
+                        } else if (depth == stopPlaceDepth) {
+                            if (id != null && !Double.isNaN(lat) && !Double.isNaN(lon)) {
+                                builder.add(id, lat, lon);
+                            } else {
+                                logger.warn("Ignoring stop place without centroid: {}", id);
+                            }
+                            stopPlaceDepth = -1;
+                        }
+                        depth--;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException | NumberFormatException e) {
+            throw new IOException("Unable to read stop places from " + path, e);
+        }
+        return builder.build();
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    String id(int i) {
+        return ids[i];
+    }
+
+    double lat(int i) {
+        return lats[i];
+    }
+
+    double lon(int i) {
+        return lons[i];
+    }
+
+    private static class Builder {
+        private final List<String> ids = new ArrayList<>();
+        private double[] lats = new double[1024];
+        private double[] lons = new double[1024];
+
+        void add(String id, double lat, double lon) {
+            int i = ids.size();
+            if (i == lats.length) {
+                lats = Arrays.copyOf(lats, i * 2);
+                lons = Arrays.copyOf(lons, i * 2);
+            }
+            ids.add(id);
+            lats[i] = lat;
+            lons[i] = lon;
+        }
+
+        StopPlaceLocations build() {
+            int size = ids.size();
+            return new StopPlaceLocations(ids.toArray(new String[0]), Arrays.copyOf(lats, size), Arrays.copyOf(lons, size));
+        }
+    }
+}
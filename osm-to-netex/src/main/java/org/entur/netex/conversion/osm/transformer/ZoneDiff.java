@@ -0,0 +1,32 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.netex.conversion.osm.transformer;
+
+import org.rutebanken.netex.model.PublicationDeliveryStructure;
+
+import java.util.List;
+
+/**
+ * The zones added, changed and removed since a previous export.
+ *
+ * @param delivery The delivery with only the added and changed zones, marked with modification {@code new} and {@code revise}
+ * @param index    The index of all the zones of the current conversion, to compare the next export with
+ * @param added    Ids of the zones that are not in the previous export
+ * @param changed  Ids of the zones whose content differs from the previous export
+ * @param removed  Ids of the zones of the previous export that are no longer converted
+ */
+public record ZoneDiff(PublicationDeliveryStructure delivery, ZoneIndex index, List<String> added, List<String> changed, List<String> removed) {
+}
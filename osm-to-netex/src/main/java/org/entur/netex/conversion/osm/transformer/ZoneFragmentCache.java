@@ -0,0 +1,165 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.netex.conversion.osm.transformer;
+
+import org.openstreetmap.osm.Nd;
+import org.openstreetmap.osm.Node;
+import org.openstreetmap.osm.Tag;
+import org.openstreetmap.osm.Way;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Marshalled XML of zones, keyed by a hash of the way each zone was mapped from: its id, its tags and the coordinates of
+ * its nodes. When a file is converted again after a small edit, the zones of the unchanged ways are copied from the cache
+ * instead of being mapped and marshalled, see {@link OsmToNetexTransformer#setZoneFragmentCache(ZoneFragmentCache)}.
+ * <p>
+ * {@link #save(Path)} only keeps the fragments used or added since the cache was loaded, so a cache saved after each
+ * conversion of a file holds the zones of the last version of that file.
+ */
+public class ZoneFragmentCache {
+
+    private static final int FORMAT_VERSION = 1;
+
+    private final Map<String, byte[]> fragments = new ConcurrentHashMap<>();
+    private final Map<String, byte[]> used = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Loads fragments saved by {@link #save(Path)}
+     *
+     * @return the loaded cache, or an empty cache if the file does not exist or was written by another format version
+     */
+    public static ZoneFragmentCache load(Path file) throws IOException {
+        ZoneFragmentCache cache = new ZoneFragmentCache();
+        if (!Files.exists(file)) {
+            return cache;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != FORMAT_VERSION) {
+                return cache;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                byte[] fragment = new byte[in.readInt()];
+                in.readFully(fragment);
+                cache.fragments.put(key, fragment);
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Writes the fragments used or added since the cache was loaded. The file is replaced atomically.
+     */
+    public void save(Path file) throws IOException {
+        Path temporary = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                Map<String, byte[]> snapshot = Map.copyOf(used);
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(snapshot.size());
+                for (Map.Entry<String, byte[]> fragment : snapshot.entrySet()) {
+                    out.writeUTF(fragment.getKey());
+                    out.writeInt(fragment.getValue().length);
+                    out.write(fragment.getValue());
+                }
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    byte[] get(String key) {
+        byte[] fragment = fragments.get(key);
+        if (fragment == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        used.put(key, fragment);
+        hits.incrementAndGet();
+        return fragment;
+    }
+
+    void put(String key, byte[] fragment) {
+        fragments.put(key, fragment);
+        used.put(key, fragment);
+    }
+
+    public Stats getStats() {
+        return new Stats(hits.get(), misses.get(), fragments.size());
+    }
+
+    /**
+     * Fragment lookups since the cache was loaded, and the number of fragments held
+     */
+    public record Stats(long hits, long misses, int fragments) {
+    }
+
+    /**
+     * Hashes everything the zone mapped from a way depends on
+     *
+     * @param way                The way
+     * @param mapOfNodes         The nodes of the input, by id
+     * @param targetEntity       The simple class name of the zone
+     * @param geometryValidation Whether rings are validated and oriented
+     * @param formattedOutput    Whether the XML is indented
+     */
+    static String key(Way way, Map<BigInteger, Node> mapOfNodes, String targetEntity, boolean geometryValidation, boolean formattedOutput) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        StringBuilder value = new StringBuilder()
+                .append(ConversionCache.converterVersion()).append('\n')
+                .append(targetEntity).append('\n')
+                .append(geometryValidation).append('\n')
+                .append(formattedOutput).append('\n')
+                .append(way.getId()).append('\n');
+        for (Tag tag : way.getTag()) {
+            value.append(tag.getK()).append('=').append(tag.getV()).append('\n');
+        }
+        for (Nd nd : way.getNd()) {
+            Node node = mapOfNodes.get(nd.getRef());
+            value.append(nd.getRef());
+            if (node != null) {
+                value.append(' ').append(node.getLat()).append(' ').append(node.getLon());
+            }
+            value.append('\n');
+        }
+        return HexFormat.of().formatHex(digest.digest(value.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+}
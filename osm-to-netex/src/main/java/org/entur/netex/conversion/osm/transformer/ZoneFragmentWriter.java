@@ -0,0 +1,175 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.netex.conversion.osm.transformer;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.Characters;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Writes a publication delivery from a marshalled skeleton and zone fragments marshalled one by one.
+ * <p>
+ * The skeleton holds a single placeholder zone, found as the element with its id. The skeleton is read as XML events,
+ * and the fragments are written in place of the placeholder's events. Each fragment repeats the namespace declarations
+ * of the root element, and those already in scope are dropped. With formatted output, the fragments are indented to
+ * the placeholder's level. The skeleton and each fragment are validated against
+ * the NeTEx schema when they are marshalled, but not the document as a whole.
+ */
+final class ZoneFragmentWriter {
+
+    private static final QName ID = new QName("id");
+
+    private final XMLInputFactory inputFactory;
+    private final XMLEventFactory eventFactory = XMLEventFactory.newFactory();
+    private final XMLEventWriter writer;
+    private final List<XMLEvent> head = new ArrayList<>();
+    private final List<XMLEvent> tail = new ArrayList<>();
+    private final Characters separator;
+    private final String indent;
+    private boolean empty = true;
+
+    /**
+     * @param skeleton      The marshalled publication delivery with the placeholder zone
+     * @param placeholderId The id of the placeholder zone
+     * @param output        Receives the document
+     */
+    ZoneFragmentWriter(byte[] skeleton, String placeholderId, OutputStream output) {
+        inputFactory = XMLInputFactory.newFactory();
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        try {
+            XMLEventReader reader = inputFactory.createXMLEventReader(new ByteArrayInputStream(skeleton));
+            List<XMLEvent> events = head;
+            int placeholderDepth = 0;
+            while (reader.hasNext()) {
+                XMLEvent event = reader.nextEvent();
+                if (placeholderDepth > 0) {
+                    placeholderDepth += event.isStartElement() ? 1 : event.isEndElement() ? -1 : 0;
+                    continue;
+                }
+                if (events == head && event.isStartElement() && isPlaceholder(event.asStartElement(), placeholderId)) {
+                    placeholderDepth = 1;
+                    events = tail;
+                    continue;
+                }
+                events.add(event);
+            }
+            reader.close();
+            if (events == head) {
+                throw new IllegalArgumentException("The skeleton has no zone with id " + placeholderId);
+            }
+            writer = XMLOutputFactory.newFactory().createXMLEventWriter(output, StandardCharsets.UTF_8.name());
+        } catch (XMLStreamException e) {
+            throw new RuntimeException("Failed to generate XML output", e);
+        }
+        // Formatted output has the placeholder on a line of its own, compact output has no whitespace between elements
+        XMLEvent last = head.get(head.size() - 1);
+        this.separator = last.isCharacters() && last.asCharacters().isWhiteSpace() ? last.asCharacters() : null;
+        this.indent = separator == null ? "" : separator.getData().substring(separator.getData().lastIndexOf('\n') + 1);
+    }
+
+    private static boolean isPlaceholder(StartElement element, String placeholderId) {
+        Attribute id = element.getAttributeByName(ID);
+        return id != null && placeholderId.equals(id.getValue());
+    }
+
+    void write(byte[] fragment) {
+        try {
+            if (empty) {
+                for (XMLEvent event : head) {
+                    writer.add(event);
+                    if (event.isStartDocument() && separator != null) {
+                        writer.add(eventFactory.createSpace("\n"));
+                    }
+                }
+                empty = false;
+            } else if (separator != null) {
+                writer.add(separator);
+            }
+            XMLEventReader reader = inputFactory.createXMLEventReader(new ByteArrayInputStream(fragment));
+            int depth = 0;
+            while (reader.hasNext()) {
+                XMLEvent event = reader.nextEvent();
+                if (event.isStartElement()) {
+                    writer.add(depth++ == 0 ? withoutDeclaredNamespaces(event.asStartElement()) : event);
+                } else if (event.isEndElement()) {
+                    depth--;
+                    writer.add(event);
+                } else if (depth > 0) {
+                    writer.add(indented(event));
+                }
+            }
+            reader.close();
+        } catch (XMLStreamException e) {
+            throw new RuntimeException("Failed to generate XML output", e);
+        }
+    }
+
+    private XMLEvent indented(XMLEvent event) {
+        if (indent.isEmpty() || !event.isCharacters() || !event.asCharacters().isWhiteSpace()) {
+            return event;
+        }
+        return eventFactory.createSpace(event.asCharacters().getData().replace("\n", "\n" + indent));
+    }
+
+    private StartElement withoutDeclaredNamespaces(StartElement element) {
+        List<Namespace> namespaces = new ArrayList<>();
+        for (Iterator<Namespace> it = element.getNamespaces(); it.hasNext(); ) {
+            Namespace namespace = it.next();
+            if (!namespace.getNamespaceURI().equals(writer.getNamespaceContext().getNamespaceURI(namespace.getPrefix()))) {
+                namespaces.add(namespace);
+            }
+        }
+        QName name = element.getName();
+        return eventFactory.createStartElement(name.getPrefix(), name.getNamespaceURI(), name.getLocalPart(),
+                element.getAttributes(), namespaces.iterator());
+    }
+
+    /**
+     * Writes the end of the document
+     *
+     * @return false if no fragment was written, in which case nothing was written at all
+     */
+    boolean finish() {
+        if (empty) {
+            return false;
+        }
+        try {
+            for (XMLEvent event : tail) {
+                writer.add(event);
+            }
+            writer.flush();
+        } catch (XMLStreamException e) {
+            throw new RuntimeException("Failed to generate XML output", e);
+        }
+        return true;
+    }
+}
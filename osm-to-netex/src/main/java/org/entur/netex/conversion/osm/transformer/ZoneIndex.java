@@ -0,0 +1,224 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.netex.conversion.osm.transformer;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The ids of the zones of a NeTEx delivery with a hash of their content, to find the zones changed since a previous export.
+ * <p>
+ * The hash covers the element names, attributes and text of a zone, with namespace prefixes, whitespace between elements
+ * and the {@code modification} attribute left out. Deliveries are read as a stream, one zone at a time.
+ */
+public class ZoneIndex {
+
+    static final Set<String> ZONE_ELEMENTS = Set.of("TariffZone", "FareZone", "TopographicPlace");
+    private static final String HEADER = "# osm-to-netex zone index";
+    private static final String SEPARATOR = "\t";
+    private static final String IGNORED_ATTRIBUTE = "modification";
+
+    private final Map<String, String> hashes = new LinkedHashMap<>();
+
+    /**
+     * Reads an index written by {@link #write(Path)}, or builds one from a NeTEx delivery
+     */
+    public static ZoneIndex read(Path file) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+            in.mark(HEADER.length());
+            byte[] start = in.readNBytes(HEADER.length());
+            in.reset();
+            if (new String(start, StandardCharsets.UTF_8).equals(HEADER)) {
+                return readIndex(in);
+            }
+            return fromNetex(in);
+        }
+    }
+
+    private static ZoneIndex readIndex(InputStream in) throws IOException {
+        ZoneIndex index = new ZoneIndex();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isBlank() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split(SEPARATOR);
+            if (fields.length != 2) {
+                throw new IllegalArgumentException("Invalid zone index line: " + line);
+            }
+            index.hashes.put(fields[0], fields[1]);
+        }
+        return index;
+    }
+
+    /**
+     * Builds an index of the TariffZone, FareZone and TopographicPlace elements of a NeTEx delivery
+     */
+    public static ZoneIndex fromNetex(InputStream netex) {
+        ZoneIndex index = new ZoneIndex();
+        try {
+            XMLStreamReader reader = inputFactory().createXMLStreamReader(netex);
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT && ZONE_ELEMENTS.contains(reader.getLocalName())) {
+                        String id = reader.getAttributeValue(null, "id");
+                        String hash = hash(reader);
+                        if (id != null) {
+                            index.hashes.put(id, hash);
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IllegalArgumentException("Unable to read the zones of the NeTEx delivery", e);
+        }
+        return index;
+    }
+
+    /**
+     * Writes the index in a tab separated text format that {@link #read(Path)} reads back
+     */
+    public void write(Path file) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.newLine();
+            for (Map.Entry<String, String> zone : hashes.entrySet()) {
+                writer.write(zone.getKey() + SEPARATOR + zone.getValue());
+                writer.newLine();
+            }
+        }
+    }
+
+    /**
+     * @return the content hash of the zone, or null if the index has no zone with this id
+     */
+    public String get(String id) {
+        return hashes.get(id);
+    }
+
+    public Set<String> ids() {
+        return Collections.unmodifiableSet(hashes.keySet());
+    }
+
+    void put(String id, String hash) {
+        hashes.put(id, hash);
+    }
+
+    /**
+     * Hashes a zone marshalled on its own, see {@link NetexHelper#marshalFragment(org.rutebanken.netex.model.Zone_VersionStructure)}
+     */
+    static String hash(byte[] fragment) {
+        try {
+            XMLStreamReader reader = inputFactory().createXMLStreamReader(new ByteArrayInputStream(fragment));
+            try {
+                reader.nextTag();
+                return hash(reader);
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IllegalArgumentException("Unable to read zone fragment", e);
+        }
+    }
+
+    /**
+     * Hashes the element the reader is at, and leaves the reader at its end tag
+     */
+    private static String hash(XMLStreamReader reader) throws XMLStreamException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        StringBuilder canonical = new StringBuilder();
+        int depth = 0;
+        do {
+            switch (reader.getEventType()) {
+                case XMLStreamConstants.START_ELEMENT -> {
+                    depth++;
+                    canonical.append('<').append(name(reader.getName()));
+                    List<String> attributes = new ArrayList<>();
+                    for (int i = 0; i < reader.getAttributeCount(); i++) {
+                        if (!IGNORED_ATTRIBUTE.equals(reader.getAttributeLocalName(i))) {
+                            attributes.add(name(reader.getAttributeName(i)) + '=' + reader.getAttributeValue(i));
+                        }
+                    }
+                    attributes.sort(Comparator.naturalOrder());
+                    attributes.forEach(attribute -> canonical.append(' ').append(attribute));
+                    canonical.append('>');
+                }
+                case XMLStreamConstants.CHARACTERS, XMLStreamConstants.CDATA -> {
+                    if (!reader.isWhiteSpace()) {
+                        canonical.append(reader.getText());
+                    }
+                }
+                case XMLStreamConstants.END_ELEMENT -> {
+                    depth--;
+                    canonical.append("</>");
+                }
+                default -> {
+                }
+            }
+            if (canonical.length() > 1 << 16) {
+                digest.update(canonical.toString().getBytes(StandardCharsets.UTF_8));
+                canonical.setLength(0);
+            }
+            if (depth > 0) {
+                reader.next();
+            }
+        } while (depth > 0);
+        digest.update(canonical.toString().getBytes(StandardCharsets.UTF_8));
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static String name(QName name) {
+        return name.getNamespaceURI().isEmpty() ? name.getLocalPart() : "{" + name.getNamespaceURI() + "}" + name.getLocalPart();
+    }
+
+    private static XMLInputFactory inputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        return factory;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.netex.conversion.osm.transformer;
+
+import net.opengis.gml._3.AbstractRingPropertyType;
+import net.opengis.gml._3.AbstractRingType;
+import net.opengis.gml._3.LinearRingType;
+import net.opengis.gml._3.PolygonType;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Primitive-array view of a GML polygon: one exterior ring and any number of holes.
+ */
+final class ZonePolygon {
+
+    private final Ring exterior;
+    private final List<Ring> interiors;
+    private final double minLat;
+    private final double maxLat;
+    private final double minLon;
+    private final double maxLon;
+
+    ZonePolygon(Ring exterior, List<Ring> interiors) {
+        this.exterior = exterior;
+        this.interiors = interiors;
+        this.minLat = exterior.minLat();
+        this.maxLat = exterior.maxLat();
+        this.minLon = exterior.minLon();
+        this.maxLon = exterior.maxLon();
+    }
+
+    /**
+     * @return the polygon, or null if it has no linear ring exterior
+     */
+    static ZonePolygon fromPolygonType(PolygonType polygon) {
+        if (polygon == null) {
+            return null;
+        }
+        Ring exterior = toRing(polygon.getExterior());
+        if (exterior == null || exterior.size() == 0) {
+            return null;
+        }
+        List<Ring> interiors = new ArrayList<>();
+        for (AbstractRingPropertyType interior : polygon.getInterior()) {
+            Ring ring = toRing(interior);
+            if (ring != null) {
+                interiors.add(ring);
+            }
+        }
+        return new ZonePolygon(exterior, interiors);
+    }
+
+    private static Ring toRing(AbstractRingPropertyType ringProperty) {
+        if (ringProperty == null || ringProperty.getAbstractRing() == null) {
+            return null;
+        }
+        AbstractRingType ring = ringProperty.getAbstractRing().getValue();
+        if (ring instanceof LinearRingType linearRing && linearRing.getPosList() != null) {
+            return Ring.fromPosList(linearRing.getPosList());
+        }
+        return null;
+    }
+
+    Ring getExterior() {
+        return exterior;
+    }
+
+    List<Ring> getInteriors() {
+        return interiors;
+    }
+
+    double minLat() {
+        return minLat;
+    }
+
+    double maxLat() {
+        return maxLat;
+    }
+
+    double minLon() {
+        return minLon;
+    }
+
+    double maxLon() {
+        return maxLon;
+    }
+
+    boolean contains(double lat, double lon) {
+        if (lat < minLat || lat > maxLat || lon < minLon || lon > maxLon) {
+            return false;
+        }
+        if (!exterior.contains(lat, lon)) {
+            return false;
+        }
+        for (Ring interior : interiors) {
+            if (interior.contains(lat, lon)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
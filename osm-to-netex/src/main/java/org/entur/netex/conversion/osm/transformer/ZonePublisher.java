@@ -0,0 +1,153 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+
+package org.entur.netex.conversion.osm.transformer;
+
+import org.rutebanken.netex.model.Zone_VersionStructure;
+
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Publishes a lazily mapped stream of zones to one subscriber, pulling a zone from the stream only when the subscriber
+ * has requested it, see {@link OsmToNetexTransformer#publishZones}.
+ * <p>
+ * Requests and cancellation are handled by one drain loop at a time on the executor, so signals to the subscriber are
+ * never concurrent, as the reactive streams rules require.
+ */
+final class ZonePublisher implements Flow.Publisher<Zone_VersionStructure> {
+
+    private final Supplier<Stream<Zone_VersionStructure>> zones;
+    private final Executor executor;
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+
+    ZonePublisher(Supplier<Stream<Zone_VersionStructure>> zones, Executor executor) {
+        this.zones = zones;
+        this.executor = executor;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super Zone_VersionStructure> subscriber) {
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("The zones of an OSM input can only be published to one subscriber"));
+            return;
+        }
+        subscriber.onSubscribe(new ZoneSubscription(subscriber));
+    }
+
+    private final class ZoneSubscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super Zone_VersionStructure> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger pending = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile Throwable invalidRequest;
+        private Stream<Zone_VersionStructure> stream;
+        private Iterator<Zone_VersionStructure> iterator;
+        private boolean done;
+
+        ZoneSubscription(Flow.Subscriber<? super Zone_VersionStructure> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException("Requested " + n + " zones, the number must be positive");
+            } else {
+                demand.getAndUpdate(current -> current + n < 0 ? Long.MAX_VALUE : current + n);
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            drain();
+        }
+
+        private void drain() {
+            if (pending.getAndIncrement() == 0) {
+                executor.execute(this::run);
+            }
+        }
+
+        private void run() {
+            do {
+                if (!done) {
+                    emit();
+                }
+            } while (pending.decrementAndGet() != 0);
+        }
+
+        private void emit() {
+            try {
+                while (!cancelled) {
+                    if (invalidRequest != null) {
+                        finish(invalidRequest);
+                        return;
+                    }
+                    if (iterator == null) {
+                        stream = zones.get();
+                        iterator = stream.iterator();
+                    }
+                    if (!iterator.hasNext()) {
+                        finish(null);
+                        return;
+                    }
+                    if (demand.get() == 0) {
+                        return;
+                    }
+                    subscriber.onNext(iterator.next());
+                    demand.decrementAndGet();
+                }
+                close();
+            } catch (RuntimeException e) {
+                finish(e);
+            }
+        }
+
+        private void finish(Throwable error) {
+            close();
+            if (error == null) {
+                subscriber.onComplete();
+            } else {
+                subscriber.onError(error);
+            }
+        }
+
+        private void close() {
+            done = true;
+            if (stream != null) {
+                stream.close();
+            }
+        }
+    }
+}
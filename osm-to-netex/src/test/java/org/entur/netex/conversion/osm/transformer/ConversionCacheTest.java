@@ -0,0 +1,50 @@
+package org.entur.netex.conversion.osm.transformer;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class ConversionCacheTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void keyDependsOnInputAndParts() throws IOException {
+        Path input = Files.writeString(directory.resolve("input.osm"), "<osm/>");
+        String key = ConversionCache.key(input, "TariffZone");
+
+        Assertions.assertEquals(key, ConversionCache.key(input, "TariffZone"));
+        Assertions.assertNotEquals(key, ConversionCache.key(input, "FareZone"));
+        Files.writeString(input, "<osm></osm>");
+        Assertions.assertNotEquals(key, ConversionCache.key(input, "TariffZone"));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedAboveMaxBytes() throws IOException {
+        ConversionCache cache = new ConversionCache(directory.resolve("cache"), 10);
+        Path result = directory.resolve("result.xml");
+        Path copy = directory.resolve("copy.xml");
+
+        Files.writeString(result, "aaaa");
+        cache.put("a", result);
+        Files.writeString(result, "bbbb");
+        cache.put("b", result);
+        Assertions.assertTrue(cache.get("a", copy));
+        Assertions.assertEquals("aaaa", Files.readString(copy));
+
+        Files.writeString(result, "cccc");
+        cache.put("c", result);
+        Assertions.assertFalse(cache.get("b", copy));
+        Assertions.assertTrue(cache.get("c", copy));
+        Assertions.assertEquals(new ConversionCache.Stats(2, 1, 1, 2, 8), cache.getStats());
+
+        ConversionCache reopened = new ConversionCache(directory.resolve("cache"), 10);
+        Assertions.assertEquals(2, reopened.getStats().entries());
+        Assertions.assertTrue(reopened.get("a", copy));
+    }
+}
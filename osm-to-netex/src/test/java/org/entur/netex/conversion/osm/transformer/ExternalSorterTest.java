@@ -0,0 +1,67 @@
+package org.entur.netex.conversion.osm.transformer;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.Stream;
+
+public class ExternalSorterTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void mergesMoreRunsThanAtATime() throws IOException {
+        Random random = new Random(7);
+        long[] keys = new long[1_000];
+        try (ExternalSorter sorter = new ExternalSorter(directory, "test", 3, 10)) {
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = random.nextInt(2_000) - 1_000;
+                sorter.add(keys[i], keys[i] * 2, -keys[i]);
+            }
+            Assertions.assertEquals(100, sorter.runs());
+            Arrays.sort(keys);
+
+            try (ExternalSorter.Cursor cursor = sorter.sorted()) {
+                for (long key : keys) {
+                    Assertions.assertTrue(cursor.next());
+                    Assertions.assertEquals(key, cursor.get(0));
+                    Assertions.assertEquals(key * 2, cursor.get(1));
+                    Assertions.assertEquals(-key, cursor.get(2));
+                }
+                Assertions.assertFalse(cursor.next());
+            }
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            Assertions.assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    public void sortsInMemoryWithinOneRun() throws IOException {
+        try (ExternalSorter sorter = new ExternalSorter(directory, "test", 1, 10);
+             ExternalSorter.Cursor cursor = sorter.sorted()) {
+            Assertions.assertFalse(cursor.next());
+        }
+        try (ExternalSorter sorter = new ExternalSorter(directory, "test", 3, 10)) {
+            for (long key : new long[]{5, -3, 9, 0, -3}) {
+                sorter.add(key, key, 0);
+            }
+            try (ExternalSorter.Cursor cursor = sorter.sorted()) {
+                for (long key : new long[]{-3, -3, 0, 5, 9}) {
+                    Assertions.assertTrue(cursor.next());
+                    Assertions.assertEquals(key, cursor.get(0));
+                    Assertions.assertEquals(key, cursor.get(1));
+                }
+                Assertions.assertFalse(cursor.next());
+            }
+            Assertions.assertEquals(0, sorter.runs());
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package org.entur.netex.conversion.osm.transformer;
+
+import net.opengis.gml._3.AbstractRingPropertyType;
+import net.opengis.gml._3.LinearRingType;
+import net.opengis.gml._3.ObjectFactory;
+import net.opengis.gml._3.PolygonType;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.rutebanken.netex.model.FareZone;
+
+import java.util.List;
+
+public class FareZoneMemberAssignerTest {
+
+    private static final ObjectFactory openGisObjectFactory = new ObjectFactory();
+
+    @Test
+    public void assignsStopPlacesToContainingZones() {
+        FareZone west = fareZone("TST:FareZone:1", square(0, 0, 10));
+        FareZone east = fareZone("TST:FareZone:2", square(0, 10, 10));
+        FareZone ring = fareZone("TST:FareZone:3", square(20, 0, 10), square(22, 2, 6));
+
+        StopPlaceLocations stopPlaces = new StopPlaceLocations(
+                new String[]{"NSR:StopPlace:1", "NSR:StopPlace:2", "NSR:StopPlace:3", "NSR:StopPlace:4", "NSR:StopPlace:5"},
+                new double[]{5, 5, 50, 21, 25},
+                new double[]{5, 15, 50, 1, 5});
+
+        new FareZoneMemberAssigner(stopPlaces).assignMembers(List.of(west, east, ring));
+
+        Assertions.assertEquals(List.of("NSR:StopPlace:1"), members(west));
+        Assertions.assertEquals(List.of("NSR:StopPlace:2"), members(east));
+        Assertions.assertEquals(List.of("NSR:StopPlace:4"), members(ring), "Stop place inside the hole must not be a member");
+    }
+
+    @Test
+    public void rayCastingHandlesConcavePolygons() {
+        // U-shape opening to the north
+        Ring ring = new Ring(
+                new double[]{0, 0, 10, 10, 2, 2, 10, 10, 0},
+                new double[]{0, 10, 10, 8, 8, 2, 2, 0, 0});
+
+        Assertions.assertTrue(ring.contains(1, 5));
+        Assertions.assertTrue(ring.contains(5, 1));
+        Assertions.assertFalse(ring.contains(5, 5));
+        Assertions.assertFalse(ring.contains(11, 5));
+    }
+
+    private static List<String> members(FareZone fareZone) {
+        return fareZone.getMembers().getPointRef().stream().map(ref -> ref.getValue().getRef()).toList();
+    }
+
+    private static FareZone fareZone(String id, Ring exterior, Ring... interiors) {
+        PolygonType polygon = new PolygonType().withExterior(ringProperty(exterior));
+        for (Ring interior : interiors) {
+            polygon.getInterior().add(ringProperty(interior));
+        }
+        FareZone fareZone = new FareZone();
+        fareZone.setId(id);
+        fareZone.setPolygon(polygon);
+        return fareZone;
+    }
+
+    private static AbstractRingPropertyType ringProperty(Ring ring) {
+        return new AbstractRingPropertyType()
+                .withAbstractRing(openGisObjectFactory.createLinearRing(new LinearRingType().withPosList(ring.toPosList())));
+    }
+
+    private static Ring square(double lat, double lon, double size) {
+        return new Ring(
+                new double[]{lat, lat, lat + size, lat + size, lat},
+                new double[]{lon, lon + size, lon + size, lon, lon});
+    }
+}
@@ -0,0 +1,180 @@
+package org.entur.netex.conversion.osm.transformer;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class GeometryValidatorTest {
+
+    /**
+     * Builds a ring from alternating lon and lat values
+     */
+    private static Ring ring(double... lonLat) {
+        double[] lats = new double[lonLat.length / 2];
+        double[] lons = new double[lonLat.length / 2];
+        for (int i = 0; i < lats.length; i++) {
+            lons[i] = lonLat[2 * i];
+            lats[i] = lonLat[2 * i + 1];
+        }
+        return new Ring(lats, lons);
+    }
+
+    private static String validate(Ring ring, boolean exterior) {
+        ElementIssues issues = new ElementIssues("way", 1);
+        GeometryValidator.validate(ring, exterior, issues);
+        return issues.getIssues().isEmpty() ? null : issues.getIssues().get(0).rule();
+    }
+
+    @Test
+    public void reportsBrokenRings() {
+        Assertions.assertEquals(ConversionIssue.TOO_FEW_POSITIONS, validate(ring(0, 0, 1, 0, 0, 0), true));
+        Assertions.assertEquals(ConversionIssue.RING_NOT_CLOSED, validate(ring(0, 0, 1, 0, 1, 1, 0, 1), true));
+        // Bow tie
+        Assertions.assertEquals(ConversionIssue.SELF_INTERSECTION, validate(ring(0, 0, 1, 1, 1, 0, 0, 1, 0, 0), true));
+        // Passes twice through (1 1)
+        Assertions.assertEquals(ConversionIssue.SELF_INTERSECTION, validate(ring(0, 0, 2, 0, 1, 1, 2, 2, 0, 2, 1, 1, 0, 0), true));
+        // Spike folding back along its own edge
+        Assertions.assertEquals(ConversionIssue.SELF_INTERSECTION, validate(ring(0, 0, 2, 0, 3, 0, 1, 0, 1, 1, 0, 0), true));
+        Assertions.assertNull(validate(ring(0, 0, 1, 0, 1, 1, 0, 1, 0, 0), true));
+    }
+
+    @Test
+    public void orientsExteriorCounterclockwiseAndInteriorClockwise() {
+        Ring clockwise = ring(0, 0, 0, 1, 1, 1, 1, 0, 0, 0);
+        ElementIssues issues = new ElementIssues("way", 1);
+
+        Assertions.assertTrue(GeometryValidator.validate(clockwise, true, issues).signedArea() > 0);
+        Assertions.assertSame(clockwise, GeometryValidator.validate(clockwise, false, issues));
+        Assertions.assertFalse(issues.hasErrors());
+    }
+
+    @Test
+    public void agreesWithBruteForceOnRandomRings() {
+        Random random = new Random(42);
+        for (int r = 0; r < 5000; r++) {
+            int n = 3 + random.nextInt(6);
+            double[] lonLat = new double[2 * (n + 1)];
+            for (int i = 0; i < n; i++) {
+                // A small grid gives many shared coordinates, collinear and vertical edges
+                lonLat[2 * i] = random.nextInt(4);
+                lonLat[2 * i + 1] = random.nextInt(4);
+            }
+            lonLat[2 * n] = lonLat[0];
+            lonLat[2 * n + 1] = lonLat[1];
+            Ring ring = ring(lonLat);
+            Assertions.assertEquals(bruteForce(ring), GeometryValidator.findSelfIntersection(ring) != null, () -> Arrays.toString(lonLat));
+        }
+    }
+
+    @Test
+    public void agreesWithBruteForceOnNearlyCollinearRings() {
+        Random random = new Random(7);
+        for (int r = 0; r < 2000; r++) {
+            int n = 8 + random.nextInt(40);
+            double[] lonLat = new double[2 * (n + 1)];
+            for (int i = 0; i < n; i++) {
+                // Star shaped rings with radii differing in the last bits, whose edges are nearly collinear
+                double angle = 2 * Math.PI * i / n + random.nextDouble() * 1e-9;
+                double radius = 1 + random.nextInt(3) * Math.ulp(1.0) * (1 + random.nextInt(1 << 20));
+                lonLat[2 * i] = 10 + radius * Math.cos(angle);
+                lonLat[2 * i + 1] = 60 + radius * Math.sin(angle);
+            }
+            if (random.nextInt(3) == 0) {
+                // Swapping two positions makes edges cross
+                int i = 2 * (1 + random.nextInt(n - 3));
+                for (int k = 0; k < 2; k++) {
+                    double swapped = lonLat[i + k];
+                    lonLat[i + k] = lonLat[i + 4 + k];
+                    lonLat[i + 4 + k] = swapped;
+                }
+            }
+            lonLat[2 * n] = lonLat[0];
+            lonLat[2 * n + 1] = lonLat[1];
+            Ring ring = ring(lonLat);
+            Assertions.assertEquals(bruteForce(ring), GeometryValidator.findSelfIntersection(ring) != null, () -> Arrays.toString(lonLat));
+        }
+    }
+
+    @Test
+    public void validatesLargeRing() {
+        int n = 200_000;
+        double[] lonLat = new double[2 * (n + 1)];
+        for (int i = 0; i <= n; i++) {
+            double angle = 2 * Math.PI * (i % n) / n;
+            double radius = i % 2 == 0 ? 1 : 0.99;
+            lonLat[2 * i] = radius * Math.cos(angle);
+            lonLat[2 * i + 1] = radius * Math.sin(angle);
+        }
+        Assertions.assertNull(validate(ring(lonLat), true));
+
+        // Swap two positions a few steps apart, which makes their edges cross
+        double lon = lonLat[20];
+        lonLat[20] = lonLat[28];
+        lonLat[28] = lon;
+        double lat = lonLat[21];
+        lonLat[21] = lonLat[29];
+        lonLat[29] = lat;
+        Assertions.assertEquals(ConversionIssue.SELF_INTERSECTION, validate(ring(lonLat), true));
+    }
+
+    /**
+     * Tests every pair of edges, with zero length edges removed as the validator does
+     */
+    private static boolean bruteForce(Ring ring) {
+        double[] xs = new double[ring.size()];
+        double[] ys = new double[ring.size()];
+        int m = 0;
+        for (int i = 0; i < ring.size(); i++) {
+            if (m > 0 && xs[m - 1] == ring.lon(i) && ys[m - 1] == ring.lat(i)) {
+                continue;
+            }
+            xs[m] = ring.lon(i);
+            ys[m] = ring.lat(i);
+            m++;
+        }
+        int edges = m - 1;
+        if (edges < 3) {
+            return false;
+        }
+        for (int i = 0; i < edges; i++) {
+            for (int j = i + 1; j < edges; j++) {
+                boolean adjacent = j == i + 1 || (i == 0 && j == edges - 1);
+                if (adjacent) {
+                    int shared = j == i + 1 ? j : i;
+                    int p = shared == j ? i : i + 1;
+                    int q = shared == j ? j + 1 : j;
+                    double cross = (xs[p] - xs[shared]) * (ys[q] - ys[shared]) - (ys[p] - ys[shared]) * (xs[q] - xs[shared]);
+                    double dot = (xs[p] - xs[shared]) * (xs[q] - xs[shared]) + (ys[p] - ys[shared]) * (ys[q] - ys[shared]);
+                    if (cross == 0 && dot > 0) {
+                        return true;
+                    }
+                } else if (segmentsTouch(xs[i], ys[i], xs[i + 1], ys[i + 1], xs[j], ys[j], xs[j + 1], ys[j + 1])) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean segmentsTouch(double ax, double ay, double bx, double by, double cx, double cy, double dx, double dy) {
+        double d1 = cross(cx, cy, dx, dy, ax, ay);
+        double d2 = cross(cx, cy, dx, dy, bx, by);
+        double d3 = cross(ax, ay, bx, by, cx, cy);
+        double d4 = cross(ax, ay, bx, by, dx, dy);
+        if (Math.signum(d1) * Math.signum(d2) < 0 && Math.signum(d3) * Math.signum(d4) < 0) {
+            return true;
+        }
+        return (d1 == 0 && within(cx, cy, dx, dy, ax, ay)) || (d2 == 0 && within(cx, cy, dx, dy, bx, by))
+                || (d3 == 0 && within(ax, ay, bx, by, cx, cy)) || (d4 == 0 && within(ax, ay, bx, by, dx, dy));
+    }
+
+    private static double cross(double ax, double ay, double bx, double by, double cx, double cy) {
+        return (bx - ax) * (cy - ay) - (by - ay) * (cx - ax);
+    }
+
+    private static boolean within(double ax, double ay, double bx, double by, double px, double py) {
+        return Math.min(ax, bx) <= px && px <= Math.max(ax, bx) && Math.min(ay, by) <= py && py <= Math.max(ay, by);
+    }
+}
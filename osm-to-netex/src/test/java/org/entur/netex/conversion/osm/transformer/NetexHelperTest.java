@@ -0,0 +1,46 @@
+package org.entur.netex.conversion.osm.transformer;
+
+import jakarta.xml.bind.MarshalException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.rutebanken.netex.model.ObjectFactory;
+import org.rutebanken.netex.model.PublicationDeliveryStructure;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+
+public class NetexHelperTest {
+
+    @ParameterizedTest
+    @EnumSource(value = SchemaValidation.class, names = {"SYNC", "ASYNC"})
+    public void reportsSchemaErrorsTheSameWaySyncAndAsync(SchemaValidation schemaValidation) {
+        NetexHelper netexHelper = new NetexHelper(new ObjectFactory());
+        netexHelper.setSchemaValidation(schemaValidation);
+        // A publication delivery without timestamp and participant is not valid
+        RuntimeException exception = Assertions.assertThrows(RuntimeException.class,
+                () -> netexHelper.marshalNetex(new PublicationDeliveryStructure(), OutputStream.nullOutputStream()));
+        Assertions.assertInstanceOf(MarshalException.class, exception.getCause());
+    }
+
+    @ParameterizedTest
+    @EnumSource(SchemaValidation.class)
+    public void writesTheSameValidOutputInEachMode(SchemaValidation schemaValidation) {
+        NetexHelper netexHelper = new NetexHelper(new ObjectFactory());
+        netexHelper.setSchemaValidation(schemaValidation);
+        PublicationDeliveryStructure delivery = netexHelper.createPublicationDelivery(netexHelper.createSiteFrame(), "test", "test");
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        netexHelper.marshalNetex(delivery, output);
+        Assertions.assertTrue(output.toString().contains("<SiteFrame"));
+    }
+
+    @Test
+    public void writesInvalidOutputWithoutValidation() {
+        NetexHelper netexHelper = new NetexHelper(new ObjectFactory());
+        netexHelper.setSchemaValidation(SchemaValidation.OFF);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        netexHelper.marshalNetex(new PublicationDeliveryStructure(), output);
+        Assertions.assertTrue(output.toString().contains("PublicationDelivery"));
+    }
+}
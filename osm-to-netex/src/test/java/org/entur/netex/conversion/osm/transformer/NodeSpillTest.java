@@ -0,0 +1,72 @@
+package org.entur.netex.conversion.osm.transformer;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.openstreetmap.osm.Nd;
+import org.openstreetmap.osm.Node;
+import org.openstreetmap.osm.Osm;
+import org.openstreetmap.osm.Way;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+import java.math.BigInteger;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+public class NodeSpillTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void iteratesSpilledNodesAsMap() throws SAXException {
+        for (boolean externalJoin : new boolean[] {false, true}) {
+            try (NodeSpill.SpilledOsm osm = spill(externalJoin)) {
+                Map<BigInteger, Node> index = osm.getNodeIndex();
+
+                Assertions.assertEquals(Set.of(BigInteger.valueOf(-1), BigInteger.valueOf(-2)), index.keySet(), "external join " + externalJoin);
+                Assertions.assertEquals(2, index.values().size());
+                Map<BigInteger, Node> copy = new HashMap<>(index);
+                Assertions.assertEquals(59.5, copy.get(BigInteger.valueOf(-1)).getLat());
+                Assertions.assertEquals(10.5, copy.get(BigInteger.valueOf(-1)).getLon());
+                Assertions.assertNull(copy.get(BigInteger.valueOf(-2)).getLat());
+                Assertions.assertTrue(index.toString().startsWith("{"));
+                Assertions.assertNotEquals(Map.of(), index);
+                Assertions.assertThrows(UnsupportedOperationException.class, () -> index.entrySet().iterator().remove());
+            }
+        }
+    }
+
+    private NodeSpill.SpilledOsm spill(boolean externalJoin) throws SAXException {
+        NodeSpill spill = new NodeSpill(0, directory, externalJoin, 16);
+        spill.startElement("", "osm", "osm", new AttributesImpl());
+        node(spill, "-1", "59.5", "10.5");
+        node(spill, "-2", null, null);
+        spill.endElement("", "osm", "osm");
+
+        // The external join keeps the nodes referenced by ways
+        Way way = new Way();
+        for (long ref : new long[] {-1, -2}) {
+            Nd nd = new Nd();
+            nd.setRef(BigInteger.valueOf(ref));
+            way.getNd().add(nd);
+        }
+        Osm osm = new Osm();
+        osm.getWay().add(way);
+        return (NodeSpill.SpilledOsm) spill.finish(osm);
+    }
+
+    private static void node(NodeSpill spill, String id, String lat, String lon) throws SAXException {
+        AttributesImpl atts = new AttributesImpl();
+        atts.addAttribute("", "id", "id", "CDATA", id);
+        if (lat != null) {
+            atts.addAttribute("", "lat", "lat", "CDATA", lat);
+            atts.addAttribute("", "lon", "lon", "CDATA", lon);
+        }
+        spill.startElement("", "node", "node", atts);
+        spill.endElement("", "node", "node");
+    }
+}
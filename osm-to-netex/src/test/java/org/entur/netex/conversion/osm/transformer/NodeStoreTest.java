@@ -0,0 +1,71 @@
+package org.entur.netex.conversion.osm.transformer;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class NodeStoreTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void keepsNodesAcrossRebuildsAndReopening() throws IOException {
+        Path file = directory.resolve("nodes.bin");
+        Random random = new Random(7);
+        Map<Long, double[]> expected = new HashMap<>();
+        try (NodeStore store = NodeStore.open(file, 0)) {
+            for (int i = 0; i < 20_000; i++) {
+                long id = random.nextInt(40_000) - 20_000;
+                double[] latLon = {random.nextDouble() * 90, random.nextDouble() * 180};
+                store.put(id, latLon[0], latLon[1]);
+                expected.put(id, latLon);
+            }
+            for (long id = -20_000; id < 0; id += 3) {
+                store.remove(id);
+                expected.remove(id);
+            }
+            Assertions.assertEquals(expected.size(), store.size());
+        }
+
+        try (NodeStore store = NodeStore.open(file, 0)) {
+            Assertions.assertEquals(expected.size(), store.size());
+            double[] latLon = new double[2];
+            for (long id = -20_000; id < 20_000; id++) {
+                double[] value = expected.get(id);
+                Assertions.assertEquals(value != null, store.get(id, latLon), "node " + id);
+                if (value != null) {
+                    Assertions.assertArrayEquals(value, latLon);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void growsTemporaryStoreAndKeepsNodesWithoutCoordinates() throws IOException {
+        Path file = directory.resolve("spilled.bin");
+        try (NodeStore store = NodeStore.temporary(file, 0)) {
+            for (long id = 0; id < 10_000; id++) {
+                store.put(id, id / 100.0, -id / 100.0);
+            }
+            store.put(-1, NodeStore.stored(null), NodeStore.stored(null));
+            Assertions.assertEquals(10_001, store.size());
+
+            double[] latLon = new double[2];
+            Assertions.assertTrue(store.get(9_999, latLon));
+            Assertions.assertArrayEquals(new double[]{99.99, -99.99}, latLon);
+            Assertions.assertTrue(store.get(-1, latLon));
+            Assertions.assertNull(NodeStore.coordinate(latLon[0]));
+            Assertions.assertNull(NodeStore.coordinate(latLon[1]));
+            store.delete();
+        }
+        Assertions.assertFalse(Files.exists(file));
+    }
+}
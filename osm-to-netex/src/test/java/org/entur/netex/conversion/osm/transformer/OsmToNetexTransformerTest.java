@@ -1,9 +1,22 @@
 package org.entur.netex.conversion.osm.transformer;
 
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
+import org.openstreetmap.osm.Member;
+import org.openstreetmap.osm.Osm;
+import org.openstreetmap.osm.Relation;
+import org.openstreetmap.osm.Way;
+import org.rutebanken.netex.model.PublicationDeliveryStructure;
+import org.rutebanken.netex.model.SiteFrame;
+import org.rutebanken.netex.model.TopographicPlace;
+import org.rutebanken.netex.model.Zone_VersionStructure;
 import org.xml.sax.InputSource;
 import org.xmlunit.builder.DiffBuilder;
 import org.xmlunit.builder.Input;
@@ -11,8 +24,28 @@ import org.xmlunit.diff.*;
 
 import javax.xml.transform.Source;
 import java.io.*;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static java.util.Map.entry;
@@ -49,6 +82,647 @@ public class OsmToNetexTransformerTest {
         Assertions.assertFalse(documentDiff.hasDifferences(), documentDiff.fullDescription());
     }
 
+    @Test
+    public void reportModeSkipsInvalidZonesAndCollectsIssues() throws ClassNotFoundException, IOException {
+        OsmToNetexTransformer osmToNetexTransformer = new OsmToNetexTransformer();
+        osmToNetexTransformer.setValidationMode(ValidationMode.REPORT);
+
+        ClassLoader classloader = Thread.currentThread().getContextClassLoader();
+        Osm osm = new OsmUnmarshaller(false).unmarshall(new InputSource(classloader.getResourceAsStream("invalid_zones.xml")));
+        ConversionReport report = new ConversionReport();
+        PublicationDeliveryStructure publicationDelivery = osmToNetexTransformer.map(osm, "TariffZone", "invalid_zones.xml", "test", report);
+
+        SiteFrame siteFrame = (SiteFrame) publicationDelivery.getDataObjects().getCompositeFrameOrCommonFrame().get(0).getValue();
+        Assertions.assertEquals(1, siteFrame.getTariffZones().getTariffZone().size());
+        Assertions.assertEquals(1, report.getConverted());
+        Assertions.assertEquals(1, report.getSkipped());
+        Assertions.assertEquals(Set.of("codespace", "reference"), report.getIssues().stream().map(ConversionIssue::tag).collect(Collectors.toSet()));
+        Assertions.assertTrue(report.getIssues().stream().allMatch(issue -> issue.elementId().equals("-102")));
+
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        report.writeJson(json);
+        Assertions.assertTrue(json.toString().contains("\"rule\": \"missing-tag\""), json.toString());
+    }
+
+    @Test
+    public void failFastModeThrowsOnInvalidZone() throws IOException {
+        OsmToNetexTransformer osmToNetexTransformer = new OsmToNetexTransformer();
+
+        ClassLoader classloader = Thread.currentThread().getContextClassLoader();
+        Osm osm = new OsmUnmarshaller(false).unmarshall(new InputSource(classloader.getResourceAsStream("invalid_zones.xml")));
+
+        IllegalArgumentException e = Assertions.assertThrows(IllegalArgumentException.class,
+                () -> osmToNetexTransformer.map(osm, "TariffZone", "invalid_zones.xml", "test"));
+        Assertions.assertEquals(2, e.getSuppressed().length);
+    }
+
+    @Test
+    public void listsAllDanglingReferencesBeforeMapping() throws IOException {
+        OsmToNetexTransformer osmToNetexTransformer = new OsmToNetexTransformer();
+
+        ClassLoader classloader = Thread.currentThread().getContextClassLoader();
+        Osm osm = new OsmUnmarshaller(false).unmarshall(new InputSource(classloader.getResourceAsStream("dangling_references.xml")));
+
+        IllegalArgumentException e = Assertions.assertThrows(IllegalArgumentException.class,
+                () -> osmToNetexTransformer.map(osm, "TariffZone", "dangling_references.xml", "test"));
+        Assertions.assertTrue(e.getMessage().contains("way -102 references missing node -9"), e.getMessage());
+        Assertions.assertTrue(e.getMessage().contains("relation -201 references missing way -109"), e.getMessage());
+    }
+
+    @Test
+    public void warnsOfMissingMembersThatAreNotMapped() throws ClassNotFoundException, IOException {
+        OsmToNetexTransformer osmToNetexTransformer = new OsmToNetexTransformer();
+
+        ClassLoader classloader = Thread.currentThread().getContextClassLoader();
+        Osm osm = new OsmUnmarshaller(false).unmarshall(new InputSource(classloader.getResourceAsStream("multipolygon.xml")));
+        Relation multipolygon = osm.getRelation().get(0);
+        for (String[] missing : new String[][]{{"node", "-99", "admin_centre"}, {"relation", "-299", "subarea"}}) {
+            Member member = new Member();
+            member.setType(missing[0]);
+            member.setRef(new BigInteger(missing[1]));
+            member.setRole(missing[2]);
+            multipolygon.getMember().add(member);
+        }
+        ConversionReport report = new ConversionReport();
+        osmToNetexTransformer.map(osm, "TariffZone", "multipolygon.xml", "test", report);
+
+        Assertions.assertEquals(1, report.getConverted());
+        List<ConversionIssue> dangling = report.getIssues().stream().filter(issue -> issue.rule().equals(ConversionIssue.DANGLING_REFERENCE)).toList();
+        Assertions.assertEquals(List.of("relation -201 references missing node -99", "relation -201 references missing relation -299"),
+                dangling.stream().map(ConversionIssue::message).toList());
+        Assertions.assertTrue(dangling.stream().allMatch(issue -> issue.severity() == ConversionIssue.Severity.WARNING));
+    }
+
+    @Test
+    public void routesZonesToSeveralTargetsInOnePass() throws ClassNotFoundException, IOException {
+        OsmToNetexTransformer osmToNetexTransformer = new OsmToNetexTransformer();
+
+        ClassLoader classloader = Thread.currentThread().getContextClassLoader();
+        Osm osm = new OsmUnmarshaller(false).unmarshall(new InputSource(classloader.getResourceAsStream("multi_target.xml")));
+        ConversionReport report = new ConversionReport();
+        Map<String, PublicationDeliveryStructure> deliveries = osmToNetexTransformer.map(osm,
+                new LinkedHashSet<>(List.of("TariffZone", "FareZone", "TopographicPlace")), "multi_target.xml", "test", report);
+
+        SiteFrame tariffZones = (SiteFrame) deliveries.get("TariffZone").getDataObjects().getCompositeFrameOrCommonFrame().get(0).getValue();
+        Assertions.assertEquals(List.of("TST:TariffZone:1"), tariffZones.getTariffZones().getTariffZone().stream().map(zone -> zone.getValue().getId()).toList());
+        SiteFrame fareZones = (SiteFrame) deliveries.get("FareZone").getDataObjects().getCompositeFrameOrCommonFrame().get(0).getValue();
+        Assertions.assertEquals(List.of("TST:FareZone:2"), fareZones.getTariffZones().getTariffZone().stream().map(zone -> zone.getValue().getId()).toList());
+        SiteFrame places = (SiteFrame) deliveries.get("TopographicPlace").getDataObjects().getCompositeFrameOrCommonFrame().get(0).getValue();
+        Assertions.assertEquals(1, places.getTopographicPlaces().getTopographicPlace().size());
+
+        Assertions.assertEquals(List.of("-104"), report.getIssues().stream()
+                .filter(issue -> ConversionIssue.UNROUTED.equals(issue.rule())).map(ConversionIssue::elementId).toList());
+
+        PublicationDeliveryStructure combined = osmToNetexTransformer.mapCombined(osm, Set.of("TariffZone", "FareZone", "TopographicPlace"), "multi_target.xml", "test", new ConversionReport());
+        SiteFrame siteFrame = (SiteFrame) combined.getDataObjects().getCompositeFrameOrCommonFrame().get(0).getValue();
+        Assertions.assertEquals(2, siteFrame.getTariffZones().getTariffZone().size());
+        Assertions.assertEquals(1, siteFrame.getTopographicPlaces().getTopographicPlace().size());
+    }
+
+    @Test
+    public void streamsAndPublishesZonesOneAtATime() throws Exception {
+        ClassLoader classloader = Thread.currentThread().getContextClassLoader();
+        byte[] osm = classloader.getResourceAsStream("multi_target.xml").readAllBytes();
+        OsmToNetexTransformer osmToNetexTransformer = new OsmToNetexTransformer();
+        osmToNetexTransformer.setValidationMode(ValidationMode.REPORT);
+
+        PublicationDeliveryStructure delivery = osmToNetexTransformer.map(new OsmUnmarshaller(false).unmarshall(new InputSource(new ByteArrayInputStream(osm))),
+                "TopographicPlace", "multi_target.xml", "test", new ConversionReport());
+        SiteFrame siteFrame = (SiteFrame) delivery.getDataObjects().getCompositeFrameOrCommonFrame().get(0).getValue();
+        List<String> expected = siteFrame.getTopographicPlaces().getTopographicPlace().stream().map(TopographicPlace::getId).toList();
+
+        ConversionReport report = new ConversionReport();
+        try (Stream<Zone_VersionStructure> zones = osmToNetexTransformer.streamZones(new InputSource(new ByteArrayInputStream(osm)), "TopographicPlace", report)) {
+            Assertions.assertEquals(0, report.getConverted());
+            Assertions.assertEquals(expected, zones.map(Zone_VersionStructure::getId).toList());
+            Assertions.assertEquals(expected.size(), report.getConverted());
+        }
+
+        List<String> published = new ArrayList<>();
+        CompletableFuture<Void> completed = new CompletableFuture<>();
+        osmToNetexTransformer.publishZones(new InputSource(new ByteArrayInputStream(osm)), "TopographicPlace", new ConversionReport())
+                .subscribe(new Flow.Subscriber<>() {
+                    private Flow.Subscription subscription;
+
+                    @Override
+                    public void onSubscribe(Flow.Subscription subscription) {
+                        this.subscription = subscription;
+                        subscription.request(1);
+                    }
+
+                    @Override
+                    public void onNext(Zone_VersionStructure zone) {
+                        published.add(zone.getId());
+                        subscription.request(1);
+                    }
+
+                    @Override
+                    public void onError(Throwable throwable) {
+                        completed.completeExceptionally(throwable);
+                    }
+
+                    @Override
+                    public void onComplete() {
+                        completed.complete(null);
+                    }
+                });
+        completed.get(10, TimeUnit.SECONDS);
+        Assertions.assertEquals(expected, published);
+    }
+
+    @Test
+    public void marshallsAsynchronously() throws Exception {
+        ClassLoader classloader = Thread.currentThread().getContextClassLoader();
+        byte[] osm = classloader.getResourceAsStream("multi_target.xml").readAllBytes();
+        OsmToNetexTransformer osmToNetexTransformer = new OsmToNetexTransformer();
+        osmToNetexTransformer.setValidationMode(ValidationMode.REPORT);
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        ConversionReport expectedReport = new ConversionReport();
+        osmToNetexTransformer.marshallOsm(new InputSource(new ByteArrayInputStream(osm)), expected, "TopographicPlace", "multi_target.xml", "test", expectedReport);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ConversionReport report = osmToNetexTransformer.marshallOsmAsync(new InputSource(new ByteArrayInputStream(osm)), output,
+                "TopographicPlace", "multi_target.xml", "test", new ConversionReport(), Duration.ofSeconds(30)).get(30, TimeUnit.SECONDS);
+        Assertions.assertEquals(expectedReport.getConverted(), report.getConverted());
+        Diff diff = compareResults(Input.fromByteArray(expected.toByteArray()).build(), Input.fromByteArray(output.toByteArray()).build());
+        Assertions.assertFalse(diff.hasDifferences(), diff.fullDescription());
+    }
+
+    @Test
+    public void stopsAsynchronousConversionAtTimeout() throws Exception {
+        InputStream endless = new SequenceInputStream(new ByteArrayInputStream("<osm version='0.6'>".getBytes()), new InputStream() {
+            private final byte[] node = "<node id='-1' lat='59.0' lon='10.0' />".getBytes();
+            private int position;
+
+            @Override
+            public int read() {
+                return node[position++ % node.length];
+            }
+        });
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            CompletableFuture<ConversionReport> future = new OsmToNetexTransformer().marshallOsmAsync(new InputSource(endless), new ByteArrayOutputStream(),
+                    "TariffZone", "endless.xml", "test", new ConversionReport(), Duration.ofMillis(200), executor);
+            ExecutionException e = Assertions.assertThrows(ExecutionException.class, () -> future.get(30, TimeUnit.SECONDS));
+            Assertions.assertInstanceOf(TimeoutException.class, e.getCause());
+            // The parse has stopped once the single thread of the executor is free again
+            Assertions.assertTrue(executor.submit(() -> true).get(30, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void recordsMetricsOfEachStage() throws ClassNotFoundException, IOException {
+        ClassLoader classloader = Thread.currentThread().getContextClassLoader();
+        byte[] osm = classloader.getResourceAsStream("multi_target.xml").readAllBytes();
+        Map<String, Double> meters = new ConcurrentHashMap<>();
+        OsmToNetexTransformer osmToNetexTransformer = new OsmToNetexTransformer();
+        osmToNetexTransformer.setValidationMode(ValidationMode.REPORT);
+        osmToNetexTransformer.setSchemaValidation(SchemaValidation.ASYNC);
+        osmToNetexTransformer.setMetrics(new MeterRegistryMetrics(new MeterRegistryMetrics.Registry() {
+            @Override
+            public void timer(String name, Duration duration, String... tags) {
+                meters.merge(name + Arrays.toString(tags), (double) duration.toNanos(), Double::sum);
+            }
+
+            @Override
+            public void counter(String name, double amount, String... tags) {
+                meters.merge(name + Arrays.toString(tags), amount, Double::sum);
+            }
+
+            @Override
+            public void summary(String name, double value, String... tags) {
+                meters.put(name + Arrays.toString(tags), value);
+            }
+        }));
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        osmToNetexTransformer.marshallOsm(new InputSource(new ByteArrayInputStream(osm)), output, "TopographicPlace", "multi_target.xml", "test");
+
+        for (String stage : List.of("unmarshal", "node_index", "map", "marshal")) {
+            Assertions.assertTrue(meters.containsKey("osm2netex.stage[stage, " + stage + "]"), meters.toString());
+        }
+        Assertions.assertEquals(osm.length, meters.get("osm2netex.bytes[direction, read]"));
+        Assertions.assertEquals(output.size(), meters.get("osm2netex.bytes[direction, written]"));
+        Assertions.assertEquals(4, meters.get("osm2netex.elements[type, way]"));
+        Assertions.assertEquals(3, meters.get("osm2netex.elements[type, zone]"));
+        Assertions.assertTrue(meters.containsKey("osm2netex.vertices.per.second[]"), meters.toString());
+        Assertions.assertTrue(meters.containsKey("osm2netex.queue.peak[queue, netex-validation]"), meters.toString());
+    }
+
+    @Test
+    public void recordsFlightRecorderEvents(@TempDir Path tempDir) throws ClassNotFoundException, IOException {
+        ClassLoader classloader = Thread.currentThread().getContextClassLoader();
+        Path file = tempDir.resolve("conversion.jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("org.entur.netex.osm.Conversion");
+            recording.enable("org.entur.netex.osm.ConversionStage");
+            recording.enable("org.entur.netex.osm.SlowZone").withThreshold(Duration.ZERO);
+            recording.start();
+            OsmToNetexTransformer osmToNetexTransformer = new OsmToNetexTransformer();
+            osmToNetexTransformer.setValidationMode(ValidationMode.REPORT);
+            osmToNetexTransformer.marshallOsm(new InputSource(classloader.getResourceAsStream("multi_target.xml")), OutputStream.nullOutputStream(),
+                    "TopographicPlace", "multi_target.xml", "test");
+            recording.stop();
+            recording.dump(file);
+        }
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+
+        RecordedEvent conversion = events.stream().filter(event -> event.getEventType().getName().equals("org.entur.netex.osm.Conversion")).findFirst().orElseThrow();
+        Assertions.assertEquals("multi_target.xml", conversion.getString("generatedFrom"));
+        Assertions.assertEquals(3, conversion.getInt("zones"));
+        Assertions.assertEquals(Set.of("UNMARSHAL", "NODE_INDEX", "MAP", "MARSHAL"), events.stream()
+                .filter(event -> event.getEventType().getName().equals("org.entur.netex.osm.ConversionStage"))
+                .map(event -> event.getString("stage")).collect(Collectors.toSet()));
+        RecordedEvent slowZone = events.stream()
+                .filter(event -> event.getEventType().getName().equals("org.entur.netex.osm.SlowZone") && event.getLong("elementId") == -101)
+                .findFirst().orElseThrow();
+        Assertions.assertEquals("way", slowZone.getString("elementType"));
+        Assertions.assertEquals(4, slowZone.getInt("vertices"));
+        Assertions.assertEquals("TopographicPlace", slowZone.getString("targetEntity"));
+    }
+
+    @Test
+    public void reportsProgressOfReadingAndMapping() throws ClassNotFoundException, IOException {
+        ClassLoader classloader = Thread.currentThread().getContextClassLoader();
+        byte[] osm = classloader.getResourceAsStream("multi_target.xml").readAllBytes();
+        List<ProgressListener.Progress> progress = new ArrayList<>();
+        OsmToNetexTransformer osmToNetexTransformer = new OsmToNetexTransformer();
+        osmToNetexTransformer.setValidationMode(ValidationMode.REPORT);
+        osmToNetexTransformer.setProgressListener(progress::add);
+
+        osmToNetexTransformer.marshallOsm(new InputSource(new ByteArrayInputStream(osm)), OutputStream.nullOutputStream(), "TopographicPlace", "multi_target.xml", "test");
+
+        Assertions.assertEquals(new ProgressListener.Progress(ConversionMetrics.Stage.UNMARSHAL, osm.length, 8, -1), progress.get(0));
+        ProgressListener.Progress mapped = progress.get(progress.size() - 1);
+        Assertions.assertEquals(ConversionMetrics.Stage.MAP, mapped.stage());
+        Assertions.assertEquals(4, mapped.totalElements());
+        Assertions.assertEquals(mapped.totalElements(), mapped.elements());
+    }
+
+    @Test
+    public void reportsTotalOfZonesActuallyMapped() throws ClassNotFoundException, IOException {
+        ClassLoader classloader = Thread.currentThread().getContextClassLoader();
+        // A group of tariff zones is only mapped for FareZone
+        String osm = new String(classloader.getResourceAsStream("multi_target.xml").readAllBytes())
+                .replace("</osm>", "<relation id='-301'><member type='way' ref='-102' role='' /><tag k='name' v='Group' /></relation></osm>");
+        List<ProgressListener.Progress> progress = new ArrayList<>();
+        OsmToNetexTransformer osmToNetexTransformer = new OsmToNetexTransformer();
+        osmToNetexTransformer.setValidationMode(ValidationMode.REPORT);
+        osmToNetexTransformer.setProgressListener(progress::add);
+
+        osmToNetexTransformer.marshallOsm(new InputSource(new StringReader(osm)), OutputStream.nullOutputStream(), "TopographicPlace", "multi_target.xml", "test");
+        Assertions.assertEquals(new ProgressListener.Progress(ConversionMetrics.Stage.MAP, -1, 4, 4), lastMapped(progress));
+
+        progress.clear();
+        osmToNetexTransformer.marshallOsm(new InputSource(new StringReader(osm)), OutputStream.nullOutputStream(), "FareZone", "multi_target.xml", "test");
+        Assertions.assertEquals(new ProgressListener.Progress(ConversionMetrics.Stage.MAP, -1, 5, 5), lastMapped(progress));
+
+        progress.clear();
+        osmToNetexTransformer.marshallOsm(new InputSource(new StringReader(osm)), Map.of("TariffZone", OutputStream.nullOutputStream(),
+                "TopographicPlace", OutputStream.nullOutputStream()), "multi_target.xml", "test", new ConversionReport());
+        // The fare zone and the untyped way are not routed to any of the targets
+        Assertions.assertEquals(new ProgressListener.Progress(ConversionMetrics.Stage.MAP, -1, 2, 2), lastMapped(progress));
+
+        // Zones copied from the fragment cache count as mapped
+        osmToNetexTransformer.setZoneFragmentCache(new ZoneFragmentCache());
+        for (int conversion = 0; conversion < 2; conversion++) {
+            progress.clear();
+            osmToNetexTransformer.marshallOsm(new InputSource(new StringReader(osm)), OutputStream.nullOutputStream(), "TopographicPlace", "multi_target.xml", "test");
+            Assertions.assertEquals(new ProgressListener.Progress(ConversionMetrics.Stage.MAP, -1, 4, 4), lastMapped(progress));
+        }
+    }
+
+    private static ProgressListener.Progress lastMapped(List<ProgressListener.Progress> progress) {
+        return progress.stream().filter(update -> update.stage() == ConversionMetrics.Stage.MAP).reduce((first, second) -> second).orElseThrow();
+    }
+
+    @Test
+    public void spillsNodesBeyondMemoryBudget(@TempDir Path spillDirectory, @TempDir Path stateDirectory) throws ClassNotFoundException, IOException {
+        ClassLoader classloader = Thread.currentThread().getContextClassLoader();
+        byte[] osm = classloader.getResourceAsStream("multi_target.xml").readAllBytes();
+
+        OsmToNetexTransformer osmToNetexTransformer = new OsmToNetexTransformer();
+        osmToNetexTransformer.setValidationMode(ValidationMode.REPORT);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        ConversionReport expectedReport = new ConversionReport();
+        osmToNetexTransformer.marshallOsm(new InputSource(new ByteArrayInputStream(osm)), expected, "TopographicPlace", "multi_target.xml", "test", expectedReport);
+
+        Map<String, Long> elements = new ConcurrentHashMap<>();
+        osmToNetexTransformer.setMetrics(new ConversionMetrics() {
+            @Override
+            public void elements(String type, long count) {
+                elements.merge(type, count, Long::sum);
+            }
+        });
+        // Two nodes fit in the budget, the others are spilled while parsing
+        osmToNetexTransformer.setMemoryBudget(2 * NodeSpill.NODE_BYTES);
+        osmToNetexTransformer.setSpillDirectory(spillDirectory);
+        osmToNetexTransformer.setStateDirectory(stateDirectory);
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        ConversionReport report = new ConversionReport();
+        osmToNetexTransformer.marshallOsm(new InputSource(new ByteArrayInputStream(osm)), result, "TopographicPlace", "multi_target.xml", "test", report);
+
+        Assertions.assertEquals(4, elements.get("spilled-node"));
+        Assertions.assertEquals(expectedReport.getConverted(), report.getConverted());
+        Assertions.assertEquals(expectedReport.getSkipped(), report.getSkipped());
+        try (Stream<Path> files = Files.list(spillDirectory)) {
+            Assertions.assertEquals(0, files.count());
+        }
+        // The state has the spilled nodes
+        try (ConversionState state = ConversionState.open(stateDirectory)) {
+            ConversionState.Change change = state.apply(new InputSource(new StringReader("<osmChange><modify><node id='-1' lat='59.0' lon='10.0'/></modify></osmChange>")));
+            Assertions.assertEquals(4, change.before().getNode().size());
+        }
+        assertSameDelivery(expected, result);
+    }
+
+    @Test
+    public void findsSpilledNodesWithoutCoordinates(@TempDir Path spillDirectory) throws ClassNotFoundException, IOException {
+        ClassLoader classloader = Thread.currentThread().getContextClassLoader();
+        String osm = new String(classloader.getResourceAsStream("multi_target.xml").readAllBytes())
+                .replace("<way id='-101'>", "<node id='-99' />\n  <way id='-101'>")
+                .replace("</osm>", "<relation id='-301'><member type='node' ref='-99' role='' /><tag k='name' v='Group' /></relation></osm>");
+
+        OsmToNetexTransformer osmToNetexTransformer = new OsmToNetexTransformer();
+        osmToNetexTransformer.setValidationMode(ValidationMode.REPORT);
+        ConversionReport expectedReport = new ConversionReport();
+        osmToNetexTransformer.marshallOsm(new InputSource(new StringReader(osm)), OutputStream.nullOutputStream(), "TopographicPlace", "multi_target.xml", "test", expectedReport);
+
+        osmToNetexTransformer.setMemoryBudget(2 * NodeSpill.NODE_BYTES);
+        osmToNetexTransformer.setSpillDirectory(spillDirectory);
+        ConversionReport report = new ConversionReport();
+        osmToNetexTransformer.marshallOsm(new InputSource(new StringReader(osm)), OutputStream.nullOutputStream(), "TopographicPlace", "multi_target.xml", "test", report);
+
+        Assertions.assertTrue(report.getIssues().stream().noneMatch(issue -> ConversionIssue.DANGLING_REFERENCE.equals(issue.rule())), report.getIssues().toString());
+        Assertions.assertEquals(expectedReport.getIssues(), report.getIssues());
+        Assertions.assertEquals(expectedReport.getSkipped(), report.getSkipped());
+    }
+
+    @Test
+    public void joinsNodesWithWaysOnDisk(@TempDir Path spillDirectory) throws ClassNotFoundException, IOException {
+        ClassLoader classloader = Thread.currentThread().getContextClassLoader();
+        byte[] osm = classloader.getResourceAsStream("multi_target.xml").readAllBytes();
+
+        OsmToNetexTransformer osmToNetexTransformer = new OsmToNetexTransformer();
+        osmToNetexTransformer.setValidationMode(ValidationMode.REPORT);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        ConversionReport expectedReport = new ConversionReport();
+        osmToNetexTransformer.marshallOsm(new InputSource(new ByteArrayInputStream(osm)), expected, "TopographicPlace", "multi_target.xml", "test", expectedReport);
+
+        osmToNetexTransformer.setExternalNodeJoin(true);
+        osmToNetexTransformer.setSpillDirectory(spillDirectory);
+        // Runs of two records make the join merge several sorted runs of both the nodes and the references
+        osmToNetexTransformer.setJoinRunRecords(2);
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        ConversionReport report = new ConversionReport();
+        osmToNetexTransformer.marshallOsm(new InputSource(new ByteArrayInputStream(osm)), result, "TopographicPlace", "multi_target.xml", "test", report);
+
+        Assertions.assertEquals(expectedReport.getConverted(), report.getConverted());
+        Assertions.assertEquals(expectedReport.getIssues(), report.getIssues());
+        try (Stream<Path> files = Files.list(spillDirectory)) {
+            Assertions.assertEquals(0, files.count());
+        }
+        assertSameDelivery(expected, result);
+    }
+
+    @Test
+    public void parsesRangesOfFileOnSeveralThreads(@TempDir Path directory) throws ClassNotFoundException, IOException {
+        ClassLoader classloader = Thread.currentThread().getContextClassLoader();
+        String osm = new String(classloader.getResourceAsStream("multi_target.xml").readAllBytes(), StandardCharsets.UTF_8);
+        // Unreferenced nodes make the file large enough to be split
+        StringBuilder padding = new StringBuilder();
+        for (int i = 1; i <= 100_000; i++) {
+            padding.append("  <node id='").append(i).append("' version='1' lat='59.5' lon='10.5' />\n");
+        }
+        int bodyStart = osm.indexOf('>', osm.indexOf("<osm")) + 2;
+        Path file = directory.resolve("multi_target.osm");
+        Files.writeString(file, osm.substring(0, bodyStart) + padding + osm.substring(bodyStart));
+
+        Osm parsed = ParallelOsmParser.parse(file, 4, null, new AtomicLong());
+        Assertions.assertNotNull(parsed);
+        Assertions.assertEquals(100_004, parsed.getNode().size());
+        Assertions.assertEquals(BigInteger.ONE, parsed.getNode().get(0).getId());
+        Assertions.assertEquals(BigInteger.valueOf(-4), parsed.getNode().get(100_003).getId());
+
+        OsmToNetexTransformer osmToNetexTransformer = new OsmToNetexTransformer();
+        osmToNetexTransformer.setValidationMode(ValidationMode.REPORT);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        try (InputStream input = Files.newInputStream(file)) {
+            osmToNetexTransformer.marshallOsm(new InputSource(input), expected, "TopographicPlace", "multi_target.xml", "test", new ConversionReport());
+        }
+
+        osmToNetexTransformer.setParseThreads(4);
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        osmToNetexTransformer.marshallOsm(new InputSource(file.toUri().toString()), result, "TopographicPlace", "multi_target.xml", "test", new ConversionReport());
+
+        assertSameDelivery(expected, result);
+    }
+
+    @Test
+    public void parsesFileSequentiallyWhenRangesStartInComment(@TempDir Path directory) throws ClassNotFoundException, IOException {
+        ClassLoader classloader = Thread.currentThread().getContextClassLoader();
+        String osm = new String(classloader.getResourceAsStream("multi_target.xml").readAllBytes(), StandardCharsets.UTF_8);
+        // Every range found by scanning for elements starts inside the comment
+        StringBuilder comment = new StringBuilder("<!--\n");
+        for (int i = 1; i <= 100_000; i++) {
+            comment.append("  <node id='").append(i).append("' version='1' lat='59.5' lon='10.5' />\n");
+        }
+        comment.append("-->\n");
+        int bodyStart = osm.indexOf('>', osm.indexOf("<osm")) + 2;
+        Path file = directory.resolve("commented.osm");
+        Files.writeString(file, osm.substring(0, bodyStart) + comment + osm.substring(bodyStart));
+        Assertions.assertNull(ParallelOsmParser.parse(file, 4, null, new AtomicLong()));
+
+        OsmToNetexTransformer osmToNetexTransformer = new OsmToNetexTransformer();
+        osmToNetexTransformer.setValidationMode(ValidationMode.REPORT);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        try (InputStream input = Files.newInputStream(file)) {
+            osmToNetexTransformer.marshallOsm(new InputSource(input), expected, "TopographicPlace", "multi_target.xml", "test", new ConversionReport());
+        }
+
+        List<ProgressListener.Progress> progress = new ArrayList<>();
+        AtomicLong bytesRead = new AtomicLong();
+        osmToNetexTransformer.setParseThreads(4);
+        osmToNetexTransformer.setProgressListener(progress::add);
+        osmToNetexTransformer.setMetrics(new ConversionMetrics() {
+            @Override
+            public void bytesRead(long bytes) {
+                bytesRead.set(bytes);
+            }
+        });
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        osmToNetexTransformer.marshallOsm(new InputSource(file.toUri().toString()), result, "TopographicPlace", "multi_target.xml", "test", new ConversionReport());
+
+        assertSameDelivery(expected, result);
+        Assertions.assertEquals(Files.size(file), bytesRead.get());
+        Assertions.assertEquals(new ProgressListener.Progress(ConversionMetrics.Stage.UNMARSHAL, Files.size(file), 8, -1), progress.get(0));
+    }
+
+    @Test
+    public void reusesZoneFragmentsOfUnchangedWays()throws ClassNotFoundException, IOException {
+        ClassLoader classloader = Thread.currentThread().getContextClassLoader();
+        byte[] osm = classloader.getResourceAsStream("multi_target.xml").readAllBytes();
+
+        OsmToNetexTransformer osmToNetexTransformer = new OsmToNetexTransformer();
+        osmToNetexTransformer.setValidationMode(ValidationMode.REPORT);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        ConversionReport expectedReport = new ConversionReport();
+        osmToNetexTransformer.marshallOsm(new InputSource(new ByteArrayInputStream(osm)), expected, "TopographicPlace", "multi_target.xml", "test", expectedReport);
+
+        ZoneFragmentCache cache = new ZoneFragmentCache();
+        osmToNetexTransformer.setZoneFragmentCache(cache);
+        osmToNetexTransformer.marshallOsm(new InputSource(new ByteArrayInputStream(osm)), new ByteArrayOutputStream(), "TopographicPlace", "multi_target.xml", "test", new ConversionReport());
+        Assertions.assertEquals(new ZoneFragmentCache.Stats(0, 4, 3), cache.getStats());
+
+        Map<ConversionMetrics.Stage, Duration> stages = new EnumMap<>(ConversionMetrics.Stage.class);
+        osmToNetexTransformer.setMetrics(new ConversionMetrics() {
+            @Override
+            public void stage(Stage stage, Duration duration) {
+                stages.put(stage, duration);
+            }
+        });
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        ConversionReport report = new ConversionReport();
+        osmToNetexTransformer.marshallOsm(new InputSource(new ByteArrayInputStream(osm)), result, "TopographicPlace", "multi_target.xml", "test", report);
+        Assertions.assertEquals(new ZoneFragmentCache.Stats(3, 5, 3), cache.getStats());
+        Assertions.assertEquals(3, report.getConverted());
+        Assertions.assertEquals(1, report.getSkipped());
+        Assertions.assertEquals(Set.of(ConversionMetrics.Stage.UNMARSHAL, ConversionMetrics.Stage.NODE_INDEX, ConversionMetrics.Stage.MAP, ConversionMetrics.Stage.MARSHAL), stages.keySet());
+
+        assertSameDelivery(expected, result);
+    }
+
+    @Test
+    public void writesCompactOutputWithZoneFragments() throws ClassNotFoundException, IOException {
+        ClassLoader classloader = Thread.currentThread().getContextClassLoader();
+        byte[] osm = classloader.getResourceAsStream("multi_target.xml").readAllBytes();
+
+        OsmToNetexTransformer osmToNetexTransformer = new OsmToNetexTransformer();
+        osmToNetexTransformer.setValidationMode(ValidationMode.REPORT);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        ConversionReport expectedReport = new ConversionReport();
+        osmToNetexTransformer.marshallOsm(new InputSource(new ByteArrayInputStream(osm)), expected, "TopographicPlace", "multi_target.xml", "test", expectedReport);
+
+        osmToNetexTransformer.setFormattedOutput(false);
+        osmToNetexTransformer.setZoneFragmentCache(new ZoneFragmentCache());
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        osmToNetexTransformer.marshallOsm(new InputSource(new ByteArrayInputStream(osm)), result, "TopographicPlace", "multi_target.xml", "test", new ConversionReport());
+        Assertions.assertFalse(result.toString().contains("\n"));
+
+        assertSameDelivery(expected, result);
+    }
+
+    @Test
+    public void keepsOnlyZonesChangedSincePreviousExport(@TempDir Path directory) throws ClassNotFoundException, IOException {
+        ClassLoader classloader = Thread.currentThread().getContextClassLoader();
+        String osm = new String(classloader.getResourceAsStream("multi_target.xml").readAllBytes());
+        OsmToNetexTransformer osmToNetexTransformer = new OsmToNetexTransformer();
+        osmToNetexTransformer.setValidationMode(ValidationMode.REPORT);
+
+        ByteArrayOutputStream export = new ByteArrayOutputStream();
+        osmToNetexTransformer.marshallOsm(new InputSource(new StringReader(osm)), export, "TopographicPlace", "multi_target.xml", "test", new ConversionReport());
+        ZoneIndex previous = ZoneIndex.fromNetex(new ByteArrayInputStream(export.toByteArray()));
+        Assertions.assertEquals(3, previous.ids().size());
+
+        String edited = osm.replace("v='Tariff'", "v='Renamed'").replace("<tag k='reference' v='3' />", "<tag k='reference' v='5' />");
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        ZoneDiff diff = osmToNetexTransformer.marshallOsmDiff(new InputSource(new StringReader(edited)), result, "TopographicPlace", previous, "multi_target.xml", "test", new ConversionReport());
+
+        Assertions.assertEquals(List.of("TST:TopographicPlace:5"), diff.added());
+        Assertions.assertEquals(List.of("TST:TopographicPlace:1"), diff.changed());
+        Assertions.assertEquals(List.of("TST:TopographicPlace:3"), diff.removed());
+        SiteFrame siteFrame = (SiteFrame) diff.delivery().getDataObjects().getCompositeFrameOrCommonFrame().get(0).getValue();
+        Assertions.assertEquals(2, siteFrame.getTopographicPlaces().getTopographicPlace().size());
+        Assertions.assertTrue(result.toString().contains("modification=\"revise\""), result.toString());
+
+        Path indexFile = directory.resolve("index.txt");
+        diff.index().write(indexFile);
+        ZoneIndex index = ZoneIndex.read(indexFile);
+        Assertions.assertEquals(diff.index().ids(), index.ids());
+        Assertions.assertTrue(index.ids().stream().allMatch(id -> index.get(id).equals(diff.index().get(id))));
+    }
+
+    @Test
+    public void remapsOnlyZonesAffectedByOsmChange(@TempDir Path directory) throws ClassNotFoundException, IOException {
+        ClassLoader classloader = Thread.currentThread().getContextClassLoader();
+        OsmToNetexTransformer osmToNetexTransformer = new OsmToNetexTransformer();
+        osmToNetexTransformer.setValidationMode(ValidationMode.REPORT);
+
+        // The state is saved from the input parsed by a conversion
+        osmToNetexTransformer.setStateDirectory(directory);
+        osmToNetexTransformer.marshallOsm(new InputSource(classloader.getResourceAsStream("multi_target.xml")), new ByteArrayOutputStream(),
+                "TariffZone", "multi_target.xml", "test", new ConversionReport());
+        osmToNetexTransformer.setStateDirectory(null);
+        List<ConversionMetrics.Stage> stages = new ArrayList<>();
+        osmToNetexTransformer.setMetrics(new ConversionMetrics() {
+            @Override
+            public void stage(Stage stage, Duration duration) {
+                stages.add(stage);
+            }
+        });
+        ZoneDiff diff;
+        try (ConversionState state = ConversionState.open(directory)) {
+            diff = osmToNetexTransformer.marshallChange(state, new InputSource(classloader.getResourceAsStream("multi_target_change.osc")), new ByteArrayOutputStream(),
+                    "TariffZone", "multi_target_change.osc", "test", new ConversionReport());
+            state.commit();
+        }
+
+        Assertions.assertEquals(List.of("TST:TariffZone:5"), diff.added());
+        Assertions.assertEquals(List.of("TST:TariffZone:1", "TST:TariffZone:3"), diff.changed());
+        Assertions.assertEquals(List.of("TST:TariffZone:4"), diff.removed());
+        // The zones before the change are only mapped to compare against
+        Assertions.assertEquals(List.of(ConversionMetrics.Stage.NODE_INDEX, ConversionMetrics.Stage.MAP, ConversionMetrics.Stage.MARSHAL), stages);
+
+        String moveNode = "<osmChange><modify><node id='-6' lat='61.0' lon='11.1'/></modify></osmChange>";
+        try (ConversionState state = ConversionState.open(directory)) {
+            ConversionState.Change change = state.apply(new InputSource(new StringReader(moveNode)));
+            Assertions.assertEquals(List.of(BigInteger.valueOf(-105)), change.after().getWay().stream().map(Way::getId).toList());
+            Assertions.assertEquals(11.0, change.before().getNode().stream().filter(node -> node.getId().intValue() == -6).findFirst().orElseThrow().getLon());
+            Assertions.assertEquals(11.1, change.after().getNode().stream().filter(node -> node.getId().intValue() == -6).findFirst().orElseThrow().getLon());
+        }
+        // The change was not committed, so it can be applied again
+        try (ConversionState state = ConversionState.open(directory)) {
+            ConversionState.Change change = state.apply(new InputSource(new StringReader(moveNode)));
+            Assertions.assertEquals(11.0, change.before().getNode().stream().filter(node -> node.getId().intValue() == -6).findFirst().orElseThrow().getLon());
+        }
+    }
+
+    @Test
+    public void remapsWaysLeavingAndJoiningMultipolygons(@TempDir Path directory) throws IOException {
+        ClassLoader classloader = Thread.currentThread().getContextClassLoader();
+        Osm osm = new OsmUnmarshaller(false).unmarshall(new InputSource(classloader.getResourceAsStream("multipolygon.xml")));
+        String withoutInner = "<osmChange><modify><relation id='-201'>"
+                + "<member type='way' ref='-102' role='outer'/><member type='way' ref='-101' role='outer'/><member type='way' ref='-103' role='outer'/>"
+                + "<tag k='type' v='multipolygon'/><tag k='codespace' v='TST'/><tag k='name:nor' v='Ringen'/><tag k='reference' v='1'/>"
+                + "</relation></modify></osmChange>";
+        String innerInOther = "<osmChange><create><relation id='-202'>"
+                + "<member type='way' ref='-104' role='outer'/>"
+                + "<tag k='type' v='multipolygon'/><tag k='codespace' v='TST'/><tag k='name:nor' v='Kjernen'/><tag k='reference' v='2'/>"
+                + "</relation></create></osmChange>";
+
+        try (ConversionState state = ConversionState.create(directory, osm)) {
+            // The inner way leaves the multipolygon and becomes a zone of its own
+            ConversionState.Change change = state.apply(new InputSource(new StringReader(withoutInner)));
+            Assertions.assertFalse(standaloneWayIds(change.before()).contains(BigInteger.valueOf(-104)));
+            Assertions.assertTrue(standaloneWayIds(change.after()).contains(BigInteger.valueOf(-104)));
+            state.commit();
+
+            // It joins a new multipolygon, so its own zone is removed
+            change = state.apply(new InputSource(new StringReader(innerInOther)));
+            Assertions.assertTrue(standaloneWayIds(change.before()).contains(BigInteger.valueOf(-104)));
+            Assertions.assertFalse(standaloneWayIds(change.after()).contains(BigInteger.valueOf(-104)));
+            Assertions.assertEquals(List.of(BigInteger.valueOf(-202)), change.after().getRelation().stream().map(Relation::getId).toList());
+        }
+    }
+
+    private static List<BigInteger> standaloneWayIds(Osm osm) {
+        List<Relation> multipolygons = osm.getRelation().stream().filter(OsmToNetexMapper::isMultipolygon).toList();
+        return OsmToNetexMapper.standaloneWays(osm.getWay(), multipolygons).stream().map(Way::getId).toList();
+    }
+
     private Diff compareResults(Source expected, Source result) {
         return DiffBuilder
                 .compare(expected)
@@ -58,4 +732,14 @@ public class OsmToNetexTransformerTest {
                         ignoredAttributesForSpecificNodes.containsKey(attr.getOwnerElement().getNodeName()) && ignoredAttributesForSpecificNodes.get(attr.getOwnerElement().getNodeName()).contains(attr.getNodeName())))
                 .build();
     }
+
+    private static void assertSameDelivery(ByteArrayOutputStream expected, ByteArrayOutputStream result) {
+        Diff diff = DiffBuilder.compare(Input.fromString(expected.toString()).build())
+                .withTest(Input.fromString(result.toString()).build())
+                .ignoreWhitespace()
+                .withNodeFilter(node -> !ignoredNodes.contains(node.getNodeName()))
+                .withAttributeFilter(attr -> !(ignoredAttributes.contains(attr.getNodeName()) || attr.getOwnerElement().getNodeName().equals("SiteFrame")))
+                .build();
+        Assertions.assertFalse(diff.hasDifferences(), diff.fullDescription());
+    }
 }
@@ -0,0 +1,54 @@
+package org.entur.netex.conversion.osm.transformer;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.openstreetmap.osm.Osm;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXParseException;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+public class OsmUnmarshallerTest {
+
+    private static final String VALID_OSM = "<osm version='0.6'>"
+            + "<node id='-1' lat='59.0' lon='10.0'/><node id='-2' lat='59.0' lon='11.0'/><node id='-3' lat='60.0' lon='11.0'/>"
+            + "<way id='-1'><nd ref='-1'/><nd ref='-2'/><nd ref='-3'/><nd ref='-1'/><tag k='name' v='Zone'/></way>"
+            + "<bounds minlat='59.0' minlon='10.0' maxlat='60.0' maxlon='11.0'/></osm>";
+
+    @ParameterizedTest
+    @EnumSource(SchemaValidation.class)
+    public void readsValidInputInEachMode(SchemaValidation schemaValidation) throws IOException {
+        Osm osm = new OsmUnmarshaller(schemaValidation).unmarshall(new InputSource(new StringReader(VALID_OSM)));
+        Assertions.assertEquals(3, osm.getNode().size());
+        Assertions.assertEquals(4, osm.getWay().get(0).getNd().size());
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = SchemaValidation.class, names = {"SYNC", "ASYNC"})
+    public void failsOnTheFirstSchemaErrorSyncAndAsync(SchemaValidation schemaValidation) {
+        StringBuilder osm = new StringBuilder("<osm version='0.6'>\n<node id='1' lat='59.0' lon='10.0' colour='red'/>\n");
+        for (int i = 2; i < 100_000; i++) {
+            osm.append("<node id='").append(i).append("' lat='59.0' lon='10.0'/>\n");
+        }
+        osm.append("</osm>");
+        RuntimeException exception = Assertions.assertThrows(RuntimeException.class,
+                () -> new OsmUnmarshaller(schemaValidation).unmarshall(new InputSource(new StringReader(osm.toString()))));
+        SAXParseException cause = findCause(exception);
+        Assertions.assertNotNull(cause, () -> "No SAXParseException in " + exception);
+        Assertions.assertEquals(2, cause.getLineNumber());
+    }
+
+    private static SAXParseException findCause(Throwable exception) {
+        for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SAXParseException saxParseException) {
+                return saxParseException;
+            }
+            if (cause instanceof jakarta.xml.bind.JAXBException jaxbException && jaxbException.getLinkedException() instanceof SAXParseException linked) {
+                return linked;
+            }
+        }
+        return null;
+    }
+}
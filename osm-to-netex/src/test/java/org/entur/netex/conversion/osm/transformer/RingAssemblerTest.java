@@ -0,0 +1,71 @@
+package org.entur.netex.conversion.osm.transformer;
+
+import net.opengis.gml._3.LinearRingType;
+import net.opengis.gml._3.PolygonType;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.openstreetmap.osm.Node;
+import org.openstreetmap.osm.Osm;
+import org.openstreetmap.osm.Relation;
+import org.openstreetmap.osm.Way;
+import org.rutebanken.netex.model.ObjectFactory;
+import org.rutebanken.netex.model.TariffZone;
+import org.xml.sax.InputSource;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+public class RingAssemblerTest {
+
+    @Test
+    public void joinsSegmentsInAnyOrderAndDirection() {
+        List<long[]> rings = RingAssembler.assemble(List.of(
+                new long[]{3, 4, 5},
+                new long[]{1, 2, 3},
+                new long[]{1, 6, 5},
+                new long[]{10, 11, 12, 10}));
+
+        Assertions.assertEquals(2, rings.size());
+        Assertions.assertArrayEquals(new long[]{3, 4, 5, 6, 1, 2, 3}, rings.get(0));
+        Assertions.assertArrayEquals(new long[]{10, 11, 12, 10}, rings.get(1));
+    }
+
+    @Test
+    public void failsOnOpenRing() {
+        IllegalArgumentException e = Assertions.assertThrows(IllegalArgumentException.class,
+                () -> RingAssembler.assemble(List.of(new long[]{1, 2, 3}, new long[]{3, 4, 5})));
+        Assertions.assertTrue(e.getMessage().contains("not closed"), e.getMessage());
+    }
+
+    @Test
+    public void mapsMultipolygonRelationToPolygonWithHole() throws IOException {
+        ClassLoader classloader = Thread.currentThread().getContextClassLoader();
+        Osm osm = new OsmUnmarshaller(false).unmarshall(new InputSource(classloader.getResourceAsStream("multipolygon.xml")));
+        Map<BigInteger, Node> mapOfNodes = osm.getNode().stream().collect(Collectors.toMap(Node::getId, node -> node));
+        Map<BigInteger, Way> waysById = osm.getWay().stream().collect(Collectors.toMap(Way::getId, way -> way));
+        List<Relation> multipolygons = osm.getRelation().stream().filter(OsmToNetexMapper::isMultipolygon).toList();
+
+        Assertions.assertTrue(OsmToNetexMapper.standaloneWays(osm.getWay(), multipolygons).isEmpty());
+
+        ConversionReport report = new ConversionReport();
+        OsmToNetexMapper<TariffZone> mapper = new OsmToNetexMapper<>(new NetexHelper(new ObjectFactory()), new ConversionContext(ValidationMode.FAIL_FAST, report));
+        TariffZone zone = mapper.mapMultipolygonToZone(multipolygons.get(0), waysById, mapOfNodes, TariffZone.class).getValue();
+
+        Assertions.assertEquals("TST:TariffZone:1", zone.getId());
+        PolygonType polygon = zone.getPolygon();
+        LinearRingType exterior = (LinearRingType) polygon.getExterior().getAbstractRing().getValue();
+        Assertions.assertEquals(7 * 2, exterior.getPosList().getValue().size());
+        Assertions.assertEquals(1, polygon.getInterior().size());
+
+        // The smaller outer ring and the inner ring outside the exterior are left out, and reported
+        Assertions.assertEquals(List.of("Multipolygon has 2 outer rings, only the largest is used as zone polygon",
+                        "Inner ring starting at (62.0 10.0) is outside the outer ring and left out"),
+                report.getIssues().stream().map(ConversionIssue::message).toList());
+        Assertions.assertTrue(report.getIssues().stream().allMatch(issue -> issue.severity() == ConversionIssue.Severity.WARNING
+                && issue.rule().equals(ConversionIssue.DROPPED_RING) && issue.elementId().equals("-201")));
+        Assertions.assertEquals(1, report.getConverted());
+    }
+}
@@ -0,0 +1,52 @@
+package org.entur.netex.conversion.osm.transformer;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Document;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+public class ZoneFragmentWriterTest {
+
+    private static final String SKELETON = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>"
+            + "<PublicationDelivery xmlns=\"urn:netex\" xmlns:ns2=\"urn:gml\">"
+            + "<Description>Placeholder id=\"Z:0\"</Description>"
+            + "<zones><Zone version='1' id='Z:0'><Name>Z:0</Name></Zone></zones>"
+            + "</PublicationDelivery>";
+
+    @Test
+    public void replacesPlaceholderElementWithFragments() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ZoneFragmentWriter writer = new ZoneFragmentWriter(SKELETON.getBytes(StandardCharsets.UTF_8), "Z:0", output);
+        writer.write("<Zone xmlns=\"urn:netex\" xmlns:ns2=\"urn:gml\" id=\"Z:1\"><ns2:Polygon/></Zone>".getBytes(StandardCharsets.UTF_8));
+        writer.write("<Zone xmlns=\"urn:netex\" xmlns:ns4=\"urn:other\" id=\"Z:2\"><ns4:Extension/></Zone>".getBytes(StandardCharsets.UTF_8));
+        Assertions.assertTrue(writer.finish());
+
+        String xml = output.toString(StandardCharsets.UTF_8);
+        Assertions.assertEquals(1, xml.split("xmlns:ns2=").length - 1, xml);
+        Assertions.assertTrue(xml.contains("xmlns:ns4=\"urn:other\""), xml);
+        Assertions.assertTrue(xml.contains("<Description>Placeholder id=\"Z:0\"</Description>"), xml);
+
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        Document document = factory.newDocumentBuilder().parse(new ByteArrayInputStream(output.toByteArray()));
+        Assertions.assertEquals(2, document.getElementsByTagNameNS("urn:netex", "Zone").getLength());
+        Assertions.assertEquals("Z:1", document.getElementsByTagNameNS("urn:netex", "Zone").item(0).getAttributes().getNamedItem("id").getNodeValue());
+        Assertions.assertEquals(1, document.getElementsByTagNameNS("urn:gml", "Polygon").getLength());
+        Assertions.assertEquals(0, document.getElementsByTagNameNS("urn:netex", "Name").getLength());
+    }
+
+    @Test
+    public void writesNothingWithoutFragments() {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ZoneFragmentWriter writer = new ZoneFragmentWriter(SKELETON.getBytes(StandardCharsets.UTF_8), "Z:0", output);
+        Assertions.assertFalse(writer.finish());
+        Assertions.assertEquals(0, output.size());
+
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> new ZoneFragmentWriter(SKELETON.getBytes(StandardCharsets.UTF_8), "Z:9", new ByteArrayOutputStream()));
+    }
+}